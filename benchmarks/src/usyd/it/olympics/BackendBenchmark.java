@@ -0,0 +1,241 @@
+package usyd.it.olympics;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import usyd.it.olympics.tools.Dataset;
+
+/**
+ * JMH benchmarks of every DatabaseBackend operation the client uses, run
+ * against the database named in the config file, which must hold a
+ * reproducible Dataset with the same seed and scale. Seeding it replaces
+ * everything in the Olympics tables, so it is only done when both
+ * seedDatabase and allowTruncate are set.
+ *
+ * Each benchmark reports throughput and sampled latency (with percentiles);
+ * add "-prof gc" for allocation rates. See benchmarks/README.md.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+public class BackendBenchmark {
+
+    /// Config file naming the database to use, kept apart from the client's own
+    @Param("bench.properties")
+    public String config;
+
+    @Param("2000")
+    public long seed;
+
+    @Param("0.1")
+    public double scale;
+
+    /// Whether to replace the database contents with the dataset first
+    @Param("false")
+    public boolean seedDatabase;
+
+    /// Must be set as well as seedDatabase, to confirm the tables may be truncated
+    @Param("false")
+    public boolean allowTruncate;
+
+    DatabaseBackend db;
+    Dataset dataset;
+    Properties props;
+    /// Bookings made by the benchmark are booked by this staff member, so they can be removed
+    String benchStaff;
+    Timestamp trialStart;
+    /// Place names by place ID, which the dataset numbers from 1
+    ArrayList<String> placeNames;
+    final AtomicInteger threadSeeds = new AtomicInteger();
+
+    /**
+     * Parameters drawn at random for each call, from a per-thread generator
+     * so runs are repeatable and threads don't contend.
+     */
+    @State(Scope.Thread)
+    public static class Picks {
+        Random random;
+        Dataset dataset;
+
+        @Setup(Level.Trial)
+        public void setUp(BackendBenchmark bench) {
+            random = new Random(bench.seed * 31 + bench.threadSeeds.incrementAndGet());
+            dataset = bench.dataset;
+        }
+
+        Object[] member() {
+            return dataset.members.get(random.nextInt(dataset.members.size()));
+        }
+
+        Object[] journey() {
+            return dataset.journeys.get(random.nextInt(dataset.journeys.size()));
+        }
+
+        Integer sportId() {
+            return (Integer) dataset.sports.get(random.nextInt(dataset.sports.size()))[0];
+        }
+
+        Integer eventId() {
+            return (Integer) dataset.events.get(random.nextInt(dataset.events.size()))[0];
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        props = new Properties();
+        InputStream in = new FileInputStream(config);
+        try {
+            props.load(in);
+        } finally {
+            in.close();
+        }
+        dataset = new Dataset(seed, scale);
+        if (seedDatabase && !allowTruncate) {
+            throw new IllegalStateException("seedDatabase truncates every Olympics table in "
+                    + config + "; pass -p allowTruncate=true as well to do so");
+        }
+        if (seedDatabase) {
+            Connection conn = Dataset.connect(props);
+            try {
+                if (Dataset.holdsOtherMembers(conn)) {
+                    throw new IllegalStateException(config + " names a database with members no Dataset generated");
+                }
+                dataset.load(conn, true);
+            } finally {
+                conn.close();
+            }
+        }
+        placeNames = new ArrayList<String>();
+        placeNames.add(null);
+        for (Object[] place : dataset.places) placeNames.add((String) place[1]);
+        benchStaff = (String) dataset.staff.get(0)[0];
+        trialStart = new Timestamp(System.currentTimeMillis());
+        in = new FileInputStream(config);
+        try {
+            db = new DatabaseBackend(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Remove the benchmark's bookings after each iteration, so journeys don't
+     * fill up and every iteration books onto the same data.
+     */
+    @TearDown(Level.Iteration)
+    public void removeBookings() throws Exception {
+        Connection conn = Dataset.connect(props);
+        try {
+            PreparedStatement stmt = conn.prepareStatement("DELETE FROM Booking WHERE booked_by = ? AND when_booked >= ?");
+            stmt.setString(1, benchStaff);
+            stmt.setTimestamp(2, trialStart);
+            stmt.executeUpdate();
+            stmt = conn.prepareStatement("UPDATE Journey SET nbooked = (SELECT COUNT(*) FROM Booking WHERE Booking.journey_id = Journey.journey_id) " +
+                    "WHERE nbooked <> (SELECT COUNT(*) FROM Booking WHERE Booking.journey_id = Journey.journey_id)");
+            stmt.executeUpdate();
+        } finally {
+            conn.close();
+        }
+        db.refreshJourneyIndex();
+        db.refreshJourneyPlanner();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        db.close();
+    }
+
+    @Benchmark
+    public HashMap<String, Object> checkLogin(Picks picks) throws OlympicsDBException {
+        String memberId = (String) picks.member()[0];
+        return db.checkLogin(memberId, Dataset.password(memberId).toCharArray());
+    }
+
+    @Benchmark
+    public HashMap<String, Object> getMemberDetails(Picks picks) throws OlympicsDBException {
+        return db.getMemberDetails((String) picks.member()[0]);
+    }
+
+    @Benchmark
+    public Object getEventsOfSport(Picks picks) throws OlympicsDBException {
+        return db.getEventsOfSport(picks.sportId());
+    }
+
+    @Benchmark
+    public Object getResultsOfEvent(Picks picks) throws OlympicsDBException {
+        return db.getResultsOfEvent(picks.eventId());
+    }
+
+    @Benchmark
+    public Object findJourneys(Picks picks) throws OlympicsDBException {
+        Object[] journey = picks.journey();
+        return db.findJourneys(placeName((Integer) journey[2]), placeName((Integer) journey[3]),
+                new Date(((Timestamp) journey[4]).getTime()));
+    }
+
+    @Benchmark
+    public Object getMemberBookings(Picks picks) throws OlympicsDBException {
+        return db.getMemberBookings((String) picks.member()[0]);
+    }
+
+    @Benchmark
+    public HashMap<String, Object> getJourneyDetails(Picks picks) throws OlympicsDBException {
+        return db.getJourneyDetails((Integer) picks.journey()[0]);
+    }
+
+    @Benchmark
+    public HashMap<String, Object> makeBooking(Picks picks) {
+        Object[] journey = picks.journey();
+        try {
+            return db.makeBooking(benchStaff, Dataset.memberName(picks.member()), ((String) journey[1]).trim(),
+                    new Date(((Timestamp) journey[4]).getTime()));
+        } catch (OlympicsDBException e) {
+            // Member already booked on that journey: still a measured round trip
+            return null;
+        }
+    }
+
+    @Benchmark
+    public Object getSports() throws OlympicsDBException {
+        return db.getSports();
+    }
+
+    private String placeName(int placeId) {
+        return placeNames.get(placeId);
+    }
+
+    /**
+     * Run from an IDE or the command line without the JMH launcher
+     */
+    public static void main(String[] args) throws IOException, org.openjdk.jmh.runner.RunnerException {
+        org.openjdk.jmh.Main.main(args.length > 0 ? args : new String[] { BackendBenchmark.class.getSimpleName(), "-prof", "gc" });
+    }
+}
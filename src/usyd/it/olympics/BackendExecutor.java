@@ -0,0 +1,140 @@
+package usyd.it.olympics;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.swing.SwingUtilities;
+
+/**
+ * Runs backend calls for the client off the Swing event dispatch thread.
+ *
+ * The client has at most one foreground request in flight: starting another
+ * one (i.e. the user navigating somewhere else) cancels the previous request,
+ * whose result is then discarded rather than overwriting the new screen.
+ * Requests that write (see BackendWorker.isWrite) are left to finish and
+ * report their outcome instead, as the write may commit regardless.
+ * A LoadingListener is told when the client starts and stops waiting so the
+ * GUI can show a loading state.
+ *
+ * Work runs on virtual threads when the JVM supports them, otherwise on a
+ * small pool of daemon threads.
+ */
+public class BackendExecutor {
+
+    /**
+     * Notified on the event dispatch thread when a foreground request starts
+     * or stops.
+     */
+    public interface LoadingListener {
+        void setLoading(boolean loading);
+    }
+
+    private final ExecutorService executor;
+    private final LoadingListener listener;
+    /// Foreground request in flight, only accessed on the event dispatch thread
+    private BackendWorker<?> current;
+
+    /**
+     * @param listener told when loading starts and stops, may be null
+     */
+    public BackendExecutor(LoadingListener listener) {
+        this.listener = listener;
+        executor = newExecutor("backend-worker");
+    }
+
+    /**
+     * Start a foreground request, cancelling any that is still in flight.
+     * Must be called on the event dispatch thread.
+     * @param worker request to run
+     */
+    public void run(BackendWorker<?> worker) {
+        cancelPending();
+        current = worker;
+        worker.setOwner(this);
+        if (listener != null) listener.setLoading(true);
+        executor.execute(worker);
+    }
+
+    /**
+     * Start a background request that doesn't replace the foreground one.
+     * @param worker request to run
+     */
+    public void runInBackground(BackendWorker<?> worker) {
+        executor.execute(worker);
+    }
+
+    /**
+     * @return executor for other background work on behalf of the GUI
+     */
+    public ExecutorService getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Abandon the foreground request, if any. A write isn't interrupted, as
+     * it may commit anyway; it stops counting as loading but still reports
+     * its outcome. Must be called on the event dispatch thread.
+     */
+    public void cancelPending() {
+        if (current != null) {
+            BackendWorker<?> old = current;
+            current = null;
+            if (!old.isWrite()) old.cancel(true);
+            if (listener != null) listener.setLoading(false);
+        }
+    }
+
+    /**
+     * Stop accepting work and interrupt anything still running.
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    boolean isCurrent(BackendWorker<?> worker) {
+        return current == worker;
+    }
+
+    void finished(final BackendWorker<?> worker) {
+        if (!SwingUtilities.isEventDispatchThread()) {
+            SwingUtilities.invokeLater(new Runnable() {
+                @Override
+                public void run() {
+                    finished(worker);
+                }
+            });
+            return;
+        }
+        if (current == worker) {
+            current = null;
+            if (listener != null) listener.setLoading(false);
+        }
+    }
+
+    /**
+     * Create an executor using a virtual thread per task if available (Java 21
+     * and later), otherwise a cached pool of daemon platform threads.
+     * @param name prefix for thread names
+     * @return new executor
+     */
+    public static ExecutorService newExecutor(final String name) {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (Exception e) {
+            // No virtual threads on this JVM
+        }
+        final AtomicInteger count = new AtomicInteger();
+        return Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+}
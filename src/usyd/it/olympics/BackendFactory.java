@@ -0,0 +1,85 @@
+package usyd.it.olympics;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+
+import usyd.it.olympics.server.RemoteBackend;
+import usyd.it.olympics.tools.Dataset;
+
+/**
+ * Creates the backend named by the "backend" setting of a config file:
+ * "jdbc" (the default) for DatabaseBackend, "memory" for an
+ * InMemoryBackend holding the dataset generated from memory_seed and
+ * memory_scale, or "remote" for a RemoteBackend using the OlympicsServer at
+ * remote_url. With metrics set to true, the backend is wrapped in an
+ * InstrumentedBackend.
+ */
+public final class BackendFactory {
+
+    private BackendFactory() {
+    }
+
+    /**
+     * @param config contents of the config file
+     * @return the configured backend
+     * @throws OlympicsDBException if the config can't be read or the backend
+     * can't be set up
+     */
+    public static OlympicsBackend open(InputStream config) throws OlympicsDBException {
+        Properties props = new Properties();
+        try {
+            props.load(config);
+        } catch (IOException e) {
+            throw new OlympicsDBException("Couldn't read config data", e);
+        }
+        return open(props);
+    }
+
+    /**
+     * @param props config settings
+     * @return the configured backend
+     * @throws OlympicsDBException if the backend can't be set up
+     */
+    public static OlympicsBackend open(Properties props) throws OlympicsDBException {
+        OlympicsBackend backend = create(props);
+        if (Boolean.parseBoolean(props.getProperty("metrics", "false").trim())) {
+            try {
+                backend = new InstrumentedBackend(backend, props);
+            } catch (OlympicsDBException e) {
+                backend.close();
+                throw e;
+            }
+        }
+        return backend;
+    }
+
+    private static OlympicsBackend create(Properties props) throws OlympicsDBException {
+        String kind = props.getProperty("backend", "jdbc").trim();
+        if ("jdbc".equals(kind)) {
+            try {
+                return new DatabaseBackend(props);
+            } catch (ClassNotFoundException e) {
+                throw new OlympicsDBException("JDBC driver not found", e);
+            }
+        } else if ("memory".equals(kind)) {
+            Dataset dataset = new Dataset(DatabaseBackend.intProperty(props, "memory_seed", 2000),
+                    doubleProperty(props, "memory_scale", 1.0));
+            return new InMemoryBackend(dataset, props);
+        } else if ("remote".equals(kind)) {
+            return new RemoteBackend(props);
+        } else throw new OlympicsDBException("Unknown backend: " + kind);
+    }
+
+    private static double doubleProperty(Properties props, String key, double defaultValue) {
+        String value = props.getProperty(key);
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Double.parseDouble(value.trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+}
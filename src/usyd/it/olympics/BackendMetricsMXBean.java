@@ -0,0 +1,58 @@
+package usyd.it.olympics;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Backend metrics as seen over JMX (e.g. in jconsole or VisualVM), under
+ * the name usyd.it.olympics:type=BackendMetrics. Maps are keyed by backend
+ * operation, e.g. "checkLogin" or "makeBooking"; latencies are in
+ * milliseconds.
+ */
+public interface BackendMetricsMXBean {
+
+    /// 99th percentile latency of checkLogin
+    double getLoginP99Millis();
+
+    /// 99th percentile latency of makeBooking and makeBookings together
+    double getBookingP99Millis();
+
+    Map<String, Long> getCalls();
+
+    Map<String, Long> getErrors();
+
+    Map<String, Double> getP50Millis();
+
+    Map<String, Double> getP99Millis();
+
+    Map<String, Double> getP999Millis();
+
+    Map<String, Double> getMaxMillis();
+
+    /// Rows returned: tuples of a table, or 1 for a non-empty single result
+    Map<String, Long> getRowsFetched();
+
+    /// Estimated heap size of the results returned
+    Map<String, Long> getBytesMaterialized();
+
+    /// Connection pool and cache statistics of the backend, as text
+    Map<String, String> getBackendStatistics();
+
+    /**
+     * @return every metric, laid out as a text report
+     */
+    String report();
+
+    /**
+     * Append the report to the configured metrics file
+     * @return the file written
+     * @throws IOException if it couldn't be written
+     */
+    String dump() throws IOException;
+
+    /**
+     * Forget the operation metrics recorded so far. Backend statistics are
+     * not affected.
+     */
+    void reset();
+}
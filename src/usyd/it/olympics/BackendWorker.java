@@ -0,0 +1,91 @@
+package usyd.it.olympics;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+
+import javax.swing.SwingWorker;
+
+/**
+ * A backend call made on behalf of the GUI. query() runs on a BackendExecutor
+ * thread so the Swing event dispatch thread stays responsive, then either
+ * succeeded() or failed() runs back on the event dispatch thread to update the
+ * screens. Neither is called if the worker was cancelled in the meantime.
+ *
+ * @param <T> result of the backend call
+ */
+public abstract class BackendWorker<T> extends SwingWorker<T, Void> {
+
+    private BackendExecutor owner;
+
+    /**
+     * Perform the backend call. Runs off the event dispatch thread, so must not
+     * touch the GUI.
+     * @return result to pass to succeeded()
+     * @throws OlympicsDBException passed to failed()
+     */
+    protected abstract T query() throws OlympicsDBException;
+
+    /**
+     * Display the result. Runs on the event dispatch thread.
+     * @param result value returned by query()
+     */
+    protected abstract void succeeded(T result);
+
+    /**
+     * Report a failed query. Runs on the event dispatch thread.
+     * @param e exception thrown by query()
+     */
+    protected abstract void failed(OlympicsDBException e);
+
+    /**
+     * @return whether the request changes data, e.g. makes a booking. The
+     * change may be committed however late the answer comes, so such a
+     * request is never cancelled: when the user moves on, its outcome is
+     * still reported.
+     */
+    protected boolean isWrite() {
+        return false;
+    }
+
+    /**
+     * @return whether this is still the foreground request, i.e. the user has
+     * not moved on since it started. Only meaningful on the event dispatch
+     * thread, e.g. in succeeded().
+     */
+    protected boolean isCurrent() {
+        return owner != null && owner.isCurrent(this);
+    }
+
+    void setOwner(BackendExecutor owner) {
+        this.owner = owner;
+    }
+
+    @Override
+    protected final T doInBackground() throws Exception {
+        return query();
+    }
+
+    @Override
+    protected final void done() {
+        try {
+            if (!isCancelled()) {
+                succeeded(get());
+            }
+        } catch (CancellationException e) {
+            // Superseded while finishing: nothing to show
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof OlympicsDBException) {
+                failed((OlympicsDBException) cause);
+            } else {
+                failed(new OlympicsDBException("Unexpected error: " + cause, cause));
+            }
+        } finally {
+            if (owner != null) {
+                owner.finished(this);
+            }
+        }
+    }
+}
@@ -0,0 +1,594 @@
+package usyd.it.olympics;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Properties;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded pool of JDBC connections shared by all DatabaseBackend methods.
+ *
+ * Callers borrow a connection and simply close() it when done: the returned
+ * object is a lease on a pooled physical connection, and closing the lease
+ * hands the physical connection back to the pool rather than disconnecting.
+ * Statements opened through a lease are closed when it is returned, and any
+ * uncommitted transaction is rolled back.
+ *
+ * Each physical connection also keeps an LRU cache of the statements prepared
+ * on it with prepareStatement(String), keyed by SQL text. A repeat of the same
+ * SQL on that connection gets the already-prepared statement back, so with the
+ * PostgreSQL driver's prepareThreshold set low the server-side plan is reused
+ * instead of being parsed and planned again. Closing a cached statement only
+ * releases it back to the cache: its result set is closed and its parameters
+ * and settings such as fetch size and query timeout are reset, as they are
+ * for every cached statement used by a lease when the lease is returned,
+ * closed or not. A lease should not prepare the same SQL twice
+ * while still using the first statement, as both share one cached statement.
+ *
+ * With slowquery_ms set, every execution of a prepared statement is timed
+ * and those that take longer are reported to a SlowQueryLog.
+ *
+ * Pool settings are read from the same properties file as the connection
+ * details (see olympicsdb.properties).
+ */
+class ConnectionPool {
+
+    private final String connstring;
+    private final Properties connProps;
+
+    private final int minSize;
+    private final int maxSize;
+    private final long maxWaitMillis;
+    private final long idleTimeoutMillis;
+    private final long validateIdleMillis;
+    private final int stmtCacheSize;
+    /// Where statements slower than slowquery_ms are reported; null if off
+    private final SlowQueryLog slowQueries;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition available = lock.newCondition();
+    /// Idle connections, most recently returned first
+    private final ArrayDeque<PooledConnection> idle = new ArrayDeque<PooledConnection>();
+    private final Timer evictor;
+    private int total;
+    private boolean closed;
+
+    ///////////////////////////////
+    /// Statistics, guarded by lock
+    ///////////////////////////////
+    private long acquisitions;
+    private long waits;
+    private long waitNanosTotal;
+    private long waitNanosMax;
+    private long timeouts;
+    private long created;
+    private long evicted;
+    private long invalidated;
+    /// Time taken by every borrow(), including opening and validating
+    private final LatencyHistogram acquisitionTimes = new LatencyHistogram();
+    private final AtomicLong stmtHits = new AtomicLong();
+    private final AtomicLong stmtMisses = new AtomicLong();
+    private final AtomicLong stmtEvictions = new AtomicLong();
+
+    /**
+     * Create the pool and open the minimum number of connections.
+     *
+     * @param connstring JDBC URL
+     * @param driverProps properties passed to the driver (user, password, etc.)
+     * @param config pool settings (pool_* and stmt_cache_size keys)
+     * @throws SQLException if the initial connections can't be opened
+     */
+    ConnectionPool(String connstring, Properties driverProps, Properties config) throws SQLException {
+        this.connstring = connstring;
+        connProps = driverProps;
+
+        minSize = DatabaseBackend.intProperty(config, "pool_min_size", 1);
+        maxSize = Math.max(minSize, DatabaseBackend.intProperty(config, "pool_max_size", 8));
+        maxWaitMillis = DatabaseBackend.intProperty(config, "pool_max_wait_ms", 5000);
+        idleTimeoutMillis = DatabaseBackend.intProperty(config, "pool_idle_timeout_ms", 300000);
+        validateIdleMillis = DatabaseBackend.intProperty(config, "pool_validate_idle_ms", 5000);
+        stmtCacheSize = DatabaseBackend.intProperty(config, "stmt_cache_size", 32);
+        slowQueries = SlowQueryLog.create(connstring, driverProps, config);
+
+        // Fill up to the minimum straight away, which also tests the connection details
+        ArrayList<PooledConnection> initial = new ArrayList<PooledConnection>();
+        try {
+            for (int i = 0; i < minSize; ++i) {
+                initial.add(open());
+            }
+        } catch (SQLException e) {
+            for (PooledConnection pc : initial) pc.reallyClose();
+            throw e;
+        }
+        lock.lock();
+        try {
+            total = initial.size();
+            idle.addAll(initial);
+        } finally {
+            lock.unlock();
+        }
+
+        evictor = new Timer("ConnectionPool-evictor", true);
+        long period = Math.max(1000, idleTimeoutMillis / 2);
+        evictor.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                evictIdle();
+            }
+        }, period, period);
+    }
+
+    /**
+     * Borrow a connection, waiting up to pool_max_wait_ms if all are in use.
+     * Close the returned connection to give it back.
+     *
+     * @return leased database connection
+     * @throws SQLException if no connection became available in time, or a new
+     * one couldn't be opened
+     */
+    Connection borrow() throws SQLException {
+        long start = System.nanoTime();
+        long remaining = TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+        boolean waited = false;
+        while (true) {
+            PooledConnection pc = null;
+            boolean grow = false;
+            lock.lock();
+            try {
+                while (!closed && idle.isEmpty() && total >= maxSize) {
+                    if (remaining <= 0) {
+                        ++timeouts;
+                        throw new SQLException("Timed out after " + maxWaitMillis + "ms waiting for a database connection");
+                    }
+                    waited = true;
+                    try {
+                        remaining = available.awaitNanos(remaining);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new SQLException("Interrupted waiting for a database connection", e);
+                    }
+                }
+                if (closed) {
+                    throw new SQLException("Connection pool has been closed");
+                }
+                pc = idle.pollFirst();
+                if (pc == null) {
+                    ++total;
+                    grow = true;
+                }
+            } finally {
+                lock.unlock();
+            }
+
+            if (grow) {
+                try {
+                    pc = open();
+                } catch (SQLException e) {
+                    discarded(false);
+                    throw e;
+                }
+            } else if (!validate(pc)) {
+                pc.reallyClose();
+                discarded(true);
+                continue;
+            }
+            acquired(System.nanoTime() - start, waited);
+            return pc.lease();
+        }
+    }
+
+    /**
+     * Close all idle connections and stop handing out new ones. Connections
+     * currently on loan are closed as they are returned.
+     */
+    void close() {
+        evictor.cancel();
+        ArrayList<PooledConnection> toClose;
+        lock.lock();
+        try {
+            closed = true;
+            toClose = new ArrayList<PooledConnection>(idle);
+            total -= idle.size();
+            idle.clear();
+            available.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        for (PooledConnection pc : toClose) pc.reallyClose();
+        if (slowQueries != null) {
+            slowQueries.close();
+        }
+    }
+
+    /**
+     * @return snapshot of pool sizes and acquisition-wait metrics, with
+     * percentiles of the time taken to acquire a connection
+     */
+    HashMap<String, Object> getStatistics() {
+        HashMap<String, Object> stats = new HashMap<String, Object>();
+        lock.lock();
+        try {
+            stats.put("pool_size", total);
+            stats.put("pool_idle", idle.size());
+            stats.put("pool_min_size", minSize);
+            stats.put("pool_max_size", maxSize);
+            stats.put("acquisitions", acquisitions);
+            stats.put("acquisitions_waited", waits);
+            stats.put("acquisition_timeouts", timeouts);
+            stats.put("acquisition_wait_avg_ms", acquisitions == 0 ? 0.0 : waitNanosTotal / 1e6 / acquisitions);
+            stats.put("acquisition_wait_max_ms", waitNanosMax / 1e6);
+            stats.put("acquisition_wait_p50_ms", acquisitionTimes.getValueAtPercentile(50) / 1e6);
+            stats.put("acquisition_wait_p99_ms", acquisitionTimes.getValueAtPercentile(99) / 1e6);
+            stats.put("connections_created", created);
+            stats.put("connections_evicted", evicted);
+            stats.put("connections_invalidated", invalidated);
+            stats.put("stmt_cache_size", stmtCacheSize);
+            stats.put("stmt_cache_hits", stmtHits.get());
+            stats.put("stmt_cache_misses", stmtMisses.get());
+            stats.put("stmt_cache_evictions", stmtEvictions.get());
+        } finally {
+            lock.unlock();
+        }
+        if (slowQueries != null) {
+            stats.putAll(slowQueries.getStatistics());
+        }
+        return stats;
+    }
+
+    ///////////////////////////////
+    /// Internals
+    ///////////////////////////////
+
+    private PooledConnection open() throws SQLException {
+        Connection conn = DriverManager.getConnection(connstring, connProps);
+        lock.lock();
+        try {
+            ++created;
+        } finally {
+            lock.unlock();
+        }
+        return new PooledConnection(conn);
+    }
+
+    private boolean validate(PooledConnection pc) {
+        if (System.currentTimeMillis() - pc.lastReturned < validateIdleMillis) {
+            return true;
+        }
+        try {
+            return pc.conn.isValid(Math.max(1, (int) (maxWaitMillis / 1000)));
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    private void acquired(long waitNanos, boolean waited) {
+        acquisitionTimes.record(waitNanos);
+        lock.lock();
+        try {
+            ++acquisitions;
+            if (waited) ++waits;
+            waitNanosTotal += waitNanos;
+            if (waitNanos > waitNanosMax) waitNanosMax = waitNanos;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /// A physical connection has been closed without being returned to idle
+    private void discarded(boolean wasInvalid) {
+        lock.lock();
+        try {
+            --total;
+            if (wasInvalid) ++invalidated;
+            available.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void release(PooledConnection pc) {
+        boolean healthy = pc.reset();
+        lock.lock();
+        try {
+            if (healthy && !closed) {
+                pc.lastReturned = System.currentTimeMillis();
+                idle.addFirst(pc);
+                available.signal();
+                return;
+            }
+        } finally {
+            lock.unlock();
+        }
+        pc.reallyClose();
+        discarded(!healthy);
+    }
+
+    private void evictIdle() {
+        ArrayList<PooledConnection> toClose = new ArrayList<PooledConnection>();
+        long cutoff = System.currentTimeMillis() - idleTimeoutMillis;
+        lock.lock();
+        try {
+            // Oldest idle connections are at the end of the deque
+            Iterator<PooledConnection> it = idle.descendingIterator();
+            while (it.hasNext() && total > minSize) {
+                PooledConnection pc = it.next();
+                if (pc.lastReturned >= cutoff) break;
+                it.remove();
+                --total;
+                ++evicted;
+                toClose.add(pc);
+            }
+        } finally {
+            lock.unlock();
+        }
+        for (PooledConnection pc : toClose) pc.reallyClose();
+    }
+
+    /**
+     * A physical connection owned by the pool, along with its statement cache
+     * and the uncached statements opened on it during the current lease.
+     */
+    private final class PooledConnection {
+        final Connection conn;
+        final ArrayList<Statement> openStatements = new ArrayList<Statement>();
+        /// Cached statements handed out during the current lease, to tidy on return
+        final ArrayList<PreparedStatement> usedStatements = new ArrayList<PreparedStatement>();
+        final LruCache<String, PreparedStatement> statements;
+        volatile long lastReturned = System.currentTimeMillis();
+
+        PooledConnection(Connection conn) {
+            this.conn = conn;
+            statements = new LruCache<String, PreparedStatement>(stmtCacheSize) {
+                @Override
+                protected void onEviction(String sql, PreparedStatement stmt) {
+                    // May still be in use by the current lease, so close it on return
+                    stmtEvictions.incrementAndGet();
+                    openStatements.add(stmt);
+                }
+            };
+        }
+
+        /**
+         * @return prepared statement for the SQL, from the cache if possible
+         */
+        PreparedStatement prepareCached(String sql) throws SQLException {
+            PreparedStatement stmt = statements.get(sql);
+            if (stmt != null && !stmt.isClosed()) {
+                stmtHits.incrementAndGet();
+                stmt.clearParameters();
+                if (!usedStatements.contains(stmt)) usedStatements.add(stmt);
+                return stmt;
+            }
+            stmtMisses.incrementAndGet();
+            stmt = conn.prepareStatement(sql);
+            statements.put(sql, stmt);
+            usedStatements.add(stmt);
+            return stmt;
+        }
+
+        Connection lease() {
+            return (Connection) Proxy.newProxyInstance(
+                    ConnectionPool.class.getClassLoader(),
+                    new Class<?>[] { Connection.class },
+                    new Lease(this));
+        }
+
+        /**
+         * Tidy up after a lease so the connection can be reused.
+         * @return false if the connection is no longer usable
+         */
+        boolean reset() {
+            for (Statement stmt : openStatements) {
+                try {
+                    stmt.close();
+                } catch (SQLException ignored) {}
+            }
+            openStatements.clear();
+            // Callers don't always close their statements or result sets
+            for (PreparedStatement stmt : usedStatements) {
+                tidy(stmt);
+            }
+            usedStatements.clear();
+            try {
+                if (conn.isClosed()) {
+                    return false;
+                }
+                if (!conn.getAutoCommit()) {
+                    conn.rollback();
+                    conn.setAutoCommit(true);
+                }
+                return true;
+            } catch (SQLException e) {
+                return false;
+            }
+        }
+
+        void reallyClose() {
+            try {
+                conn.close();
+            } catch (SQLException ignored) {}
+        }
+    }
+
+    /**
+     * Make a cached statement ready for its next user: close its current
+     * result set, so no cursor stays open on the connection, and undo its
+     * parameters and any settings a caller changed. A statement that can't be
+     * tidied is closed, so the cache prepares it afresh.
+     */
+    static void tidy(PreparedStatement stmt) {
+        try {
+            if (stmt.isClosed()) return;
+            ResultSet rs = stmt.getResultSet();
+            if (rs != null) rs.close();
+            stmt.clearParameters();
+            stmt.clearBatch();
+            stmt.setFetchSize(0);
+            stmt.setMaxRows(0);
+            stmt.setMaxFieldSize(0);
+            stmt.setQueryTimeout(0);
+            stmt.setFetchDirection(ResultSet.FETCH_FORWARD);
+            stmt.clearWarnings();
+        } catch (SQLException e) {
+            try {
+                stmt.close();
+            } catch (SQLException ignored) {}
+        }
+    }
+
+    /**
+     * Connection handed out to callers. Delegates to the physical connection
+     * until closed, at which point the physical connection goes back to the pool.
+     */
+    private final class Lease implements InvocationHandler {
+        private PooledConnection pooled;
+
+        Lease(PooledConnection pooled) {
+            this.pooled = pooled;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if ("close".equals(name) && method.getParameterTypes().length == 0) {
+                PooledConnection pc;
+                synchronized (this) {
+                    pc = pooled;
+                    pooled = null;
+                }
+                if (pc != null) release(pc);
+                return null;
+            } else if ("isClosed".equals(name) && method.getParameterTypes().length == 0) {
+                return pooled == null;
+            } else if ("equals".equals(name) && method.getParameterTypes().length == 1) {
+                return proxy == args[0];
+            } else if ("hashCode".equals(name) && method.getParameterTypes().length == 0) {
+                return System.identityHashCode(proxy);
+            } else if ("toString".equals(name) && method.getParameterTypes().length == 0) {
+                return "Pooled connection to " + connstring;
+            }
+
+            PooledConnection pc = pooled;
+            if (pc == null) {
+                throw new SQLException("Connection has already been returned to the pool");
+            }
+            if ("prepareStatement".equals(name) && args != null && args.length == 1 && args[0] instanceof String) {
+                String sql = (String) args[0];
+                if (stmtCacheSize > 0) {
+                    return CachedStatement.wrap(pc.prepareCached(sql), (Connection) proxy, sql, true, slowQueries);
+                } else if (slowQueries != null) {
+                    PreparedStatement stmt = pc.conn.prepareStatement(sql);
+                    pc.openStatements.add(stmt);
+                    return CachedStatement.wrap(stmt, (Connection) proxy, sql, false, slowQueries);
+                }
+            }
+            Object result;
+            try {
+                result = method.invoke(pc.conn, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+            if (result instanceof Statement) {
+                pc.openStatements.add((Statement) result);
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Statement handed out from a connection's statement cache. Closing it
+     * leaves the underlying statement open for the next caller.
+     *
+     * With the slow query log on, uncached statements are handed out this way
+     * too, and executions are timed: bind values are noted as they are set so
+     * a slow execution can be reported with them.
+     */
+    private static final class CachedStatement implements InvocationHandler {
+        private final PreparedStatement stmt;
+        private final Connection lease;
+        private final String sql;
+        private final boolean cached;
+        private final SlowQueryLog slowQueries;
+        private HashMap<Integer, Object> binds;
+
+        CachedStatement(PreparedStatement stmt, Connection lease, String sql, boolean cached, SlowQueryLog slowQueries) {
+            this.stmt = stmt;
+            this.lease = lease;
+            this.sql = sql;
+            this.cached = cached;
+            this.slowQueries = slowQueries;
+            if (slowQueries != null) binds = new HashMap<Integer, Object>();
+        }
+
+        static PreparedStatement wrap(PreparedStatement stmt, Connection lease, String sql, boolean cached,
+                SlowQueryLog slowQueries) {
+            return (PreparedStatement) Proxy.newProxyInstance(
+                    ConnectionPool.class.getClassLoader(),
+                    new Class<?>[] { PreparedStatement.class },
+                    new CachedStatement(stmt, lease, sql, cached, slowQueries));
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if (method.getParameterTypes().length == 0) {
+                if ("close".equals(name) && cached) {
+                    tidy(stmt);
+                    if (binds != null) binds.clear();
+                    return null;
+                } else if ("getConnection".equals(name)) {
+                    return lease;
+                } else if ("hashCode".equals(name)) {
+                    return System.identityHashCode(proxy);
+                } else if ("toString".equals(name)) {
+                    return stmt.toString();
+                } else if (slowQueries != null && name.startsWith("execute")) {
+                    return timed(method, name);
+                } else if (slowQueries != null && "clearParameters".equals(name)) {
+                    binds.clear();
+                }
+            } else if ("equals".equals(name) && method.getParameterTypes().length == 1) {
+                return proxy == args[0];
+            } else if (slowQueries != null && name.startsWith("set") && args.length >= 2 && args[0] instanceof Integer) {
+                binds.put((Integer) args[0], "setNull".equals(name) ? null : args[1]);
+            }
+            try {
+                return method.invoke(stmt, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+
+        /// Run an execute method, reporting it if it was slow
+        private Object timed(Method method, String name) throws Throwable {
+            long start = System.nanoTime();
+            try {
+                return method.invoke(stmt);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            } finally {
+                long nanos = System.nanoTime() - start;
+                if (slowQueries.isSlow(nanos)) {
+                    slowQueries.executed(sql, new HashMap<Integer, Object>(binds), nanos, "executeBatch".equals(name));
+                }
+            }
+        }
+    }
+}
@@ -13,31 +13,104 @@ package usyd.it.olympics;
  */
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.CharBuffer;
 import java.sql.*;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.*;
 import java.util.Date;
+import java.util.regex.Pattern;
+
+import usyd.it.olympics.data.BookingDetails;
+import usyd.it.olympics.data.BookingOutcome;
+import usyd.it.olympics.data.EventDetails;
+import usyd.it.olympics.data.EventResult;
+import usyd.it.olympics.data.Itinerary;
+import usyd.it.olympics.data.JourneySummary;
+import usyd.it.olympics.data.TupleTable;
 
 /**
  * Database interfacing backend for client. This class uses JDBC to connect to
- * the database, and provides methods to obtain query data.
+ * the database, and provides methods to obtain query data. It is the "jdbc"
+ * implementation of OlympicsBackend.
  *
  * Most methods return database information in the form of HashMaps (sets of
- * key-value pairs), or ArrayLists of HashMaps for multiple results.
+ * key-value pairs), or TupleTables (compact rows laid out by a schema from the
+ * data package) for multiple results.
  *
  * @author Bryn Jeffries {@literal <bryn.jeffries@sydney.edu.au>}
  */
-public class DatabaseBackend {
+public class DatabaseBackend implements OlympicsBackend {
 
     ///////////////////////////////
     /// DB Connection details
     /// These are set in the constructor so you should never need to read or
     /// write to them yourself
     ///////////////////////////////
-    private final String dbUser;
-    private final String dbPass;
     private final String connstring;
+    /// All connections are borrowed from (and closed back into) this pool
+    private final ConnectionPool pool;
+
+    ///////////////////////////////
+    /// Schemas of multi-row results
+    ///////////////////////////////
+    static final JourneySummary JOURNEY_SCHEMA = new JourneySummary();
+    static final EventDetails EVENT_SCHEMA = new EventDetails();
+    static final EventResult RESULT_SCHEMA = new EventResult();
+    static final BookingDetails BOOKING_SCHEMA = new BookingDetails();
+    static final BookingOutcome BOOKING_OUTCOME_SCHEMA = new BookingOutcome();
+    static final Itinerary ITINERARY_SCHEMA = new Itinerary();
+    /// SQL spelling out a medal code as event results show it
+    private static final String MEDAL_NAME =
+            "CASE medal WHEN 'G' THEN 'Gold' WHEN 'S' THEN 'Silver' WHEN 'B' THEN 'Bronze' END";
+
+    ///////////////////////////////
+    /// Caches
+    ///////////////////////////////
+    /// Profiles of members from login until endSession, a booking for them or profile_cache_ttl_s
+    private final LruCache<String, MemberProfile> memberProfiles;
+    private final long memberProfileTtlMillis;
+    /// Athletes' medal tallies by member ID, refreshed after medal_cache_ttl_s
+    private final LruCache<String, MedalTally> medalTallies;
+    private final long medalTallyTtlMillis;
+    /// Sports, places and vehicles, reloaded after refdata_ttl_s
+    private final ReferenceDataCache referenceData;
+    /// Events of each sport, bounded by total number of events held
+    private final LruCache<Integer, TupleTable> eventsBySport;
+    private final boolean preloadEvents;
+    private volatile boolean eventsPreloaded;
+    /// Results of events with medals awarded, until recordMedal changes them; bounded by rows held
+    private final LruCache<Integer, TupleTable> eventResults;
+    /// Countries' medal totals, loaded on first use and then moved by recordMedal
+    private volatile MedalLeaderboard leaderboard;
+    /// Held while the leaderboard loads and while recordMedal changes a medal, so none is missed or counted twice
+    private final Object medalWrites = new Object();
+    /// Journeys by route and day, reloaded after journeyindex_ttl_s
+    private final JourneyIndex journeyIndex;
+    /// Whole timetable for planning trips with changes, reloaded after planner_ttl_s
+    private final JourneyPlanner journeyPlanner;
+    private final int plannerMaxResults;
+    /// Seats booked per journey, written back to nbooked behind the scenes; null unless seat_inventory is on
+    private final SeatInventory seatInventory;
+    /// Unknown places or vehicles trigger a reload if the cache is older than this
+    private static final long REFDATA_RETRY_MS = 10000;
+
+    ///////////////////////////////
+    /// Login
+    ///////////////////////////////
+    /// Member IDs are letters and digits only
+    private static final Pattern MEMBER_ID = Pattern.compile("[0-9A-Za-z]+");
+    /// Profile attributes returned by checkLogin
+    private static final String[] LOGIN_DETAILS = { "member_id", "title", "first_name", "family_name",
+            "country_name", "residence", "member_type" };
+
+    ///////////////////////////////
+    /// Booking
+    ///////////////////////////////
+    /// Times a booking is tried when it loses out to a concurrent transaction
+    private static final int BOOKING_MAX_ATTEMPTS = 3;
+    /// Pause before retrying a booking, multiplied by the attempt number
+    private static final long BOOKING_RETRY_DELAY_MS = 20;
 
 
     ///////////////////////////////
@@ -51,77 +124,43 @@ public class DatabaseBackend {
      *
      * Implements Core Functionality (a)
      *
+     * Only the password is read to check the login. When it is right, the
+     * member's full profile is loaded and kept for the session, so the
+     * getMemberDetails call that follows a login needs no query of its own.
+     *
      * @return basic details of user if username is for a valid memberID and password is correct
      * @throws OlympicsDBException
-     * @throws SQLException
      */
     public HashMap<String,Object> checkLogin(String member, char[] password) throws OlympicsDBException  {
-        // Note that password is a char array for security reasons.
-        // Don't worry about this: just turn it into a string to use in this function
-        // with "new String(password)"
-        Connection conn = null;
-        HashMap<String,Object> details = null;
-        if (member.isEmpty() || !member.matches("^[0-9A-Za-z]+$")) {
-            return details;
+        if (!isMemberId(member)) {
+            return null;
         }
+        Connection conn = null;
         try {
             conn = getConnection();
-            PreparedStatement stmt = conn.prepareStatement(
-                    "SELECT member_id, title, given_names, family_name, country_name, place_name, athlete_id, pass_word, official_id " +
-                    "FROM member JOIN country USING (country_code) " +
-                    "JOIN Accommodation ON (accommodation = place_id) " +
-                    "JOIN Place USING (place_id) " +
-                    "LEFT OUTER JOIN (SELECT member_id AS Athlete_id FROM Athlete) foo ON (member_id = Athlete_id) " +
-                    "LEFT OUTER JOIN (SELECT member_id AS official_id FROM Official) foo2 ON (member_id = official_id)" +
-                    "WHERE member_id = ?");
+            PreparedStatement stmt = conn.prepareStatement("SELECT pass_word FROM Member WHERE member_id = ?");
             stmt.setString(1, member);
             ResultSet rs = stmt.executeQuery();
-            conn.close();
-
-            String member_id = null;
-            String title = null;
-            String first_name = null;
-            String family_name = null;
-            String country_name = null;
-            String residence = null;
-            String athlete_id = null;
-            String official_id = null;
-            String pass_word = null;
-            String member_type = null;
-
-            if (rs.next()) {
-                member_id = rs.getString("member_id");
-                title = rs.getString("title");
-                first_name = rs.getString("given_names");
-                family_name = rs.getString("family_name");
-                country_name = rs.getString("country_name");
-                residence = rs.getString("place_name");
-                athlete_id = rs.getString("athlete_id");
-                official_id = rs.getString("official_id");
-                pass_word = rs.getString("pass_word");
+            if (!rs.next()) {
+                return null;
+            }
+            String pass_word = rs.getString("pass_word");
+            // Compare without making a String of the password
+            if (pass_word == null || !pass_word.contentEquals(CharBuffer.wrap(password))) {
+                return null;
             }
 
-            if (athlete_id != null) member_type = "athlete";
-            else if (official_id != null) member_type = "official";
-            else member_type = "staff";
-
-            // Don't forget you have memberID variables memberUser available to
-            // use in a query.
-            // Query whether login (memberID, password) is correct...
-            boolean valid = (member.equals(member_id) && new String(password).equals(pass_word));
-            if (valid) {
-                details = new HashMap<String,Object>();
-
-                // Populate with record data
-                details.put("member_id", member);
-                details.put("title", title);
-                details.put("first_name", first_name);
-                details.put("family_name", family_name);
-                details.put("country_name", country_name);
-                details.put("residence", residence);
-                details.put("member_type", member_type);            }
-
-
+            long generation = memberProfiles.generation();
+            HashMap<String, Object> profile = loadMemberDetails(conn, member);
+            if (profile.isEmpty()) {
+                return null;
+            }
+            memberProfiles.putIfUnchanged(member, new MemberProfile(profile), generation);
+            HashMap<String,Object> details = new HashMap<String,Object>();
+            for (String attribute : LOGIN_DETAILS) {
+                details.put(attribute, profile.get(attribute));
+            }
+            return details;
         } catch (SQLException e) {
             throw new OlympicsDBException(e.getMessage(), e);
         } catch (Exception e) {
@@ -129,416 +168,789 @@ public class DatabaseBackend {
         }  finally {
             reallyClose(conn);
         }
-        return details;
     }
 
     /**
-     * Obtain details for the current memberID
+     * Obtain details for the current memberID, from the profile cached at
+     * login if it is still there
      * @param memberID
      *
      * @return Details of member
      * @throws OlympicsDBException
      */
     public HashMap<String, Object> getMemberDetails(String memberID) throws OlympicsDBException {
-
-        HashMap<String, Object> details = new HashMap<String, Object>();
-        Connection conn = null;
-        if (memberID.isEmpty() || !memberID.matches("^[0-9A-Za-z]+$")) {
-            return details;
+        if (!isMemberId(memberID)) {
+            return new HashMap<String, Object>();
+        }
+        MemberProfile profile = memberProfiles.get(memberID);
+        if (profile != null && System.currentTimeMillis() - profile.loadedAt < memberProfileTtlMillis) {
+            return new HashMap<String, Object>(profile.details);
         }
 
+        Connection conn = null;
         try {
             conn = getConnection();
-            PreparedStatement stmt = conn.prepareStatement(
-                    "SELECT member_id, title, given_names, family_name, country_name, place_name, athlete_id, official_id, COUNT(journey_id) AS num_bookings " +
-                    "FROM member JOIN country USING (country_code) " +
-                    "JOIN Accommodation ON (accommodation = place_id) " +
-                    "JOIN Place USING (place_id) " +
-                    "LEFT OUTER JOIN (SELECT member_id AS Athlete_id FROM Athlete) foo ON (member_id = Athlete_id) " +
-                    "LEFT OUTER JOIN (SELECT member_id AS official_id FROM Official) foo2 ON (member_id = official_id) " +
-                    "LEFT OUTER JOIN Booking ON (member_id = booked_for) " +
-                    "WHERE member_id = ?" +
-                    "GROUP BY member_id, title, given_names, family_name, country_name, place_name, athlete_id, pass_word, official_id");
-            stmt.setString(1, memberID);
-            ResultSet rs = stmt.executeQuery();
-            conn.close();
+            // Taken before reading, so a profile invalidated meanwhile isn't cached
+            long generation = memberProfiles.generation();
+            HashMap<String, Object> details = loadMemberDetails(conn, memberID);
+            if (!details.isEmpty()) {
+                memberProfiles.putIfUnchanged(memberID, new MemberProfile(new HashMap<String, Object>(details)), generation);
+            }
+            return details;
+        } catch (SQLException e) {
+            throw new OlympicsDBException(e.getMessage(), e);
+        } catch (Exception e) {
+            throw new OlympicsDBException("Displaying greeting message error", e);
+        } finally {
+            reallyClose(conn);
+        }
+    }
 
+    /**
+     * Forget the profile cached for the member's session
+     * @param memberID member who logged out
+     */
+    public void endSession(String memberID) {
+        if (memberID != null) {
+            memberProfiles.remove(memberID);
+        }
+    }
 
-            if (rs.next()) {
-                String title = rs.getString("title");
-                String given_name = rs.getString("given_names");
-                String family_name = rs.getString("family_name");
-                String country_name = rs.getString("country_name");
-                String residence = rs.getString("place_name");
-                int numbookings = rs.getInt("num_bookings");
-                String athlete_id = rs.getString("athlete_id");
-                String official_id = rs.getString("official_id");
-                String member_type;
-
-                if (athlete_id != null) member_type = "athlete";
-                else if (official_id != null) member_type = "official";
-                else member_type = "staff";
-
-                details.put("member_id", memberID);
-                details.put("member_type", member_type);
-                details.put("title", title);
-                details.put("first_name", given_name);
-                details.put("family_name", family_name);
-                details.put("country_name", country_name);
-                details.put("residence", residence);
-                details.put("num_bookings", numbookings);
-
-                if (member_type.equals("athlete")) {
-
-                    //-- gold
-                    conn = getConnection();
-                    stmt = conn.prepareStatement("SELECT COUNT(*) AS gold FROM Participates "+
-                            "WHERE athlete_id = ? AND medal = ?");
-                    stmt.setString(1, memberID);
-                    stmt.setString(2, "G");
-                    rs = stmt.executeQuery();
-                    conn.close();
+    /**
+     * @return whether the ID could be a member ID, i.e. is letters and digits
+     */
+    private static boolean isMemberId(String id) {
+        return id != null && MEMBER_ID.matcher(id).matches();
+    }
 
-                    int num_gold = 0;
-                    if (rs.next()) {
-                        num_gold += rs.getInt("gold");
-                    }
-                    // team gold
-                    conn = getConnection();
-                    stmt = conn.prepareStatement(
-                            "SELECT COUNT(*) AS TeamGold " +
-                                    "FROM TeamMember JOIN Team USING (team_name, event_id) " +
-                                    "WHERE athlete_id = ? AND medal = ? ");
-                    stmt.setString(1, memberID);
-                    stmt.setString(2, "G");
+    /**
+     * Read a member's details from the database
+     * @return the details, empty if there is no such member
+     */
+    private HashMap<String, Object> loadMemberDetails(Connection conn, String memberID) throws SQLException {
+        HashMap<String, Object> details = new HashMap<String, Object>();
+        PreparedStatement stmt = conn.prepareStatement(
+                "SELECT member_id, title, given_names, family_name, country_name, place_name, athlete_id, official_id, COUNT(journey_id) AS num_bookings " +
+                "FROM member JOIN country USING (country_code) " +
+                "JOIN Accommodation ON (accommodation = place_id) " +
+                "JOIN Place USING (place_id) " +
+                "LEFT OUTER JOIN (SELECT member_id AS Athlete_id FROM Athlete) foo ON (member_id = Athlete_id) " +
+                "LEFT OUTER JOIN (SELECT member_id AS official_id FROM Official) foo2 ON (member_id = official_id) " +
+                "LEFT OUTER JOIN Booking ON (member_id = booked_for) " +
+                "WHERE member_id = ? " +
+                "GROUP BY member_id, title, given_names, family_name, country_name, place_name, athlete_id, pass_word, official_id");
+        stmt.setString(1, memberID);
+        ResultSet rs = stmt.executeQuery();
+
+
+        if (rs.next()) {
+            String title = rs.getString("title");
+            String given_name = rs.getString("given_names");
+            String family_name = rs.getString("family_name");
+            String country_name = rs.getString("country_name");
+            String residence = rs.getString("place_name");
+            int numbookings = rs.getInt("num_bookings");
+            String athlete_id = rs.getString("athlete_id");
+            String official_id = rs.getString("official_id");
+            String member_type;
 
-                    rs = stmt.executeQuery();
-                    conn.close();
-                    if (rs.next()) {
-                        num_gold += rs.getInt("TeamGold");
-                    }
-                    details.put("num_gold", num_gold);
+            if (athlete_id != null) member_type = "athlete";
+            else if (official_id != null) member_type = "official";
+            else member_type = "staff";
 
-                    // silver
+            details.put("member_id", memberID);
+            details.put("member_type", member_type);
+            details.put("title", title);
+            details.put("first_name", given_name);
+            details.put("family_name", family_name);
+            details.put("country_name", country_name);
+            details.put("residence", residence);
+            details.put("num_bookings", numbookings);
+
+            if (member_type.equals("athlete")) {
+                MedalTally tally = getMedalTally(conn, memberID);
+                details.put("num_gold", tally.getGold());
+                details.put("num_silver", tally.getSilver());
+                details.put("num_bronze", tally.getBronze());
+            }
+        }
+        return details;
+    }
 
-                    conn = getConnection();
-                    stmt = conn.prepareStatement("SELECT COUNT(*) AS silver FROM Participates "+
-                            "WHERE athlete_id = ? AND medal = ?");
-                    stmt.setString(1, memberID);
-                    stmt.setString(2, "S");
-                    rs = stmt.executeQuery();
-                    conn.close();
 
-                    int num_silver = 0;
-                    if (rs.next()) {
-                        num_silver = rs.getInt("silver");
-                    }
+    /**
+     * Look up an athlete's medal tally, from the cache if it's recent enough,
+     * otherwise with a single query covering individual and team events.
+     *
+     * @param conn connection to use on a cache miss
+     * @param athleteId member ID of the athlete
+     * @return the athlete's medals
+     * @throws SQLException
+     */
+    private MedalTally getMedalTally(Connection conn, String athleteId) throws SQLException {
+        MedalTally tally = medalTallies.get(athleteId);
+        if (tally != null && System.currentTimeMillis() - tally.loadedAt < medalTallyTtlMillis) {
+            return tally;
+        }
+        // Taken before reading, so a tally invalidated meanwhile isn't cached
+        long generation = medalTallies.generation();
+
+        PreparedStatement stmt = conn.prepareStatement(
+                "SELECT SUM(CASE WHEN kind = 'I' AND medal = 'G' THEN 1 ELSE 0 END) AS ind_gold, " +
+                "SUM(CASE WHEN kind = 'I' AND medal = 'S' THEN 1 ELSE 0 END) AS ind_silver, " +
+                "SUM(CASE WHEN kind = 'I' AND medal = 'B' THEN 1 ELSE 0 END) AS ind_bronze, " +
+                "SUM(CASE WHEN kind = 'T' AND medal = 'G' THEN 1 ELSE 0 END) AS team_gold, " +
+                "SUM(CASE WHEN kind = 'T' AND medal = 'S' THEN 1 ELSE 0 END) AS team_silver, " +
+                "SUM(CASE WHEN kind = 'T' AND medal = 'B' THEN 1 ELSE 0 END) AS team_bronze " +
+                "FROM (SELECT 'I' AS kind, medal FROM Participates WHERE athlete_id = ? " +
+                "      UNION ALL " +
+                "      SELECT 'T' AS kind, medal FROM TeamMember JOIN Team USING (team_name, event_id) WHERE athlete_id = ?) AS medals " +
+                "WHERE medal IS NOT NULL");
+        stmt.setString(1, athleteId);
+        stmt.setString(2, athleteId);
+        ResultSet rs = stmt.executeQuery();
+        if (rs.next()) {
+            tally = new MedalTally(rs.getInt("ind_gold"), rs.getInt("ind_silver"), rs.getInt("ind_bronze"),
+                    rs.getInt("team_gold"), rs.getInt("team_silver"), rs.getInt("team_bronze"));
+        } else {
+            tally = new MedalTally(0, 0, 0, 0, 0, 0);
+        }
+        medalTallies.putIfUnchanged(athleteId, tally, generation);
+        return tally;
+    }
 
-                    // team silver
+    /**
+     * Forget the cached medal tally of an athlete, and the profile holding
+     * it, e.g. after one of their results has changed.
+     * @param athleteId member ID of the athlete
+     */
+    public void invalidateMedalTally(String athleteId) {
+        medalTallies.remove(athleteId);
+        memberProfiles.remove(athleteId);
+    }
 
-                    conn = getConnection();
-                    stmt = conn.prepareStatement(
-                            "SELECT COUNT(*) AS TeamSilver " +
-                                    "FROM TeamMember JOIN Team USING (team_name, event_id) " +
-                                    "WHERE athlete_id = ? AND medal = ?");
-                    stmt.setString(1, memberID);
-                    stmt.setString(2, "S");
-                    rs = stmt.executeQuery();
-                    conn.close();
+    /**
+     * Forget all cached medal tallies, and the profiles holding them.
+     */
+    public void invalidateMedalTallies() {
+        medalTallies.clear();
+        memberProfiles.clear();
+    }
 
-                    if (rs.next()) {
-                        num_silver += rs.getInt("TeamSilver");
-                    }
-                    details.put("num_silver", num_silver);
 
-                    // bronze
+    //////////  Events  //////////
 
-                    conn = getConnection();
-                    stmt = conn.prepareStatement("SELECT COUNT(*) AS bronze FROM Participates "+
-                            "WHERE athlete_id = ? AND medal = ?");
-                    stmt.setString(1, memberID);
-                    stmt.setString(2, "B");
-                    rs = stmt.executeQuery();
-                    conn.close();
+    /**
+     * Get all of the events listed in the olympics for a given sport
+     *
+     * Events are cached by sport. With eventcache_preload set, the first call
+     * loads every sport's events in one query instead.
+     *
+     * @param sportId the ID of the sport we are filtering by
+     * @return List of the events for that sport, shared with the cache
+     * @throws OlympicsDBException
+     */
+    public TupleTable getEventsOfSport(Integer sportId) throws OlympicsDBException {
 
-                    int num_bronze = 0;
-                    if (rs.next()) {
-                        num_bronze = rs.getInt("bronze");
-                    }
+        TupleTable events = eventsBySport.get(sportId);
+        if (events != null) {
+            return events;
+        }
+        if (preloadEvents && !eventsPreloaded) {
+            preloadEvents();
+            events = eventsBySport.get(sportId);
+            if (events != null) {
+                return events;
+            }
+        }
 
-                    // team bronze
+        events = new TupleTable(EVENT_SCHEMA);
+        Connection conn = null;
+        try {
+            ReferenceDataCache.Snapshot ref = referenceData.get();
+            conn = getConnection();
+            PreparedStatement stmt = conn.prepareStatement(
+                    "SELECT event_id, sport_id, event_name, event_start, event_gender, sport_venue " +
+                            "FROM Event " +
+                            "WHERE sport_id = ? ORDER BY event_start, event_name");
+            stmt.setInt(1, sportId);
 
-                    conn = getConnection();
-                    stmt = conn.prepareStatement(
-                            "SELECT COUNT(*) AS TeamBronze " +
-                                    "FROM TeamMember JOIN Team USING (team_name, event_id) " +
-                                    "WHERE athlete_id = ? AND medal = ?");
-                    stmt.setString(1, memberID);
-                    stmt.setString(2, "B");
-                    rs = stmt.executeQuery();
-                    conn.close();
+            ResultSet rs = stmt.executeQuery();
 
-                    if (rs.next()) {
-                        num_bronze += rs.getInt("TeamBronze");
-                    }
-                    details.put("num_bronze", num_bronze);
-                }
+            while (rs.next()) {
+                events.add(readEvent(rs, ref));
             }
 
-
         } catch (SQLException e) {
             throw new OlympicsDBException(e.getMessage(), e);
         } catch (Exception e) {
-            throw new OlympicsDBException("Displaying greeting message error", e);
+            throw new OlympicsDBException("Acquiring events error", e);
         } finally {
             reallyClose(conn);
         }
-        return details;
-    }
 
-
-    //////////  Events  //////////
+        eventsBySport.put(sportId, events);
+        return events;
+    }
 
     /**
-     * Get all of the events listed in the olympics for a given sport
+     * Load every sport's events into the events cache with a single query.
+     * Sports without events are cached as empty lists.
      *
-     * @param sportId the ID of the sport we are filtering by
-     * @return List of the events for that sport
      * @throws OlympicsDBException
      */
-    ArrayList<HashMap<String, Object>> getEventsOfSport(Integer sportId) throws OlympicsDBException {
-
-        ArrayList<HashMap<String, Object>> events = new ArrayList<>();
+    public void preloadEvents() throws OlympicsDBException {
+        HashMap<Integer, TupleTable> bySport = new HashMap<>();
         Connection conn = null;
         try {
+            ReferenceDataCache.Snapshot ref = referenceData.get();
+            int sportIdColumn = ref.sports.getColumnIndex("sport_id");
+            for (int i = 0; i < ref.sports.size(); ++i) {
+                bySport.put((Integer) ref.sports.get(i, sportIdColumn), new TupleTable(EVENT_SCHEMA));
+            }
             conn = getConnection();
             PreparedStatement stmt = conn.prepareStatement(
-                    "SELECT event_id, sport_id, event_name, event_start, event_gender, place_name " +
-                            "FROM Event JOIN (SportVenue NATURAL JOIN Place) foo ON (sport_venue = place_id)" +
-                            "WHERE sport_id = ?");
-            stmt.setInt(1, sportId);
-
+                    "SELECT event_id, sport_id, event_name, event_start, event_gender, sport_venue " +
+                            "FROM Event ORDER BY sport_id, event_start, event_name");
             ResultSet rs = stmt.executeQuery();
 
             while (rs.next()) {
-                int event_id = rs.getInt("event_id");
-                int sport_id = rs.getInt("sport_id");
-                String event_name = rs.getString("event_name");
-                Date event_start = new Date(rs.getTimestamp("event_start").getTime());
-                String event_gender = rs.getString("event_gender");
-                String sport_venue = rs.getString("place_name");
-
-                HashMap<String,Object> event = new HashMap<String,Object>();
-                event.put("event_id", event_id);
-                event.put("sport_id", sport_id);
-                event.put("event_name", event_name);
-                event.put("event_gender", event_gender);
-                event.put("sport_venue", sport_venue);
-                event.put("event_start", event_start);
+                Object[] event = readEvent(rs, ref);
+                Integer sportId = rs.getInt("sport_id");
+                TupleTable events = bySport.get(sportId);
+                if (events == null) {
+                    events = new TupleTable(EVENT_SCHEMA);
+                    bySport.put(sportId, events);
+                }
                 events.add(event);
             }
-
-            conn.close();
         } catch (SQLException e) {
             throw new OlympicsDBException(e.getMessage(), e);
         } catch (Exception e) {
-            throw new OlympicsDBException("Acquiring events error", e);
+            throw new OlympicsDBException("Preloading events error", e);
         } finally {
             reallyClose(conn);
         }
 
-        return events;
+        for (Map.Entry<Integer, TupleTable> entry : bySport.entrySet()) {
+            eventsBySport.put(entry.getKey(), entry.getValue());
+        }
+        eventsPreloaded = true;
+    }
+
+    /**
+     * Forget all cached events, e.g. after the Event table has been edited.
+     */
+    public void invalidateEvents() {
+        eventsBySport.clear();
+        eventsPreloaded = false;
+    }
+
+    /**
+     * @return size, hit/miss and eviction counts of the events cache
+     */
+    public HashMap<String, Object> getEventCacheStatistics() {
+        return eventsBySport.getStatistics("eventcache_");
+    }
+
+    /// Row of EVENT_SCHEMA from the current result row
+    private Object[] readEvent(ResultSet rs, ReferenceDataCache.Snapshot ref) throws SQLException {
+        return new Object[] {
+                rs.getInt("event_id"),
+                rs.getInt("sport_id"),
+                rs.getString("event_name"),
+                rs.getString("event_gender"),
+                placeName(ref, rs.getInt("sport_venue")),
+                new Date(rs.getTimestamp("event_start").getTime()) };
     }
 
     /**
      * Retrieve the results for a single event
+     *
+     * Individual and team results come from a single query, which also
+     * spells out the medals. Once a medal has been awarded in an event its
+     * results are cached, until recordMedal changes them.
+     *
      * @param eventId the key of the event
-     * @return a hashmap for each result in the event.
+     * @return a tuple for each result in the event, shared with the cache
      * @throws OlympicsDBException
      */
-    @SuppressWarnings("resource")
-	ArrayList<HashMap<String, Object>> getResultsOfEvent(Integer eventId) throws OlympicsDBException {
+    public TupleTable getResultsOfEvent(Integer eventId) throws OlympicsDBException {
+        TupleTable results = eventResults.get(eventId);
+        if (results != null) {
+            return results;
+        }
 
-        ArrayList<HashMap<String, Object>> results = new ArrayList<>();
+        // Taken before reading, so results recordMedal changes meanwhile aren't cached
+        long generation = eventResults.generation();
+        results = new TupleTable(RESULT_SCHEMA);
+        boolean finished = false;
         Connection conn = null;
         try {
             conn = getConnection();
-            PreparedStatement stmt = conn.prepareStatement("SELECT COUNT(*) FROM Event JOIN Team USING(event_id) WHERE event_id = ?");
+            // An event with teams lists only its teams
+            PreparedStatement stmt = conn.prepareStatement(
+                    "SELECT (family_name || ', ' || given_names) AS name, country_name, " + MEDAL_NAME + " AS medal " +
+                    "FROM Participates JOIN Member ON (athlete_id = member_id) JOIN Country USING (country_code) " +
+                    "WHERE event_id = ? AND NOT EXISTS (SELECT 1 FROM Team WHERE event_id = ?) " +
+                    "UNION ALL " +
+                    "SELECT team_name, country_name, " + MEDAL_NAME + " " +
+                    "FROM Team JOIN Country USING (country_code) " +
+                    "WHERE event_id = ? " +
+                    "ORDER BY name");
             stmt.setInt(1, eventId);
-
+            stmt.setInt(2, eventId);
+            stmt.setInt(3, eventId);
             ResultSet rs = stmt.executeQuery();
-            rs.next();
-            conn.close();
-            int i = rs.getInt("count");
-            if (i == 0) {
+
+            while (rs.next()) {
+                String medal = rs.getString("medal");
+                finished |= medal != null;
+                results.add(new Object[] { rs.getString("name"), rs.getString("country_name"), medal });
+            }
+        } catch (SQLException e) {
+            throw new OlympicsDBException(e.getMessage(), e);
+        } catch (Exception e) {
+            throw new OlympicsDBException("Acquiring results of event error", e);
+        } finally {
+            reallyClose(conn);
+        }
+
+        if (finished) {
+            eventResults.putIfUnchanged(eventId, results, generation);
+        }
+        return results;
+    }
+
+    /**
+     * Record the medal an athlete or team won in an event, or take it away,
+     * and bring what is kept in memory up to date: the leaderboard moves the
+     * country from the old medal to the new one, and the event's results and
+     * the medal tallies of the athletes concerned are forgotten.
+     *
+     * The old medal is read and replaced in one transaction, with the row
+     * locked, so the leaderboard always moves from the medal really replaced.
+     *
+     * @param eventId the event
+     * @param participant member ID of the athlete, or name of the team
+     * @param medal "Gold", "Silver" or "Bronze", or null for none
+     * @return whether the athlete or team is in the event
+     * @throws OlympicsDBException if the medal isn't one of those
+     */
+    public boolean recordMedal(Integer eventId, String participant, String medal) throws OlympicsDBException {
+        String code = medalCode(medal);
+        Connection conn = null;
+        synchronized (medalWrites) {
+            try {
                 conn = getConnection();
-                stmt = conn.prepareStatement(
-                        "SELECT ( family_name || ', ' || given_names) AS name , country_name, medal " +
-                        "FROM Event NATURAL JOIN Participates JOIN Member ON (athlete_id = member_id) JOIN Country USING (country_code)" +
-                        "WHERE event_id = ? ORDER BY name");
+                conn.setAutoCommit(false);
+                ArrayList<String> athletes = new ArrayList<String>();
+                PreparedStatement stmt = conn.prepareStatement(
+                        "SELECT country_code, medal FROM Participates JOIN Member ON (athlete_id = member_id) " +
+                        "WHERE event_id = ? AND athlete_id = ? " +
+                        "FOR UPDATE OF Participates");
                 stmt.setInt(1, eventId);
-                rs = stmt.executeQuery();
-                conn.close();
+                stmt.setString(2, participant);
+                ResultSet rs = stmt.executeQuery();
+                boolean individual = rs.next();
+                if (individual) {
+                    athletes.add(participant);
+                } else {
+                    stmt = conn.prepareStatement(
+                            "SELECT country_code, medal FROM Team WHERE event_id = ? AND team_name = ? FOR UPDATE");
+                    stmt.setInt(1, eventId);
+                    stmt.setString(2, participant);
+                    rs = stmt.executeQuery();
+                    if (!rs.next()) {
+                        return false;
+                    }
+                }
+                String countryCode = rs.getString("country_code");
+                String oldCode = rs.getString("medal");
 
-                while (rs.next()) {
-                    String name = rs.getString("name");
-                    String country_name = rs.getString("country_name");
-                    String medal_code = rs.getString("medal");
-                    String medal = null;
-                    if (medal_code != null) {
-                        if (medal_code.equals("G")) medal = "Gold";
-                        else if (medal_code.equals("S")) medal = "Silver";
-                        else if (medal_code.equals("B")) medal = "Bronze";
+                if (individual) {
+                    stmt = conn.prepareStatement("UPDATE Participates SET medal = ? WHERE event_id = ? AND athlete_id = ?");
+                } else {
+                    stmt = conn.prepareStatement("UPDATE Team SET medal = ? WHERE event_id = ? AND team_name = ?");
+                }
+                setMedal(stmt, 1, code);
+                stmt.setInt(2, eventId);
+                stmt.setString(3, participant);
+                stmt.executeUpdate();
+                if (!individual) {
+                    stmt = conn.prepareStatement("SELECT athlete_id FROM TeamMember WHERE event_id = ? AND team_name = ?");
+                    stmt.setInt(1, eventId);
+                    stmt.setString(2, participant);
+                    rs = stmt.executeQuery();
+                    while (rs.next()) {
+                        athletes.add(rs.getString("athlete_id"));
                     }
+                }
+                conn.commit();
 
-                    HashMap<String, Object> result = new HashMap<String, Object>();
-                    result.put("participant", name);
-                    result.put("country_name", country_name);
-                    result.put("medal", medal);
-                    results.add(result);
+                MedalLeaderboard board = leaderboard;
+                if (board != null) {
+                    board.medalChanged(countryCode == null ? null : countryCode.trim(),
+                            oldCode == null ? null : oldCode.trim(), code);
+                }
+                for (String athlete : athletes) {
+                    invalidateMedalTally(athlete);
                 }
+                eventResults.remove(eventId);
+                return true;
+            } catch (SQLException e) {
+                throw new OlympicsDBException(e.getMessage(), e);
+            } catch (Exception e) {
+                throw new OlympicsDBException("Recording medal error", e);
+            } finally {
+                reallyClose(conn);
+            }
+        }
+    }
 
-            } else {
-                conn = getConnection();
+    /**
+     * The leading countries of the medal table. The totals are loaded with
+     * one query the first time, and from then on only recordMedal changes
+     * them, so this reads none of the results tables.
+     *
+     * @param limit most countries to list
+     * @return a MedalStanding tuple for each
+     * @throws OlympicsDBException
+     */
+    public TupleTable getMedalLeaderboard(int limit) throws OlympicsDBException {
+        MedalLeaderboard board = leaderboard;
+        if (board == null) {
+            synchronized (medalWrites) {
+                board = leaderboard;
+                if (board == null) {
+                    board = loadLeaderboard();
+                    leaderboard = board;
+                }
+            }
+        }
+        return board.top(limit);
+    }
 
-                stmt = conn.prepareStatement("SELECT team_name, country_name, medal " +
-                        "FROM Event JOIN Team USING (event_id) JOIN Country USING (country_code)" +
-                        "WHERE event_id = ? ORDER BY team_name");
-                stmt.setInt(1, eventId);
-                rs = stmt.executeQuery();
-                conn.close();
+    /**
+     * Total up every country's medals, individual and team, in one query
+     */
+    private MedalLeaderboard loadLeaderboard() throws OlympicsDBException {
+        MedalLeaderboard board = new MedalLeaderboard();
+        Connection conn = null;
+        try {
+            conn = getConnection();
+            PreparedStatement stmt = conn.prepareStatement(
+                    "SELECT country_code, country_name, " +
+                    "SUM(CASE WHEN medal = 'G' THEN 1 ELSE 0 END) AS num_gold, " +
+                    "SUM(CASE WHEN medal = 'S' THEN 1 ELSE 0 END) AS num_silver, " +
+                    "SUM(CASE WHEN medal = 'B' THEN 1 ELSE 0 END) AS num_bronze " +
+                    "FROM Country LEFT OUTER JOIN " +
+                    "  (SELECT country_code, medal FROM Participates JOIN Member ON (athlete_id = member_id) WHERE medal IS NOT NULL " +
+                    "   UNION ALL " +
+                    "   SELECT country_code, medal FROM Team WHERE medal IS NOT NULL) AS medals USING (country_code) " +
+                    "GROUP BY country_code, country_name");
+            ResultSet rs = stmt.executeQuery();
+            while (rs.next()) {
+                board.addCountry(rs.getString("country_code").trim(), rs.getString("country_name"),
+                        rs.getInt("num_gold"), rs.getInt("num_silver"), rs.getInt("num_bronze"));
+            }
+        } catch (SQLException e) {
+            throw new OlympicsDBException(e.getMessage(), e);
+        } catch (Exception e) {
+            throw new OlympicsDBException("Loading medal leaderboard error", e);
+        } finally {
+            reallyClose(conn);
+        }
+        return board;
+    }
 
-                while (rs.next()) {
-                    String name = rs.getString("team_name");
-                    String country_name = rs.getString("country_name");
-                    String medal_code = rs.getString("medal");
-                    String medal = null;
-                    if (medal_code != null) {
-                        if (medal_code.equals("G")) medal = "Gold";
-                        else if (medal_code.equals("S")) medal = "Silver";
-                        else if (medal_code.equals("B")) medal = "Bronze";
-                    }
+    /**
+     * Forget the leaderboard, so it is loaded again when next asked for,
+     * e.g. after medals were changed other than by recordMedal.
+     */
+    public void invalidateLeaderboard() {
+        synchronized (medalWrites) {
+            leaderboard = null;
+        }
+    }
+
+    /**
+     * @return countries held and ranked by the leaderboard, and medal changes
+     * applied to it; empty until it is loaded
+     */
+    public HashMap<String, Object> getLeaderboardStatistics() {
+        MedalLeaderboard board = leaderboard;
+        return board == null ? new HashMap<String, Object>() : board.getStatistics("leaderboard_");
+    }
+
+    /**
+     * Forget the cached results of an event, e.g. after they were changed
+     * other than by recordMedal.
+     * @param eventId the event
+     */
+    public void invalidateResults(Integer eventId) {
+        eventResults.remove(eventId);
+    }
+
+    /**
+     * @return size, hit/miss and eviction counts of the results cache
+     */
+    public HashMap<String, Object> getResultCacheStatistics() {
+        return eventResults.getStatistics("resultcache_");
+    }
+
+    /**
+     * @return the medal code stored for "Gold", "Silver" or "Bronze" (in any
+     * case), or null for no medal
+     * @throws OlympicsDBException if it is anything else
+     */
+    static String medalCode(String medal) throws OlympicsDBException {
+        if (medal == null || medal.trim().isEmpty()) return null;
+        String name = medal.trim();
+        if (name.equalsIgnoreCase("Gold")) return "G";
+        if (name.equalsIgnoreCase("Silver")) return "S";
+        if (name.equalsIgnoreCase("Bronze")) return "B";
+        throw new OlympicsDBException("Unknown medal: " + medal);
+    }
+
+    private static void setMedal(PreparedStatement stmt, int index, String code) throws SQLException {
+        if (code == null) stmt.setNull(index, Types.CHAR);
+        else stmt.setString(index, code);
+    }
+
+
+
+    ///////   Journeys    ////////
+
+    /**
+     * Array list of journeys from one place to another on a given date
+     * @param journeyDate the date of the journey
+     * @param fromPlace the origin, starting place.
+     * @param toPlace the destination, place to go to.
+     * @return a list of all journeys from the origin to destination, answered
+     * from the journey index
+     */
+    public TupleTable findJourneys(String fromPlace, String toPlace, Date journeyDate) throws OlympicsDBException {
 
-                    HashMap<String, Object> result = new HashMap<>();
-                    result.put("participant", name);
-                    result.put("country_name", country_name);
-                    result.put("medal", medal);
-                    results.add(result);
+        TupleTable journeys = new TupleTable(JOURNEY_SCHEMA);
+        try {
+            // Place names and vehicle capacities come from the reference cache
+            // rather than being joined in again
+            ReferenceDataCache.Snapshot ref = referenceData.get();
+            if (ref.placeIds(fromPlace).isEmpty() || ref.placeIds(toPlace).isEmpty()) {
+                ref = referenceData.getFresh(REFDATA_RETRY_MS);
+                if (ref.placeIds(fromPlace).isEmpty() || ref.placeIds(toPlace).isEmpty()) {
+                    return journeys;
                 }
             }
 
+            for (JourneyIndex.Journey journey : journeyIndex.find(ref.placeIds(fromPlace), ref.placeIds(toPlace), journeyDate)) {
+                String origin_name = placeName(ref, journey.fromPlace);
+                String dest_name = placeName(ref, journey.toPlace);
+                int capacity = vehicleCapacity(ref, journey.vehicleCode);
+                int available_seats = capacity - seatsTaken(journey.journeyId, journey.nbooked.get());
+
+                journeys.add(new Object[] { journey.journeyId, journey.vehicleCode, origin_name, dest_name,
+                        new Date(journey.departs), new Date(journey.arrives), available_seats });
+            }
+
+        } catch (SQLException e) {
+            throw new OlympicsDBException(e.getMessage(), e);
+        } catch (Exception e) {
+            throw new OlympicsDBException("Acquiring journey info error", e);
+        }
+        return journeys;
+    }
 
+    /**
+     * Reload the indexed days of journeys from the database now, e.g. after
+     * the timetable has been edited or to pick up other clients' bookings.
+     * @throws OlympicsDBException if they couldn't be read
+     */
+    public void refreshJourneyIndex() throws OlympicsDBException {
+        try {
+            journeyIndex.refresh();
+        } catch (SQLException e) {
+            throw new OlympicsDBException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * @return days and journeys held, loads and seat updates of the journey index
+     */
+    public HashMap<String, Object> getJourneyIndexStatistics() {
+        return journeyIndex.getStatistics();
+    }
+
+    /**
+     * Plan trips from one place to another, changing vehicle if need be
+     * @param fromPlace the origin, starting place.
+     * @param toPlace the destination, place to go to.
+     * @param departAfter earliest time to leave
+     * @return an Itinerary tuple for each trip found, best first
+     * @throws OlympicsDBException
+     */
+    public TupleTable planJourneys(String fromPlace, String toPlace, Date departAfter) throws OlympicsDBException {
+
+        TupleTable itineraries = new TupleTable(ITINERARY_SCHEMA);
+        try {
+            ReferenceDataCache.Snapshot ref = referenceData.get();
+            if (ref.placeIds(fromPlace).isEmpty() || ref.placeIds(toPlace).isEmpty()) {
+                ref = referenceData.getFresh(REFDATA_RETRY_MS);
+                if (ref.placeIds(fromPlace).isEmpty() || ref.placeIds(toPlace).isEmpty()) {
+                    return itineraries;
+                }
+            }
+
+            int option = 0;
+            for (List<JourneyPlanner.Leg> legs : journeyPlanner.plan(ref.placeIds(fromPlace), ref.placeIds(toPlace),
+                    departAfter.getTime(), plannerMaxResults)) {
+                JourneyPlanner.Leg first = legs.get(0);
+                JourneyPlanner.Leg last = legs.get(legs.size() - 1);
+                StringBuilder route = new StringBuilder();
+                int available_seats = Integer.MAX_VALUE;
+                for (JourneyPlanner.Leg leg : legs) {
+                    if (route.length() > 0) route.append(", then ");
+                    route.append(leg.vehicleCode).append(" to ").append(placeName(ref, leg.toPlace));
+                    available_seats = Math.min(available_seats, leg.seatsLeft);
+                }
+                itineraries.add(new Object[] { ++option, legs.size(),
+                        placeName(ref, first.fromPlace), placeName(ref, last.toPlace),
+                        new Date(first.departs), new Date(last.arrives), route.toString(),
+                        available_seats, first.journeyId });
+            }
         } catch (SQLException e) {
-            e.printStackTrace();
             throw new OlympicsDBException(e.getMessage(), e);
         } catch (Exception e) {
-            e.printStackTrace();
-            throw new OlympicsDBException("Acquiring results of event error", e);
-        } finally {
-            reallyClose(conn);
+            throw new OlympicsDBException("Planning journeys error", e);
         }
+        return itineraries;
+    }
 
-        return results;
+    /**
+     * Reload the journey planner's timetable from the database now.
+     * @throws OlympicsDBException if it couldn't be read
+     */
+    public void refreshJourneyPlanner() throws OlympicsDBException {
+        try {
+            journeyPlanner.refresh();
+        } catch (SQLException e) {
+            throw new OlympicsDBException(e.getMessage(), e);
+        }
     }
 
+    /**
+     * @return timetable size, loads and search times of the journey planner
+     */
+    public HashMap<String, Object> getJourneyPlannerStatistics() {
+        return journeyPlanner.getStatistics();
+    }
 
+    /**
+     * Pick up journeys added since the seat inventory was loaded. Does nothing
+     * if seat_inventory is off.
+     * @throws OlympicsDBException if they couldn't be read
+     */
+    public void refreshSeatInventory() throws OlympicsDBException {
+        if (seatInventory == null) return;
+        try {
+            seatInventory.refresh();
+        } catch (SQLException e) {
+            throw new OlympicsDBException(e.getMessage(), e);
+        }
+    }
 
-    ///////   Journeys    ////////
+    /**
+     * @return reservation, rejection and write-back counts of the seat
+     * inventory; empty if seat_inventory is off
+     */
+    public HashMap<String, Object> getSeatInventoryStatistics() {
+        return seatInventory == null ? new HashMap<String, Object>() : seatInventory.getStatistics();
+    }
 
     /**
-     * Array list of journeys from one place to another on a given date
-     * @param journeyDate the date of the journey
-     * @param fromPlace the origin, starting place.
-     * @param toPlace the destination, place to go to.
-     * @return a list of all journeys from the origin to destination
+     * Get all of a member's bookings, in order of departure
+     * @param memberID member the bookings are for
+     * @return the bookings
+     * @throws OlympicsDBException
      */
-    ArrayList<HashMap<String, Object>> findJourneys(String fromPlace, String toPlace, Date journeyDate) throws OlympicsDBException {
+    public TupleTable getMemberBookings(String memberID) throws OlympicsDBException {
+        return getMemberBookings(memberID, null, null, Integer.MAX_VALUE);
+    }
 
-        ArrayList<HashMap<String, Object>> journeys = new ArrayList<>();
+    /**
+     * Count the bookings made for a member
+     * @param memberID member the bookings are for
+     * @return number of bookings
+     * @throws OlympicsDBException
+     */
+    public int countMemberBookings(String memberID) throws OlympicsDBException {
         Connection conn = null;
         try {
             conn = getConnection();
-            PreparedStatement stmt = conn.prepareStatement(
-                    "SELECT journey_id, vehicle_code, origin_name, dest_name, depart_time, arrive_time, nbooked, capacity " +
-                            "FROM Journey JOIN Vehicle USING (vehicle_code) " +
-                            "JOIN (SELECT place_name AS origin_name, place_id AS from_place FROM place) AS origin USING (from_place) " +
-                            "JOIN (SELECT place_name AS dest_name, place_id AS to_place FROM place) AS dest USING (to_place) " +
-                            "WHERE origin_name = ? " +
-                            "AND dest_name = ? " +
-                            "AND DATE_TRUNC('day', depart_time) = ?");
-            stmt.setString(1, fromPlace);
-            stmt.setString(2, toPlace);
-            stmt.setDate(3, new java.sql.Date(journeyDate.getTime()));
-
+            PreparedStatement stmt = conn.prepareStatement("SELECT COUNT(*) FROM Booking WHERE booked_for = ?");
+            stmt.setString(1, memberID);
             ResultSet rs = stmt.executeQuery();
-            conn.close();
-
-            while (rs.next()) {
-
-                int journey_id = rs.getInt("journey_id");
-                String vehicle_code = rs.getString("vehicle_code");
-                String origin_name = rs.getString("origin_name");
-                String dest_name = rs.getString("dest_name");
-                Date depart_time = new Date(rs.getTimestamp("depart_time").getTime());
-                Date arrive_time = new Date(rs.getTimestamp("arrive_time").getTime());
-                int nbooked = rs.getInt("nbooked");
-                int capacity = rs.getInt("capacity");
-                int available_seats = capacity - nbooked;
-
-                HashMap<String, Object> journey = new HashMap<>();
-                journey.put("journey_id", journey_id);
-                journey.put("vehicle_code", vehicle_code);
-                journey.put("origin_name", origin_name);
-                journey.put("dest_name", dest_name);
-                journey.put("when_departs", depart_time);
-                journey.put("when_arrives", arrive_time);
-                journey.put("available_seats", available_seats);
-                journeys.add(journey);
-            }
-
+            return rs.next() ? rs.getInt(1) : 0;
         } catch (SQLException e) {
             throw new OlympicsDBException(e.getMessage(), e);
         } catch (Exception e) {
-            throw new OlympicsDBException("Acquiring journey info error", e);
+            throw new OlympicsDBException("Counting Member Bookings error", e);
         } finally {
             reallyClose(conn);
         }
-        return journeys;
     }
 
-    ArrayList<HashMap<String,Object>> getMemberBookings(String memberID) throws OlympicsDBException {
+    /**
+     * One page of a member's bookings, in order of departure, then journey.
+     * Pages start from the key of the last booking already listed rather
+     * than an OFFSET, so the rows before it are never read again.
+     * @param memberID member the bookings are for
+     * @param afterDeparture departure time of the last booking already
+     * listed, or null for the first page
+     * @param afterJourneyId journey of the last booking already listed
+     * @param limit maximum number of bookings to return
+     * @return the bookings
+     * @throws OlympicsDBException
+     */
+    public TupleTable getMemberBookings(String memberID, Date afterDeparture, Integer afterJourneyId, int limit) throws OlympicsDBException {
 
-        ArrayList<HashMap<String,Object>> bookings = new ArrayList<HashMap<String,Object>>();
+        TupleTable bookings = new TupleTable(BOOKING_SCHEMA);
         Connection conn = null;
         try {
+            ReferenceDataCache.Snapshot ref = referenceData.get();
             conn = getConnection();
             PreparedStatement stmt = conn.prepareStatement(
-                    "SELECT journey_id, vehicle_code, origin_name, dest_name, depart_time, arrive_time " +
-                            "From Booking JOIN Journey USING (journey_id) JOIN (SELECT place_name AS origin_name, place_id AS from_place FROM place) AS origin USING (from_place) " +
-                            "JOIN (SELECT place_name AS dest_name, place_id AS to_place FROM place) AS dest USING (to_place) " +
-                            "WHERE booked_for = ?");
-            stmt.setString(1, memberID);
+                    "SELECT journey_id, vehicle_code, from_place, to_place, depart_time, arrive_time " +
+                            "From Booking JOIN Journey USING (journey_id) " +
+                            "WHERE booked_for = ? " +
+                            (afterDeparture == null ? "" : "AND (depart_time, journey_id) > (?, ?) ") +
+                            "ORDER BY depart_time, journey_id " +
+                            "LIMIT ?");
+            int param = 1;
+            stmt.setString(param++, memberID);
+            if (afterDeparture != null) {
+                // A Timestamp read from a booking keeps its sub-millisecond part,
+                // so no booking at the same millisecond is skipped or repeated
+                stmt.setTimestamp(param++, afterDeparture instanceof Timestamp ? (Timestamp) afterDeparture
+                        : new Timestamp(afterDeparture.getTime()));
+                stmt.setInt(param++, afterJourneyId == null ? Integer.MAX_VALUE : afterJourneyId);
+            }
+            stmt.setInt(param, limit);
             ResultSet rs = stmt.executeQuery();
-            conn.close();
 
             while (rs.next()) {
                 int journey_id = rs.getInt("journey_id");
                 String vehicle_code = rs.getString("vehicle_code");
-                String origin_name = rs.getString("origin_name");
-                String dest_name = rs.getString("dest_name");
+                String origin_name = placeName(ref, rs.getInt("from_place"));
+                String dest_name = placeName(ref, rs.getInt("to_place"));
                 Timestamp when_departs = rs.getTimestamp("depart_time");
                 Timestamp when_arrives = rs.getTimestamp("arrive_time");
 
-                HashMap<String, Object> bookingex = new HashMap<>();
-                bookingex.put("journey_id", journey_id);
-                bookingex.put("vehicle_code", vehicle_code);
-                bookingex.put("origin_name", origin_name);
-                bookingex.put("dest_name", dest_name);
-                bookingex.put("when_departs", when_departs);
-                bookingex.put("when_arrives", when_arrives);
-                bookings.add(bookingex);
+                // Booker and booking time aren't shown in the history
+                bookings.add(new Object[] { journey_id, vehicle_code, origin_name, dest_name,
+                        when_departs, when_arrives, null, null, null });
             }
-            conn.close();
         } catch (SQLException e) {
             throw new OlympicsDBException(e.getMessage(), e);
         } catch (Exception e) {
@@ -562,12 +974,11 @@ public class DatabaseBackend {
         Connection conn = null;
 
         try {
+            ReferenceDataCache.Snapshot ref = referenceData.get();
             conn = getConnection();
             PreparedStatement stmt = conn.prepareStatement(
-                    "SELECT journey_id, vehicle_code, origin_name, dest_name, depart_time, arrive_time, nbooked, capacity " +
-                            "FROM Journey JOIN Vehicle USING (vehicle_code) " +
-                            "JOIN (SELECT place_name AS origin_name, place_id AS from_place FROM place) AS origin USING (from_place) " +
-                            "JOIN (SELECT place_name AS dest_name, place_id AS to_place FROM place) AS dest USING (to_place) " +
+                    "SELECT journey_id, vehicle_code, from_place, to_place, depart_time, arrive_time, nbooked " +
+                            "FROM Journey " +
                             "WHERE journey_id = ?");
             stmt.setInt(1, journeyId);
 
@@ -576,12 +987,12 @@ public class DatabaseBackend {
             while (rs.next()) {
                 int journey_id = rs.getInt("journey_id");
                 String vehicle_code = rs.getString("vehicle_code");
-                String origin_name = rs.getString("origin_name");
-                String dest_name = rs.getString("dest_name");
+                String origin_name = placeName(ref, rs.getInt("from_place"));
+                String dest_name = placeName(ref, rs.getInt("to_place"));
                 Date depart_time = new Date(rs.getTimestamp("depart_time").getTime());
                 Date arrive_time = new Date(rs.getTimestamp("arrive_time").getTime());
-                int capacity = rs.getInt("capacity");
-                int nbooked = rs.getInt("nbooked");
+                int capacity = vehicleCapacity(ref, vehicle_code);
+                int nbooked = seatsTaken(journey_id, rs.getInt("nbooked"));
 
                 details.put("journey_id", journey_id);
                 details.put("vehicle_code", vehicle_code);
@@ -592,7 +1003,6 @@ public class DatabaseBackend {
                 details.put("capacity", capacity);
                 details.put("nbooked", nbooked);
             }
-            conn.close();
         } catch (SQLException e) {
             throw new OlympicsDBException(e.getMessage(), e);
         } catch (Exception e) {
@@ -604,128 +1014,373 @@ public class DatabaseBackend {
         return details;
     }
 
-    @SuppressWarnings("resource")
-	public HashMap<String,Object> makeBooking(String byStaff, String forMember, String vehicle, Date departs) throws OlympicsDBException {
+    /**
+     * Book a seat on a journey for a member.
+     *
+     * Everything happens in one statement: the journey row is locked and its
+     * seat count incremented only while seats remain and the member exists,
+     * and the booking is inserted from the updated row. Concurrent bookers of
+     * the same journey queue on the row lock and re-check the seat count, so a
+     * journey can't be overbooked. Serialization failures and deadlocks are
+     * retried a few times.
+     *
+     * @param byStaff member ID of the staff making the booking
+     * @param forMember name of the member to book for, as "family, given"
+     * @param vehicle vehicle of the journey
+     * @param departs departure time of the journey
+     * @return summary of the booking, or null if there is no such journey or
+     * member, or the journey is full
+     * @throws OlympicsDBException
+     */
+    public HashMap<String,Object> makeBooking(String byStaff, String forMember, String vehicle, Date departs) throws OlympicsDBException {
+        if (seatInventory != null) {
+            Integer journeyId;
+            try {
+                journeyId = seatInventory.journeyAt(vehicle, departs);
+            } catch (SQLException e) {
+                throw new OlympicsDBException(e.getMessage(), e);
+            }
+            if (journeyId != null) {
+                return makeReservedBooking(byStaff, forMember, vehicle, journeyId);
+            }
+        }
         HashMap<String,Object> booking = null;
 
         Connection conn = null;
-        PreparedStatement stmt = null;
         try {
+            ReferenceDataCache.Snapshot ref = referenceData.get();
             conn = getConnection();
-            conn.setAutoCommit(false);
-            
-            stmt = conn.prepareStatement(
-            		  "SELECT nbooked, capacity, journey_id "
-            		+ "FROM Journey NATURAL JOIN Vehicle "
-            		+ "WHERE vehicle_code = ? AND depart_time = ?");
-            stmt.setString(1, vehicle);
-            stmt.setTimestamp(2, new Timestamp(departs.getTime()));
-            
-            ResultSet rs = stmt.executeQuery();
-            rs.next();
-            
-            int nbooked = rs.getInt("nbooked");
-            int capacity = rs.getInt("capacity");
-            int journey_id = rs.getInt("journey_id");
-            if (nbooked >= capacity) {
-                conn.setAutoCommit(true);
-                return booking;
-            }
-            
-            //SimpleDateFormat day = new SimpleDateFormat("dd/MM/yyyy");
-            
-            stmt = conn.prepareStatement(
-                    		"SELECT to_name, from_name " +
-                            "FROM Journey JOIN (SELECT place_id AS to_id, place_name AS to_name FROM Place) AS foo ON (to_place = to_id) " +
-                            "JOIN (SELECT place_id AS from_id, place_name AS from_name FROM Place) AS foo2 ON (from_place = from_id) " +
-                            "WHERE journey_id = ?"
-            );
-            
-            stmt.setInt(1, journey_id);
-            rs = stmt.executeQuery();
-            rs.next();
-            String to_name = rs.getString("to_name");
-            String from_name = rs.getString("from_name");
-
-            stmt = conn.prepareStatement(
-                    		"SELECT member_id " +
-                            "FROM Member WHERE (family_name||', '|| given_names) = ?"
-            );
+            PreparedStatement stmt = conn.prepareStatement(
+                    "WITH member AS (" +
+                            "SELECT member_id FROM Member WHERE (family_name || ', ' || given_names) = ? ORDER BY member_id LIMIT 1" +
+                    "), seat AS (" +
+                            "UPDATE Journey SET nbooked = nbooked + 1 " +
+                            "WHERE vehicle_code = ? AND depart_time = ? " +
+                            "AND nbooked < (SELECT capacity FROM Vehicle WHERE vehicle_code = Journey.vehicle_code) " +
+                            "AND EXISTS (SELECT 1 FROM member) " +
+                            "RETURNING journey_id, from_place, to_place, depart_time, arrive_time, nbooked" +
+                    "), booked AS (" +
+                            "INSERT INTO Booking (booked_for, booked_by, when_booked, journey_id) " +
+                            "SELECT member_id, ?, ?, journey_id FROM member, seat " +
+                            "RETURNING journey_id, when_booked, booked_for" +
+                    ") " +
+                    "SELECT journey_id, from_place, to_place, depart_time, arrive_time, nbooked, when_booked, booked_for, " +
+                            "(SELECT family_name || ', ' || given_names FROM Member WHERE member_id = ?) AS bookedby_name " +
+                    "FROM seat JOIN booked USING (journey_id)");
+            stmt.setString(1, forMember);
+            stmt.setString(2, vehicle);
+            stmt.setTimestamp(3, new Timestamp(departs.getTime()));
+            stmt.setString(4, byStaff);
+            stmt.setTimestamp(5, new Timestamp(new Date().getTime()));
+            stmt.setString(6, byStaff);
+
+            ResultSet rs = executeBooking(stmt);
+            if (rs.next()) {
+                seatsBooked(rs.getInt("journey_id"), rs.getInt("nbooked"));
+                booking = bookingSummary(rs, ref, vehicle, forMember);
+                // Their profile's booking count is now out of date
+                memberProfiles.remove(rs.getString("booked_for"));
+            }
+        } catch (SQLException e) {
+            throw new OlympicsDBException(e.getMessage(), e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new OlympicsDBException("Booking interrupted", e);
+        } catch (Exception e) {
+            throw new OlympicsDBException("Making booking error", e);
+        } finally {
+            reallyClose(conn);
+        }
+        return booking;
+    }
+
+    /**
+     * makeBooking for a journey in the seat inventory. The seat is taken from
+     * the in-memory counter first, so a full journey is turned away without a
+     * query, and only the Booking row is written; nbooked follows behind.
+     */
+    private HashMap<String,Object> makeReservedBooking(String byStaff, String forMember, String vehicle, int journeyId) throws OlympicsDBException {
+        if (!seatInventory.reserve(journeyId, 1)) {
+            return null;
+        }
+        HashMap<String,Object> booking = null;
+        // Once the row is in, the seat is taken whatever fails after
+        boolean inserted = false;
+
+        Connection conn = null;
+        try {
+            ReferenceDataCache.Snapshot ref = referenceData.get();
+            conn = getConnection();
+            PreparedStatement stmt = conn.prepareStatement(
+                    "WITH member AS (" +
+                            "SELECT member_id FROM Member WHERE (family_name || ', ' || given_names) = ? ORDER BY member_id LIMIT 1" +
+                    "), booked AS (" +
+                            "INSERT INTO Booking (booked_for, booked_by, when_booked, journey_id) " +
+                            "SELECT member_id, ?, ?, ? FROM member " +
+                            "RETURNING journey_id, when_booked, booked_for" +
+                    ") " +
+                    "SELECT journey_id, from_place, to_place, depart_time, arrive_time, when_booked, booked_for, " +
+                            "(SELECT family_name || ', ' || given_names FROM Member WHERE member_id = ?) AS bookedby_name " +
+                    "FROM booked JOIN Journey USING (journey_id)");
             stmt.setString(1, forMember);
-            rs = stmt.executeQuery();
-            rs.next();
-            String booked_for = rs.getString("member_id");
-
-            stmt = conn.prepareStatement(
-                    		"SELECT (family_name||', '||given_names) AS bookedby_name " +
-                            "FROM Member WHERE member_id = ?"
-            );
-            stmt.setString(1, byStaff);
-            rs = stmt.executeQuery();
-            rs.next();
-            String bookedby_name = rs.getString("bookedby_name");
-
-            stmt = conn.prepareStatement(
-                    		"SELECT arrive_time, depart_time FROM Journey WHERE journey_id = ?"
-            );
-            stmt.setInt(1, journey_id);
-            rs = stmt.executeQuery();
-            rs.next();
-            Date when_arrives = new Date(rs.getTimestamp("arrive_time").getTime());
-            Date when_departs = new Date(rs.getTimestamp("depart_time").getTime());
-
-            stmt = conn.prepareStatement("INSERT INTO Booking VALUES (?, ?, ?, ?)");
-            stmt.setString(1, booked_for);
             stmt.setString(2, byStaff);
             stmt.setTimestamp(3, new Timestamp(new Date().getTime()));
-            stmt.setInt(4, journey_id);
-            stmt.executeUpdate();
-
-            stmt = conn.prepareStatement("UPDATE Journey SET nbooked = nbooked + 1 WHERE journey_id = ?");
-            stmt.setInt(1, journey_id);
-            stmt.executeUpdate();
-
-            conn.commit();
-            conn.setAutoCommit(true);
-            conn.close();
-
-            booking = new HashMap<>();
-            booking.put("vehicle_code", vehicle); // 
-            booking.put("when_departs", when_departs); // getTimestamp("arrive_time").getTime()
-            booking.put("when_arrives", when_arrives); //  getTimestamp("arrive_time").getTime()
-            booking.put("dest_name", to_name); //
-            booking.put("origin_name", from_name); //
-            booking.put("bookedby_name", bookedby_name); // staff_name
-            booking.put("bookedfor_name", forMember); // mem_name
-            booking.put("when_booked", new Timestamp(new Date().getTime())); // current time  -- format getTimestamp("arrive_time").getTime() // when booked
-
-
-        } catch (SQLException se) {
-            se.printStackTrace();
-            try {
-                if (conn != null) {
-                    conn.rollback();
-                    conn.setAutoCommit(true);
-                }
-            } catch (SQLException se2) {
-                se2.printStackTrace();
+            stmt.setInt(4, journeyId);
+            stmt.setString(5, byStaff);
+
+            ResultSet rs = executeBooking(stmt);
+            if (rs.next()) {
+                inserted = true;
+                seatInventory.committed(journeyId);
+                booking = bookingSummary(rs, ref, vehicle, forMember);
+                memberProfiles.remove(rs.getString("booked_for"));
+                seatsBooked(journeyId, seatInventory.booked(journeyId));
             }
+        } catch (SQLException e) {
+            throw new OlympicsDBException(e.getMessage(), e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new OlympicsDBException("Booking interrupted", e);
+        } catch (Exception e) {
+            throw new OlympicsDBException("Making booking error", e);
         } finally {
+            if (!inserted) {
+                seatInventory.release(journeyId, 1);
+            }
+            reallyClose(conn);
+        }
+        return booking;
+    }
+
+    /**
+     * Run a booking statement, retrying it if it loses out to a concurrent
+     * transaction
+     */
+    private ResultSet executeBooking(PreparedStatement stmt) throws SQLException, InterruptedException {
+        for (int attempt = 1; ; ++attempt) {
             try {
-                if (stmt != null) {
-                    stmt.close();
-                    stmt = null;
+                return stmt.executeQuery();
+            } catch (SQLException e) {
+                if (attempt >= BOOKING_MAX_ATTEMPTS || !isRetryable(e)) {
+                    throw e;
                 }
-                if (conn != null) {
-                    conn.close();
-                    conn = null;
+                Thread.sleep(BOOKING_RETRY_DELAY_MS * attempt);
+            }
+        }
+    }
+
+    /// Summary of a booking just made, from the row returned by a booking statement
+    private HashMap<String,Object> bookingSummary(ResultSet rs, ReferenceDataCache.Snapshot ref, String vehicle, String forMember) throws SQLException {
+        HashMap<String,Object> booking = new HashMap<>();
+        booking.put("vehicle_code", vehicle);
+        booking.put("when_departs", new Date(rs.getTimestamp("depart_time").getTime()));
+        booking.put("when_arrives", new Date(rs.getTimestamp("arrive_time").getTime()));
+        booking.put("dest_name", placeName(ref, rs.getInt("to_place")));
+        booking.put("origin_name", placeName(ref, rs.getInt("from_place")));
+        booking.put("bookedby_name", rs.getString("bookedby_name"));
+        booking.put("bookedfor_name", forMember);
+        booking.put("when_booked", rs.getTimestamp("when_booked"));
+        return booking;
+    }
+
+    /// Keep in-memory seat counts in step with a committed booking
+    private void seatsBooked(int journeyId, int nbooked) {
+        journeyIndex.booked(journeyId, nbooked);
+        journeyPlanner.booked(journeyId, nbooked);
+    }
+
+    /**
+     * @return whether the statement failed only because of a concurrent
+     * transaction, and may succeed if simply run again
+     */
+    private static boolean isRetryable(SQLException e) {
+        String state = e.getSQLState();
+        return "40001".equals(state) || "40P01".equals(state);
+    }
+
+    /// Seats booked on a journey: from the seat inventory if in use, since nbooked lags behind it
+    private int seatsTaken(int journeyId, int nbooked) throws SQLException {
+        if (seatInventory != null) {
+            Integer booked = seatInventory.booked(journeyId);
+            if (booked != null) {
+                return booked;
+            }
+        }
+        return nbooked;
+    }
+
+    /**
+     * Book a list of members onto the same journey in one transaction.
+     *
+     * The journey row is locked once, the members are looked up together and
+     * as many as there are seats for are booked, in list order, with one
+     * batch of inserts and a single seat count update. With the seat
+     * inventory, the seats are reserved from its counter instead and nbooked
+     * follows behind.
+     *
+     * @param byStaff member ID of the staff making the bookings
+     * @param forMembers names of the members to book for, as "family, given"
+     * @param vehicle vehicle of the journey
+     * @param departs departure time of the journey
+     * @return a BookingOutcome tuple for each listed member, in list order,
+     * or null if there is no such journey
+     * @throws OlympicsDBException
+     */
+    public TupleTable makeBookings(String byStaff, List<String> forMembers, String vehicle, Date departs) throws OlympicsDBException {
+        Connection conn = null;
+        try {
+            conn = getConnection();
+            conn.setAutoCommit(false);
+            for (int attempt = 1; ; ++attempt) {
+                int[] seatCount = new int[3];
+                boolean committed = false;
+                try {
+                    TupleTable outcomes = bookAll(conn, byStaff, forMembers, vehicle, departs, seatCount);
+                    conn.commit();
+                    committed = true;
+                    if (seatCount[2] > 0) {
+                        seatInventory.committed(seatCount[0]);
+                    }
+                    if (outcomes != null) {
+                        seatsBooked(seatCount[0], seatCount[1]);
+                        for (int i = 0; i < outcomes.size(); ++i) {
+                            if (BookingOutcome.BOOKED.equals(outcomes.get(i, "outcome"))) {
+                                memberProfiles.remove((String) outcomes.get(i, "member_id"));
+                            }
+                        }
+                    }
+                    return outcomes;
+                } catch (SQLException e) {
+                    conn.rollback();
+                    if (attempt >= BOOKING_MAX_ATTEMPTS || !isRetryable(e)) {
+                        throw e;
+                    }
+                    Thread.sleep(BOOKING_RETRY_DELAY_MS * attempt);
+                } finally {
+                    if (!committed && seatCount[2] > 0) {
+                        seatInventory.release(seatCount[0], seatCount[2]);
+                    }
                 }
-            } catch (SQLException se3) {
-                se3.printStackTrace();
             }
+        } catch (SQLException e) {
+            throw new OlympicsDBException(e.getMessage(), e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new OlympicsDBException("Booking interrupted", e);
+        } catch (Exception e) {
+            throw new OlympicsDBException("Making team booking error", e);
+        } finally {
             reallyClose(conn);
         }
-        return booking;
+    }
+
+    /**
+     * One attempt at makeBookings, inside the caller's transaction
+     * @param seatCount set to the journey ID, its new seat count and the
+     * number of seats reserved from the seat inventory
+     */
+    private TupleTable bookAll(Connection conn, String byStaff, List<String> forMembers, String vehicle, Date departs,
+            int[] seatCount) throws SQLException {
+        PreparedStatement stmt = conn.prepareStatement(
+                "SELECT journey_id, nbooked, capacity " +
+                        "FROM Journey JOIN Vehicle USING (vehicle_code) " +
+                        "WHERE vehicle_code = ? AND depart_time = ? " +
+                        "FOR UPDATE OF Journey");
+        stmt.setString(1, vehicle);
+        stmt.setTimestamp(2, new Timestamp(departs.getTime()));
+        ResultSet rs = stmt.executeQuery();
+        if (!rs.next()) {
+            return null;
+        }
+        int journeyId = rs.getInt("journey_id");
+        int nbooked = rs.getInt("nbooked");
+        int seatsLeft = rs.getInt("capacity") - nbooked;
+        seatCount[0] = journeyId;
+        seatCount[1] = nbooked;
+        boolean fromInventory = seatInventory != null && seatInventory.booked(journeyId) != null;
+
+        // Names resolve to the lowest matching member ID, as a single booking would
+        HashMap<String, String> memberIds = new HashMap<String, String>();
+        stmt = conn.prepareStatement(
+                "SELECT member_id, (family_name || ', ' || given_names) AS member_name " +
+                        "FROM Member WHERE (family_name || ', ' || given_names) = ANY (?) " +
+                        "ORDER BY member_id");
+        stmt.setArray(1, conn.createArrayOf("varchar", forMembers.toArray()));
+        rs = stmt.executeQuery();
+        while (rs.next()) {
+            String name = rs.getString("member_name");
+            if (!memberIds.containsKey(name)) {
+                memberIds.put(name, rs.getString("member_id"));
+            }
+        }
+
+        HashSet<String> alreadyBooked = new HashSet<String>();
+        stmt = conn.prepareStatement("SELECT booked_for FROM Booking WHERE journey_id = ? AND booked_for = ANY (?)");
+        stmt.setInt(1, journeyId);
+        stmt.setArray(2, conn.createArrayOf("varchar", memberIds.values().toArray()));
+        rs = stmt.executeQuery();
+        while (rs.next()) {
+            alreadyBooked.add(rs.getString("booked_for"));
+        }
+
+        // Outcomes other than a seat first, so we know how many seats are wanted
+        String[] outcome = new String[forMembers.size()];
+        HashSet<String> listed = new HashSet<String>();
+        int wanted = 0;
+        for (int i = 0; i < outcome.length; ++i) {
+            String memberId = memberIds.get(forMembers.get(i));
+            if (memberId == null) {
+                outcome[i] = BookingOutcome.UNKNOWN_MEMBER;
+            } else if (!listed.add(memberId)) {
+                outcome[i] = BookingOutcome.DUPLICATE;
+            } else if (alreadyBooked.contains(memberId)) {
+                outcome[i] = BookingOutcome.ALREADY_BOOKED;
+            } else {
+                ++wanted;
+            }
+        }
+        if (fromInventory) {
+            seatCount[2] = seatInventory.reserveUpTo(journeyId, wanted);
+            seatsLeft = seatCount[2];
+        }
+
+        TupleTable outcomes = new TupleTable(BOOKING_OUTCOME_SCHEMA, forMembers.size());
+        PreparedStatement insert = conn.prepareStatement(
+                "INSERT INTO Booking (booked_for, booked_by, when_booked, journey_id) VALUES (?, ?, ?, ?)");
+        Timestamp now = new Timestamp(new Date().getTime());
+        int booked = 0;
+        for (int i = 0; i < outcome.length; ++i) {
+            String name = forMembers.get(i);
+            String memberId = memberIds.get(name);
+            if (outcome[i] != null) {
+                // Already decided
+            } else if (booked >= seatsLeft) {
+                outcome[i] = BookingOutcome.NO_SEAT;
+            } else {
+                insert.setString(1, memberId);
+                insert.setString(2, byStaff);
+                insert.setTimestamp(3, now);
+                insert.setInt(4, journeyId);
+                insert.addBatch();
+                ++booked;
+                outcome[i] = BookingOutcome.BOOKED;
+            }
+            outcomes.add(new Object[] { name, memberId, outcome[i] });
+        }
+
+        if (booked > 0) {
+            insert.executeBatch();
+            if (fromInventory) {
+                seatCount[1] = seatInventory.booked(journeyId);
+            } else {
+                stmt = conn.prepareStatement("UPDATE Journey SET nbooked = nbooked + ? WHERE journey_id = ?");
+                stmt.setInt(1, booked);
+                stmt.setInt(2, journeyId);
+                stmt.executeUpdate();
+                seatCount[1] = nbooked + booked;
+            }
+        }
+        return outcomes;
     }
 
 
@@ -746,7 +1401,6 @@ public class DatabaseBackend {
             stmt.setString(1, memberID);
             stmt.setInt(2, journeyId);
             ResultSet rs = stmt.executeQuery();
-            conn.close();
 
             while (rs.next()) {
                 String bookedby_name = rs.getString("bookedby_name");
@@ -779,36 +1433,63 @@ public class DatabaseBackend {
         return booking;
     }
 
-    public ArrayList<HashMap<String, Object>> getSports() throws OlympicsDBException {
-
-        ArrayList<HashMap<String,Object>> sports = new ArrayList<HashMap<String,Object>>();
-        Connection conn = null;
+    /**
+     * All sports, served from the reference data cache.
+     * @return a tuple for each sport, shared with the cache
+     * @throws OlympicsDBException
+     */
+    public TupleTable getSports() throws OlympicsDBException {
         try {
-            conn = getConnection();
-            PreparedStatement stmt = conn.prepareStatement("SELECT sport_id, sport_name, discipline FROM sport");
-            ResultSet rs = stmt.executeQuery();
-            conn.close();
-
-            while (rs.next()) {
-                int sport_id = rs.getInt("sport_id");
-                String sport_name = rs.getString("sport_name");
-                String discipline = rs.getString("discipline");
-
-                HashMap<String, Object> sport = new HashMap<>();
-                sport.put("sport_id", sport_id);
-                sport.put("sport_name", sport_name);
-                sport.put("discipline", discipline);
-                sports.add(sport);
-            }
-            conn.close();
+            return referenceData.get().sports;
         } catch (SQLException e) {
             throw new OlympicsDBException(e.getMessage(), e);
         } catch (Exception e) {
             throw new OlympicsDBException("Acquiring Sports Details error", e);
-        } finally {
-            reallyClose(conn);
         }
-        return sports;
+    }
+
+    /**
+     * Reload the cached sports, places and vehicles from the database now,
+     * e.g. after editing those tables.
+     * @throws OlympicsDBException if they couldn't be read
+     */
+    public void refreshReferenceData() throws OlympicsDBException {
+        try {
+            referenceData.refresh();
+        } catch (SQLException e) {
+            throw new OlympicsDBException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * @return hit/miss counts and age of the reference data cache
+     */
+    public HashMap<String, Object> getReferenceDataStatistics() {
+        return referenceData.getStatistics();
+    }
+
+    /**
+     * Name of a place from the reference cache, reloading the cache if the
+     * place is newer than the cached copy.
+     */
+    private String placeName(ReferenceDataCache.Snapshot ref, int placeId) throws SQLException {
+        String name = ref.placeName(placeId);
+        if (name == null) {
+            name = referenceData.getFresh(REFDATA_RETRY_MS).placeName(placeId);
+        }
+        return name;
+    }
+
+    /**
+     * Seats in a vehicle from the reference cache, reloading the cache if the
+     * vehicle is newer than the cached copy.
+     */
+    private int vehicleCapacity(ReferenceDataCache.Snapshot ref, String vehicleCode) throws SQLException {
+        Integer capacity = ref.capacity(vehicleCode);
+        if (capacity == null) {
+            capacity = referenceData.getFresh(REFDATA_RETRY_MS).capacity(vehicleCode);
+        }
+        return capacity == null ? 0 : capacity;
     }
 
 
@@ -828,15 +1509,20 @@ public class DatabaseBackend {
      * @throws OlympicsDBException anything else
      */
     DatabaseBackend(InputStream config) throws ClassNotFoundException, OlympicsDBException {
-        Properties props = new Properties();
-        try {
-            props.load(config);
-        } catch (IOException e) {
-            throw new OlympicsDBException("Couldn't read config data",e);
-        }
+        this(readConfig(config));
+    }
 
-        dbUser = props.getProperty("username");
-        dbPass = props.getProperty("userpass");
+    /**
+     * Set up from config settings already read, e.g. by BackendFactory.
+     *
+     * @throws ClassNotFoundException if the specified JDBC driver can't be
+     * found.
+     * @throws OlympicsDBException anything else
+     */
+    DatabaseBackend(Properties props) throws ClassNotFoundException, OlympicsDBException {
+        Properties driverProps = new Properties();
+        driverProps.setProperty("user", props.getProperty("username", ""));
+        driverProps.setProperty("password", props.getProperty("userpass", ""));
         String port = props.getProperty("port");
         String dbname = props.getProperty("dbname");
         String server = props.getProperty("address");;
@@ -848,19 +1534,117 @@ public class DatabaseBackend {
         } else if ("postgresql".equals(vendor)) {
             Class.forName("org.postgresql.Driver");
             connstring = "jdbc:postgresql://" + server + ":" + port + "/" + dbname;
+            // Use a named server-side statement from the first execution, so
+            // cached statements skip parse/plan on every later call
+            driverProps.setProperty("prepareThreshold", props.getProperty("pg_prepare_threshold", "1"));
         } else if ("oracle".equals(vendor)) {
             Class.forName("oracle.jdbc.driver.OracleDriver");
             connstring = "jdbc:oracle:thin:@" + server + ":" + port + ":" + dbname;
         } else throw new OlympicsDBException("Unknown database vendor: " + vendor);
 
-        // test the connection
-        Connection conn = null;
+        memberProfiles = new LruCache<String, MemberProfile>(intProperty(props, "profile_cache_size", 1000));
+        memberProfileTtlMillis = 1000L * intProperty(props, "profile_cache_ttl_s", 300);
+        medalTallies = new LruCache<String, MedalTally>(intProperty(props, "medal_cache_size", 1000));
+        medalTallyTtlMillis = 1000L * intProperty(props, "medal_cache_ttl_s", 60);
+
+        // Open the initial pooled connections, which also tests the connection
         try {
-            conn = getConnection();
+            pool = new ConnectionPool(connstring, driverProps, props);
         } catch (SQLException e) {
             throw new OlympicsDBException("Couldn't open connection", e);
-        } finally {
-            reallyClose(conn);
+        }
+        referenceData = new ReferenceDataCache(pool, 1000L * intProperty(props, "refdata_ttl_s", 3600));
+        eventsBySport = new LruCache<Integer, TupleTable>(
+                intProperty(props, "eventcache_max_rows", 5000),
+                new LruCache.Weigher<TupleTable>() {
+                    @Override
+                    public int weigh(TupleTable events) {
+                        return Math.max(1, events.size());
+                    }
+                });
+        preloadEvents = Boolean.parseBoolean(props.getProperty("eventcache_preload", "false").trim());
+        eventResults = new LruCache<Integer, TupleTable>(
+                intProperty(props, "resultcache_max_rows", 20000),
+                new LruCache.Weigher<TupleTable>() {
+                    @Override
+                    public int weigh(TupleTable results) {
+                        return Math.max(1, results.size());
+                    }
+                });
+        journeyIndex = new JourneyIndex(pool, 1000L * intProperty(props, "journeyindex_ttl_s", 60),
+                intProperty(props, "journeyindex_max_days", 31));
+        journeyPlanner = new JourneyPlanner(pool, 1000L * intProperty(props, "planner_ttl_s", 300),
+                intProperty(props, "planner_max_legs", 3),
+                60000L * intProperty(props, "planner_min_transfer_min", 10),
+                3600000L * intProperty(props, "planner_horizon_h", 24));
+        plannerMaxResults = intProperty(props, "planner_max_results", 5);
+        seatInventory = Boolean.parseBoolean(props.getProperty("seat_inventory", "false").trim())
+                ? new SeatInventory(pool, intProperty(props, "seat_inventory_flush_ms", 1000)) : null;
+    }
+
+    private static Properties readConfig(InputStream config) throws OlympicsDBException {
+        Properties props = new Properties();
+        try {
+            props.load(config);
+        } catch (IOException e) {
+            throw new OlympicsDBException("Couldn't read config data",e);
+        }
+        return props;
+    }
+
+    /**
+     * Release all pooled database connections. The backend can't be used
+     * after this has been called.
+     */
+    public void close() {
+        if (seatInventory != null) {
+            seatInventory.close();
+        }
+        pool.close();
+    }
+
+    /**
+     * @return connection pool sizes, acquisition-wait metrics and statement
+     * cache hit/miss counts
+     */
+    public HashMap<String, Object> getPoolStatistics() {
+        return pool.getStatistics();
+    }
+
+    /**
+     * @return statistics of the connection pool and every cache together
+     */
+    public HashMap<String, Object> getStatistics() {
+        HashMap<String, Object> stats = new HashMap<String, Object>();
+        stats.putAll(getPoolStatistics());
+        stats.putAll(memberProfiles.getStatistics("profilecache_"));
+        stats.putAll(medalTallies.getStatistics("medalcache_"));
+        stats.putAll(getEventCacheStatistics());
+        stats.putAll(getResultCacheStatistics());
+        stats.putAll(getLeaderboardStatistics());
+        stats.putAll(getReferenceDataStatistics());
+        stats.putAll(getJourneyIndexStatistics());
+        stats.putAll(getJourneyPlannerStatistics());
+        stats.putAll(getSeatInventoryStatistics());
+        return stats;
+    }
+
+    /**
+     * Read an integer setting from the config
+     * @param props config properties
+     * @param key setting name
+     * @param defaultValue value to use if the setting is missing or invalid
+     * @return the setting's value
+     */
+    static int intProperty(Properties props, String key, int defaultValue) {
+        String value = props.getProperty(key);
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
         }
     }
 
@@ -877,14 +1661,13 @@ public class DatabaseBackend {
     }
 
     /**
-     * Construct object with open connection using configured login details
+     * Borrow a pooled connection using configured login details. Closing the
+     * returned connection gives it back to the pool.
      * @return database connection
-     * @throws SQLException if a DB connection cannot be established
+     * @throws SQLException if a DB connection cannot be obtained
      */
     private Connection getConnection() throws SQLException {
-        Connection conn;
-        conn = DriverManager.getConnection(connstring, dbUser, dbPass);
-        return conn;
+        return pool.borrow();
     }
 
 
@@ -0,0 +1,747 @@
+package usyd.it.olympics;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import usyd.it.olympics.data.BookingOutcome;
+import usyd.it.olympics.data.TupleTable;
+import usyd.it.olympics.tools.Dataset;
+
+/**
+ * Backend holding all the Olympics data in memory, with no database. It is
+ * seeded from a generated Dataset and answers every operation from indexes
+ * built when it is created, so it suits demonstrations, load tests and
+ * measuring the client without the database's costs.
+ *
+ * Members, events and the timetable never change after loading, so they are
+ * held in plain maps that are only read. Medals change only through
+ * recordMedal, which holds a lock while it moves the medal counts, athletes'
+ * and countries', and then replaces the event's results table. Bookings are
+ * the other changing state: seats are reserved by compare-and-set on each
+ * journey's counter, as in SeatInventory, and bookings are kept in concurrent
+ * maps by journey and member. Team bookings lock their journey so they are
+ * booked all together. Bookings are lost when the backend is closed.
+ */
+public class InMemoryBackend implements OlympicsBackend {
+
+    private static final class Member {
+        final String id;
+        final String title;
+        final String familyName;
+        final String givenNames;
+        final String countryCode;
+        final String countryName;
+        final String residence;
+        final String password;
+        final String type;
+        /// Gold, silver and bronze
+        final AtomicIntegerArray medals = new AtomicIntegerArray(3);
+
+        Member(Object[] row, String countryName, String residence, String type) {
+            id = (String) row[0];
+            title = (String) row[1];
+            familyName = (String) row[2];
+            givenNames = (String) row[3];
+            countryCode = (String) row[4];
+            this.countryName = countryName;
+            this.residence = residence;
+            password = (String) row[6];
+            this.type = type;
+        }
+
+        String name() {
+            return familyName + ", " + givenNames;
+        }
+    }
+
+    /**
+     * An athlete or team in an event. The medal is only changed by
+     * recordMedal, holding the backend's lock.
+     */
+    private static final class Participant {
+        final String name;
+        final String countryCode;
+        final String countryName;
+        /// The athlete, or the team's members
+        final ArrayList<Member> athletes = new ArrayList<Member>();
+        String medal;
+
+        Participant(String name, String countryCode, String countryName, String medal) {
+            this.name = name;
+            this.countryCode = countryCode;
+            this.countryName = countryName;
+            this.medal = medal;
+        }
+    }
+
+    /**
+     * Everyone in an event
+     */
+    private static final class EventEntry {
+        /// By member ID
+        final HashMap<String, Participant> athletes = new HashMap<String, Participant>();
+        /// By team name
+        final HashMap<String, Participant> teams = new HashMap<String, Participant>();
+
+        /// Results as getResultsOfEvent lists them: the teams if there are any, by name
+        TupleTable results() {
+            ArrayList<Participant> listed = new ArrayList<Participant>(teams.isEmpty() ? athletes.values() : teams.values());
+            Collections.sort(listed, new Comparator<Participant>() {
+                @Override
+                public int compare(Participant a, Participant b) {
+                    return a.name.compareTo(b.name);
+                }
+            });
+            TupleTable results = new TupleTable(DatabaseBackend.RESULT_SCHEMA, listed.size());
+            for (Participant p : listed) {
+                results.add(new Object[] { p.name, p.countryName, medalName(p.medal) });
+            }
+            return results;
+        }
+    }
+
+    private static final class Journey {
+        final int id;
+        final String vehicleCode;
+        final int fromPlace;
+        final int toPlace;
+        final long departs;
+        final long arrives;
+        final int capacity;
+        final AtomicInteger nbooked;
+        /// Bookings on this journey by member ID
+        final ConcurrentHashMap<String, Booking> bookings = new ConcurrentHashMap<String, Booking>();
+
+        Journey(Object[] row, int capacity) {
+            id = (Integer) row[0];
+            vehicleCode = ((String) row[1]).trim();
+            fromPlace = (Integer) row[2];
+            toPlace = (Integer) row[3];
+            departs = ((Timestamp) row[4]).getTime();
+            arrives = ((Timestamp) row[5]).getTime();
+            this.capacity = capacity;
+            nbooked = new AtomicInteger((Integer) row[6]);
+        }
+
+        /// Only the departure and ID, to find a place in a member's bookings
+        Journey(int id, long departs) {
+            this.id = id;
+            vehicleCode = null;
+            fromPlace = 0;
+            toPlace = 0;
+            this.departs = departs;
+            arrives = departs;
+            capacity = 0;
+            nbooked = null;
+        }
+    }
+
+    private static final class Booking {
+        final Journey journey;
+        final String bookedFor;
+        final String bookedBy;
+        final Timestamp whenBooked;
+
+        Booking(Journey journey, String bookedFor, String bookedBy, Timestamp whenBooked) {
+            this.journey = journey;
+            this.bookedFor = bookedFor;
+            this.bookedBy = bookedBy;
+            this.whenBooked = whenBooked;
+        }
+    }
+
+    /// A member's bookings in order of departure, as the history is listed
+    private static final Comparator<Booking> BY_DEPARTURE = new Comparator<Booking>() {
+        @Override
+        public int compare(Booking a, Booking b) {
+            int byTime = Long.compare(a.journey.departs, b.journey.departs);
+            return byTime != 0 ? byTime : Integer.compare(a.journey.id, b.journey.id);
+        }
+    };
+
+    private final HashMap<String, Member> members = new HashMap<String, Member>();
+    /// Lowest member ID with each "family, given" name, as bookings resolve names
+    private final HashMap<String, String> memberIdsByName = new HashMap<String, String>();
+    private final HashMap<Integer, String> placeNames = new HashMap<Integer, String>();
+    private final HashMap<String, List<Integer>> placeIds = new HashMap<String, List<Integer>>();
+    private final TupleTable sports = new TupleTable(ReferenceDataCache.SPORT_SCHEMA);
+    private final HashMap<Integer, TupleTable> eventsBySport = new HashMap<Integer, TupleTable>();
+    private final HashMap<Integer, EventEntry> eventEntries = new HashMap<Integer, EventEntry>();
+    /// Replaced by recordMedal, so read without locking
+    private final ConcurrentHashMap<Integer, TupleTable> resultsByEvent = new ConcurrentHashMap<Integer, TupleTable>();
+    /// Countries' medal totals, moved by recordMedal
+    private final MedalLeaderboard leaderboard = new MedalLeaderboard();
+    private final HashMap<Integer, Journey> journeys = new HashMap<Integer, Journey>();
+    /// Journey by vehicle and departure time
+    private final HashMap<String, Journey> journeysByDeparture = new HashMap<String, Journey>();
+    /// Journeys by day (local midnight) and route (from << 32 | to), in order of departure
+    private final HashMap<Long, HashMap<Long, List<Journey>>> journeysByDay = new HashMap<Long, HashMap<Long, List<Journey>>>();
+    private final ConcurrentHashMap<String, ConcurrentSkipListSet<Booking>> bookingsByMember =
+            new ConcurrentHashMap<String, ConcurrentSkipListSet<Booking>>();
+    private final JourneyPlanner journeyPlanner;
+    private final int plannerMaxResults;
+
+    /**
+     * Index a dataset. The planner settings are read from the config, as for
+     * DatabaseBackend.
+     * @param dataset the data to serve
+     * @param props config settings
+     */
+    public InMemoryBackend(Dataset dataset, Properties props) {
+        HashMap<String, String> countryNames = new HashMap<String, String>();
+        for (Object[] row : dataset.countries) countryNames.put((String) row[0], (String) row[1]);
+        for (Object[] row : dataset.places) {
+            Integer id = (Integer) row[0];
+            String name = (String) row[1];
+            placeNames.put(id, name);
+            List<Integer> ids = placeIds.get(name);
+            if (ids == null) {
+                ids = new ArrayList<Integer>();
+                placeIds.put(name, ids);
+            }
+            ids.add(id);
+        }
+
+        HashSet<String> athletes = new HashSet<String>();
+        for (Object[] row : dataset.athletes) athletes.add((String) row[0]);
+        HashSet<String> officials = new HashSet<String>();
+        for (Object[] row : dataset.officials) officials.add((String) row[0]);
+        ArrayList<Object[]> memberRows = new ArrayList<Object[]>(dataset.members);
+        Collections.sort(memberRows, new Comparator<Object[]>() {
+            @Override
+            public int compare(Object[] a, Object[] b) {
+                return ((String) a[0]).compareTo((String) b[0]);
+            }
+        });
+        for (Object[] row : memberRows) {
+            String id = (String) row[0];
+            String type = athletes.contains(id) ? "athlete" : officials.contains(id) ? "official" : "staff";
+            Member member = new Member(row, countryNames.get(row[4]), placeNames.get(row[5]), type);
+            members.put(id, member);
+            if (!memberIdsByName.containsKey(member.name())) {
+                memberIdsByName.put(member.name(), id);
+            }
+        }
+
+        for (Object[] row : dataset.sports) {
+            sports.add(new Object[] { row[0], row[1], row[2] });
+            eventsBySport.put((Integer) row[0], new TupleTable(DatabaseBackend.EVENT_SCHEMA));
+        }
+        ArrayList<Object[]> eventRows = new ArrayList<Object[]>(dataset.events);
+        Collections.sort(eventRows, new Comparator<Object[]>() {
+            @Override
+            public int compare(Object[] a, Object[] b) {
+                int byStart = ((Timestamp) a[5]).compareTo((Timestamp) b[5]);
+                return byStart != 0 ? byStart : ((String) a[2]).compareTo((String) b[2]);
+            }
+        });
+        for (Object[] row : eventRows) {
+            eventsBySport.get(row[1]).add(new Object[] { row[0], row[1], row[2], row[3],
+                    placeNames.get(row[4]), new Date(((Timestamp) row[5]).getTime()) });
+        }
+        indexResults(dataset, countryNames);
+
+        HashMap<String, Integer> capacities = new HashMap<String, Integer>();
+        for (Object[] row : dataset.vehicles) capacities.put(((String) row[0]).trim(), (Integer) row[1]);
+        ArrayList<Object[]> timetable = new ArrayList<Object[]>(dataset.journeys.size());
+        for (Object[] row : dataset.journeys) {
+            Journey journey = new Journey(row, capacities.get(((String) row[1]).trim()));
+            journeys.put(journey.id, journey);
+            journeysByDeparture.put(departureKey(journey.vehicleCode, journey.departs), journey);
+            HashMap<Long, List<Journey>> routes = journeysByDay.get(dayStart(journey.departs));
+            if (routes == null) {
+                routes = new HashMap<Long, List<Journey>>();
+                journeysByDay.put(dayStart(journey.departs), routes);
+            }
+            List<Journey> onRoute = routes.get(routeKey(journey.fromPlace, journey.toPlace));
+            if (onRoute == null) {
+                onRoute = new ArrayList<Journey>();
+                routes.put(routeKey(journey.fromPlace, journey.toPlace), onRoute);
+            }
+            onRoute.add(journey);
+        }
+        for (HashMap<Long, List<Journey>> routes : journeysByDay.values()) {
+            for (List<Journey> onRoute : routes.values()) {
+                Collections.sort(onRoute, new Comparator<Journey>() {
+                    @Override
+                    public int compare(Journey a, Journey b) {
+                        return Long.compare(a.departs, b.departs);
+                    }
+                });
+            }
+        }
+
+        // The dataset's bookings count towards nbooked already
+        for (Object[] row : dataset.bookings) {
+            Journey journey = journeys.get(row[3]);
+            Booking booking = new Booking(journey, (String) row[0], (String) row[1], (Timestamp) row[2]);
+            journey.bookings.put(booking.bookedFor, booking);
+            bookingsOf(booking.bookedFor).add(booking);
+        }
+
+        for (Journey journey : journeys.values()) {
+            timetable.add(new Object[] { journey.id, journey.vehicleCode, journey.fromPlace, journey.toPlace,
+                    journey.departs, journey.arrives, journey.nbooked.get(), journey.capacity });
+        }
+        journeyPlanner = new JourneyPlanner(null, Long.MAX_VALUE,
+                DatabaseBackend.intProperty(props, "planner_max_legs", 3),
+                60000L * DatabaseBackend.intProperty(props, "planner_min_transfer_min", 10),
+                3600000L * DatabaseBackend.intProperty(props, "planner_horizon_h", 24));
+        journeyPlanner.install(timetable);
+        plannerMaxResults = DatabaseBackend.intProperty(props, "planner_max_results", 5);
+    }
+
+    /// Results of every event, and each athlete's medals
+    private void indexResults(Dataset dataset, HashMap<String, String> countryNames) {
+        for (Object[] row : dataset.events) {
+            eventEntries.put((Integer) row[0], new EventEntry());
+        }
+        for (Object[] row : dataset.teams) {
+            eventEntries.get(row[0]).teams.put((String) row[1],
+                    new Participant((String) row[1], (String) row[2], countryNames.get(row[2]), (String) row[3]));
+        }
+        for (Object[] row : dataset.participates) {
+            Member athlete = members.get(row[1]);
+            Participant p = new Participant(athlete.name(), athlete.countryCode, athlete.countryName, (String) row[2]);
+            p.athletes.add(athlete);
+            eventEntries.get(row[0]).athletes.put(athlete.id, p);
+            addMedal(athlete, p.medal, 1);
+        }
+        for (Object[] row : dataset.teamMembers) {
+            Participant team = eventEntries.get(row[0]).teams.get(row[1]);
+            Member athlete = members.get(row[2]);
+            team.athletes.add(athlete);
+            addMedal(athlete, team.medal, 1);
+        }
+        for (Map.Entry<Integer, EventEntry> entry : eventEntries.entrySet()) {
+            resultsByEvent.put(entry.getKey(), entry.getValue().results());
+        }
+        // Gold, silver and bronze of each country, a team's medal counting once
+        HashMap<String, int[]> totals = new HashMap<String, int[]>();
+        for (String code : countryNames.keySet()) totals.put(code, new int[3]);
+        for (EventEntry event : eventEntries.values()) {
+            for (Participant p : event.athletes.values()) countMedal(totals.get(p.countryCode), p.medal);
+            for (Participant p : event.teams.values()) countMedal(totals.get(p.countryCode), p.medal);
+        }
+        for (Map.Entry<String, int[]> country : totals.entrySet()) {
+            int[] medals = country.getValue();
+            leaderboard.addCountry(country.getKey(), countryNames.get(country.getKey()), medals[0], medals[1], medals[2]);
+        }
+    }
+
+    /// Add (or with a negative count, take away) medals of the given code
+    private static void addMedal(Member athlete, String medal, int count) {
+        if ("G".equals(medal)) athlete.medals.addAndGet(0, count);
+        else if ("S".equals(medal)) athlete.medals.addAndGet(1, count);
+        else if ("B".equals(medal)) athlete.medals.addAndGet(2, count);
+    }
+
+    private static void countMedal(int[] medals, String medal) {
+        if (medals == null) return;
+        if ("G".equals(medal)) ++medals[0];
+        else if ("S".equals(medal)) ++medals[1];
+        else if ("B".equals(medal)) ++medals[2];
+    }
+
+    private static String medalName(String medal) {
+        if ("G".equals(medal)) return "Gold";
+        else if ("S".equals(medal)) return "Silver";
+        else if ("B".equals(medal)) return "Bronze";
+        return null;
+    }
+
+    @Override
+    public HashMap<String, Object> checkLogin(String member, char[] password) throws OlympicsDBException {
+        Member m = members.get(member);
+        if (m == null || !m.password.equals(new String(password))) {
+            return null;
+        }
+        HashMap<String, Object> details = new HashMap<String, Object>();
+        details.put("member_id", m.id);
+        details.put("title", m.title);
+        details.put("first_name", m.givenNames);
+        details.put("family_name", m.familyName);
+        details.put("country_name", m.countryName);
+        details.put("residence", m.residence);
+        details.put("member_type", m.type);
+        return details;
+    }
+
+    /**
+     * Nothing is held per session: members are always in memory
+     */
+    @Override
+    public void endSession(String memberID) {
+    }
+
+    @Override
+    public HashMap<String, Object> getMemberDetails(String memberID) throws OlympicsDBException {
+        HashMap<String, Object> details = new HashMap<String, Object>();
+        Member m = members.get(memberID);
+        if (m == null) {
+            return details;
+        }
+        details.put("member_id", m.id);
+        details.put("member_type", m.type);
+        details.put("title", m.title);
+        details.put("first_name", m.givenNames);
+        details.put("family_name", m.familyName);
+        details.put("country_name", m.countryName);
+        details.put("residence", m.residence);
+        details.put("num_bookings", countMemberBookings(memberID));
+        if (m.type.equals("athlete")) {
+            details.put("num_gold", m.medals.get(0));
+            details.put("num_silver", m.medals.get(1));
+            details.put("num_bronze", m.medals.get(2));
+        }
+        return details;
+    }
+
+    @Override
+    public TupleTable getSports() throws OlympicsDBException {
+        return sports;
+    }
+
+    @Override
+    public TupleTable getEventsOfSport(Integer sportId) throws OlympicsDBException {
+        TupleTable events = eventsBySport.get(sportId);
+        return events != null ? events : new TupleTable(DatabaseBackend.EVENT_SCHEMA);
+    }
+
+    @Override
+    public TupleTable getResultsOfEvent(Integer eventId) throws OlympicsDBException {
+        TupleTable results = resultsByEvent.get(eventId);
+        return results != null ? results : new TupleTable(DatabaseBackend.RESULT_SCHEMA);
+    }
+
+    @Override
+    public synchronized boolean recordMedal(Integer eventId, String participant, String medal) throws OlympicsDBException {
+        String code = DatabaseBackend.medalCode(medal);
+        EventEntry event = eventEntries.get(eventId);
+        if (event == null) {
+            return false;
+        }
+        // Athletes first, as in the database backend
+        Participant p = event.athletes.get(participant);
+        if (p == null) p = event.teams.get(participant);
+        if (p == null) {
+            return false;
+        }
+        for (Member athlete : p.athletes) {
+            addMedal(athlete, p.medal, -1);
+            addMedal(athlete, code, 1);
+        }
+        leaderboard.medalChanged(p.countryCode, p.medal, code);
+        p.medal = code;
+        resultsByEvent.put(eventId, event.results());
+        return true;
+    }
+
+    @Override
+    public TupleTable getMedalLeaderboard(int limit) throws OlympicsDBException {
+        return leaderboard.top(limit);
+    }
+
+    @Override
+    public TupleTable findJourneys(String fromPlace, String toPlace, Date journeyDate) throws OlympicsDBException {
+        TupleTable found = new TupleTable(DatabaseBackend.JOURNEY_SCHEMA);
+        HashMap<Long, List<Journey>> routes = journeysByDay.get(dayStart(journeyDate.getTime()));
+        List<Integer> fromIds = placeIds.get(fromPlace);
+        List<Integer> toIds = placeIds.get(toPlace);
+        if (routes == null || fromIds == null || toIds == null) {
+            return found;
+        }
+        ArrayList<Journey> matches = new ArrayList<Journey>();
+        for (Integer from : fromIds) {
+            for (Integer to : toIds) {
+                List<Journey> onRoute = routes.get(routeKey(from, to));
+                if (onRoute != null) matches.addAll(onRoute);
+            }
+        }
+        if (fromIds.size() > 1 || toIds.size() > 1) {
+            Collections.sort(matches, new Comparator<Journey>() {
+                @Override
+                public int compare(Journey a, Journey b) {
+                    return Long.compare(a.departs, b.departs);
+                }
+            });
+        }
+        for (Journey journey : matches) {
+            found.add(new Object[] { journey.id, journey.vehicleCode, placeNames.get(journey.fromPlace),
+                    placeNames.get(journey.toPlace), new Date(journey.departs), new Date(journey.arrives),
+                    journey.capacity - journey.nbooked.get() });
+        }
+        return found;
+    }
+
+    @Override
+    public TupleTable planJourneys(String fromPlace, String toPlace, Date departAfter) throws OlympicsDBException {
+        TupleTable itineraries = new TupleTable(DatabaseBackend.ITINERARY_SCHEMA);
+        List<Integer> fromIds = placeIds.get(fromPlace);
+        List<Integer> toIds = placeIds.get(toPlace);
+        if (fromIds == null || toIds == null) {
+            return itineraries;
+        }
+        try {
+            int option = 0;
+            for (List<JourneyPlanner.Leg> legs : journeyPlanner.plan(fromIds, toIds, departAfter.getTime(), plannerMaxResults)) {
+                JourneyPlanner.Leg first = legs.get(0);
+                JourneyPlanner.Leg last = legs.get(legs.size() - 1);
+                StringBuilder route = new StringBuilder();
+                int available_seats = Integer.MAX_VALUE;
+                for (JourneyPlanner.Leg leg : legs) {
+                    if (route.length() > 0) route.append(", then ");
+                    route.append(leg.vehicleCode).append(" to ").append(placeNames.get(leg.toPlace));
+                    available_seats = Math.min(available_seats, leg.seatsLeft);
+                }
+                itineraries.add(new Object[] { ++option, legs.size(),
+                        placeNames.get(first.fromPlace), placeNames.get(last.toPlace),
+                        new Date(first.departs), new Date(last.arrives), route.toString(),
+                        available_seats, first.journeyId });
+            }
+        } catch (Exception e) {
+            throw new OlympicsDBException("Planning journeys error", e);
+        }
+        return itineraries;
+    }
+
+    @Override
+    public HashMap<String, Object> getJourneyDetails(Integer journeyId) throws OlympicsDBException {
+        HashMap<String, Object> details = new HashMap<String, Object>();
+        Journey journey = journeys.get(journeyId);
+        if (journey != null) {
+            details.put("journey_id", journey.id);
+            details.put("vehicle_code", journey.vehicleCode);
+            details.put("origin_name", placeNames.get(journey.fromPlace));
+            details.put("dest_name", placeNames.get(journey.toPlace));
+            details.put("when_departs", new Date(journey.departs));
+            details.put("when_arrives", new Date(journey.arrives));
+            details.put("capacity", journey.capacity);
+            details.put("nbooked", journey.nbooked.get());
+        }
+        return details;
+    }
+
+    @Override
+    public TupleTable getMemberBookings(String memberID) throws OlympicsDBException {
+        return getMemberBookings(memberID, null, null, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public TupleTable getMemberBookings(String memberID, Date afterDeparture, Integer afterJourneyId, int limit) throws OlympicsDBException {
+        TupleTable bookings = new TupleTable(DatabaseBackend.BOOKING_SCHEMA);
+        ConcurrentSkipListSet<Booking> ofMember = bookingsByMember.get(memberID);
+        if (ofMember == null) {
+            return bookings;
+        }
+        Iterator<Booking> it;
+        if (afterDeparture == null) {
+            it = ofMember.iterator();
+        } else {
+            // Straight to the first booking after the key, as the set is in that order
+            Journey after = new Journey(afterJourneyId == null ? Integer.MAX_VALUE : afterJourneyId, afterDeparture.getTime());
+            it = ofMember.tailSet(new Booking(after, memberID, null, null), false).iterator();
+        }
+        while (it.hasNext() && bookings.size() < limit) {
+            Journey journey = it.next().journey;
+            // Booker and booking time aren't shown in the history
+            bookings.add(new Object[] { journey.id, journey.vehicleCode, placeNames.get(journey.fromPlace),
+                    placeNames.get(journey.toPlace), new Date(journey.departs), new Date(journey.arrives),
+                    null, null, null });
+        }
+        return bookings;
+    }
+
+    @Override
+    public int countMemberBookings(String memberID) throws OlympicsDBException {
+        ConcurrentSkipListSet<Booking> ofMember = bookingsByMember.get(memberID);
+        return ofMember == null ? 0 : ofMember.size();
+    }
+
+    @Override
+    public HashMap<String, Object> getBookingDetails(String memberID, Integer journeyId) throws OlympicsDBException {
+        HashMap<String, Object> details = new HashMap<String, Object>();
+        Journey journey = journeys.get(journeyId);
+        Booking booking = journey == null ? null : journey.bookings.get(memberID);
+        if (booking != null) {
+            details.put("bookedby_name", memberName(booking.bookedBy));
+            details.put("bookedfor_name", memberName(booking.bookedFor));
+            details.put("when_booked", booking.whenBooked);
+            details.put("journey_id", journey.id);
+            details.put("vehicle", journey.vehicleCode);
+            details.put("origin_name", placeNames.get(journey.fromPlace));
+            details.put("dest_name", placeNames.get(journey.toPlace));
+            details.put("when_departs", new Timestamp(journey.departs));
+            details.put("when_arrives", new Timestamp(journey.arrives));
+        }
+        return details;
+    }
+
+    @Override
+    public HashMap<String, Object> makeBooking(String byStaff, String forMember, String vehicle, Date departs) throws OlympicsDBException {
+        Journey journey = journeysByDeparture.get(departureKey(vehicle.trim(), departs.getTime()));
+        String memberId = memberIdsByName.get(forMember);
+        if (journey == null || memberId == null || reserveUpTo(journey, 1) == 0) {
+            return null;
+        }
+        Booking booking = new Booking(journey, memberId, byStaff, new Timestamp(System.currentTimeMillis()));
+        if (journey.bookings.putIfAbsent(memberId, booking) != null) {
+            journey.nbooked.decrementAndGet();
+            throw new OlympicsDBException(forMember + " is already booked on this journey");
+        }
+        bookingsOf(memberId).add(booking);
+        journeyPlanner.booked(journey.id, journey.nbooked.get());
+
+        HashMap<String, Object> summary = new HashMap<String, Object>();
+        summary.put("vehicle_code", vehicle);
+        summary.put("when_departs", new Date(journey.departs));
+        summary.put("when_arrives", new Date(journey.arrives));
+        summary.put("dest_name", placeNames.get(journey.toPlace));
+        summary.put("origin_name", placeNames.get(journey.fromPlace));
+        summary.put("bookedby_name", memberName(byStaff));
+        summary.put("bookedfor_name", forMember);
+        summary.put("when_booked", booking.whenBooked);
+        return summary;
+    }
+
+    @Override
+    public TupleTable makeBookings(String byStaff, List<String> forMembers, String vehicle, Date departs) throws OlympicsDBException {
+        Journey journey = journeysByDeparture.get(departureKey(vehicle.trim(), departs.getTime()));
+        if (journey == null) {
+            return null;
+        }
+        TupleTable outcomes = new TupleTable(DatabaseBackend.BOOKING_OUTCOME_SCHEMA, forMembers.size());
+        // Single bookings don't take the lock, but only ever add one seat by compare-and-set
+        synchronized (journey) {
+            String[] outcome = new String[forMembers.size()];
+            HashSet<String> listed = new HashSet<String>();
+            int wanted = 0;
+            for (int i = 0; i < outcome.length; ++i) {
+                String memberId = memberIdsByName.get(forMembers.get(i));
+                if (memberId == null) {
+                    outcome[i] = BookingOutcome.UNKNOWN_MEMBER;
+                } else if (!listed.add(memberId)) {
+                    outcome[i] = BookingOutcome.DUPLICATE;
+                } else if (journey.bookings.containsKey(memberId)) {
+                    outcome[i] = BookingOutcome.ALREADY_BOOKED;
+                } else {
+                    ++wanted;
+                }
+            }
+
+            int seats = reserveUpTo(journey, wanted);
+            Timestamp now = new Timestamp(System.currentTimeMillis());
+            for (int i = 0; i < outcome.length; ++i) {
+                String name = forMembers.get(i);
+                String memberId = memberIdsByName.get(name);
+                if (outcome[i] != null) {
+                    // Already decided
+                } else if (seats == 0) {
+                    outcome[i] = BookingOutcome.NO_SEAT;
+                } else {
+                    Booking booking = new Booking(journey, memberId, byStaff, now);
+                    if (journey.bookings.putIfAbsent(memberId, booking) == null) {
+                        bookingsOf(memberId).add(booking);
+                        --seats;
+                        outcome[i] = BookingOutcome.BOOKED;
+                    } else {
+                        // Booked singly since we looked
+                        outcome[i] = BookingOutcome.ALREADY_BOOKED;
+                    }
+                }
+                outcomes.add(new Object[] { name, memberId, outcome[i] });
+            }
+            journey.nbooked.addAndGet(-seats);
+        }
+        journeyPlanner.booked(journey.id, journey.nbooked.get());
+        return outcomes;
+    }
+
+    /**
+     * @return sizes of the data held, and the journey planner's statistics
+     */
+    @Override
+    public HashMap<String, Object> getStatistics() {
+        HashMap<String, Object> stats = journeyPlanner.getStatistics();
+        int bookings = 0;
+        for (ConcurrentSkipListSet<Booking> ofMember : bookingsByMember.values()) bookings += ofMember.size();
+        stats.put("memory_members", members.size());
+        stats.put("memory_journeys", journeys.size());
+        stats.put("memory_bookings", bookings);
+        stats.putAll(leaderboard.getStatistics("leaderboard_"));
+        return stats;
+    }
+
+    /**
+     * Nothing to release; bookings made since loading are lost.
+     */
+    @Override
+    public void close() {
+    }
+
+    /**
+     * Reserve as many of the wanted seats on a journey as are left
+     * @return number of seats reserved
+     */
+    private static int reserveUpTo(Journey journey, int wanted) {
+        if (wanted <= 0) return 0;
+        while (true) {
+            int booked = journey.nbooked.get();
+            int granted = Math.min(wanted, journey.capacity - booked);
+            if (granted <= 0) {
+                return 0;
+            }
+            if (journey.nbooked.compareAndSet(booked, booked + granted)) {
+                return granted;
+            }
+        }
+    }
+
+    private ConcurrentSkipListSet<Booking> bookingsOf(String memberId) {
+        ConcurrentSkipListSet<Booking> ofMember = bookingsByMember.get(memberId);
+        if (ofMember == null) {
+            ConcurrentSkipListSet<Booking> created = new ConcurrentSkipListSet<Booking>(BY_DEPARTURE);
+            ofMember = bookingsByMember.putIfAbsent(memberId, created);
+            if (ofMember == null) ofMember = created;
+        }
+        return ofMember;
+    }
+
+    private String memberName(String memberId) {
+        Member m = members.get(memberId);
+        return m == null ? null : m.name();
+    }
+
+    private static String departureKey(String vehicle, long departs) {
+        return vehicle + "@" + departs;
+    }
+
+    private static long routeKey(int from, int to) {
+        return ((long) from << 32) | (to & 0xffffffffL);
+    }
+
+    /// Local midnight at the start of the day containing the time
+    private static long dayStart(long time) {
+        Calendar cal = Calendar.getInstance();
+        cal.setTimeInMillis(time);
+        cal.set(Calendar.HOUR_OF_DAY, 0);
+        cal.set(Calendar.MINUTE, 0);
+        cal.set(Calendar.SECOND, 0);
+        cal.set(Calendar.MILLISECOND, 0);
+        return cal.getTimeInMillis();
+    }
+}
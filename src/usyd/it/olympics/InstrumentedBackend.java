@@ -0,0 +1,518 @@
+package usyd.it.olympics;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import usyd.it.olympics.data.TupleTable;
+
+/**
+ * Backend wrapper that measures every operation of the backend it wraps:
+ * a latency histogram, error count, rows returned and estimated bytes of
+ * results per operation. The metrics, along with the wrapped backend's pool
+ * and cache statistics, are published over JMX (see BackendMetricsMXBean)
+ * and can be appended to a file on demand or every metrics_dump_s seconds.
+ *
+ * BackendFactory wraps the configured backend in one of these when metrics
+ * is set to true.
+ */
+public class InstrumentedBackend implements OlympicsBackend, BackendMetricsMXBean {
+
+    private static final String OBJECT_NAME = "usyd.it.olympics:type=BackendMetrics";
+    /// Distinguishes the MBeans of several backends in one JVM
+    private static final AtomicInteger instances = new AtomicInteger();
+
+    private static final class Operation {
+        final LatencyHistogram latency = new LatencyHistogram();
+        final AtomicLong errors = new AtomicLong();
+        final AtomicLong rows = new AtomicLong();
+        final AtomicLong bytes = new AtomicLong();
+    }
+
+    private final OlympicsBackend backend;
+    private final String metricsFile;
+    private final Timer dumper;
+    private final ObjectName objectName;
+
+    /// Operations by name, in the order they are reported
+    private final LinkedHashMap<String, Operation> operations = new LinkedHashMap<String, Operation>();
+    private final Operation checkLogin = operation("checkLogin");
+    private final Operation getMemberDetails = operation("getMemberDetails");
+    private final Operation getSports = operation("getSports");
+    private final Operation getEventsOfSport = operation("getEventsOfSport");
+    private final Operation getResultsOfEvent = operation("getResultsOfEvent");
+    private final Operation recordMedal = operation("recordMedal");
+    private final Operation getMedalLeaderboard = operation("getMedalLeaderboard");
+    private final Operation findJourneys = operation("findJourneys");
+    private final Operation planJourneys = operation("planJourneys");
+    private final Operation getJourneyDetails = operation("getJourneyDetails");
+    private final Operation getMemberBookings = operation("getMemberBookings");
+    private final Operation countMemberBookings = operation("countMemberBookings");
+    private final Operation getBookingDetails = operation("getBookingDetails");
+    private final Operation makeBooking = operation("makeBooking");
+    private final Operation makeBookings = operation("makeBookings");
+    /// Single and team bookings together
+    private final LatencyHistogram bookingLatency = new LatencyHistogram();
+
+    /**
+     * Wrap a backend and register its MBean.
+     * @param backend the backend to measure
+     * @param props config settings (metrics_file, metrics_dump_s)
+     * @throws OlympicsDBException if the MBean couldn't be registered
+     */
+    public InstrumentedBackend(OlympicsBackend backend, Properties props) throws OlympicsDBException {
+        this.backend = backend;
+        metricsFile = props.getProperty("metrics_file", "backend-metrics.txt").trim();
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            int instance = instances.incrementAndGet();
+            objectName = new ObjectName(instance == 1 ? OBJECT_NAME : OBJECT_NAME + ",id=" + instance);
+            server.registerMBean(this, objectName);
+        } catch (JMException e) {
+            throw new OlympicsDBException("Couldn't register backend metrics", e);
+        }
+
+        long dumpMillis = 1000L * DatabaseBackend.intProperty(props, "metrics_dump_s", 0);
+        if (dumpMillis > 0) {
+            dumper = new Timer("InstrumentedBackend-dumper", true);
+            dumper.schedule(new TimerTask() {
+                @Override
+                public void run() {
+                    try {
+                        dump();
+                    } catch (IOException e) {
+                        // Tried again next time
+                    }
+                }
+            }, dumpMillis, dumpMillis);
+        } else {
+            dumper = null;
+        }
+    }
+
+    private Operation operation(String name) {
+        Operation op = new Operation();
+        operations.put(name, op);
+        return op;
+    }
+
+    ///////////////////////////////
+    /// Backend operations
+    ///////////////////////////////
+
+    @Override
+    public HashMap<String, Object> checkLogin(String member, char[] password) throws OlympicsDBException {
+        long start = System.nanoTime();
+        try {
+            return returned(checkLogin, start, backend.checkLogin(member, password));
+        } catch (OlympicsDBException e) {
+            throw failed(checkLogin, start, e);
+        } catch (RuntimeException e) {
+            throw failed(checkLogin, start, e);
+        }
+    }
+
+    @Override
+    public void endSession(String memberID) {
+        backend.endSession(memberID);
+    }
+
+    @Override
+    public HashMap<String, Object> getMemberDetails(String memberID) throws OlympicsDBException {
+        long start = System.nanoTime();
+        try {
+            return returned(getMemberDetails, start, backend.getMemberDetails(memberID));
+        } catch (OlympicsDBException e) {
+            throw failed(getMemberDetails, start, e);
+        } catch (RuntimeException e) {
+            throw failed(getMemberDetails, start, e);
+        }
+    }
+
+    @Override
+    public TupleTable getSports() throws OlympicsDBException {
+        long start = System.nanoTime();
+        try {
+            return returned(getSports, start, backend.getSports());
+        } catch (OlympicsDBException e) {
+            throw failed(getSports, start, e);
+        } catch (RuntimeException e) {
+            throw failed(getSports, start, e);
+        }
+    }
+
+    @Override
+    public TupleTable getEventsOfSport(Integer sportId) throws OlympicsDBException {
+        long start = System.nanoTime();
+        try {
+            return returned(getEventsOfSport, start, backend.getEventsOfSport(sportId));
+        } catch (OlympicsDBException e) {
+            throw failed(getEventsOfSport, start, e);
+        } catch (RuntimeException e) {
+            throw failed(getEventsOfSport, start, e);
+        }
+    }
+
+    @Override
+    public TupleTable getResultsOfEvent(Integer eventId) throws OlympicsDBException {
+        long start = System.nanoTime();
+        try {
+            return returned(getResultsOfEvent, start, backend.getResultsOfEvent(eventId));
+        } catch (OlympicsDBException e) {
+            throw failed(getResultsOfEvent, start, e);
+        } catch (RuntimeException e) {
+            throw failed(getResultsOfEvent, start, e);
+        }
+    }
+
+    @Override
+    public boolean recordMedal(Integer eventId, String participant, String medal) throws OlympicsDBException {
+        long start = System.nanoTime();
+        try {
+            return returned(recordMedal, start, backend.recordMedal(eventId, participant, medal));
+        } catch (OlympicsDBException e) {
+            throw failed(recordMedal, start, e);
+        } catch (RuntimeException e) {
+            throw failed(recordMedal, start, e);
+        }
+    }
+
+    @Override
+    public TupleTable getMedalLeaderboard(int limit) throws OlympicsDBException {
+        long start = System.nanoTime();
+        try {
+            return returned(getMedalLeaderboard, start, backend.getMedalLeaderboard(limit));
+        } catch (OlympicsDBException e) {
+            throw failed(getMedalLeaderboard, start, e);
+        } catch (RuntimeException e) {
+            throw failed(getMedalLeaderboard, start, e);
+        }
+    }
+
+    @Override
+    public TupleTable findJourneys(String fromPlace, String toPlace, Date journeyDate) throws OlympicsDBException {
+        long start = System.nanoTime();
+        try {
+            return returned(findJourneys, start, backend.findJourneys(fromPlace, toPlace, journeyDate));
+        } catch (OlympicsDBException e) {
+            throw failed(findJourneys, start, e);
+        } catch (RuntimeException e) {
+            throw failed(findJourneys, start, e);
+        }
+    }
+
+    @Override
+    public TupleTable planJourneys(String fromPlace, String toPlace, Date departAfter) throws OlympicsDBException {
+        long start = System.nanoTime();
+        try {
+            return returned(planJourneys, start, backend.planJourneys(fromPlace, toPlace, departAfter));
+        } catch (OlympicsDBException e) {
+            throw failed(planJourneys, start, e);
+        } catch (RuntimeException e) {
+            throw failed(planJourneys, start, e);
+        }
+    }
+
+    @Override
+    public HashMap<String, Object> getJourneyDetails(Integer journeyId) throws OlympicsDBException {
+        long start = System.nanoTime();
+        try {
+            return returned(getJourneyDetails, start, backend.getJourneyDetails(journeyId));
+        } catch (OlympicsDBException e) {
+            throw failed(getJourneyDetails, start, e);
+        } catch (RuntimeException e) {
+            throw failed(getJourneyDetails, start, e);
+        }
+    }
+
+    @Override
+    public TupleTable getMemberBookings(String memberID) throws OlympicsDBException {
+        long start = System.nanoTime();
+        try {
+            return returned(getMemberBookings, start, backend.getMemberBookings(memberID));
+        } catch (OlympicsDBException e) {
+            throw failed(getMemberBookings, start, e);
+        } catch (RuntimeException e) {
+            throw failed(getMemberBookings, start, e);
+        }
+    }
+
+    @Override
+    public TupleTable getMemberBookings(String memberID, Date afterDeparture, Integer afterJourneyId, int limit) throws OlympicsDBException {
+        long start = System.nanoTime();
+        try {
+            return returned(getMemberBookings, start, backend.getMemberBookings(memberID, afterDeparture, afterJourneyId, limit));
+        } catch (OlympicsDBException e) {
+            throw failed(getMemberBookings, start, e);
+        } catch (RuntimeException e) {
+            throw failed(getMemberBookings, start, e);
+        }
+    }
+
+    @Override
+    public int countMemberBookings(String memberID) throws OlympicsDBException {
+        long start = System.nanoTime();
+        try {
+            return returned(countMemberBookings, start, backend.countMemberBookings(memberID));
+        } catch (OlympicsDBException e) {
+            throw failed(countMemberBookings, start, e);
+        } catch (RuntimeException e) {
+            throw failed(countMemberBookings, start, e);
+        }
+    }
+
+    @Override
+    public HashMap<String, Object> getBookingDetails(String memberID, Integer journeyId) throws OlympicsDBException {
+        long start = System.nanoTime();
+        try {
+            return returned(getBookingDetails, start, backend.getBookingDetails(memberID, journeyId));
+        } catch (OlympicsDBException e) {
+            throw failed(getBookingDetails, start, e);
+        } catch (RuntimeException e) {
+            throw failed(getBookingDetails, start, e);
+        }
+    }
+
+    @Override
+    public HashMap<String, Object> makeBooking(String byStaff, String forMember, String vehicle, Date departs) throws OlympicsDBException {
+        long start = System.nanoTime();
+        try {
+            return returned(makeBooking, start, backend.makeBooking(byStaff, forMember, vehicle, departs));
+        } catch (OlympicsDBException e) {
+            throw failed(makeBooking, start, e);
+        } catch (RuntimeException e) {
+            throw failed(makeBooking, start, e);
+        }
+    }
+
+    @Override
+    public TupleTable makeBookings(String byStaff, List<String> forMembers, String vehicle, Date departs) throws OlympicsDBException {
+        long start = System.nanoTime();
+        try {
+            return returned(makeBookings, start, backend.makeBookings(byStaff, forMembers, vehicle, departs));
+        } catch (OlympicsDBException e) {
+            throw failed(makeBookings, start, e);
+        } catch (RuntimeException e) {
+            throw failed(makeBookings, start, e);
+        }
+    }
+
+    @Override
+    public HashMap<String, Object> getStatistics() {
+        return backend.getStatistics();
+    }
+
+    /**
+     * Close the wrapped backend and unregister the MBean. If dumping
+     * periodically, the final metrics are dumped first.
+     */
+    @Override
+    public void close() {
+        if (dumper != null) {
+            dumper.cancel();
+            try {
+                dump();
+            } catch (IOException e) {
+                // Nowhere left to report it
+            }
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch (JMException e) {
+            // Already gone
+        }
+        backend.close();
+    }
+
+    /// Record a completed call, then its result's size
+    private <T> T returned(Operation op, long start, T result) {
+        long nanos = System.nanoTime() - start;
+        op.latency.record(nanos);
+        if (op == makeBooking || op == makeBookings) {
+            bookingLatency.record(nanos);
+        }
+        if (result instanceof TupleTable) {
+            TupleTable table = (TupleTable) result;
+            op.rows.addAndGet(table.size());
+            long bytes = 0;
+            for (int i = 0; i < table.size(); ++i) {
+                Object[] row = table.getRow(i);
+                bytes += 16 + 4 * row.length;
+                for (Object value : row) bytes += estimateBytes(value);
+            }
+            op.bytes.addAndGet(bytes);
+        } else if (result instanceof Map) {
+            Map<?, ?> map = (Map<?, ?>) result;
+            if (!map.isEmpty()) op.rows.incrementAndGet();
+            long bytes = 48;
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                bytes += 32 + estimateBytes(entry.getKey()) + estimateBytes(entry.getValue());
+            }
+            op.bytes.addAndGet(bytes);
+        } else if (result != null) {
+            op.rows.incrementAndGet();
+            op.bytes.addAndGet(estimateBytes(result));
+        }
+        return result;
+    }
+
+    /// Record a failed call
+    private <E extends Exception> E failed(Operation op, long start, E e) {
+        long nanos = System.nanoTime() - start;
+        op.latency.record(nanos);
+        if (op == makeBooking || op == makeBookings) {
+            bookingLatency.record(nanos);
+        }
+        op.errors.incrementAndGet();
+        return e;
+    }
+
+    /// Rough heap size of a result value, in bytes
+    private static long estimateBytes(Object value) {
+        if (value == null) return 0;
+        if (value instanceof String) return 40 + ((String) value).length();
+        if (value instanceof Date) return 32;
+        return 16;
+    }
+
+    ///////////////////////////////
+    /// JMX
+    ///////////////////////////////
+
+    @Override
+    public double getLoginP99Millis() {
+        return checkLogin.latency.getValueAtPercentile(99) / 1e6;
+    }
+
+    @Override
+    public double getBookingP99Millis() {
+        return bookingLatency.getValueAtPercentile(99) / 1e6;
+    }
+
+    @Override
+    public Map<String, Long> getCalls() {
+        TreeMap<String, Long> calls = new TreeMap<String, Long>();
+        for (Map.Entry<String, Operation> op : operations.entrySet()) calls.put(op.getKey(), op.getValue().latency.getCount());
+        return calls;
+    }
+
+    @Override
+    public Map<String, Long> getErrors() {
+        TreeMap<String, Long> errors = new TreeMap<String, Long>();
+        for (Map.Entry<String, Operation> op : operations.entrySet()) errors.put(op.getKey(), op.getValue().errors.get());
+        return errors;
+    }
+
+    @Override
+    public Map<String, Double> getP50Millis() {
+        return percentiles(50);
+    }
+
+    @Override
+    public Map<String, Double> getP99Millis() {
+        return percentiles(99);
+    }
+
+    @Override
+    public Map<String, Double> getP999Millis() {
+        return percentiles(99.9);
+    }
+
+    @Override
+    public Map<String, Double> getMaxMillis() {
+        TreeMap<String, Double> max = new TreeMap<String, Double>();
+        for (Map.Entry<String, Operation> op : operations.entrySet()) max.put(op.getKey(), op.getValue().latency.getMax() / 1e6);
+        return max;
+    }
+
+    @Override
+    public Map<String, Long> getRowsFetched() {
+        TreeMap<String, Long> rows = new TreeMap<String, Long>();
+        for (Map.Entry<String, Operation> op : operations.entrySet()) rows.put(op.getKey(), op.getValue().rows.get());
+        return rows;
+    }
+
+    @Override
+    public Map<String, Long> getBytesMaterialized() {
+        TreeMap<String, Long> bytes = new TreeMap<String, Long>();
+        for (Map.Entry<String, Operation> op : operations.entrySet()) bytes.put(op.getKey(), op.getValue().bytes.get());
+        return bytes;
+    }
+
+    @Override
+    public Map<String, String> getBackendStatistics() {
+        TreeMap<String, String> stats = new TreeMap<String, String>();
+        for (Map.Entry<String, Object> stat : backend.getStatistics().entrySet()) {
+            stats.put(stat.getKey(), String.valueOf(stat.getValue()));
+        }
+        return stats;
+    }
+
+    @Override
+    public String report() {
+        StringBuilder report = new StringBuilder();
+        report.append("Backend metrics at ").append(new Date()).append('\n');
+        report.append(String.format("%-20s %9s %7s %9s %9s %9s %9s %9s %10s %12s%n", "operation", "calls", "errors",
+                "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms", "rows", "bytes"));
+        for (Map.Entry<String, Operation> entry : operations.entrySet()) {
+            Operation op = entry.getValue();
+            LatencyHistogram h = op.latency;
+            report.append(String.format("%-20s %9d %7d %9.3f %9.3f %9.3f %9.3f %9.3f %10d %12d%n", entry.getKey(),
+                    h.getCount(), op.errors.get(), h.getValueAtPercentile(50) / 1e6, h.getValueAtPercentile(90) / 1e6,
+                    h.getValueAtPercentile(99) / 1e6, h.getValueAtPercentile(99.9) / 1e6, h.getMax() / 1e6,
+                    op.rows.get(), op.bytes.get()));
+        }
+        report.append("backend statistics:\n");
+        for (Map.Entry<String, String> stat : getBackendStatistics().entrySet()) {
+            report.append("  ").append(stat.getKey()).append(" = ").append(stat.getValue()).append('\n');
+        }
+        return report.toString();
+    }
+
+    @Override
+    public synchronized String dump() throws IOException {
+        Writer out = new FileWriter(metricsFile, true);
+        try {
+            out.write(report());
+            out.write('\n');
+        } finally {
+            out.close();
+        }
+        return metricsFile;
+    }
+
+    @Override
+    public void reset() {
+        for (Operation op : operations.values()) {
+            op.latency.reset();
+            op.errors.set(0);
+            op.rows.set(0);
+            op.bytes.set(0);
+        }
+        bookingLatency.reset();
+    }
+
+    private Map<String, Double> percentiles(double percentile) {
+        TreeMap<String, Double> values = new TreeMap<String, Double>();
+        for (Map.Entry<String, Operation> op : operations.entrySet()) {
+            values.put(op.getKey(), op.getValue().latency.getValueAtPercentile(percentile) / 1e6);
+        }
+        return values;
+    }
+}
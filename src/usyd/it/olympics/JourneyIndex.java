@@ -0,0 +1,270 @@
+package usyd.it.olympics;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * In-memory index of journeys by origin place, destination place and day of
+ * departure, used to answer journey searches without a query.
+ *
+ * Journeys are loaded a day at a time, the first time a day is searched,
+ * using a range on depart_time so the database can use its index. A day is
+ * reloaded once it is older than the configured time-to-live, and only a
+ * bounded number of days is kept. Seat counts are updated in place by
+ * booked() as this client makes bookings, so they stay current between
+ * reloads. A reload keeps the higher of the old and new count of each
+ * journey, as a booking may have been made after its rows were read.
+ */
+class JourneyIndex {
+
+    /**
+     * One indexed journey. Everything but the seat count is fixed.
+     */
+    static final class Journey {
+        final int journeyId;
+        final String vehicleCode;
+        final int fromPlace;
+        final int toPlace;
+        final long departs;
+        final long arrives;
+        final AtomicInteger nbooked;
+
+        Journey(int journeyId, String vehicleCode, int fromPlace, int toPlace, long departs, long arrives, int nbooked) {
+            this.journeyId = journeyId;
+            this.vehicleCode = vehicleCode;
+            this.fromPlace = fromPlace;
+            this.toPlace = toPlace;
+            this.departs = departs;
+            this.arrives = arrives;
+            this.nbooked = new AtomicInteger(nbooked);
+        }
+    }
+
+    /**
+     * Journeys departing on one day, by route.
+     */
+    private static final class Day {
+        final HashMap<Long, ArrayList<Journey>> byRoute = new HashMap<Long, ArrayList<Journey>>();
+        final long loadedAt = System.currentTimeMillis();
+        int journeys;
+    }
+
+    private final ConnectionPool pool;
+    private final long ttlMillis;
+    /// Loaded days, keyed by the time of local midnight at their start
+    private final LruCache<Long, Day> days;
+    /// Every indexed journey, so bookings can find theirs
+    private final ConcurrentHashMap<Integer, Journey> byId = new ConcurrentHashMap<Integer, Journey>();
+    /// Read-held by booked(), write-held while a load swaps journeys in, so no booking lands on a replaced copy
+    private final ReentrantReadWriteLock swapLock = new ReentrantReadWriteLock();
+
+    private final AtomicLong loads = new AtomicLong();
+    private final AtomicLong seatUpdates = new AtomicLong();
+
+    /**
+     * @param pool where to borrow connections for loading
+     * @param ttlMillis how long a loaded day is used before being reloaded
+     * @param maxDays number of days kept
+     */
+    JourneyIndex(ConnectionPool pool, long ttlMillis, int maxDays) {
+        this.pool = pool;
+        this.ttlMillis = ttlMillis;
+        days = new LruCache<Long, Day>(maxDays) {
+            @Override
+            protected void onEviction(Long dayStart, Day day) {
+                forget(day);
+            }
+        };
+    }
+
+    /**
+     * Journeys between any of the given origins and destinations, departing on
+     * the day of the given date, in order of departure
+     * @param fromPlaces IDs of origin places
+     * @param toPlaces IDs of destination places
+     * @param date any time on the day of departure
+     * @throws SQLException if the day had to be loaded and that failed
+     */
+    List<Journey> find(List<Integer> fromPlaces, List<Integer> toPlaces, Date date) throws SQLException {
+        Day day = getDay(startOfDay(date));
+        ArrayList<Journey> found = new ArrayList<Journey>();
+        for (Integer from : fromPlaces) {
+            for (Integer to : toPlaces) {
+                ArrayList<Journey> route = day.byRoute.get(routeKey(from, to));
+                if (route != null) found.addAll(route);
+            }
+        }
+        if (fromPlaces.size() > 1 || toPlaces.size() > 1) {
+            Collections.sort(found, new Comparator<Journey>() {
+                @Override
+                public int compare(Journey a, Journey b) {
+                    return Long.compare(a.departs, b.departs);
+                }
+            });
+        }
+        return found;
+    }
+
+    /**
+     * Record a journey's seat count after this client has booked on it. Does
+     * nothing if the journey isn't indexed. Bookings only add seats, so the
+     * count is never lowered: concurrent bookings may report theirs in any
+     * order, and only invalidate() or the day being dropped brings it down.
+     * @param journeyId journey booked on
+     * @param nbooked seats now booked, as written to the database
+     */
+    void booked(int journeyId, int nbooked) {
+        swapLock.readLock().lock();
+        try {
+            Journey journey = byId.get(journeyId);
+            if (journey != null) {
+                raise(journey.nbooked, nbooked);
+                seatUpdates.incrementAndGet();
+            }
+        } finally {
+            swapLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Reload every loaded day now, e.g. after journeys have been edited.
+     * @throws SQLException if loading failed
+     */
+    void refresh() throws SQLException {
+        for (Long dayStart : days.keys()) {
+            load(dayStart, days.get(dayStart));
+        }
+    }
+
+    /**
+     * Drop all loaded days; they are reloaded when next searched.
+     */
+    synchronized void invalidate() {
+        days.clear();
+        byId.clear();
+    }
+
+    HashMap<String, Object> getStatistics() {
+        HashMap<String, Object> stats = days.getStatistics("journeyindex_days_");
+        stats.put("journeyindex_journeys", byId.size());
+        stats.put("journeyindex_loads", loads.get());
+        stats.put("journeyindex_seat_updates", seatUpdates.get());
+        return stats;
+    }
+
+    private Day getDay(long dayStart) throws SQLException {
+        Day day = days.get(dayStart);
+        if (day != null && System.currentTimeMillis() - day.loadedAt < ttlMillis) {
+            return day;
+        }
+        return load(dayStart, day);
+    }
+
+    private synchronized Day load(long dayStart, Day seen) throws SQLException {
+        // Someone else may have loaded the day while we waited for the lock
+        Day current = days.get(dayStart);
+        if (current != null && current != seen && System.currentTimeMillis() - current.loadedAt < ttlMillis) {
+            return current;
+        }
+        Calendar end = Calendar.getInstance();
+        end.setTimeInMillis(dayStart);
+        end.add(Calendar.DAY_OF_MONTH, 1);
+
+        Day day = new Day();
+        Connection conn = pool.borrow();
+        try {
+            PreparedStatement stmt = conn.prepareStatement(
+                    "SELECT journey_id, vehicle_code, from_place, to_place, depart_time, arrive_time, nbooked " +
+                            "FROM Journey " +
+                            "WHERE depart_time >= ? AND depart_time < ? " +
+                            "ORDER BY depart_time");
+            stmt.setTimestamp(1, new Timestamp(dayStart));
+            stmt.setTimestamp(2, new Timestamp(end.getTimeInMillis()));
+            ResultSet rs = stmt.executeQuery();
+            while (rs.next()) {
+                Journey journey = new Journey(
+                        rs.getInt("journey_id"),
+                        rs.getString("vehicle_code"),
+                        rs.getInt("from_place"),
+                        rs.getInt("to_place"),
+                        rs.getTimestamp("depart_time").getTime(),
+                        rs.getTimestamp("arrive_time").getTime(),
+                        rs.getInt("nbooked"));
+                Long key = routeKey(journey.fromPlace, journey.toPlace);
+                ArrayList<Journey> route = day.byRoute.get(key);
+                if (route == null) {
+                    route = new ArrayList<Journey>();
+                    day.byRoute.put(key, route);
+                }
+                route.add(journey);
+                ++day.journeys;
+            }
+        } finally {
+            conn.close();
+        }
+
+        swapLock.writeLock().lock();
+        try {
+            for (ArrayList<Journey> route : day.byRoute.values()) {
+                for (Journey journey : route) {
+                    // Bookings made since the rows were read only reached the old copy
+                    Journey old = byId.put(journey.journeyId, journey);
+                    if (old != null) {
+                        raise(journey.nbooked, old.nbooked.get());
+                    }
+                }
+            }
+            // Replacing a day counts as evicting the old copy, which forgets its journeys
+            days.put(dayStart, day);
+        } finally {
+            swapLock.writeLock().unlock();
+        }
+        loads.incrementAndGet();
+        return day;
+    }
+
+    private void forget(Day day) {
+        for (ArrayList<Journey> route : day.byRoute.values()) {
+            for (Journey journey : route) {
+                // Only if it hasn't been replaced by a newer load
+                byId.remove(journey.journeyId, journey);
+            }
+        }
+    }
+
+    /// Set a count to a value if that is higher
+    private static void raise(AtomicInteger count, int value) {
+        int seen;
+        do {
+            seen = count.get();
+        } while (value > seen && !count.compareAndSet(seen, value));
+    }
+
+    private static long startOfDay(Date date) {
+        Calendar cal = Calendar.getInstance();
+        cal.setTime(date);
+        cal.set(Calendar.HOUR_OF_DAY, 0);
+        cal.set(Calendar.MINUTE, 0);
+        cal.set(Calendar.SECOND, 0);
+        cal.set(Calendar.MILLISECOND, 0);
+        return cal.getTimeInMillis();
+    }
+
+    private static Long routeKey(int fromPlace, int toPlace) {
+        return ((long) fromPlace << 32) | (toPlace & 0xffffffffL);
+    }
+}
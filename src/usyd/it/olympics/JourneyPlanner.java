@@ -0,0 +1,398 @@
+package usyd.it.olympics;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Plans trips of one or more journeys between two places when there may be no
+ * direct journey.
+ *
+ * The whole timetable is held in memory as arrays of journeys sorted by
+ * departure time, and searched connection-scan style: each round scans the
+ * journeys departing after the start time once, finding the earliest arrival
+ * at every place using one more journey than the round before. This gives the
+ * earliest trip for each number of legs up to the configured maximum.
+ * Changing vehicle needs the minimum transfer time; staying on the same
+ * vehicle doesn't. Full journeys are skipped.
+ *
+ * The timetable is reloaded once it is older than the configured
+ * time-to-live. Seat counts are updated in place by booked() as this client
+ * makes bookings.
+ */
+class JourneyPlanner {
+
+    /**
+     * One journey of a planned trip.
+     */
+    static final class Leg {
+        final int journeyId;
+        final String vehicleCode;
+        final int fromPlace;
+        final int toPlace;
+        final long departs;
+        final long arrives;
+        final int seatsLeft;
+
+        Leg(Timetable t, int c) {
+            journeyId = t.journeyId[c];
+            vehicleCode = t.vehicle[c];
+            fromPlace = t.placeIds[t.from[c]];
+            toPlace = t.placeIds[t.to[c]];
+            departs = t.departs[c];
+            arrives = t.arrives[c];
+            seatsLeft = t.seatsLeft(c);
+        }
+    }
+
+    /**
+     * All journeys, sorted by departure. Places are numbered densely so the
+     * search can use plain arrays.
+     */
+    private static final class Timetable {
+        final int[] journeyId;
+        final String[] vehicle;
+        final int[] from;
+        final int[] to;
+        final long[] departs;
+        final long[] arrives;
+        final int[] capacity;
+        final AtomicIntegerArray nbooked;
+        /// Place ID of each place number
+        final int[] placeIds;
+        final HashMap<Integer, Integer> placeNumbers;
+        final HashMap<Integer, Integer> journeyIndex;
+        final long loadedAt = System.currentTimeMillis();
+
+        Timetable(int size, int[] placeIds, HashMap<Integer, Integer> placeNumbers) {
+            journeyId = new int[size];
+            vehicle = new String[size];
+            from = new int[size];
+            to = new int[size];
+            departs = new long[size];
+            arrives = new long[size];
+            capacity = new int[size];
+            nbooked = new AtomicIntegerArray(size);
+            this.placeIds = placeIds;
+            this.placeNumbers = placeNumbers;
+            journeyIndex = new HashMap<Integer, Integer>(size * 2);
+        }
+
+        int seatsLeft(int c) {
+            return capacity[c] - nbooked.get(c);
+        }
+    }
+
+    private static final long UNREACHED = Long.MAX_VALUE;
+
+    private final ConnectionPool pool;
+    private final long ttlMillis;
+    private final int maxLegs;
+    private final long minTransferMillis;
+    private final long horizonMillis;
+    private volatile Timetable timetable;
+
+    private final AtomicLong loads = new AtomicLong();
+    private final AtomicLong searches = new AtomicLong();
+    private final AtomicLong searchNanos = new AtomicLong();
+
+    /**
+     * @param pool where to borrow connections for loading, or null if the
+     * timetable is installed instead
+     * @param ttlMillis how long the timetable is used before being reloaded
+     * @param maxLegs most journeys in a trip
+     * @param minTransferMillis least time needed to change vehicle
+     * @param horizonMillis how long after the start time to look for trips
+     */
+    JourneyPlanner(ConnectionPool pool, long ttlMillis, int maxLegs, long minTransferMillis, long horizonMillis) {
+        this.pool = pool;
+        this.ttlMillis = ttlMillis;
+        this.maxLegs = Math.max(1, maxLegs);
+        this.minTransferMillis = minTransferMillis;
+        this.horizonMillis = horizonMillis;
+    }
+
+    /**
+     * Find trips between any of the given origins and destinations, ordered by
+     * arrival time and then number of legs. The earliest trip for each number
+     * of legs is found for the start time, then again for departures after
+     * the earliest of those, until enough trips are found.
+     * @param fromPlaces IDs of origin places
+     * @param toPlaces IDs of destination places
+     * @param departAfter earliest departure time
+     * @param maxResults most trips to return
+     * @return trips, each a list of legs in travel order
+     * @throws SQLException if the timetable had to be loaded and that failed
+     */
+    List<List<Leg>> plan(List<Integer> fromPlaces, List<Integer> toPlaces, long departAfter, int maxResults) throws SQLException {
+        Timetable t = get();
+        long began = System.nanoTime();
+        int places = t.placeIds.length;
+        ArrayList<Integer> origins = new ArrayList<Integer>();
+        for (Integer id : fromPlaces) {
+            Integer number = t.placeNumbers.get(id);
+            if (number != null) origins.add(number);
+        }
+        boolean[] isDest = new boolean[places];
+        boolean anyDest = false;
+        for (Integer id : toPlaces) {
+            Integer number = t.placeNumbers.get(id);
+            if (number != null) {
+                isDest[number] = true;
+                anyDest = true;
+            }
+        }
+
+        ArrayList<List<Leg>> trips = new ArrayList<List<Leg>>();
+        ArrayList<String> seen = new ArrayList<String>();
+        long start = departAfter;
+        // Later searches may only find trips already seen, so bound them too
+        for (int attempt = 0; anyDest && !origins.isEmpty() && trips.size() < maxResults
+                && attempt < maxResults * maxLegs; ++attempt) {
+            List<int[]> found = search(t, origins, isDest, start);
+            if (found.isEmpty()) break;
+            long firstDeparture = UNREACHED;
+            for (int[] connections : found) {
+                firstDeparture = Math.min(firstDeparture, t.departs[connections[0]]);
+                String key = Arrays.toString(connections);
+                if (trips.size() < maxResults && !seen.contains(key)) {
+                    seen.add(key);
+                    ArrayList<Leg> legs = new ArrayList<Leg>(connections.length);
+                    for (int c : connections) legs.add(new Leg(t, c));
+                    trips.add(legs);
+                }
+            }
+            start = firstDeparture + 1;
+        }
+
+        Collections.sort(trips, new Comparator<List<Leg>>() {
+            @Override
+            public int compare(List<Leg> a, List<Leg> b) {
+                int byArrival = Long.compare(a.get(a.size() - 1).arrives, b.get(b.size() - 1).arrives);
+                return byArrival != 0 ? byArrival : a.size() - b.size();
+            }
+        });
+        searches.incrementAndGet();
+        searchNanos.addAndGet(System.nanoTime() - began);
+        return trips;
+    }
+
+    /**
+     * Record a journey's seat count after this client has booked on it. Does
+     * nothing if the journey isn't in the timetable. The count is only ever
+     * raised, as concurrent bookings may report theirs in any order; a
+     * reload of the timetable is what brings it down.
+     * @param journeyId journey booked on
+     * @param nbooked seats now booked, as written to the database
+     */
+    void booked(int journeyId, int nbooked) {
+        Timetable t = timetable;
+        if (t == null) return;
+        Integer c = t.journeyIndex.get(journeyId);
+        if (c == null) return;
+        int seen;
+        do {
+            seen = t.nbooked.get(c);
+        } while (nbooked > seen && !t.nbooked.compareAndSet(c, seen, nbooked));
+    }
+
+    /**
+     * Reload the timetable now.
+     * @throws SQLException if loading failed; the old timetable is kept
+     */
+    void refresh() throws SQLException {
+        reload(timetable);
+    }
+
+    HashMap<String, Object> getStatistics() {
+        HashMap<String, Object> stats = new HashMap<String, Object>();
+        Timetable t = timetable;
+        long n = searches.get();
+        stats.put("planner_journeys", t == null ? 0 : t.journeyId.length);
+        stats.put("planner_places", t == null ? 0 : t.placeIds.length);
+        stats.put("planner_loads", loads.get());
+        stats.put("planner_searches", n);
+        stats.put("planner_mean_search_ms", n == 0 ? 0.0 : searchNanos.get() / 1e6 / n);
+        return stats;
+    }
+
+    /**
+     * Earliest arrival at a destination for each number of legs, keeping only
+     * trips that arrive earlier than all trips with fewer legs
+     * @return connections of each trip found
+     */
+    private List<int[]> search(Timetable t, List<Integer> origins, boolean[] isDest, long start) {
+        int places = t.placeIds.length;
+        long[][] arrival = new long[maxLegs + 1][places];
+        int[][] via = new int[maxLegs + 1][places];
+        for (long[] round : arrival) Arrays.fill(round, UNREACHED);
+        for (int origin : origins) arrival[0][origin] = start;
+
+        int first = firstDepartingAt(t, start);
+        long horizon = start + horizonMillis;
+        long best = UNREACHED;
+        ArrayList<int[]> found = new ArrayList<int[]>();
+
+        for (int k = 1; k <= maxLegs; ++k) {
+            long[] before = arrival[k - 1];
+            long[] after = arrival[k];
+            boolean improved = false;
+            for (int c = first; c < t.departs.length; ++c) {
+                long departs = t.departs[c];
+                // Nothing leaving later can beat a trip already found
+                if (departs > horizon || departs >= best) break;
+                int p = t.from[c];
+                long ready = before[p];
+                if (ready == UNREACHED || departs < ready) continue;
+                if (k > 1 && ready + minTransferMillis > departs) {
+                    // Too tight to change, but fine if it's the same vehicle
+                    int arrivedOn = via[k - 1][p];
+                    if (!t.vehicle[arrivedOn].equals(t.vehicle[c])) continue;
+                }
+                if (t.seatsLeft(c) <= 0) continue;
+                int q = t.to[c];
+                if (t.arrives[c] < after[q]) {
+                    after[q] = t.arrives[c];
+                    via[k][q] = c;
+                    improved = true;
+                }
+            }
+            if (!improved) break;
+
+            int dest = -1;
+            for (int q = 0; q < places; ++q) {
+                if (isDest[q] && after[q] < best) {
+                    best = after[q];
+                    dest = q;
+                }
+            }
+            if (dest >= 0) {
+                int[] connections = new int[k];
+                int p = dest;
+                for (int r = k; r >= 1; --r) {
+                    int c = via[r][p];
+                    connections[r - 1] = c;
+                    p = t.from[c];
+                }
+                found.add(connections);
+            }
+        }
+        return found;
+    }
+
+    /// Index of the first journey departing at or after the time
+    private static int firstDepartingAt(Timetable t, long time) {
+        int lo = 0;
+        int hi = t.departs.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (t.departs[mid] < time) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    private Timetable get() throws SQLException {
+        Timetable current = timetable;
+        if (current != null && (pool == null || System.currentTimeMillis() - current.loadedAt < ttlMillis)) {
+            return current;
+        }
+        return reload(current);
+    }
+
+    private synchronized Timetable reload(Timetable seen) throws SQLException {
+        // Someone else may have reloaded while we waited for the lock
+        if (timetable != null && timetable != seen) {
+            return timetable;
+        }
+        Connection conn = pool.borrow();
+        try {
+            ArrayList<Object[]> rows = new ArrayList<Object[]>();
+            PreparedStatement stmt = conn.prepareStatement(
+                    "SELECT journey_id, vehicle_code, from_place, to_place, depart_time, arrive_time, nbooked, capacity " +
+                            "FROM Journey JOIN Vehicle USING (vehicle_code) " +
+                            "ORDER BY depart_time");
+            ResultSet rs = stmt.executeQuery();
+            while (rs.next()) {
+                rows.add(new Object[] {
+                        rs.getInt("journey_id"),
+                        rs.getString("vehicle_code"),
+                        rs.getInt("from_place"),
+                        rs.getInt("to_place"),
+                        rs.getTimestamp("depart_time").getTime(),
+                        rs.getTimestamp("arrive_time").getTime(),
+                        rs.getInt("nbooked"),
+                        rs.getInt("capacity") });
+            }
+            return install(rows);
+        } finally {
+            conn.close();
+        }
+    }
+
+    /**
+     * Replace the timetable with the given journeys, e.g. from a backend that
+     * holds them itself rather than in the database. Without a connection
+     * pool the planner is never reloaded, so this must be called before the
+     * first search.
+     * @param rows one per journey: journey ID, vehicle code, origin and
+     * destination place IDs, departure and arrival times (Long millis),
+     * seats booked and capacity
+     * @return the new timetable
+     */
+    synchronized Timetable install(List<Object[]> rows) {
+        ArrayList<Object[]> sorted = new ArrayList<Object[]>(rows);
+        Collections.sort(sorted, new Comparator<Object[]>() {
+            @Override
+            public int compare(Object[] a, Object[] b) {
+                return ((Long) a[4]).compareTo((Long) b[4]);
+            }
+        });
+        HashMap<Integer, Integer> placeNumbers = new HashMap<Integer, Integer>();
+        ArrayList<Integer> placeIds = new ArrayList<Integer>();
+        int[] from = new int[sorted.size()];
+        int[] to = new int[sorted.size()];
+        for (int c = 0; c < sorted.size(); ++c) {
+            from[c] = placeNumber((Integer) sorted.get(c)[2], placeNumbers, placeIds);
+            to[c] = placeNumber((Integer) sorted.get(c)[3], placeNumbers, placeIds);
+        }
+
+        int[] ids = new int[placeIds.size()];
+        for (int i = 0; i < ids.length; ++i) ids[i] = placeIds.get(i);
+        Timetable t = new Timetable(sorted.size(), ids, placeNumbers);
+        for (int c = 0; c < sorted.size(); ++c) {
+            Object[] row = sorted.get(c);
+            t.journeyId[c] = (Integer) row[0];
+            t.vehicle[c] = (String) row[1];
+            t.from[c] = from[c];
+            t.to[c] = to[c];
+            t.departs[c] = (Long) row[4];
+            t.arrives[c] = (Long) row[5];
+            t.nbooked.set(c, (Integer) row[6]);
+            t.capacity[c] = (Integer) row[7];
+            t.journeyIndex.put(t.journeyId[c], c);
+        }
+        timetable = t;
+        loads.incrementAndGet();
+        return t;
+    }
+
+    private static int placeNumber(int placeId, HashMap<Integer, Integer> placeNumbers, ArrayList<Integer> placeIds) {
+        Integer number = placeNumbers.get(placeId);
+        if (number == null) {
+            number = placeIds.size();
+            placeNumbers.put(placeId, number);
+            placeIds.add(placeId);
+        }
+        return number;
+    }
+}
@@ -0,0 +1,119 @@
+package usyd.it.olympics;
+
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of durations in the style of HdrHistogram: buckets are linear
+ * within each power of two and log-spaced across them, so every recorded
+ * value keeps about 3% precision from nanoseconds up to the largest tracked
+ * duration (about 18 minutes; longer ones count as that).
+ *
+ * Recording is a few atomic increments with no locking, so a histogram can
+ * be shared by all threads. Percentiles read while values are being recorded
+ * may be off by the in-flight values.
+ */
+public class LatencyHistogram {
+
+    /// log2 of the number of linear sub-buckets in each power of two
+    private static final int SUB_BUCKET_BITS = 6;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int HALF = SUB_BUCKETS / 2;
+    /// Values above this are recorded as this
+    private static final long MAX_NANOS = (1L << 40) - 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray(indexOf(MAX_NANOS) + 1);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * @param nanos duration to record
+     */
+    public void record(long nanos) {
+        long value = Math.max(0, Math.min(nanos, MAX_NANOS));
+        counts.incrementAndGet(indexOf(value));
+        count.incrementAndGet();
+        total.addAndGet(value);
+        long seen = max.get();
+        while (value > seen && !max.compareAndSet(seen, value)) {
+            seen = max.get();
+        }
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    /// @return mean duration in nanoseconds, or 0 if nothing was recorded
+    public double getMean() {
+        long n = count.get();
+        return n == 0 ? 0.0 : (double) total.get() / n;
+    }
+
+    /// @return longest duration recorded, in nanoseconds
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return duration in nanoseconds that the given percentage of recorded
+     * values are at or below, or 0 if nothing was recorded
+     */
+    public long getValueAtPercentile(double percentile) {
+        long n = count.get();
+        if (n == 0) return 0;
+        long wanted = Math.max(1, (long) Math.ceil(Math.min(100.0, percentile) / 100.0 * n));
+        long seen = 0;
+        for (int i = 0; i < counts.length(); ++i) {
+            seen += counts.get(i);
+            if (seen >= wanted) {
+                return Math.min(highestIn(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * Forget everything recorded so far.
+     */
+    public void reset() {
+        for (int i = 0; i < counts.length(); ++i) counts.set(i, 0);
+        count.set(0);
+        total.set(0);
+        max.set(0);
+    }
+
+    /**
+     * @param prefix prepended to each statistic's name
+     * @return count, mean, percentiles and maximum, in milliseconds
+     */
+    public HashMap<String, Object> getStatistics(String prefix) {
+        HashMap<String, Object> stats = new HashMap<String, Object>();
+        stats.put(prefix + "count", getCount());
+        stats.put(prefix + "mean_ms", getMean() / 1e6);
+        stats.put(prefix + "p50_ms", getValueAtPercentile(50) / 1e6);
+        stats.put(prefix + "p90_ms", getValueAtPercentile(90) / 1e6);
+        stats.put(prefix + "p99_ms", getValueAtPercentile(99) / 1e6);
+        stats.put(prefix + "p999_ms", getValueAtPercentile(99.9) / 1e6);
+        stats.put(prefix + "max_ms", getMax() / 1e6);
+        return stats;
+    }
+
+    /// Bucket of a value: exact below SUB_BUCKETS, then HALF buckets per power of two
+    private static int indexOf(long value) {
+        if (value < SUB_BUCKETS) return (int) value;
+        int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BUCKET_BITS - 1);
+        return shift * HALF + (int) (value >>> shift);
+    }
+
+    /// Largest value that falls in a bucket
+    private static long highestIn(int index) {
+        if (index < SUB_BUCKETS) return index;
+        int shift = index / HALF - 1;
+        long sub = index % HALF + HALF;
+        return ((sub + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,195 @@
+package usyd.it.olympics;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Small thread-safe least-recently-used cache with hit/miss/eviction counts.
+ *
+ * By default each entry counts as one towards the capacity. A Weigher can be
+ * supplied to make the capacity size-aware instead, e.g. counting the rows in
+ * a cached result. Override onEviction() to release resources held by
+ * entries pushed out of the cache.
+ *
+ * A value loaded while its key was being invalidated may be out of date, so
+ * putIfUnchanged drops it. Removals are tracked per key, so invalidating one
+ * key doesn't lose loads of others in flight; only clear() drops them all.
+ */
+class LruCache<K, V> {
+
+    /**
+     * Size of an entry as counted towards the cache capacity.
+     */
+    interface Weigher<V> {
+        int weigh(V value);
+    }
+
+    private final LinkedHashMap<K, V> entries = new LinkedHashMap<K, V>(16, 0.75f, true);
+    private final long capacity;
+    private final Weigher<V> weigher;
+    private long weight;
+    /// Most invalidations tracked by key; older ones are merged into invalidatedUpTo
+    private static final int MAX_REMOVALS = 4096;
+
+    /// Bumped by every remove and clear, so a value loaded before one isn't cached after it
+    private long generation;
+    /// Generation of the latest remove of each key, oldest first
+    private final LinkedHashMap<K, Long> removedAt = new LinkedHashMap<K, Long>();
+    /// Every key counts as invalidated at this generation: the last clear, or the removes forgotten since
+    private long invalidatedUpTo;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * @param capacity maximum number of entries
+     */
+    LruCache(long capacity) {
+        this(capacity, null);
+    }
+
+    /**
+     * @param capacity maximum total weight of entries
+     * @param weigher how to weigh each entry, or null to count entries
+     */
+    LruCache(long capacity, Weigher<V> weigher) {
+        this.capacity = capacity;
+        this.weigher = weigher;
+    }
+
+    /**
+     * @return cached value, or null if there isn't one. Counts as a hit or miss.
+     */
+    synchronized V get(K key) {
+        V value = entries.get(key);
+        if (value == null) {
+            ++misses;
+        } else {
+            ++hits;
+        }
+        return value;
+    }
+
+    /**
+     * Add or replace an entry, evicting least recently used entries as needed.
+     * An entry heavier than the whole cache is not stored.
+     */
+    synchronized void put(K key, V value) {
+        int w = weigh(value);
+        V old = entries.remove(key);
+        if (old != null) {
+            weight -= weigh(old);
+            if (old != value) onEviction(key, old);
+        }
+        if (w > capacity) {
+            return;
+        }
+        entries.put(key, value);
+        weight += w;
+        Iterator<Map.Entry<K, V>> it = entries.entrySet().iterator();
+        while (weight > capacity && it.hasNext()) {
+            Map.Entry<K, V> eldest = it.next();
+            it.remove();
+            weight -= weigh(eldest.getValue());
+            ++evictions;
+            onEviction(eldest.getKey(), eldest.getValue());
+        }
+    }
+
+    /**
+     * @return a token to pass to putIfUnchanged, taken before loading the
+     * value to be cached
+     */
+    synchronized long generation() {
+        return generation;
+    }
+
+    /**
+     * Add or replace an entry, unless its key has been removed or the cache
+     * cleared since the generation was taken. A value loaded while it was
+     * being invalidated may be out of date already, so is not kept.
+     * @return whether the entry was added
+     */
+    synchronized boolean putIfUnchanged(K key, V value, long since) {
+        Long removed = removedAt.get(key);
+        if (invalidatedUpTo > since || (removed != null && removed > since)) {
+            return false;
+        }
+        put(key, value);
+        return true;
+    }
+
+    /**
+     * Drop a single entry. This is an invalidation, not an eviction.
+     * @return the entry removed, if any
+     */
+    synchronized V remove(K key) {
+        ++generation;
+        removedAt.remove(key);
+        removedAt.put(key, generation);
+        if (removedAt.size() > MAX_REMOVALS) {
+            Iterator<Map.Entry<K, Long>> it = removedAt.entrySet().iterator();
+            invalidatedUpTo = it.next().getValue();
+            it.remove();
+        }
+        V old = entries.remove(key);
+        if (old != null) {
+            weight -= weigh(old);
+        }
+        return old;
+    }
+
+    /**
+     * Drop all entries.
+     */
+    synchronized void clear() {
+        ++generation;
+        invalidatedUpTo = generation;
+        removedAt.clear();
+        entries.clear();
+        weight = 0;
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return the keys currently cached, least recently used first. Doesn't
+     * count as using them.
+     */
+    synchronized ArrayList<K> keys() {
+        return new ArrayList<K>(entries.keySet());
+    }
+
+    /**
+     * Called (with the cache locked) when an entry is pushed out to make room.
+     */
+    protected void onEviction(K key, V value) {
+    }
+
+    /**
+     * @param prefix prepended to each statistic name
+     * @return entry count, weight, hits, misses and evictions
+     */
+    synchronized HashMap<String, Object> getStatistics(String prefix) {
+        HashMap<String, Object> stats = new HashMap<String, Object>();
+        stats.put(prefix + "entries", entries.size());
+        stats.put(prefix + "weight", weight);
+        stats.put(prefix + "capacity", capacity);
+        stats.put(prefix + "hits", hits);
+        stats.put(prefix + "misses", misses);
+        stats.put(prefix + "evictions", evictions);
+        long lookups = hits + misses;
+        stats.put(prefix + "hit_rate", lookups == 0 ? 0.0 : (double) hits / lookups);
+        return stats;
+    }
+
+    private int weigh(V value) {
+        return weigher == null ? 1 : weigher.weigh(value);
+    }
+}
@@ -0,0 +1,154 @@
+package usyd.it.olympics;
+
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.TreeSet;
+
+import usyd.it.olympics.data.MedalStanding;
+import usyd.it.olympics.data.TupleTable;
+
+/**
+ * Gold, silver and bronze totals of every country, kept in Olympic ranking
+ * order as medals are recorded.
+ *
+ * The totals are loaded once, then each medal awarded or taken away moves
+ * its country to its new place in the ranking, so the top countries are
+ * read by walking the front of the ranking without looking at any results.
+ * A team's medal counts once for its country, as in the official medal table.
+ */
+final class MedalLeaderboard {
+    static final MedalStanding STANDING_SCHEMA = new MedalStanding();
+
+    /**
+     * A country's totals. Replaced rather than changed, as the ranking is
+     * ordered by them.
+     */
+    private static final class Standing {
+        final String countryCode;
+        final String countryName;
+        final int gold;
+        final int silver;
+        final int bronze;
+
+        Standing(String countryCode, String countryName, int gold, int silver, int bronze) {
+            this.countryCode = countryCode;
+            this.countryName = countryName;
+            this.gold = gold;
+            this.silver = silver;
+            this.bronze = bronze;
+        }
+
+        boolean hasMedals() {
+            return gold + silver + bronze > 0;
+        }
+
+        /// Whether the two share a rank
+        boolean tiedWith(Standing other) {
+            return gold == other.gold && silver == other.silver && bronze == other.bronze;
+        }
+    }
+
+    /// Most golds first, then silvers, then bronzes; ties by country name
+    private static final Comparator<Standing> OLYMPIC_ORDER = new Comparator<Standing>() {
+        @Override
+        public int compare(Standing a, Standing b) {
+            if (a.gold != b.gold) return Integer.compare(b.gold, a.gold);
+            if (a.silver != b.silver) return Integer.compare(b.silver, a.silver);
+            if (a.bronze != b.bronze) return Integer.compare(b.bronze, a.bronze);
+            int byName = compareNames(a.countryName, b.countryName);
+            return byName != 0 ? byName : a.countryCode.compareTo(b.countryCode);
+        }
+    };
+
+    /// Every country by code, with or without medals
+    private final HashMap<String, Standing> byCountry = new HashMap<String, Standing>();
+    /// Countries with at least one medal, in ranking order
+    private final TreeSet<Standing> ranked = new TreeSet<Standing>(OLYMPIC_ORDER);
+    private long updates;
+
+    /**
+     * Add a country and its totals while loading
+     * @param countryCode the country
+     * @param countryName name shown for it
+     */
+    synchronized void addCountry(String countryCode, String countryName, int gold, int silver, int bronze) {
+        replace(countryCode, new Standing(countryCode, countryName, gold, silver, bronze));
+    }
+
+    /**
+     * Move a country's totals from one medal to another, after it was
+     * changed for one of the country's athletes or teams
+     * @param countryCode country of the athlete or team
+     * @param oldMedal medal code held before ("G", "S", "B"), or null for none
+     * @param newMedal medal code held now, or null for none
+     */
+    synchronized void medalChanged(String countryCode, String oldMedal, String newMedal) {
+        Standing old = byCountry.get(countryCode);
+        if (old == null || (oldMedal == null ? newMedal == null : oldMedal.equals(newMedal))) {
+            return;
+        }
+        int gold = old.gold + count("G", newMedal) - count("G", oldMedal);
+        int silver = old.silver + count("S", newMedal) - count("S", oldMedal);
+        int bronze = old.bronze + count("B", newMedal) - count("B", oldMedal);
+        replace(countryCode, new Standing(countryCode, old.countryName, gold, silver, bronze));
+        ++updates;
+    }
+
+    /**
+     * The leading countries, reading no more of the ranking than is returned.
+     * Countries with the same totals share a rank, and the next rank skips
+     * past them, e.g. 1, 2, 2, 4.
+     * @param limit most countries to list
+     * @return a MedalStanding tuple for each
+     */
+    synchronized TupleTable top(int limit) {
+        int size = Math.max(0, Math.min(limit, ranked.size()));
+        TupleTable standings = new TupleTable(STANDING_SCHEMA, size);
+        Iterator<Standing> it = ranked.iterator();
+        Standing previous = null;
+        int rank = 0;
+        for (int position = 1; position <= size; ++position) {
+            Standing s = it.next();
+            if (previous == null || !s.tiedWith(previous)) {
+                rank = position;
+            }
+            standings.add(new Object[] { rank, s.countryName, s.gold, s.silver, s.bronze,
+                    s.gold + s.silver + s.bronze });
+            previous = s;
+        }
+        return standings;
+    }
+
+    /**
+     * @return numbers of countries held and ranked, and of medal changes
+     * applied, with names starting with the prefix
+     */
+    synchronized HashMap<String, Object> getStatistics(String prefix) {
+        HashMap<String, Object> stats = new HashMap<String, Object>();
+        stats.put(prefix + "countries", byCountry.size());
+        stats.put(prefix + "ranked", ranked.size());
+        stats.put(prefix + "updates", updates);
+        return stats;
+    }
+
+    private void replace(String countryCode, Standing standing) {
+        Standing old = byCountry.put(countryCode, standing);
+        if (old != null) {
+            ranked.remove(old);
+        }
+        if (standing.hasMedals()) {
+            ranked.add(standing);
+        }
+    }
+
+    private static int count(String code, String medal) {
+        return code.equals(medal) ? 1 : 0;
+    }
+
+    private static int compareNames(String a, String b) {
+        if (a == null) return b == null ? 0 : 1;
+        if (b == null) return -1;
+        return a.compareTo(b);
+    }
+}
@@ -0,0 +1,38 @@
+package usyd.it.olympics;
+
+/**
+ * An athlete's medal counts, split between individual and team events.
+ */
+final class MedalTally {
+    final int individualGold;
+    final int individualSilver;
+    final int individualBronze;
+    final int teamGold;
+    final int teamSilver;
+    final int teamBronze;
+    /// When this tally was read from the database (System.currentTimeMillis())
+    final long loadedAt;
+
+    MedalTally(int individualGold, int individualSilver, int individualBronze,
+            int teamGold, int teamSilver, int teamBronze) {
+        this.individualGold = individualGold;
+        this.individualSilver = individualSilver;
+        this.individualBronze = individualBronze;
+        this.teamGold = teamGold;
+        this.teamSilver = teamSilver;
+        this.teamBronze = teamBronze;
+        loadedAt = System.currentTimeMillis();
+    }
+
+    int getGold() {
+        return individualGold + teamGold;
+    }
+
+    int getSilver() {
+        return individualSilver + teamSilver;
+    }
+
+    int getBronze() {
+        return individualBronze + teamBronze;
+    }
+}
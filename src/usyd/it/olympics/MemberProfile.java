@@ -0,0 +1,19 @@
+package usyd.it.olympics;
+
+import java.util.HashMap;
+
+/**
+ * A member's details as getMemberDetails returns them, cached from login for
+ * the rest of the member's session.
+ */
+final class MemberProfile {
+    /// Never handed out: callers get a copy
+    final HashMap<String, Object> details;
+    /// When the details were read from the database (System.currentTimeMillis())
+    final long loadedAt;
+
+    MemberProfile(HashMap<String, Object> details) {
+        this.details = details;
+        loadedAt = System.currentTimeMillis();
+    }
+}
@@ -0,0 +1,191 @@
+package usyd.it.olympics;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+
+import usyd.it.olympics.data.TupleTable;
+
+/**
+ * Operations the client performs on the Olympics data, whatever holds it.
+ *
+ * DatabaseBackend answers them from the database over JDBC; InMemoryBackend
+ * answers them from a generated dataset held in memory. Which one the client
+ * uses is chosen by the "backend" setting in the config file (see
+ * BackendFactory). Implementations must be safe to call from several threads
+ * at once.
+ *
+ * Single results are HashMaps of named values; multiple results are
+ * TupleTables laid out by a schema from the data package.
+ */
+public interface OlympicsBackend {
+
+    /**
+     * Validate a member's login details
+     * @param member member ID
+     * @param password the member's password
+     * @return basic details of the member if the ID and password are correct,
+     * otherwise null
+     * @throws OlympicsDBException
+     */
+    HashMap<String, Object> checkLogin(String member, char[] password) throws OlympicsDBException;
+
+    /**
+     * Let go of anything held for a member's session, e.g. their cached
+     * profile, once they have logged out
+     * @param memberID member whose session ended
+     */
+    void endSession(String memberID);
+
+    /**
+     * @param memberID member to describe
+     * @return details of the member, including bookings made and (for
+     * athletes) medals won; empty if there is no such member
+     * @throws OlympicsDBException
+     */
+    HashMap<String, Object> getMemberDetails(String memberID) throws OlympicsDBException;
+
+    /**
+     * @return a SportDetails tuple for each sport
+     * @throws OlympicsDBException
+     */
+    TupleTable getSports() throws OlympicsDBException;
+
+    /**
+     * @param sportId the sport
+     * @return an EventDetails tuple for each of the sport's events, by start time
+     * @throws OlympicsDBException
+     */
+    TupleTable getEventsOfSport(Integer sportId) throws OlympicsDBException;
+
+    /**
+     * @param eventId the event
+     * @return an EventResult tuple for each athlete or team in the event
+     * @throws OlympicsDBException
+     */
+    TupleTable getResultsOfEvent(Integer eventId) throws OlympicsDBException;
+
+    /**
+     * Record the medal an athlete or team won in an event, or take it away.
+     * Cached results and medal counts that show it are updated.
+     * @param eventId the event
+     * @param participant member ID of the athlete, or name of the team
+     * @param medal "Gold", "Silver" or "Bronze", or null for none
+     * @return whether the athlete or team is in the event
+     * @throws OlympicsDBException if the medal isn't one of those
+     */
+    boolean recordMedal(Integer eventId, String participant, String medal) throws OlympicsDBException;
+
+    /**
+     * The medal table: countries by most golds, then silvers, then bronzes.
+     * Only countries that have won a medal are listed.
+     * @param limit most countries to list
+     * @return a MedalStanding tuple for each of the leading countries
+     * @throws OlympicsDBException
+     */
+    TupleTable getMedalLeaderboard(int limit) throws OlympicsDBException;
+
+    /**
+     * @param fromPlace name of the origin
+     * @param toPlace name of the destination
+     * @param journeyDate day of travel
+     * @return a JourneySummary tuple for each direct journey that day
+     * @throws OlympicsDBException
+     */
+    TupleTable findJourneys(String fromPlace, String toPlace, Date journeyDate) throws OlympicsDBException;
+
+    /**
+     * @param fromPlace name of the origin
+     * @param toPlace name of the destination
+     * @param departAfter earliest time to leave
+     * @return an Itinerary tuple for each trip found, changing vehicle if
+     * need be, best first
+     * @throws OlympicsDBException
+     */
+    TupleTable planJourneys(String fromPlace, String toPlace, Date departAfter) throws OlympicsDBException;
+
+    /**
+     * @param journeyId the journey
+     * @return details of the journey, including seats booked; empty if there
+     * is no such journey
+     * @throws OlympicsDBException
+     */
+    HashMap<String, Object> getJourneyDetails(Integer journeyId) throws OlympicsDBException;
+
+    /**
+     * @param memberID member the bookings are for
+     * @return a BookingDetails tuple for each of the member's bookings, in
+     * order of departure
+     * @throws OlympicsDBException
+     */
+    TupleTable getMemberBookings(String memberID) throws OlympicsDBException;
+
+    /**
+     * One page of a member's bookings, in order of departure, then journey.
+     * Each page starts after the last booking of the page before, found by
+     * that booking's departure time and journey rather than by counting
+     * rows, so later pages cost no more than the first.
+     * @param memberID member the bookings are for
+     * @param afterDeparture departure time of the last booking already
+     * listed, as returned (a Timestamp keeps its precision), or null for
+     * the first page
+     * @param afterJourneyId journey of the last booking already listed;
+     * unused for the first page
+     * @param limit maximum number of bookings to return
+     * @return the bookings
+     * @throws OlympicsDBException
+     */
+    TupleTable getMemberBookings(String memberID, Date afterDeparture, Integer afterJourneyId, int limit) throws OlympicsDBException;
+
+    /**
+     * @param memberID member the bookings are for
+     * @return number of bookings made for the member
+     * @throws OlympicsDBException
+     */
+    int countMemberBookings(String memberID) throws OlympicsDBException;
+
+    /**
+     * @param memberID member the booking is for
+     * @param journeyId journey booked
+     * @return details of the booking; empty if there is no such booking
+     * @throws OlympicsDBException
+     */
+    HashMap<String, Object> getBookingDetails(String memberID, Integer journeyId) throws OlympicsDBException;
+
+    /**
+     * Book a seat on a journey for a member, never overbooking the journey
+     * @param byStaff member ID of the staff making the booking
+     * @param forMember name of the member to book for, as "family, given"
+     * @param vehicle vehicle of the journey
+     * @param departs departure time of the journey
+     * @return summary of the booking, or null if there is no such journey or
+     * member, or the journey is full
+     * @throws OlympicsDBException if the booking failed, e.g. because the
+     * member is already booked on the journey
+     */
+    HashMap<String, Object> makeBooking(String byStaff, String forMember, String vehicle, Date departs) throws OlympicsDBException;
+
+    /**
+     * Book a list of members onto the same journey, as many as there are
+     * seats for, in list order
+     * @param byStaff member ID of the staff making the bookings
+     * @param forMembers names of the members to book for, as "family, given"
+     * @param vehicle vehicle of the journey
+     * @param departs departure time of the journey
+     * @return a BookingOutcome tuple for each listed member, in list order,
+     * or null if there is no such journey
+     * @throws OlympicsDBException
+     */
+    TupleTable makeBookings(String byStaff, List<String> forMembers, String vehicle, Date departs) throws OlympicsDBException;
+
+    /**
+     * @return counters and sizes of the backend's connection pool and
+     * caches, for monitoring; names are prefixed by what they describe
+     */
+    HashMap<String, Object> getStatistics();
+
+    /**
+     * Release whatever the backend holds. It can't be used after this.
+     */
+    void close();
+}
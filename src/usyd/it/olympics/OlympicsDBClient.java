@@ -1,13 +1,17 @@
 package usyd.it.olympics;
 
 import java.io.FileInputStream;
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
 
 import javax.swing.SwingUtilities;
 
 import usyd.it.olympics.data.BookingDetails;
+import usyd.it.olympics.data.BookingOutcome;
+import usyd.it.olympics.data.TuplePageSource;
+import usyd.it.olympics.data.TupleTable;
 import usyd.it.olympics.gui.GuiFrontEnd;
 
 public class OlympicsDBClient {
@@ -15,20 +19,32 @@ public class OlympicsDBClient {
 
     private final GuiFrontEnd gui;
     // All database operations (logging in, running queries) are performed by this object
-    private DatabaseBackend db;
+    private OlympicsBackend db;
+    // Database operations run on this, off the GUI thread
+    private final BackendExecutor executor;
 	private String memberId; // Member ID
 	private String memberType;
+    // Countries shown in the medal table
+    private static final int LEADERBOARD_SIZE = 20;
+    // Bookings fetched at a time for the history, unless another size is chosen
+    public static final int HISTORY_PAGE_SIZE = 25;
 
     OlympicsDBClient(String config) {
         // Make sure the DB backend works
         try {
-            db = new DatabaseBackend(new FileInputStream(config)); // Note, doesn't connect to DB
+            db = BackendFactory.open(new FileInputStream(config)); // Note, doesn't connect to DB
         } catch (Exception e) {
             // Can't do much so die noisily.
             e.printStackTrace();
             System.exit(1);
         }
         gui = new GuiFrontEnd(this);
+        executor = new BackendExecutor(new BackendExecutor.LoadingListener() {
+            @Override
+            public void setLoading(boolean loading) {
+                gui.setLoading(loading);
+            }
+        });
         setMessage("Welcome to Olympics DB Client.");
     }
 
@@ -39,51 +55,93 @@ public class OlympicsDBClient {
     //
     // Client user login/logout
     //
-    public void login(String memUser, char [] memPass) {
+    public void login(final String memUser, char [] memPass) {
         setMessage("Connecting to DB.");
-        try {
-        	memberId = null;
-        	HashMap<String, Object> basicDetails = db.checkLogin(memUser, memPass);
-            if(basicDetails!=null) {
-            	memberId = memUser;
-            	memberType = (String) basicDetails.get("member_type"); // Could use for type-specific functionality
-            	setMessage("Verified login, Fetching member details");
-            	HashMap<String, Object> fullDetails = db.getMemberDetails(memberId);
-            	gui.getMainMenuScreen().showMemberDetails(fullDetails);
-            	gui.showMainMenuScreen();
-            	setMessage("Login successful.");
-            } else {
-            	setMessage("Login details incorrect.");
-            }
-        } catch (OlympicsDBException e) {
-            setMessage(e.getMessage());
-        }
+        memberId = null;
+        // The password array is cleared by the caller once this returns
+        final char[] password = memPass.clone();
+        executor.run(new BackendWorker<HashMap<String, Object>>() {
+            @Override
+            protected HashMap<String, Object> query() throws OlympicsDBException {
+                try {
+                    HashMap<String, Object> basicDetails = db.checkLogin(memUser, password);
+                    if (basicDetails == null) {
+                        return null;
+                    }
+                    HashMap<String, Object> fullDetails = db.getMemberDetails(memUser);
+                    fullDetails.put("member_type", basicDetails.get("member_type"));
+                    return fullDetails;
+                } finally {
+                    Arrays.fill(password, '0');
+                }
+            }
+
+            @Override
+            protected void succeeded(HashMap<String, Object> fullDetails) {
+                if (fullDetails != null) {
+                    memberId = memUser;
+                    memberType = (String) fullDetails.get("member_type"); // Could use for type-specific functionality
+                    gui.getMainMenuScreen().showMemberDetails(fullDetails);
+                    gui.showMainMenuScreen();
+                    setMessage("Login successful.");
+                } else {
+                    setMessage("Login details incorrect.");
+                }
+            }
+
+            @Override
+            protected void failed(OlympicsDBException e) {
+                setMessage(e.getMessage());
+            }
+        });
     }
 
     public void logout() {
         setMessage("Logging out");
+        executor.cancelPending();
+        final String member = memberId;
+        if (member != null) {
+            // Let the backend drop the member's cached profile
+            executor.getExecutor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    db.endSession(member);
+                }
+            });
+        }
         memberId = null;
         gui.showLoginScreen();
         setMessage("Logged out");
     }
 
     //
-    // Member info 
+    // Member info
     //
     public void showMemberDetails() {
         setMessage("Fetching member details.");
-        try {
-            HashMap<String, Object> member = db.getMemberDetails(memberId);
-            gui.getMainMenuScreen().showMemberDetails(member);
-            gui.showMainMenuScreen();
-            setMessage("Details fetched.");
-        } catch (OlympicsDBException e) {
-            setMessage(e.getMessage());
-        }
+        final String member = memberId;
+        executor.run(new BackendWorker<HashMap<String, Object>>() {
+            @Override
+            protected HashMap<String, Object> query() throws OlympicsDBException {
+                return db.getMemberDetails(member);
+            }
+
+            @Override
+            protected void succeeded(HashMap<String, Object> details) {
+                gui.getMainMenuScreen().showMemberDetails(details);
+                gui.showMainMenuScreen();
+                setMessage("Details fetched.");
+            }
+
+            @Override
+            protected void failed(OlympicsDBException e) {
+                setMessage(e.getMessage());
+            }
+        });
     }
 
 
-    
+
     /**
      * Create a new client GUI, running on its own event thread
      *
@@ -102,119 +160,328 @@ public class OlympicsDBClient {
     //
     // Journey Finder
     //
-    public void showMatchingJourneys(String origin, String dest, Date date) {
+    public void showMatchingJourneys(final String origin, final String dest, final Date date) {
         setMessage("Fetching journey availabilities.");
-        try {
-            ArrayList<HashMap<String, Object>> journeys = db.findJourneys(origin, dest, date);
-            gui.getJourneyFinderScreen().showTuples(journeys);
-            setMessage("All journeys fetched.");
-        } catch (OlympicsDBException e) {
-            setMessage(e.getMessage());
-            gui.getJourneyFinderScreen().showTuples(new ArrayList<HashMap<String, Object>>());
-        }
-        gui.showJourneyFinderScreen();
+        executor.run(new BackendWorker<TupleTable>() {
+            @Override
+            protected TupleTable query() throws OlympicsDBException {
+                return db.findJourneys(origin, dest, date);
+            }
+
+            @Override
+            protected void succeeded(TupleTable journeys) {
+                gui.getJourneyFinderScreen().showTuples(journeys);
+                setMessage("All journeys fetched.");
+                gui.showJourneyFinderScreen();
+            }
+
+            @Override
+            protected void failed(OlympicsDBException e) {
+                setMessage(e.getMessage());
+                gui.getJourneyFinderScreen().showTuples(null);
+                gui.showJourneyFinderScreen();
+            }
+        });
     }
-    
+
+    /*
+     * Fetch journeys again to update the list in place, without taking over
+     * from whatever the user is waiting for
+     */
+    public void refreshMatchingJourneys(final String origin, final String dest, final Date date) {
+        executor.runInBackground(new BackendWorker<TupleTable>() {
+            @Override
+            protected TupleTable query() throws OlympicsDBException {
+                return db.findJourneys(origin, dest, date);
+            }
+
+            @Override
+            protected void succeeded(TupleTable journeys) {
+                gui.getJourneyFinderScreen().refreshTuples(origin, dest, date, journeys);
+            }
+
+            @Override
+            protected void failed(OlympicsDBException e) {
+                setMessage(e.getMessage());
+            }
+        });
+    }
+
+    public void planJourneys(final String origin, final String dest, final Date departAfter) {
+        setMessage("Planning journeys.");
+        executor.run(new BackendWorker<TupleTable>() {
+            @Override
+            protected TupleTable query() throws OlympicsDBException {
+                return db.planJourneys(origin, dest, departAfter);
+            }
+
+            @Override
+            protected void succeeded(TupleTable itineraries) {
+                gui.getJourneyFinderScreen().showItineraries(itineraries);
+                setMessage(itineraries.size() + " routes found.");
+                gui.showJourneyFinderScreen();
+            }
+
+            @Override
+            protected void failed(OlympicsDBException e) {
+                setMessage(e.getMessage());
+                gui.getJourneyFinderScreen().showItineraries(null);
+                gui.showJourneyFinderScreen();
+            }
+        });
+    }
+
     public void showJourneyAvailability() {
         setMessage("Fetching journey availabilities.");
+        executor.cancelPending();
         gui.showJourneyFinderScreen();
     }
-    
-    public void getJourneyDetails(Integer journeyId) {
+
+    public void getJourneyDetails(final Integer journeyId) {
         setMessage("Retrieving details");
-        try {
-        	HashMap<String, Object> details = db.getJourneyDetails(journeyId);
-            gui.getJourneyDetailsScreen().showJourneyDetails(details);
-            gui.showJourneyDetailsScreen();
-            setMessage("Details retrieved");
-        } catch (OlympicsDBException e) {
-            setMessage(e.getMessage());
-        }
+        executor.run(new BackendWorker<HashMap<String, Object>>() {
+            @Override
+            protected HashMap<String, Object> query() throws OlympicsDBException {
+                return db.getJourneyDetails(journeyId);
+            }
+
+            @Override
+            protected void succeeded(HashMap<String, Object> details) {
+                gui.getJourneyDetailsScreen().showJourneyDetails(details);
+                gui.showJourneyDetailsScreen();
+                setMessage("Details retrieved");
+            }
+
+            @Override
+            protected void failed(OlympicsDBException e) {
+                setMessage(e.getMessage());
+            }
+        });
     }
 
-    public void makeBooking(String forMember, String vehicle, Date departs) {
+    public void makeBooking(final String forMember, final String vehicle, final Date departs) {
         setMessage("Submitting booking");
-        try {
-        	HashMap<String,Object> bookingDetails = db.makeBooking(memberId, 
-        			forMember, vehicle, departs);
-        	if(bookingDetails==null) {
-                setMessage("Could not make booking");
-        	} else {
-                gui.getReportScreen().show(BookingDetails.getSummary(bookingDetails));
-                gui.showReportScreen();
-                setMessage("Submission complete");
-        	}
-        } catch (OlympicsDBException e) {
-            setMessage(e.getMessage());
-        }
+        final String member = memberId;
+        executor.run(new BackendWorker<HashMap<String, Object>>() {
+            @Override
+            protected HashMap<String, Object> query() throws OlympicsDBException {
+                return db.makeBooking(member, forMember, vehicle, departs);
+            }
+
+            @Override
+            protected boolean isWrite() {
+                return true;
+            }
+
+            @Override
+            protected void succeeded(HashMap<String, Object> bookingDetails) {
+                if(bookingDetails==null) {
+                    setMessage("Could not make booking");
+                } else if (member == null || !member.equals(memberId) || !isCurrent()) {
+                    // The user moved on or logged out: don't show the booking to whoever is there now
+                    setMessage("Submission complete");
+                } else {
+                    gui.getReportScreen().show(BookingDetails.getSummary(bookingDetails));
+                    gui.showReportScreen();
+                    setMessage("Submission complete");
+                }
+            }
+
+            @Override
+            protected void failed(OlympicsDBException e) {
+                setMessage(e.getMessage());
+            }
+        });
+    }
+
+    public void makeBookings(final List<String> forMembers, final String vehicle, final Date departs) {
+        setMessage("Submitting team booking");
+        final String member = memberId;
+        executor.run(new BackendWorker<TupleTable>() {
+            @Override
+            protected TupleTable query() throws OlympicsDBException {
+                return db.makeBookings(member, forMembers, vehicle, departs);
+            }
+
+            @Override
+            protected boolean isWrite() {
+                return true;
+            }
+
+            @Override
+            protected void succeeded(TupleTable outcomes) {
+                if(outcomes==null) {
+                    setMessage("Could not find journey");
+                } else if (member == null || !member.equals(memberId) || !isCurrent()) {
+                    // The user moved on or logged out: don't show the bookings to whoever is there now
+                    setMessage("Submission complete");
+                } else {
+                    gui.getReportScreen().show(BookingOutcome.getSummary(vehicle, departs, outcomes));
+                    gui.showReportScreen();
+                    setMessage("Submission complete");
+                }
+            }
+
+            @Override
+            protected void failed(OlympicsDBException e) {
+                setMessage(e.getMessage());
+            }
+        });
     }
-    
+
     public void showHistory() {
         setMessage("Fetching booking history.");
-        try {
-            ArrayList<HashMap<String,Object>> bookings = db.getMemberBookings(memberId);
-            gui.getHistoryScreen().showBookings(bookings);
-            gui.showHistoryScreen();
-            setMessage("All bookings fetched.");
-        } catch (OlympicsDBException e) {
-            setMessage(e.getMessage());
-        }    
+        executor.cancelPending();
+        final String member = memberId;
+        // The screen fetches a page at a time, each after the last booking of
+        // the one before, on (departure, journey)
+        TuplePageSource bookings = new TuplePageSource() {
+            @Override
+            public TupleTable getRows(Object[] after, int count) throws OlympicsDBException {
+                try {
+                    if (after == null) return db.getMemberBookings(member, null, null, count);
+                    return db.getMemberBookings(member, (Date) after[0], (Integer) after[1], count);
+                } catch (final OlympicsDBException e) {
+                    SwingUtilities.invokeLater(new Runnable() {
+                        @Override
+                        public void run() {
+                            setMessage(e.getMessage());
+                        }
+                    });
+                    throw e;
+                }
+            }
+
+            @Override
+            public Object[] keyOf(TupleTable rows, int row) {
+                // The departure as read, so none of its precision is lost
+                return new Object[] { rows.get(row, "when_departs"), rows.get(row, "journey_id") };
+            }
+        };
+        gui.getHistoryScreen().showBookings(bookings, executor.getExecutor());
+        gui.showHistoryScreen();
+        setMessage("Booking history shown.");
     }
 
     public void startBooking(String vehicle, Date departs) {
         setMessage("Fetching details to start booking.");
+        executor.cancelPending();
 		gui.getBookingsCreationScreen().startBooking(vehicle, departs);
 		gui.showBookingsCreationScreen();
-		setMessage("Details fetched."); 
+		setMessage("Details fetched.");
     }
 
-    public void showBookingDetails(Integer journeyid) {
-       setMessage("Getting booking details");
-        try {
-        	HashMap<String,Object> bookingDetails = db.getBookingDetails(memberId, journeyid);
-            gui.getReportScreen().show(BookingDetails.getSummary(bookingDetails));
-            gui.showReportScreen();
-            setMessage("Details fetched.");
-        } catch (OlympicsDBException e) {
-            setMessage(e.getMessage());
-        }
+    public void showBookingDetails(final Integer journeyid) {
+        setMessage("Getting booking details");
+        final String member = memberId;
+        executor.run(new BackendWorker<HashMap<String, Object>>() {
+            @Override
+            protected HashMap<String, Object> query() throws OlympicsDBException {
+                return db.getBookingDetails(member, journeyid);
+            }
+
+            @Override
+            protected void succeeded(HashMap<String, Object> bookingDetails) {
+                gui.getReportScreen().show(BookingDetails.getSummary(bookingDetails));
+                gui.showReportScreen();
+                setMessage("Details fetched.");
+            }
+
+            @Override
+            protected void failed(OlympicsDBException e) {
+                setMessage(e.getMessage());
+            }
+        });
     }
 
 	public void showEventBrowser() {
-       setMessage("Getting sports");
-        try {
-        	ArrayList<HashMap<String, Object>> sports = db.getSports();
-            gui.getEventBrowserScreen().setSports(sports);
-            gui.showEventBrowserScreen();
-            setMessage("Sports fetched.");
-        } catch (OlympicsDBException e) {
-            setMessage(e.getMessage());
-        }
+        setMessage("Getting sports");
+        executor.run(new BackendWorker<TupleTable>() {
+            @Override
+            protected TupleTable query() throws OlympicsDBException {
+                return db.getSports();
+            }
+
+            @Override
+            protected void succeeded(TupleTable sports) {
+                gui.getEventBrowserScreen().setSports(sports);
+                gui.showEventBrowserScreen();
+                setMessage("Sports fetched.");
+            }
+
+            @Override
+            protected void failed(OlympicsDBException e) {
+                setMessage(e.getMessage());
+            }
+        });
 	}
-	
-	public void getEventResults(Integer eventid) {
-	       setMessage("Getting event results");
-	        try {
-	        	ArrayList<HashMap<String, Object>> eventDetails = db.getResultsOfEvent(eventid);
-	            gui.getEventResultsScreen().setTuples(eventDetails);
-	            gui.showEventResultsScreen();
-	            setMessage("Results fetched.");
-	        } catch (OlympicsDBException e) {
-	            setMessage(e.getMessage());
-	        }
+
+	public void getEventResults(final Integer eventid) {
+        setMessage("Getting event results");
+        executor.run(new BackendWorker<TupleTable>() {
+            @Override
+            protected TupleTable query() throws OlympicsDBException {
+                return db.getResultsOfEvent(eventid);
+            }
+
+            @Override
+            protected void succeeded(TupleTable eventDetails) {
+                gui.getEventResultsScreen().setTuples(eventDetails);
+                gui.showEventResultsScreen();
+                setMessage("Results fetched.");
+            }
+
+            @Override
+            protected void failed(OlympicsDBException e) {
+                setMessage(e.getMessage());
+            }
+        });
+	}
+
+
+	public void showLeaderboard() {
+        setMessage("Getting medal table");
+        executor.run(new BackendWorker<TupleTable>() {
+            @Override
+            protected TupleTable query() throws OlympicsDBException {
+                return db.getMedalLeaderboard(LEADERBOARD_SIZE);
+            }
+
+            @Override
+            protected void succeeded(TupleTable standings) {
+                gui.getLeaderboardScreen().setTuples(standings);
+                gui.showLeaderboardScreen();
+                setMessage("Medal table fetched.");
+            }
+
+            @Override
+            protected void failed(OlympicsDBException e) {
+                setMessage(e.getMessage());
+            }
+        });
 	}
 
 
-	public void getEvents(Integer sportId) {
+	public void getEvents(final Integer sportId) {
         setMessage("Retrieving events");
-        try {
-        	ArrayList<HashMap<String, Object>> events = db.getEventsOfSport(sportId);
-            gui.getEventBrowserScreen().showTuples(events);
-            gui.showEventBrowserScreen();
-            setMessage("Details retrieved");
-        } catch (OlympicsDBException e) {
-            setMessage(e.getMessage());
-        }
+        executor.run(new BackendWorker<TupleTable>() {
+            @Override
+            protected TupleTable query() throws OlympicsDBException {
+                return db.getEventsOfSport(sportId);
+            }
+
+            @Override
+            protected void succeeded(TupleTable events) {
+                gui.getEventBrowserScreen().showTuples(events);
+                gui.showEventBrowserScreen();
+                setMessage("Details retrieved");
+            }
+
+            @Override
+            protected void failed(OlympicsDBException e) {
+                setMessage(e.getMessage());
+            }
+        });
 	}
 
 }
@@ -0,0 +1,186 @@
+package usyd.it.olympics;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import usyd.it.olympics.data.SportDetails;
+import usyd.it.olympics.data.TupleTable;
+
+/**
+ * In-memory copy of the reference tables that hardly change during the Games:
+ * sports, places and vehicles.
+ *
+ * The tables are read together into an immutable snapshot, which is replaced
+ * when it is older than the configured time-to-live or when refresh() is
+ * called. Readers never block on each other; only a reload is serialised.
+ */
+class ReferenceDataCache {
+
+    /**
+     * One consistent copy of the reference tables.
+     */
+    static final class Snapshot {
+        /// Read-only: shared with every caller of getSports()
+        final TupleTable sports;
+        final HashMap<Integer, String> placeNames;
+        final HashMap<String, ArrayList<Integer>> placeIds;
+        final HashMap<String, Integer> vehicleCapacity;
+        final long loadedAt = System.currentTimeMillis();
+
+        Snapshot(TupleTable sports, HashMap<Integer, String> placeNames,
+                HashMap<String, ArrayList<Integer>> placeIds, HashMap<String, Integer> vehicleCapacity) {
+            this.sports = sports;
+            this.placeNames = placeNames;
+            this.placeIds = placeIds;
+            this.vehicleCapacity = vehicleCapacity;
+        }
+
+        /**
+         * @return name of the place, or null if unknown
+         */
+        String placeName(int placeId) {
+            return placeNames.get(placeId);
+        }
+
+        /**
+         * @return IDs of places with the given name (usually just one), empty if none
+         */
+        ArrayList<Integer> placeIds(String name) {
+            ArrayList<Integer> ids = placeIds.get(name);
+            return ids == null ? new ArrayList<Integer>() : ids;
+        }
+
+        /**
+         * @return seats in the vehicle, or null if unknown
+         */
+        Integer capacity(String vehicleCode) {
+            return vehicleCapacity.get(vehicleCode);
+        }
+    }
+
+    static final SportDetails SPORT_SCHEMA = new SportDetails();
+
+    private final ConnectionPool pool;
+    private final long ttlMillis;
+    private volatile Snapshot snapshot;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong loads = new AtomicLong();
+
+    /**
+     * @param pool where to borrow connections for loading
+     * @param ttlMillis how long a snapshot is used before being reloaded
+     */
+    ReferenceDataCache(ConnectionPool pool, long ttlMillis) {
+        this.pool = pool;
+        this.ttlMillis = ttlMillis;
+    }
+
+    /**
+     * @return current reference data, loading it first if missing or expired
+     * @throws SQLException if it had to be loaded and that failed
+     */
+    Snapshot get() throws SQLException {
+        Snapshot current = snapshot;
+        if (current != null && System.currentTimeMillis() - current.loadedAt < ttlMillis) {
+            hits.incrementAndGet();
+            return current;
+        }
+        misses.incrementAndGet();
+        return reload(current);
+    }
+
+    /**
+     * Get reference data that is at least as new as the given age. Used when a
+     * lookup in the current snapshot fails, in case the tables have changed.
+     * @param maxAgeMillis reload if the snapshot is older than this
+     * @return reference data
+     * @throws SQLException if it had to be loaded and that failed
+     */
+    Snapshot getFresh(long maxAgeMillis) throws SQLException {
+        Snapshot current = snapshot;
+        if (current != null && System.currentTimeMillis() - current.loadedAt < maxAgeMillis) {
+            return current;
+        }
+        return reload(current);
+    }
+
+    /**
+     * Reload all reference tables now.
+     * @throws SQLException if loading failed; the old snapshot is kept
+     */
+    void refresh() throws SQLException {
+        reload(snapshot);
+    }
+
+    /**
+     * Drop the cached tables; they are reloaded on next use.
+     */
+    void invalidate() {
+        snapshot = null;
+    }
+
+    HashMap<String, Object> getStatistics() {
+        HashMap<String, Object> stats = new HashMap<String, Object>();
+        long h = hits.get();
+        long m = misses.get();
+        stats.put("refdata_hits", h);
+        stats.put("refdata_misses", m);
+        stats.put("refdata_hit_rate", h + m == 0 ? 0.0 : (double) h / (h + m));
+        stats.put("refdata_loads", loads.get());
+        Snapshot current = snapshot;
+        stats.put("refdata_age_ms", current == null ? -1L : System.currentTimeMillis() - current.loadedAt);
+        return stats;
+    }
+
+    private synchronized Snapshot reload(Snapshot seen) throws SQLException {
+        // Someone else may have reloaded while we waited for the lock
+        if (snapshot != null && snapshot != seen) {
+            return snapshot;
+        }
+        Connection conn = pool.borrow();
+        try {
+            TupleTable sports = new TupleTable(SPORT_SCHEMA);
+            PreparedStatement stmt = conn.prepareStatement("SELECT sport_id, sport_name, discipline FROM sport");
+            ResultSet rs = stmt.executeQuery();
+            while (rs.next()) {
+                sports.add(new Object[] { rs.getInt("sport_id"), rs.getString("sport_name"), rs.getString("discipline") });
+            }
+
+            HashMap<Integer, String> placeNames = new HashMap<Integer, String>();
+            HashMap<String, ArrayList<Integer>> placeIds = new HashMap<String, ArrayList<Integer>>();
+            stmt = conn.prepareStatement("SELECT place_id, place_name FROM Place");
+            rs = stmt.executeQuery();
+            while (rs.next()) {
+                int id = rs.getInt("place_id");
+                String name = rs.getString("place_name");
+                placeNames.put(id, name);
+                ArrayList<Integer> ids = placeIds.get(name);
+                if (ids == null) {
+                    ids = new ArrayList<Integer>(1);
+                    placeIds.put(name, ids);
+                }
+                ids.add(id);
+            }
+
+            HashMap<String, Integer> vehicleCapacity = new HashMap<String, Integer>();
+            stmt = conn.prepareStatement("SELECT vehicle_code, capacity FROM Vehicle");
+            rs = stmt.executeQuery();
+            while (rs.next()) {
+                vehicleCapacity.put(rs.getString("vehicle_code"), rs.getInt("capacity"));
+            }
+
+            snapshot = new Snapshot(sports, placeNames, placeIds, vehicleCapacity);
+            loads.incrementAndGet();
+            return snapshot;
+        } finally {
+            conn.close();
+        }
+    }
+}
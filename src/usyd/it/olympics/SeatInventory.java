@@ -0,0 +1,254 @@
+package usyd.it.olympics;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Seats booked on every journey, held in memory so availability can be read
+ * and seats reserved without going to the database.
+ *
+ * Seats are reserved by compare-and-set on a per-journey counter, which never
+ * lets the count pass the vehicle's capacity. The Booking rows inserted for a
+ * reservation are the durable record: Journey.nbooked is only brought up to
+ * date behind the scenes, by a flusher that sets it to the count of Booking
+ * rows for every journey booked since the last flush. Loading also counts the
+ * Booking rows, so the counters start from (and repair) the real bookings.
+ *
+ * The counters only see bookings made through this object, so it should only
+ * be enabled where all bookings go through one backend.
+ */
+class SeatInventory {
+
+    private static final class Seats {
+        final int capacity;
+        final AtomicInteger booked;
+
+        Seats(int capacity, int booked) {
+            this.capacity = capacity;
+            this.booked = new AtomicInteger(booked);
+        }
+    }
+
+    private final ConnectionPool pool;
+    private final ConcurrentHashMap<Integer, Seats> byId = new ConcurrentHashMap<Integer, Seats>();
+    /// Journey ID by vehicle and departure time
+    private final ConcurrentHashMap<String, Integer> byDeparture = new ConcurrentHashMap<String, Integer>();
+    /// Journeys whose nbooked is behind their bookings
+    private final Set<Integer> dirty = ConcurrentHashMap.newKeySet();
+    private final Timer flusher;
+    private volatile boolean loaded;
+
+    private final AtomicLong reservations = new AtomicLong();
+    private final AtomicLong rejections = new AtomicLong();
+    private final AtomicLong flushes = new AtomicLong();
+    private final AtomicLong flushedJourneys = new AtomicLong();
+    private final AtomicLong flushFailures = new AtomicLong();
+    private final AtomicLong repaired = new AtomicLong();
+
+    /**
+     * @param pool where to borrow connections for loading and flushing
+     * @param flushMillis how often nbooked is written back
+     */
+    SeatInventory(ConnectionPool pool, long flushMillis) {
+        this.pool = pool;
+        flusher = new Timer("SeatInventory-flusher", true);
+        long period = Math.max(10, flushMillis);
+        flusher.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                try {
+                    flush();
+                } catch (SQLException e) {
+                    // Kept dirty; tried again next time
+                }
+            }
+        }, period, period);
+    }
+
+    /**
+     * @return ID of the journey of the vehicle leaving at the time, or null if
+     * it isn't known
+     * @throws SQLException if the inventory had to be loaded and that failed
+     */
+    Integer journeyAt(String vehicle, Date departs) throws SQLException {
+        ensureLoaded();
+        return byDeparture.get(departureKey(vehicle, departs.getTime()));
+    }
+
+    /**
+     * @return seats booked on the journey, or null if it isn't known
+     * @throws SQLException if the inventory had to be loaded and that failed
+     */
+    Integer booked(int journeyId) throws SQLException {
+        ensureLoaded();
+        Seats seats = byId.get(journeyId);
+        return seats == null ? null : seats.booked.get();
+    }
+
+    /**
+     * Reserve seats on a journey, if that many are left
+     * @return whether the seats were reserved
+     */
+    boolean reserve(int journeyId, int count) {
+        return reserveUpTo(journeyId, count) == count;
+    }
+
+    /**
+     * Reserve as many of the wanted seats on a journey as are left
+     * @return number of seats reserved
+     */
+    int reserveUpTo(int journeyId, int wanted) {
+        Seats seats = byId.get(journeyId);
+        if (seats == null || wanted <= 0) return 0;
+        while (true) {
+            int booked = seats.booked.get();
+            int granted = Math.min(wanted, seats.capacity - booked);
+            if (granted <= 0) {
+                rejections.incrementAndGet();
+                return 0;
+            }
+            if (seats.booked.compareAndSet(booked, booked + granted)) {
+                reservations.incrementAndGet();
+                return granted;
+            }
+        }
+    }
+
+    /**
+     * Give back reserved seats that weren't booked after all
+     */
+    void release(int journeyId, int count) {
+        Seats seats = byId.get(journeyId);
+        if (seats != null && count > 0) seats.booked.addAndGet(-count);
+    }
+
+    /**
+     * Note that bookings for reserved seats have been committed, so nbooked
+     * needs writing back
+     */
+    void committed(int journeyId) {
+        dirty.add(journeyId);
+    }
+
+    /**
+     * Pick up journeys added since loading. Counters of known journeys are
+     * kept, since they may include reservations not yet committed.
+     * @throws SQLException if loading failed
+     */
+    synchronized void refresh() throws SQLException {
+        load();
+        loaded = true;
+    }
+
+    /**
+     * Write nbooked back for every journey booked since the last flush.
+     * @throws SQLException if writing failed; the journeys stay dirty
+     */
+    void flush() throws SQLException {
+        if (dirty.isEmpty()) return;
+        ArrayList<Integer> journeys = new ArrayList<Integer>();
+        Iterator<Integer> it = dirty.iterator();
+        while (it.hasNext()) {
+            journeys.add(it.next());
+            it.remove();
+        }
+        try {
+            Connection conn = pool.borrow();
+            try {
+                // From the Booking table rather than the counters, so the write is idempotent
+                PreparedStatement stmt = conn.prepareStatement(
+                        "UPDATE Journey " +
+                                "SET nbooked = (SELECT COUNT(*) FROM Booking WHERE Booking.journey_id = Journey.journey_id) " +
+                                "WHERE journey_id = ANY (?)");
+                stmt.setArray(1, conn.createArrayOf("integer", journeys.toArray()));
+                stmt.executeUpdate();
+            } finally {
+                conn.close();
+            }
+            flushes.incrementAndGet();
+            flushedJourneys.addAndGet(journeys.size());
+        } catch (SQLException e) {
+            dirty.addAll(journeys);
+            flushFailures.incrementAndGet();
+            throw e;
+        }
+    }
+
+    /**
+     * Stop the flusher and write back whatever is outstanding.
+     */
+    void close() {
+        flusher.cancel();
+        try {
+            flush();
+        } catch (SQLException e) {
+            // Nothing more we can do; nbooked is repaired on next load
+        }
+    }
+
+    HashMap<String, Object> getStatistics() {
+        HashMap<String, Object> stats = new HashMap<String, Object>();
+        stats.put("seats_journeys", byId.size());
+        stats.put("seats_reservations", reservations.get());
+        stats.put("seats_rejections", rejections.get());
+        stats.put("seats_dirty", dirty.size());
+        stats.put("seats_flushes", flushes.get());
+        stats.put("seats_flushed_journeys", flushedJourneys.get());
+        stats.put("seats_flush_failures", flushFailures.get());
+        stats.put("seats_repaired", repaired.get());
+        return stats;
+    }
+
+    private void ensureLoaded() throws SQLException {
+        if (!loaded) {
+            synchronized (this) {
+                if (!loaded) {
+                    load();
+                    loaded = true;
+                }
+            }
+        }
+    }
+
+    private void load() throws SQLException {
+        Connection conn = pool.borrow();
+        try {
+            PreparedStatement stmt = conn.prepareStatement(
+                    "SELECT journey_id, vehicle_code, depart_time, capacity, nbooked, COALESCE(b.booked, 0) AS booked " +
+                            "FROM Journey JOIN Vehicle USING (vehicle_code) " +
+                            "LEFT JOIN (SELECT journey_id, COUNT(*) AS booked FROM Booking GROUP BY journey_id) AS b " +
+                            "USING (journey_id)");
+            ResultSet rs = stmt.executeQuery();
+            while (rs.next()) {
+                int journeyId = rs.getInt("journey_id");
+                int booked = rs.getInt("booked");
+                if (byId.putIfAbsent(journeyId, new Seats(rs.getInt("capacity"), booked)) == null) {
+                    byDeparture.put(departureKey(rs.getString("vehicle_code"), rs.getTimestamp("depart_time").getTime()), journeyId);
+                    if (rs.getInt("nbooked") != booked) {
+                        // nbooked has drifted from the bookings; write the count back
+                        dirty.add(journeyId);
+                        repaired.incrementAndGet();
+                    }
+                }
+            }
+        } finally {
+            conn.close();
+        }
+    }
+
+    private static String departureKey(String vehicle, long departs) {
+        return vehicle + "@" + departs;
+    }
+}
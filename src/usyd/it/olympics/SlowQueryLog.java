@@ -0,0 +1,284 @@
+package usyd.it.olympics;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.FileHandler;
+import java.util.logging.Formatter;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+/**
+ * Log of statements that took longer than slowquery_ms, written to a
+ * rotating set of files with the SQL, its bind values, the time taken and,
+ * on PostgreSQL, its plan.
+ *
+ * The pool's statements report each execution with executed(); only the
+ * time check happens on the caller's thread. Writing the log and running
+ * EXPLAIN happen on a single background thread, over a connection of its
+ * own rather than one from the pool. EXPLAIN ANALYZE really runs the
+ * statement, so it is always run in a transaction that is rolled back, and
+ * under a statement timeout. Even so, a statement that writes or locks rows
+ * would hold the same locks as the one being diagnosed until the rollback,
+ * holding up live bookings, so only plain SELECTs are analyzed unless
+ * slowquery_explain_analyze_writes is set; the rest get a plain EXPLAIN,
+ * which doesn't run them. The same SQL is explained at most once every
+ * slowquery_explain_interval_s seconds; later slow runs are still logged.
+ * If the background thread falls behind, slow queries are dropped rather
+ * than held up.
+ */
+class SlowQueryLog {
+
+    private final long thresholdNanos;
+    private final boolean explain;
+    private final boolean analyzeWrites;
+    /// A SELECT's row locking clause
+    private static final Pattern LOCKING = Pattern.compile(
+            "\\bFOR\\s+(UPDATE|NO\\s+KEY\\s+UPDATE|SHARE|KEY\\s+SHARE)\\b", Pattern.CASE_INSENSITIVE);
+    private final long explainIntervalMillis;
+    private final int explainTimeoutMillis;
+    private final String connstring;
+    private final Properties connProps;
+    private final Logger logger;
+    private final FileHandler handler;
+    private final ThreadPoolExecutor writer;
+    /// When each SQL text was last explained
+    private final ConcurrentHashMap<String, Long> lastExplained = new ConcurrentHashMap<String, Long>();
+    /// Used only by the writer thread
+    private Connection explainConn;
+
+    private final AtomicLong logged = new AtomicLong();
+    private final AtomicLong explained = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+
+    /**
+     * @return the log configured by the slowquery_* settings, or null if
+     * slowquery_ms is 0 (the default)
+     * @throws SQLException if the log file can't be opened
+     */
+    static SlowQueryLog create(String connstring, Properties connProps, Properties config) throws SQLException {
+        int thresholdMillis = DatabaseBackend.intProperty(config, "slowquery_ms", 0);
+        if (thresholdMillis <= 0) {
+            return null;
+        }
+        try {
+            return new SlowQueryLog(thresholdMillis, connstring, connProps, config);
+        } catch (IOException e) {
+            throw new SQLException("Couldn't open slow query log", e);
+        }
+    }
+
+    private SlowQueryLog(int thresholdMillis, String connstring, Properties connProps, Properties config) throws IOException {
+        thresholdNanos = thresholdMillis * 1000000L;
+        this.connstring = connstring;
+        this.connProps = connProps;
+        explain = connstring.startsWith("jdbc:postgresql:")
+                && Boolean.parseBoolean(config.getProperty("slowquery_explain", "true").trim());
+        analyzeWrites = Boolean.parseBoolean(config.getProperty("slowquery_explain_analyze_writes", "false").trim());
+        explainIntervalMillis = 1000L * DatabaseBackend.intProperty(config, "slowquery_explain_interval_s", 60);
+        explainTimeoutMillis = DatabaseBackend.intProperty(config, "slowquery_explain_timeout_ms", 10000);
+
+        handler = new FileHandler(config.getProperty("slowquery_file", "slow-queries.%g.log").trim(),
+                1024 * DatabaseBackend.intProperty(config, "slowquery_file_limit_kb", 1024),
+                Math.max(1, DatabaseBackend.intProperty(config, "slowquery_file_count", 5)), true);
+        handler.setFormatter(new Formatter() {
+            private final SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+
+            @Override
+            public String format(LogRecord record) {
+                return format.format(new Date(record.getMillis())) + " " + record.getMessage() + "\n\n";
+            }
+        });
+        logger = Logger.getAnonymousLogger();
+        logger.setUseParentHandlers(false);
+        logger.addHandler(handler);
+
+        writer = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(Math.max(1, DatabaseBackend.intProperty(config, "slowquery_queue", 100))),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "SlowQueryLog-writer");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+    }
+
+    /**
+     * @return whether a statement taking this long should be reported
+     */
+    boolean isSlow(long nanos) {
+        return nanos >= thresholdNanos;
+    }
+
+    /**
+     * Report a statement that was slow. Returns straight away.
+     * @param sql the statement's SQL
+     * @param binds its parameter values by index, which the caller mustn't change
+     * @param nanos time it took to run
+     * @param batch whether it ran as a batch, which isn't explained
+     */
+    void executed(final String sql, final Map<Integer, Object> binds, final long nanos, final boolean batch) {
+        final String thread = Thread.currentThread().getName();
+        try {
+            writer.execute(new Runnable() {
+                @Override
+                public void run() {
+                    write(sql, binds, nanos, batch, thread);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    HashMap<String, Object> getStatistics() {
+        HashMap<String, Object> stats = new HashMap<String, Object>();
+        stats.put("slowquery_logged", logged.get());
+        stats.put("slowquery_explained", explained.get());
+        stats.put("slowquery_dropped", dropped.get());
+        stats.put("slowquery_explain_failures", failures.get());
+        return stats;
+    }
+
+    /**
+     * Finish writing what is queued, then close the log and its connection.
+     */
+    void close() {
+        writer.shutdown();
+        try {
+            writer.awaitTermination(explainTimeoutMillis + 1000L, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        handler.close();
+        if (explainConn != null) {
+            try {
+                explainConn.close();
+            } catch (SQLException ignored) {}
+        }
+    }
+
+    private void write(String sql, Map<Integer, Object> binds, long nanos, boolean batch, String thread) {
+        StringBuilder entry = new StringBuilder();
+        entry.append(String.format("slow %s %.1f ms (threshold %d ms) on %s%n",
+                batch ? "batch" : "query", nanos / 1e6, thresholdNanos / 1000000, thread));
+        entry.append("SQL: ").append(sql).append('\n');
+        entry.append("binds: ").append(describe(binds));
+
+        long now = System.currentTimeMillis();
+        Long last = lastExplained.get(sql);
+        if (explain && !batch && (last == null || now - last >= explainIntervalMillis)) {
+            lastExplained.put(sql, now);
+            entry.append("\nplan:");
+            try {
+                for (String line : explain(sql, binds)) entry.append("\n  ").append(line);
+                explained.incrementAndGet();
+            } catch (SQLException e) {
+                failures.incrementAndGet();
+                entry.append(" EXPLAIN failed: ").append(e.getMessage());
+            }
+        }
+        logger.log(Level.INFO, entry.toString());
+        logged.incrementAndGet();
+    }
+
+    /**
+     * Explain the statement with the same binds, in a transaction that is
+     * rolled back so any changes it makes are undone. Only statements that
+     * neither write nor lock rows are run with ANALYZE, unless
+     * slowquery_explain_analyze_writes is set.
+     * @return lines of the plan
+     */
+    private List<String> explain(String sql, Map<Integer, Object> binds) throws SQLException {
+        Connection conn = explainConnection();
+        ArrayList<String> plan = new ArrayList<String>();
+        try {
+            conn.setAutoCommit(false);
+            Statement set = conn.createStatement();
+            try {
+                set.execute("SET LOCAL statement_timeout = " + explainTimeoutMillis);
+            } finally {
+                set.close();
+            }
+            boolean analyze = analyzeWrites || isPlainSelect(sql);
+            PreparedStatement stmt = conn.prepareStatement((analyze ? "EXPLAIN (ANALYZE, BUFFERS) " : "EXPLAIN ") + sql);
+            try {
+                for (Map.Entry<Integer, Object> bind : binds.entrySet()) {
+                    stmt.setObject(bind.getKey(), bind.getValue());
+                }
+                ResultSet rs = stmt.executeQuery();
+                while (rs.next()) plan.add(rs.getString(1));
+            } finally {
+                stmt.close();
+            }
+        } catch (SQLException e) {
+            // Start afresh next time in case the connection is broken
+            try {
+                conn.close();
+            } catch (SQLException ignored) {}
+            explainConn = null;
+            throw e;
+        } finally {
+            if (explainConn != null) {
+                try {
+                    conn.rollback();
+                    conn.setAutoCommit(true);
+                } catch (SQLException ignored) {}
+            }
+        }
+        return plan;
+    }
+
+    /**
+     * @return whether the statement is a SELECT without a locking clause. A
+     * WITH may hold an INSERT or UPDATE, so doesn't count.
+     */
+    static boolean isPlainSelect(String sql) {
+        String text = sql.trim();
+        return text.regionMatches(true, 0, "SELECT", 0, 6) && !LOCKING.matcher(text).find();
+    }
+
+    private Connection explainConnection() throws SQLException {
+        if (explainConn == null || explainConn.isClosed()) {
+            explainConn = DriverManager.getConnection(connstring, connProps);
+        }
+        return explainConn;
+    }
+
+    /// Bind values as "1='text', 2=42, ..."
+    private static String describe(Map<Integer, Object> binds) {
+        StringBuilder text = new StringBuilder();
+        for (Map.Entry<Integer, Object> bind : new TreeMap<Integer, Object>(binds).entrySet()) {
+            if (text.length() > 0) text.append(", ");
+            Object value = bind.getValue();
+            text.append(bind.getKey()).append('=');
+            if (value instanceof String) text.append('\'').append(value).append('\'');
+            else text.append(value);
+        }
+        return text.length() == 0 ? "(none)" : text.toString();
+    }
+}
@@ -0,0 +1,35 @@
+package usyd.it.olympics.data;
+
+import java.util.Date;
+
+/**
+ * Result of booking one member as part of a team booking
+ */
+public class BookingOutcome extends GeneralTupleConverter {
+	private static String[] attribs =  { "bookedfor_name", "member_id", "outcome"};
+	private static Class<?>[]  classes = { String.class, String.class, String.class};
+
+	public static final String BOOKED = "Booked";
+	public static final String ALREADY_BOOKED = "Already booked";
+	public static final String UNKNOWN_MEMBER = "Unknown member";
+	public static final String DUPLICATE = "Listed more than once";
+	public static final String NO_SEAT = "No seat left";
+
+	public BookingOutcome() {
+		super(attribs, classes);
+	}
+
+	public static String getSummary(String vehicle, Date departs, TupleTable outcomes) {
+		int booked = 0;
+		StringBuilder lines = new StringBuilder();
+		for (int i=0; i<outcomes.size(); ++i) {
+			String outcome = (String) outcomes.get(i, "outcome");
+			if (BOOKED.equals(outcome)) ++booked;
+			lines.append("\n").append(outcomes.get(i, "bookedfor_name")).append(": ").append(outcome);
+		}
+		String summary = "Vehicle " + vehicle + " leaving " + departs;
+		summary = summary.concat("\n" + booked + " of " + outcomes.size() + " members booked\n");
+		return summary.concat(lines.toString());
+	}
+
+}
@@ -0,0 +1,13 @@
+package usyd.it.olympics.data;
+
+import java.util.Date;
+
+public class EventDetails extends GeneralTupleConverter {
+	private static String[] attribs =  { "event_id", "sport_id", "event_name", "event_gender", "sport_venue", "event_start"};
+	private static Class<?>[]  classes = { Integer.class, Integer.class, String.class, String.class, String.class, Date.class};
+
+	public EventDetails() {
+		super(attribs, classes);
+	}
+
+}
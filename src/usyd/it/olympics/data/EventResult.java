@@ -0,0 +1,11 @@
+package usyd.it.olympics.data;
+
+public class EventResult extends GeneralTupleConverter {
+	private static String[] attribs =  { "participant", "country_name", "medal"};
+	private static Class<?>[]  classes = { String.class, String.class, String.class};
+
+	public EventResult() {
+		super(attribs, classes);
+	}
+
+}
@@ -6,10 +6,14 @@ import java.util.HashMap;
 public class GeneralTupleConverter implements TupleConverter {
 	public final String[] attributeNames;
 	public final Class<?>[] attributeClasses;
+	/// Shared by every TupleTable built with this schema
+	private final HashMap<String, Integer> attributeIndex = new HashMap<String, Integer>();
 	
 	public GeneralTupleConverter(String[] attributes, Class<?>[] classes) {
 		attributeNames = attributes;
 		attributeClasses = classes;
+		for (int i=0; i<attributes.length; ++i)
+			attributeIndex.put(attributes[i], i);
 	}
 	
 	@Override
@@ -21,6 +25,12 @@ public class GeneralTupleConverter implements TupleConverter {
 	public Class<?>[] getColumnClasses() {
 		return attributeClasses;
 	}
+
+	@Override
+	public int getAttributeIndex(String attribute) {
+		Integer index = attributeIndex.get(attribute);
+		return index==null ? -1 : index;
+	}
 	
 	public Integer getInt(String attribute, HashMap<String, Object> tuple) {
 		Object value =  tuple.get(attribute);
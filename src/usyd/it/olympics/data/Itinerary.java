@@ -0,0 +1,16 @@
+package usyd.it.olympics.data;
+
+import java.util.Date;
+
+/**
+ * A planned trip of one or more journeys, as found by the journey planner
+ */
+public class Itinerary extends GeneralTupleConverter {
+	private static String[] attribs =  { "option", "legs", "origin_name", "dest_name", "when_departs", "when_arrives", "route", "available_seats", "journey_id"};
+	private static Class<?>[]  classes = { Integer.class, Integer.class, String.class, String.class, Date.class, Date.class, String.class, Integer.class, Integer.class};
+
+	public Itinerary() {
+		super(attribs, classes);
+	}
+
+}
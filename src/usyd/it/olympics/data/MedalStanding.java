@@ -0,0 +1,11 @@
+package usyd.it.olympics.data;
+
+public class MedalStanding extends GeneralTupleConverter {
+	private static String[] attribs =  { "rank", "country_name", "num_gold", "num_silver", "num_bronze", "num_total"};
+	private static Class<?>[]  classes = { Integer.class, String.class, Integer.class, Integer.class, Integer.class, Integer.class};
+
+	public MedalStanding() {
+		super(attribs, classes);
+	}
+
+}
@@ -0,0 +1,11 @@
+package usyd.it.olympics.data;
+
+public class SportDetails extends GeneralTupleConverter {
+	private static String[] attribs =  { "sport_id", "sport_name", "discipline"};
+	private static Class<?>[]  classes = { Integer.class, String.class, String.class};
+
+	public SportDetails() {
+		super(attribs, classes);
+	}
+
+}
@@ -5,5 +5,10 @@ public interface TupleConverter {
 	String[] getAttributeNames();
 
 	Class<?>[] getColumnClasses();
+
+	/**
+	 * @return position of the attribute in getAttributeNames(), or -1 if absent
+	 */
+	int getAttributeIndex(String attribute);
 	
 }
@@ -0,0 +1,30 @@
+package usyd.it.olympics.data;
+
+import usyd.it.olympics.OlympicsDBException;
+
+/**
+ * Supplies a large ordered result a block of rows at a time, so a table can
+ * fetch only the rows being looked at. Blocks are found by key rather than by
+ * position: each starts after the last row of the block before it, so a block
+ * costs the same to fetch however far into the result it is.
+ */
+public interface TuplePageSource {
+
+	/**
+	 * Fetch a block of rows. Called off the event dispatch thread.
+	 * @param after key of the row just before the block, from keyOf, or null
+	 * for the first block
+	 * @param count maximum number of rows wanted
+	 * @return the rows, fewer than count at the end of the result
+	 * @throws OlympicsDBException
+	 */
+	TupleTable getRows(Object[] after, int count) throws OlympicsDBException;
+
+	/**
+	 * @param rows a block returned by getRows
+	 * @param row one of its rows
+	 * @return the row's key, to fetch the rows after it
+	 */
+	Object[] keyOf(TupleTable rows, int row);
+
+}
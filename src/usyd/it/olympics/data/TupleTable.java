@@ -0,0 +1,108 @@
+package usyd.it.olympics.data;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Compact storage for a multi-row result. Rather than a HashMap per tuple,
+ * every row is a plain array of values in the order of the table's schema,
+ * and attribute names are resolved to positions once through the schema.
+ * Readers that know a column's position (e.g. table models) can fetch cells
+ * directly by index.
+ *
+ * A table should be treated as read-only once it has been handed out, which
+ * lets caches share the same table between callers.
+ */
+public class TupleTable {
+	private final TupleConverter schema;
+	private final ArrayList<Object[]> rows;
+
+	public TupleTable(TupleConverter schema) {
+		this(schema, 16);
+	}
+
+	public TupleTable(TupleConverter schema, int expectedRows) {
+		this.schema = schema;
+		rows = new ArrayList<Object[]>(expectedRows);
+	}
+
+	public TupleConverter getSchema() {
+		return schema;
+	}
+
+	/**
+	 * @return position of the attribute within each row, or -1 if absent
+	 */
+	public int getColumnIndex(String attribute) {
+		return schema.getAttributeIndex(attribute);
+	}
+
+	public int getColumnCount() {
+		return schema.getAttributeNames().length;
+	}
+
+	public int size() {
+		return rows.size();
+	}
+
+	public boolean isEmpty() {
+		return rows.isEmpty();
+	}
+
+	/**
+	 * Append a row
+	 * @param row values in schema order; the array is kept, not copied
+	 */
+	public void add(Object[] row) {
+		if (row.length != getColumnCount())
+			throw new IllegalArgumentException("Row has " + row.length + " values but schema has " + getColumnCount());
+		rows.add(row);
+	}
+
+	/**
+	 * Append all rows of another table with the same schema
+	 */
+	public void addAll(TupleTable other) {
+		rows.addAll(other.rows);
+	}
+
+	public Object get(int row, int column) {
+		return rows.get(row)[column];
+	}
+
+	/**
+	 * @return value of the attribute in the row, or null if the schema has no such attribute
+	 */
+	public Object get(int row, String attribute) {
+		int column = getColumnIndex(attribute);
+		return column<0 ? null : rows.get(row)[column];
+	}
+
+	/**
+	 * @return the values of a row in schema order. Don't modify.
+	 */
+	public Object[] getRow(int row) {
+		return rows.get(row);
+	}
+
+	/**
+	 * @return the row as a new HashMap, for code that works with single tuples
+	 */
+	public HashMap<String, Object> getTuple(int row) {
+		String[] names = schema.getAttributeNames();
+		Object[] values = rows.get(row);
+		HashMap<String, Object> tuple = new HashMap<String, Object>();
+		for (int i=0; i<names.length; ++i)
+			tuple.put(names[i], values[i]);
+		return tuple;
+	}
+
+	/**
+	 * @return a new table holding rows [from, to) of this one
+	 */
+	public TupleTable subTable(int from, int to) {
+		TupleTable sub = new TupleTable(schema, Math.max(0, to - from));
+		sub.rows.addAll(rows.subList(from, to));
+		return sub;
+	}
+}
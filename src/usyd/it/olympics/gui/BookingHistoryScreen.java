@@ -6,28 +6,44 @@ import java.awt.Component;
  */
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
-import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.concurrent.Executor;
 
 import javax.swing.BoxLayout;
 import javax.swing.JButton;
+import javax.swing.JComboBox;
+import javax.swing.JLabel;
+import javax.swing.JPanel;
 import javax.swing.JScrollPane;
 import javax.swing.JTable;
 import javax.swing.ListSelectionModel;
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
 import javax.swing.event.ListSelectionEvent;
 import javax.swing.event.ListSelectionListener;
 
 import usyd.it.olympics.OlympicsDBClient;
 import usyd.it.olympics.data.BookingDetails;
 import usyd.it.olympics.data.GeneralTupleConverter;
+import usyd.it.olympics.data.TuplePageSource;
 
 public class BookingHistoryScreen extends GuiScreen {
 	protected final GeneralTupleConverter bookConv = new BookingDetails();
-    private final HashMapTupleTabelModel bookingList = new HashMapTupleTabelModel(
+    // Histories can be long, so rows are fetched a page at a time, on asking,
+    // and only about a thousand are kept in memory however many are loaded
+    private final WindowedTupleTableModel bookingList = new WindowedTupleTableModel(
     		bookConv, 
     		new String[] { "vehicle_code","origin_name", "dest_name", "when_departs","when_arrives"},
-    		new String[] { "Vehicle", "Origin","Destination","Departs","Arrives"});
+    		new String[] { "Vehicle", "Origin","Destination","Departs","Arrives"},
+    		1000);
+    private static final Integer[] PAGE_SIZES = { OlympicsDBClient.HISTORY_PAGE_SIZE, 50, 100, 500 };
+    private final JComboBox<Integer> pageSize = new JComboBox<Integer>(PAGE_SIZES);
+    private final JButton btnLoadMore;
+    private final JLabel lblLoaded = new JLabel();
+    /// Where the bookings shown come from, to start again at a new page size
+    private TuplePageSource bookings;
+    private Executor executor;
     private final JButton btnGetDetails;
     private final ListSelectionModel selectionModel;
 	
@@ -41,6 +57,36 @@ public class BookingHistoryScreen extends GuiScreen {
         JScrollPane scrollPane = new JScrollPane();
         scrollPane.setViewportView(bookingsTable);
         panel_.add(scrollPane);
+
+        JPanel paging = new JPanel();
+        paging.add(new JLabel("Page size"));
+        paging.add(pageSize);
+        btnLoadMore = new JButton("Load more");
+        btnLoadMore.setEnabled(false);
+        paging.add(btnLoadMore);
+        paging.add(lblLoaded);
+        panel_.add(paging);
+        btnLoadMore.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent arg0) {
+                bookingList.loadMore();
+            }
+        });
+        pageSize.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent arg0) {
+                // Pages are fetched whole, so start again at the new size
+                if (bookings != null)
+                    bookingList.setSource(bookings, getPageSize(), executor);
+            }
+        });
+        bookingList.addChangeListener(new ChangeListener() {
+            @Override
+            public void stateChanged(ChangeEvent e) {
+                btnLoadMore.setEnabled(bookingList.hasMore() && !bookingList.isLoadingMore());
+                lblLoaded.setText(bookingList.getRowCount() + (bookingList.hasMore() ? " shown, more to load" : " shown"));
+            }
+        });
         
         bookingsTable.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
         selectionModel = bookingsTable.getSelectionModel();
@@ -54,8 +100,9 @@ public class BookingHistoryScreen extends GuiScreen {
             @Override
             public void actionPerformed(ActionEvent arg0) {
                 int index = selectionModel.getMinSelectionIndex();
-                if (index>=0)
-						client_.showBookingDetails(bookConv.getInt("journey_id", bookingList.getTuple(index)));
+                HashMap<String, Object> booking = index>=0 ? bookingList.getTuple(index) : null;
+                if (booking!=null)
+						client_.showBookingDetails(bookConv.getInt("journey_id", booking));
                 }
         }); 
         
@@ -68,13 +115,26 @@ public class BookingHistoryScreen extends GuiScreen {
 
     }
 
-    public void showBookings(ArrayList<HashMap<String, Object>> bookings) {
-            if(bookings == null) { // Prevent nullpointer exceptions
-                    bookingList.update(new ArrayList<HashMap<String, Object>>());
-                    btnGetDetails.setEnabled(false);
-            } else {
-                    bookingList.update(bookings);
-            }
+    /**
+     * @return number of bookings to fetch at a time
+     */
+    public int getPageSize() {
+        return (Integer) pageSize.getSelectedItem();
+    }
+
+    /**
+     * Show a member's bookings, fetching the first page now and the others
+     * when asked for
+     * @param source source of booking tuples, or null to show none
+     * @param fetchExecutor where to run fetches
+     */
+    public void showBookings(TuplePageSource source, Executor fetchExecutor) {
+        bookings = source;
+        executor = fetchExecutor;
+        if (source == null) { // Prevent nullpointer exceptions
+            btnGetDetails.setEnabled(false);
+        }
+        bookingList.setSource(source, getPageSize(), fetchExecutor);
     }
 	
 }
@@ -4,13 +4,17 @@ import java.awt.Component;
 import java.awt.GridLayout;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
+import java.util.List;
 
 import javax.swing.Box;
 import javax.swing.JButton;
 import javax.swing.JLabel;
+import javax.swing.JScrollPane;
 import javax.swing.JSpinner;
+import javax.swing.JTextArea;
 import javax.swing.JTextField;
 import javax.swing.SpinnerDateModel;
 
@@ -20,6 +24,7 @@ public class BookingsCreationScreen extends GuiScreen {
     private SpinnerDateModel startDates = new SpinnerDateModel(new Date(), null, null, Calendar.HOUR_OF_DAY);
 	private JTextField txtMemberName;
 	private JTextField txtVehicleCode;
+	private JTextArea txtTeamNames;
 
     public BookingsCreationScreen(OlympicsDBClient r) {
         super(r);
@@ -52,6 +57,22 @@ public class BookingsCreationScreen extends GuiScreen {
             }
         });
         panel_.add(btnSubmitBooking);
+
+        JLabel lblTeam = new JLabel("Team (one member per line):");
+        panel_.add(lblTeam);
+        txtTeamNames = new JTextArea();
+        panel_.add(new JScrollPane(txtTeamNames));
+
+        Component horizontalGlue2 = Box.createHorizontalGlue();
+        panel_.add(horizontalGlue2);
+
+        JButton btnSubmitTeamBooking = new JButton("Submit Team Booking");
+        btnSubmitTeamBooking.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent arg0) {
+                client_.makeBookings(getTeam(), getVehicle(), getDepartTime());
+            }
+        });
+        panel_.add(btnSubmitTeamBooking);
     }
 
     private String getVehicle() {
@@ -62,6 +83,14 @@ public class BookingsCreationScreen extends GuiScreen {
     private String getMember() {
         return txtMemberName.getText();
     }
+
+    private List<String> getTeam() {
+        List<String> team = new ArrayList<String>();
+        for (String line : txtTeamNames.getText().split("\n")) {
+            if (!line.trim().isEmpty()) team.add(line.trim());
+        }
+        return team;
+    }
     
 	/**
 	 * @return
@@ -6,8 +6,6 @@ import java.awt.Dimension;
 import java.awt.FlowLayout;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
-import java.util.ArrayList;
-import java.util.Date;
 import java.util.HashMap;
 
 import javax.swing.*;
@@ -17,18 +15,19 @@ import javax.swing.event.ListSelectionEvent;
 import javax.swing.event.ListSelectionListener;
 
 import usyd.it.olympics.OlympicsDBClient;
+import usyd.it.olympics.data.EventDetails;
 import usyd.it.olympics.data.GeneralTupleConverter;
+import usyd.it.olympics.data.TupleTable;
 
 /*
  * Derived from JourneyFinderScreen
  */
 public class EventBrowserScreen extends GuiScreen {
-	protected final GeneralTupleConverter eventConv = new GeneralTupleConverter(
-			new String[] { "event_id", "sport_id", "event_name", "event_gender", "sport_venue", "event_start"},
-			new Class<?>[] { Integer.class, Integer.class, String.class, String.class, String.class, Date.class});
+	protected final GeneralTupleConverter eventConv = new EventDetails();
 	private final HashMapTupleTabelModel list = new HashMapTupleTabelModel(eventConv,
 		new String[] { "event_name", "event_gender", "sport_venue", "event_start"},
-		new String[] { "Event", "Gender","Venue","Starts"});
+		new String[] { "Event", "Gender","Venue","Starts"},
+		new String[] { "event_id"});
 	private final ListSelectionModel listSelection;
 	private final JComboBox<HashMap<String, Object>> sportChooser;
 
@@ -66,6 +65,7 @@ public class EventBrowserScreen extends GuiScreen {
 		JTable listTable = new JTable();
 		listTable.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
 		listTable.setModel(list);
+		list.sortOnHeaderClick(listTable);
 		listSelection = listTable.getSelectionModel();
 		listScrollPane.setViewportView(listTable);
 
@@ -123,13 +123,16 @@ public class EventBrowserScreen extends GuiScreen {
 		});
 	}
 
-	public void showTuples(ArrayList<HashMap<String, Object>> newTuples) {
+	public void showTuples(TupleTable newTuples) {
 		list.update(newTuples);
 	}
 
 	@SuppressWarnings("unchecked")
-	public void setSports(ArrayList<HashMap<String, Object>> sports) {
-		sportChooser.setModel(new DefaultComboBoxModel<HashMap<String, Object>>(sports.toArray(new HashMap[sports.size()])));
+	public void setSports(TupleTable sports) {
+		HashMap<String, Object>[] items = new HashMap[sports.size()];
+		for (int i=0; i<items.length; ++i)
+			items[i] = sports.getTuple(i);
+		sportChooser.setModel(new DefaultComboBoxModel<HashMap<String, Object>>(items));
 	}
 
 	private class EventTupleRenderer extends JLabel implements ListCellRenderer<HashMap<String, Object>> {
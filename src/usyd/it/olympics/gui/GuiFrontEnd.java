@@ -2,8 +2,8 @@ package usyd.it.olympics.gui;
 
 import java.awt.BorderLayout;
 import java.awt.CardLayout;
+import java.awt.Cursor;
 import java.awt.Dimension;
-import java.awt.GridLayout;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.util.HashMap;
@@ -11,6 +11,7 @@ import javax.swing.JButton;
 import javax.swing.JFrame;
 import javax.swing.JLabel;
 import javax.swing.JPanel;
+import javax.swing.JProgressBar;
 import javax.swing.border.BevelBorder;
 import javax.swing.border.EtchedBorder;
 import usyd.it.olympics.OlympicsDBClient;
@@ -33,6 +34,7 @@ public final class GuiFrontEnd {
     private final JPanel mainPanel;
     private final CardLayout screenSelect;
     private final JLabel statusMsg;
+    private final JProgressBar loadingBar;
     
     //
     // References to individual mainPanel screens
@@ -45,6 +47,7 @@ public final class GuiFrontEnd {
     private final BookingHistoryScreen historyScreen;
 	private final EventBrowserScreen eventBrowserScreen;    
 	private final EventResultsScreen eventResultsScreen; 
+	private final LeaderboardScreen leaderboardScreen;
 	
     // Navigation buttons
     private final JPanel navBar;
@@ -57,6 +60,7 @@ public final class GuiFrontEnd {
     private final String optLogOut = "Log Out";
 	private final String optBrowseEvents = "Browse Events";
 	private final String optMakeBooking = "Make Booking";
+	private final String optMedalTable = "Medal Table";
 
     public GuiFrontEnd(OlympicsDBClient root) {
         client = root;
@@ -103,6 +107,13 @@ public final class GuiFrontEnd {
             }
         });
         
+        addMenuOption(optMedalTable, new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent arg0) {
+                client.showLeaderboard();
+            }
+        });
+        
         // TODO: make conditional on member type
         addMenuOption(optMakeBooking, new ActionListener() {
             @Override
@@ -127,8 +138,12 @@ public final class GuiFrontEnd {
         statusMsg = new JLabel("Status");
         statusPanel.setMinimumSize(new Dimension(100, 40));
         statusPanel.setPreferredSize(new Dimension(100, 40));
-        statusPanel.setLayout(new GridLayout(1, 1, 0, 0));
-        statusPanel.add(statusMsg);
+        statusPanel.setLayout(new BorderLayout(5, 0));
+        statusPanel.add(statusMsg, BorderLayout.CENTER);
+        loadingBar = new JProgressBar();
+        loadingBar.setIndeterminate(true);
+        loadingBar.setVisible(false);
+        statusPanel.add(loadingBar, BorderLayout.EAST);
         content.add(statusPanel, BorderLayout.SOUTH);
 
         // All main interface stuff goes into a central panel
@@ -145,6 +160,7 @@ public final class GuiFrontEnd {
         registerScreen(bookingsCreationScreen = new BookingsCreationScreen(root), "bookingsCreationScreen");
         registerScreen(eventBrowserScreen = new EventBrowserScreen(root), "eventBrowserScreen");
         registerScreen(eventResultsScreen = new EventResultsScreen(root), "eventResultsScreen");
+        registerScreen(leaderboardScreen = new LeaderboardScreen(root), "leaderboardScreen");
         
         content.add(mainPanel, BorderLayout.CENTER);
         window.setContentPane(content);
@@ -204,6 +220,12 @@ public final class GuiFrontEnd {
         setNavButtons(true);
 	}
     
+    public void showLeaderboardScreen() {
+        screenSelect.show(mainPanel, "leaderboardScreen");
+        setNavButtons(true);
+        setNavButton(optMedalTable, false);
+    }
+    
     /*
      *  Display message in status bar
      */
@@ -211,6 +233,14 @@ public final class GuiFrontEnd {
         statusMsg.setText(msg);
     }
 
+    /*
+     *  Show or hide the loading indicator while waiting on the database
+     */
+    public void setLoading(boolean loading) {
+        loadingBar.setVisible(loading);
+        window.setCursor(loading ? Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR) : Cursor.getDefaultCursor());
+    }
+
     //
     // Getters to each of the GuiScreen objects, so that the OlympicsDBClient 
     // controller class can invoke their specific methods. This isn't very DRY
@@ -249,6 +279,10 @@ public final class GuiFrontEnd {
 		return eventResultsScreen;
 	}
     
+    public LeaderboardScreen getLeaderboardScreen() {
+        return leaderboardScreen;
+    }
+    
     
     //
     // Private utility methods
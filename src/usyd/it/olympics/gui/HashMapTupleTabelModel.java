@@ -1,16 +1,73 @@
 package usyd.it.olympics.gui;
 
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
 
+import javax.swing.JTable;
+import javax.swing.SwingWorker;
 import javax.swing.table.AbstractTableModel;
+import javax.swing.table.JTableHeader;
+import javax.swing.table.TableColumnModel;
 
 import usyd.it.olympics.data.TupleConverter;
+import usyd.it.olympics.data.TupleTable;
 
 
+/**
+ * Table model showing chosen attributes of a TupleTable.
+ *
+ * Given key attributes that identify a row (e.g. journey_id), update() works
+ * out which rows were deleted, inserted or changed since the last update and
+ * fires an event for each run of them, so the JTable only repaints what
+ * changed and keeps its selection. Without a key, or when the key isn't
+ * unique, every update replaces the whole table.
+ *
+ * Rows can be sorted on a column (see sortOnHeaderClick) and filtered to
+ * those containing some text. Both work from a RowIndex of sort keys and
+ * text made once per update, and the rows shown go through the same diff.
+ * Filtering runs off the event dispatch thread, both for a new filter and
+ * for the rows of an update, and a filter that narrows the last one only
+ * looks at the rows that last one let through. Row numbers given to and
+ * returned by the model are those shown.
+ */
 @SuppressWarnings("serial")
 class HashMapTupleTabelModel extends AbstractTableModel {
-	private ArrayList<HashMap<String, Object>> tuples;
+	/// More runs of deleted or inserted rows than this and the whole table is replaced
+	private static final int MAX_ROW_EVENTS = 64;
+
+	private TupleTable tuples;
+	/// Rows as currently shown: those of tuples that pass the filter, in sorted order
+	private final ArrayList<Object[]> rows = new ArrayList<Object[]>();
+	/// Attributes identifying a row across updates, or null to always replace the table
+	private final String[] keyAttributes;
+	/// Position of each key attribute in the rows, for the current schema
+	private int[] keyMap;
+	/// Position in each row of the tuples of the attribute shown in each column
+	private int[] columnMap;
+
+	/// Sort keys and filter text of tuples
+	private RowIndex index;
+	/// Column sorted on, or -1 to keep the order of tuples
+	private int sortColumn = -1;
+	private boolean sortDescending;
+	/// Positions in tuples in sorted order, or null when not sorted
+	private int[] order;
+	/// Filter text last asked for, in lower case; "" for none
+	private String filter = "";
+	/// Filter that matches was worked out for, and the rows of tuples it lets through (null for all)
+	private String matchedFilter = "";
+	private boolean[] matches;
+	/// Filter being worked out in the background, if any
+	private SwingWorker<boolean[], Void> filtering;
+	/// Changed by each update, so filtering for an older one is thrown away
+	private int generation;
 
 	private final String [] columnNames;
 	private final Class<?>[] columnClasses;
@@ -38,7 +95,19 @@ class HashMapTupleTabelModel extends AbstractTableModel {
 	 * @param headings what to call the displayed tuples
 	 */
 	public HashMapTupleTabelModel(TupleConverter tupleConverter, String[] columns, String[] headings) {
+		this(tupleConverter, columns, headings, null);
+	}
+
+	/*
+	 * Construct new table model whose rows are matched up between updates by key
+	 * @param tupleConverter object to handle mappings of objects stored in HashMaps
+	 * @param columns which attributes to include from the tuple in the table
+	 * @param headings what to call the displayed tuples
+	 * @param keys attributes that together identify a row, or null for none
+	 */
+	public HashMapTupleTabelModel(TupleConverter tupleConverter, String[] columns, String[] headings, String[] keys) {
 		shim = tupleConverter;
+		keyAttributes = keys;
 		if (columns==null) {
 			attributeNames = shim.getAttributeNames();
 			// FIXME: should check that arrays are the same lengths.
@@ -51,7 +120,10 @@ class HashMapTupleTabelModel extends AbstractTableModel {
 			columnClasses = projectClasses(columns, shim.getAttributeNames(), shim.getColumnClasses());
 			columnNames = headings==null? shim.getAttributeNames() : headings;    		
 		}
-		tuples = new ArrayList<HashMap<String, Object>>();
+		tuples = new TupleTable(shim);
+		columnMap = mapColumns(tuples);
+		keyMap = mapKeys(tuples);
+		index = new RowIndex(tuples, columnMap, columnClasses);
 	}
 
 	/**
@@ -61,7 +133,7 @@ class HashMapTupleTabelModel extends AbstractTableModel {
 	 * @param srcClasses source attribute classes
 	 * @return array of classes corresponding to the attributes in columns
 	 */
-	private static Class<?>[] projectClasses(String[] projection, String[] attributes, Class<?>[] attributeClasses) {
+	static Class<?>[] projectClasses(String[] projection, String[] attributes, Class<?>[] attributeClasses) {
 		HashMap<String,Integer> attributeIndex = new HashMap<String,Integer>();
 		for(int i=0; i<attributes.length; ++i)
 			attributeIndex.put(attributes[i], i);
@@ -72,17 +144,334 @@ class HashMapTupleTabelModel extends AbstractTableModel {
 		return classes;
 	}
 
+	/**
+	 * Work out where each displayed attribute is held in the rows of a table
+	 * @param table result to be displayed
+	 * @return row index for each column, -1 where the table lacks the attribute
+	 */
+	private int[] mapColumns(TupleTable table) {
+		int[] map = new int[attributeNames.length];
+		for(int i=0; i<attributeNames.length; ++i)
+			map[i] = table.getColumnIndex(attributeNames[i]);
+		return map;
+	}
+
+	/**
+	 * @return position of each key attribute in the rows of the table, or
+	 * null if there are no keys or the table lacks one of them
+	 */
+	private int[] mapKeys(TupleTable table) {
+		if (keyAttributes==null)
+			return null;
+		int[] map = new int[keyAttributes.length];
+		for(int i=0; i<keyAttributes.length; ++i) {
+			map[i] = table.getColumnIndex(keyAttributes[i]);
+			if (map[i]<0)
+				return null;
+		}
+		return map;
+	}
+
+	private Object key(Object[] row) {
+		if (keyMap.length==1)
+			return row[keyMap[0]];
+		Object[] key = new Object[keyMap.length];
+		for(int i=0; i<keyMap.length; ++i)
+			key[i] = row[keyMap[i]];
+		return Arrays.asList(key);
+	}
+
 	/**
 	 * Update the table with newly supplied data
-	 * @param newCars New list of cars
+	 * @param newtuples New result to display, or null for none
 	 */
-	public void update(ArrayList<HashMap<String, Object>> newtuples) {
-		tuples = newtuples;
+	public void update(TupleTable newtuples) {
+		TupleTable next = newtuples==null ? new TupleTable(shim) : newtuples;
+		boolean sameSchema = next.getSchema()==tuples.getSchema();
+		tuples = next;
+		if (!sameSchema) {
+			columnMap = mapColumns(tuples);
+			keyMap = mapKeys(tuples);
+		}
+		index = new RowIndex(tuples, columnMap, columnClasses);
+		++generation;
+		cancelFiltering();
+		order = sortColumn<0 ? null : index.sorted(sortColumn, sortDescending);
+		matchedFilter = "";
+		matches = null;
+		if (filter.isEmpty()) {
+			show(sameSchema);
+		} else {
+			// Filtered in the background, as by setFilter. Until then the rows
+			// shown stay as they were, unless they no longer fit the columns
+			if (!sameSchema)
+				show(false);
+			startFiltering(filter, null);
+		}
+	}
+
+	/**
+	 * Sort on a column, or stop sorting
+	 * @param column column to sort on, or -1 to show rows in the order given
+	 * @param descending largest first if true
+	 */
+	public void sortBy(int column, boolean descending) {
+		sortColumn = column>=0 && column<columnNames.length ? column : -1;
+		sortDescending = descending;
+		order = sortColumn<0 ? null : index.sorted(sortColumn, sortDescending);
+		// Nearly every row moves, so there's nothing to gain from a diff
+		show(false);
+	}
+
+	/**
+	 * Sort on a column on clicking its header: ascending, then descending,
+	 * then back to the order given. The header shows which way it's sorted.
+	 * @param table table showing this model
+	 */
+	public void sortOnHeaderClick(final JTable table) {
+		final JTableHeader header = table.getTableHeader();
+		header.addMouseListener(new MouseAdapter() {
+			@Override
+			public void mouseClicked(MouseEvent e) {
+				int viewColumn = header.columnAtPoint(e.getPoint());
+				if (viewColumn<0)
+					return;
+				int column = table.convertColumnIndexToModel(viewColumn);
+				if (column!=sortColumn)
+					sortBy(column, false);
+				else if (!sortDescending)
+					sortBy(column, true);
+				else
+					sortBy(-1, false);
+				TableColumnModel columns = table.getColumnModel();
+				for(int i=0; i<columns.getColumnCount(); ++i)
+					columns.getColumn(i).setHeaderValue(getColumnName(columns.getColumn(i).getModelIndex()));
+				header.repaint();
+			}
+		});
+	}
+
+	/**
+	 * Show only the rows containing some text in one of their text or
+	 * number columns, ignoring case. The rows are picked out in the
+	 * background and shown when ready.
+	 * @param text text to look for; empty or null to show every row
+	 */
+	public void setFilter(String text) {
+		final String needle = text==null ? "" : text.trim().toLowerCase(Locale.ROOT);
+		if (needle.equals(filter))
+			return;
+		filter = needle;
+		cancelFiltering();
+		if (needle.isEmpty()) {
+			matchedFilter = needle;
+			matches = null;
+			show(true);
+			return;
+		}
+		// Narrowing the last filter: only what it let through can match
+		startFiltering(needle, needle.contains(matchedFilter) ? matches : null);
+	}
+
+	/**
+	 * Pick out the rows matching a filter in the background, and show them
+	 * when found unless the rows or the filter have changed meanwhile
+	 * @param needle filter text, in lower case
+	 * @param previous rows matching a filter that needle contains, or null
+	 */
+	private void startFiltering(final String needle, final boolean[] previous) {
+		final RowIndex rowIndex = index;
+		final int startedFor = generation;
+		filtering = new SwingWorker<boolean[], Void>() {
+			@Override
+			protected boolean[] doInBackground() {
+				return rowIndex.matching(needle, previous);
+			}
+
+			@Override
+			protected void done() {
+				if (isCancelled() || startedFor!=generation || filtering!=this)
+					return;
+				filtering = null;
+				try {
+					boolean[] found = get();
+					if (found!=null) {
+						matchedFilter = needle;
+						matches = found;
+						show(true);
+					}
+				} catch (CancellationException e) {
+					// Superseded
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				} catch (ExecutionException e) {
+					throw new RuntimeException(e.getCause());
+				}
+			}
+		};
+		filtering.execute();
+	}
+
+	private void cancelFiltering() {
+		if (filtering!=null) {
+			filtering.cancel(true);
+			filtering = null;
+		}
+	}
+
+	/**
+	 * Show the rows of tuples that pass the filter, in sorted order
+	 * @param diff whether to fire events for just the rows that changed,
+	 * if the rows can be matched up by key
+	 */
+	private void show(boolean diff) {
+		int n = index.size();
+		ArrayList<Object[]> shown = new ArrayList<Object[]>(matches==null ? n : 16);
+		for(int k=0; k<n; ++k) {
+			int i = order==null ? k : order[k];
+			if (matches==null || matches[i])
+				shown.add(tuples.getRow(i));
+		}
+		if (diff && keyMap!=null && applyDiff(shown))
+			return;
+		rows.clear();
+		rows.addAll(shown);
 		super.fireTableDataChanged();
 	}
 
+	/**
+	 * Turn the rows shown into the next ones step by step, firing an
+	 * event for each run of rows deleted, inserted or changed. Rows that keep
+	 * their order stay where they are; others are deleted and inserted again
+	 * at their new place.
+	 * @return false, having changed nothing, if the rows can't be matched up
+	 * by key or differ too much to be worth it
+	 */
+	private boolean applyDiff(List<Object[]> next) {
+		int n = next.size();
+		int m = rows.size();
+		HashMap<Object, Integer> nextIndex = new HashMap<Object, Integer>(n * 2);
+		for(int i=0; i<n; ++i)
+			if (nextIndex.put(key(next.get(i)), i)!=null)
+				return false;
+		// Where each row shown is in the next table, -1 if it is gone
+		int[] target = new int[m];
+		boolean[] matched = new boolean[n];
+		for(int j=0; j<m; ++j) {
+			Integer i = nextIndex.get(key(rows.get(j)));
+			target[j] = i==null ? -1 : i;
+			if (i!=null) {
+				if (matched[i])
+					return false;
+				matched[i] = true;
+			}
+		}
+		boolean[] stays = longestIncreasing(target);
+		boolean[] present = new boolean[n];
+		for(int j=0; j<m; ++j)
+			if (stays[j])
+				present[target[j]] = true;
+		if (runs(stays, false) + runs(present, false) > MAX_ROW_EVENTS)
+			return false;
+
+		// Deletions from the end, so earlier row numbers still hold
+		int j = m - 1;
+		while (j>=0) {
+			if (stays[j]) {
+				--j;
+				continue;
+			}
+			int last = j;
+			while (j>=0 && !stays[j])
+				--j;
+			rows.subList(j + 1, last + 1).clear();
+			fireTableRowsDeleted(j + 1, last);
+		}
+		// What is left is in the next table's order, so insert what's missing in order
+		int i = 0;
+		while (i<n) {
+			if (present[i]) {
+				++i;
+				continue;
+			}
+			int first = i;
+			ArrayList<Object[]> inserted = new ArrayList<Object[]>();
+			while (i<n && !present[i])
+				inserted.add(next.get(i++));
+			rows.addAll(first, inserted);
+			fireTableRowsInserted(first, i - 1);
+		}
+		// Rows kept in place that changed
+		i = 0;
+		while (i<n) {
+			Object[] row = next.get(i);
+			Object[] shown = rows.get(i);
+			rows.set(i, row);
+			if (!present[i] || shown==row || Arrays.equals(shown, row)) {
+				++i;
+				continue;
+			}
+			int first = i++;
+			while (i<n && present[i] && !Arrays.equals(rows.get(i), next.get(i))) {
+				rows.set(i, next.get(i));
+				++i;
+			}
+			fireTableRowsUpdated(first, i - 1);
+		}
+		return true;
+	}
+
+	/**
+	 * @return number of runs of the given value in the flags
+	 */
+	private static int runs(boolean[] flags, boolean value) {
+		int runs = 0;
+		for(int i=0; i<flags.length; ++i)
+			if (flags[i]==value && (i==0 || flags[i-1]!=value))
+				++runs;
+		return runs;
+	}
+
+	/**
+	 * Pick out a longest increasing run of targets (ignoring -1s), in
+	 * O(m log m): these rows can stay put while the others move around them
+	 * @return whether each position is in it
+	 */
+	private static boolean[] longestIncreasing(int[] target) {
+		int m = target.length;
+		// tails[k]: position ending the best increasing run of length k+1 found so far
+		int[] tails = new int[m];
+		int[] previous = new int[m];
+		int length = 0;
+		for(int j=0; j<m; ++j) {
+			if (target[j]<0)
+				continue;
+			int lo = 0, hi = length;
+			while (lo<hi) {
+				int mid = (lo + hi) >>> 1;
+				if (target[tails[mid]]<target[j])
+					lo = mid + 1;
+				else
+					hi = mid;
+			}
+			previous[j] = lo>0 ? tails[lo-1] : -1;
+			tails[lo] = j;
+			if (lo==length)
+				++length;
+		}
+		boolean[] in = new boolean[m];
+		for(int j = length>0 ? tails[length-1] : -1; j>=0; j = previous[j])
+			in[j] = true;
+		return in;
+	}
+
 	public HashMap<String, Object> getTuple(int row) {
-		return tuples.get(row);
+		String[] names = tuples.getSchema().getAttributeNames();
+		Object[] values = rows.get(row);
+		HashMap<String, Object> tuple = new HashMap<String, Object>();
+		for (int i=0; i<names.length; ++i)
+			tuple.put(names[i], values[i]);
+		return tuple;
 	}
 
 	/*
@@ -90,7 +479,9 @@ class HashMapTupleTabelModel extends AbstractTableModel {
 	 */
 	@Override
 	public String getColumnName(int col) {
-		return columnNames[col];
+		if (col!=sortColumn)
+			return columnNames[col];
+		return columnNames[col] + (sortDescending ? " \u25BC" : " \u25B2");
 	}
 
 	@Override
@@ -100,15 +491,13 @@ class HashMapTupleTabelModel extends AbstractTableModel {
 
 	@Override
 	public int getRowCount() {
-		return tuples.size();
+		return rows.size();
 	}
 
 	@Override
 	public Object getValueAt(int row, int col) {
-		Object o=null;
-		HashMap<String, Object> tuple = tuples.get(row);
-		o = tuple!=null && col>=0 && col<columnNames.length ? tuple.get(attributeNames[col]) : null;
-		return o;
+		int index = col>=0 && col<columnMap.length ? columnMap[col] : -1;
+		return index<0 ? null : rows.get(row)[index];
 	}
 
 }
\ No newline at end of file
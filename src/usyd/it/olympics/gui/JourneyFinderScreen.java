@@ -4,13 +4,12 @@ import java.awt.Dimension;
 import java.awt.FlowLayout;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
-import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
-import java.util.HashMap;
 
 import javax.swing.BoxLayout;
 import javax.swing.JButton;
+import javax.swing.JCheckBox;
 import javax.swing.JLabel;
 import javax.swing.JPanel;
 import javax.swing.JScrollPane;
@@ -19,24 +18,42 @@ import javax.swing.JTable;
 import javax.swing.JTextField;
 import javax.swing.ListSelectionModel;
 import javax.swing.SpinnerDateModel;
+import javax.swing.Timer;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
 import javax.swing.event.ListSelectionEvent;
 import javax.swing.event.ListSelectionListener;
 
 import usyd.it.olympics.OlympicsDBClient;
 import usyd.it.olympics.data.GeneralTupleConverter;
+import usyd.it.olympics.data.Itinerary;
+import usyd.it.olympics.data.JourneySummary;
+import usyd.it.olympics.data.TupleTable;
 
 public class JourneyFinderScreen extends GuiScreen {
-	protected final GeneralTupleConverter conv = new GeneralTupleConverter(
-			new String[] {"journey_id", "vehicle_code", "origin_name", "dest_name", "when_departs", "when_arrives", "available_seats"},
-			new Class<?>[] {Integer.class, String.class, String.class, String.class, Date.class, Date.class, Integer.class});
+	protected final GeneralTupleConverter conv = new JourneySummary();
 	private final HashMapTupleTabelModel list = new HashMapTupleTabelModel(conv,
 			new String[] {"origin_name", "dest_name", "when_departs", "when_arrives", "available_seats"},
-			new String[] {"Origin", "Destination", "Leaving", "Arriving", "Availability"}
+			new String[] {"Origin", "Destination", "Leaving", "Arriving", "Availability"},
+			new String[] {"journey_id"}
 			);
+	protected final GeneralTupleConverter routeConv = new Itinerary();
+	private final HashMapTupleTabelModel routes = new HashMapTupleTabelModel(routeConv,
+			new String[] {"option", "legs", "when_departs", "when_arrives", "route", "available_seats"},
+			new String[] {"Option", "Legs", "Leaving", "Arriving", "Route", "Availability"},
+			new String[] {"journey_id", "route"}
+			);
+	private final ListSelectionModel routeSelection;
 	private final ListSelectionModel listSelection;
 	private final JTextField txtFrom;
 	private final JTextField txtDest;
 	private final SpinnerDateModel startDates = new SpinnerDateModel(new Date(1305554400000L), null, null, Calendar.DAY_OF_WEEK_IN_MONTH);
+	/// How often availability is fetched again while auto-refresh is on
+	private static final int AUTO_REFRESH_MS = 10000;
+	/// Last search made, repeated by auto-refresh; null before the first
+	private String searchFrom;
+	private String searchDest;
+	private Date searchDate;
 
 	public JourneyFinderScreen(OlympicsDBClient r) {
 		super(r);
@@ -73,11 +90,63 @@ public class JourneyFinderScreen extends GuiScreen {
 		JButton btnUpdate = new JButton("Search");
 		btnUpdate.addActionListener(new ActionListener() {
 			public void actionPerformed(ActionEvent arg0) {
-				client_.showMatchingJourneys(txtFrom.getText(),txtDest.getText(),(Date)startDates.getValue());
+				searchFrom = txtFrom.getText();
+				searchDest = txtDest.getText();
+				searchDate = (Date)startDates.getValue();
+				client_.showMatchingJourneys(searchFrom, searchDest, searchDate);
 			}
 		});
 		choicePanel.add(btnUpdate);
 
+		// Fetch the last search again now and then, while this screen is showing.
+		// Only rows whose seats changed are repainted, and the selection stays.
+		final JCheckBox chkAutoRefresh = new JCheckBox("Auto-refresh");
+		final Timer refreshTimer = new Timer(AUTO_REFRESH_MS, new ActionListener() {
+			public void actionPerformed(ActionEvent arg0) {
+				if (searchFrom != null && panel_.isShowing()) {
+					client_.refreshMatchingJourneys(searchFrom, searchDest, searchDate);
+				}
+			}
+		});
+		chkAutoRefresh.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent arg0) {
+				if (chkAutoRefresh.isSelected()) refreshTimer.start();
+				else refreshTimer.stop();
+			}
+		});
+		choicePanel.add(chkAutoRefresh);
+
+		// Narrow the journeys listed as the user types
+		JPanel filterPanel = new JPanel();
+		filterPanel.setMaximumSize(new Dimension(32767, 23));
+		filterPanel.setLayout(new FlowLayout(FlowLayout.CENTER, 5, 5));
+		panel_.add(filterPanel);
+		filterPanel.add(new JLabel("Filter"));
+		final JTextField txtFilter = new JTextField();
+		txtFilter.setColumns(20);
+		txtFilter.getDocument().addDocumentListener(new DocumentListener() {
+			public void insertUpdate(DocumentEvent e) {
+				list.setFilter(txtFilter.getText());
+			}
+
+			public void removeUpdate(DocumentEvent e) {
+				list.setFilter(txtFilter.getText());
+			}
+
+			public void changedUpdate(DocumentEvent e) {
+				list.setFilter(txtFilter.getText());
+			}
+		});
+		filterPanel.add(txtFilter);
+
+		JButton btnPlan = new JButton("Plan Route");
+		btnPlan.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent arg0) {
+				client_.planJourneys(txtFrom.getText(),txtDest.getText(),(Date)startDates.getValue());
+			}
+		});
+		choicePanel.add(btnPlan);
+
 		// Listing results
 		JScrollPane listScrollPane = new JScrollPane();
 		panel_.add(listScrollPane);
@@ -88,6 +157,19 @@ public class JourneyFinderScreen extends GuiScreen {
 		listSelection = listTable.getSelectionModel();
 		listScrollPane.setViewportView(listTable);
 		listTable.setDefaultRenderer(Date.class, new DateTimeRenderer());
+		list.sortOnHeaderClick(listTable);
+
+		// Planned routes, with changes
+		JScrollPane routeScrollPane = new JScrollPane();
+		panel_.add(routeScrollPane);
+
+		JTable routeTable = new JTable();
+		routeTable.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+		routeTable.setModel(routes);
+		routeSelection = routeTable.getSelectionModel();
+		routeScrollPane.setViewportView(routeTable);
+		routeTable.setDefaultRenderer(Date.class, new DateTimeRenderer());
+		routes.sortOnHeaderClick(routeTable);
 
 		JPanel selectionOptionsPanel = new JPanel();
 		panel_.add(selectionOptionsPanel);
@@ -99,8 +181,12 @@ public class JourneyFinderScreen extends GuiScreen {
 			@Override
 			public void actionPerformed(ActionEvent arg0) {
 				int selectionIndex = listSelection.getMinSelectionIndex();
+				int routeIndex = routeSelection.getMinSelectionIndex();
 				if (selectionIndex >= 0) {
 					client_.getJourneyDetails(conv.getInt("journey_id",list.getTuple(selectionIndex)));
+				} else if (routeIndex >= 0) {
+					// Details of the first leg of the route
+					client_.getJourneyDetails(routeConv.getInt("journey_id",routes.getTuple(routeIndex)));
 				}
 			}
 		});
@@ -108,18 +194,35 @@ public class JourneyFinderScreen extends GuiScreen {
 		// Only allow row-specific buttons to work if a row has been selected
 		btnGetDetails.setEnabled(false);
 
-		listSelection.addListSelectionListener(new ListSelectionListener() {
+		ListSelectionListener selectionListener = new ListSelectionListener() {
 			@Override
 			public void valueChanged(ListSelectionEvent e) {
-				ListSelectionModel lsm = (ListSelectionModel) e.getSource();
-				boolean isValid = !lsm.isSelectionEmpty();
+				boolean isValid = !listSelection.isSelectionEmpty() || !routeSelection.isSelectionEmpty();
 				btnGetDetails.setEnabled(isValid);
 			}
-		});
+		};
+		listSelection.addListSelectionListener(selectionListener);
+		routeSelection.addListSelectionListener(selectionListener);
 	}
 
-	public void showTuples(ArrayList<HashMap<String, Object>> newTuples) {
+	public void showTuples(TupleTable newTuples) {
+		routeSelection.clearSelection();
 		list.update(newTuples);
 	}
 
+	/*
+	 * Update the journeys listed, e.g. with new availability, leaving the
+	 * selection of either list alone. Ignored unless they were found for the
+	 * search being shown, as a refresh may finish after a new search began.
+	 */
+	public void refreshTuples(String from, String dest, Date date, TupleTable newTuples) {
+		if (from.equals(searchFrom) && dest.equals(searchDest) && date.equals(searchDate))
+			list.update(newTuples);
+	}
+
+	public void showItineraries(TupleTable newItineraries) {
+		listSelection.clearSelection();
+		routes.update(newItineraries);
+	}
+
 }
@@ -0,0 +1,36 @@
+package usyd.it.olympics.gui;
+
+import javax.swing.BoxLayout;
+import javax.swing.JScrollPane;
+import javax.swing.JTable;
+
+import usyd.it.olympics.OlympicsDBClient;
+import usyd.it.olympics.data.MedalStanding;
+import usyd.it.olympics.data.TupleConverter;
+import usyd.it.olympics.data.TupleTable;
+
+/**
+ * Medal table of the leading countries, in Olympic ranking order
+ */
+public class LeaderboardScreen extends GuiScreen {
+	protected final TupleConverter conv = new MedalStanding();
+    private final HashMapTupleTabelModel tableModel = new HashMapTupleTabelModel(
+    		conv, null,
+    		new String[] { "Rank", "Country", "Gold", "Silver", "Bronze", "Total"},
+    		new String[] { "country_name"});
+
+    public LeaderboardScreen(OlympicsDBClient r) {
+        super(r);
+        panel_.setLayout(new BoxLayout(panel_, BoxLayout.Y_AXIS));
+        JTable standingsTable = new JTable(tableModel);
+        standingsTable.setFillsViewportHeight(true);
+        tableModel.sortOnHeaderClick(standingsTable);
+        JScrollPane scrollPane = new JScrollPane();
+        scrollPane.setViewportView(standingsTable);
+        panel_.add(scrollPane);
+    }
+
+    public void setTuples(TupleTable tuples) {
+        tableModel.update(tuples);
+    }
+}
@@ -0,0 +1,173 @@
+package usyd.it.olympics.gui;
+
+import java.util.Date;
+import java.util.Locale;
+
+import usyd.it.olympics.data.TupleTable;
+
+/**
+ * Sort keys and filter text for the rows of one TupleTable, worked out once
+ * so that sorting and filtering don't go back to the row values each time.
+ *
+ * Integer and Date columns are sorted on a long per row, so comparisons are
+ * between primitives; other columns on their text in lower case. A column's
+ * keys are made the first time it is sorted on. Filtering looks for text in
+ * each row's String and Integer columns, joined into one lower-case string
+ * per row when first needed. Filtering may run on another thread; sorting
+ * is for the event dispatch thread.
+ */
+final class RowIndex {
+	private final TupleTable table;
+	/// Position in each row of the attribute shown in each column
+	private final int[] columnMap;
+	private final Class<?>[] columnClasses;
+	/// Sort keys of each column, made on first use
+	private final long[][] numberKeys;
+	private final String[][] textKeys;
+	/// Searchable text of each row, made on first use
+	private String[] haystacks;
+
+	/// Compares two row positions
+	private static abstract class RowOrder {
+		abstract int compare(int a, int b);
+	}
+
+	RowIndex(TupleTable table, int[] columnMap, Class<?>[] columnClasses) {
+		this.table = table;
+		this.columnMap = columnMap;
+		this.columnClasses = columnClasses;
+		numberKeys = new long[columnMap.length][];
+		textKeys = new String[columnMap.length][];
+	}
+
+	int size() {
+		return table.size();
+	}
+
+	/**
+	 * @param column displayed column to sort on
+	 * @param descending largest first if true
+	 * @return row positions in order of the column, ties in table order
+	 */
+	int[] sorted(int column, final boolean descending) {
+		int n = table.size();
+		int[] order = new int[n];
+		for(int i=0; i<n; ++i)
+			order[i] = i;
+		RowOrder comparator;
+		if (isNumeric(column)) {
+			final long[] keys = numberKeys(column);
+			comparator = new RowOrder() {
+				@Override
+				int compare(int a, int b) {
+					int c = keys[a]<keys[b] ? -1 : keys[a]==keys[b] ? 0 : 1;
+					return descending ? -c : c;
+				}
+			};
+		} else {
+			final String[] keys = textKeys(column);
+			comparator = new RowOrder() {
+				@Override
+				int compare(int a, int b) {
+					int c = keys[a].compareTo(keys[b]);
+					return descending ? -c : c;
+				}
+			};
+		}
+		mergeSort(order, new int[n], 0, n, comparator);
+		return order;
+	}
+
+	/**
+	 * Find the rows containing some text
+	 * @param needle text to look for, in lower case
+	 * @param previous rows found for text that needle contains, or null; only
+	 * these can match, so only these are looked at
+	 * @return whether each row matches
+	 */
+	boolean[] matching(String needle, boolean[] previous) {
+		String[] text = haystacks();
+		boolean[] matches = new boolean[text.length];
+		for(int i=0; i<text.length; ++i) {
+			if (Thread.interrupted()) {
+				// Superseded by another filter
+				Thread.currentThread().interrupt();
+				return null;
+			}
+			matches[i] = (previous==null || previous[i]) && text[i].contains(needle);
+		}
+		return matches;
+	}
+
+	private boolean isNumeric(int column) {
+		Class<?> c = columnClasses[column];
+		return Integer.class.equals(c) || Date.class.equals(c);
+	}
+
+	private long[] numberKeys(int column) {
+		if (numberKeys[column]==null) {
+			int index = columnMap[column];
+			long[] keys = new long[table.size()];
+			for(int i=0; i<keys.length; ++i) {
+				Object value = index<0 ? null : table.get(i, index);
+				if (value instanceof Number) keys[i] = ((Number) value).longValue();
+				else if (value instanceof Date) keys[i] = ((Date) value).getTime();
+				else keys[i] = Long.MIN_VALUE;
+			}
+			numberKeys[column] = keys;
+		}
+		return numberKeys[column];
+	}
+
+	private String[] textKeys(int column) {
+		if (textKeys[column]==null) {
+			int index = columnMap[column];
+			String[] keys = new String[table.size()];
+			for(int i=0; i<keys.length; ++i) {
+				Object value = index<0 ? null : table.get(i, index);
+				keys[i] = value==null ? "" : value.toString().toLowerCase(Locale.ROOT);
+			}
+			textKeys[column] = keys;
+		}
+		return textKeys[column];
+	}
+
+	private synchronized String[] haystacks() {
+		if (haystacks==null) {
+			String[] text = new String[table.size()];
+			StringBuilder row = new StringBuilder();
+			for(int i=0; i<text.length; ++i) {
+				row.setLength(0);
+				for(int c=0; c<columnMap.length; ++c) {
+					Object value = columnMap[c]<0 ? null : table.get(i, columnMap[c]);
+					if (value instanceof String || value instanceof Integer) {
+						// Separated so that a match can't run across columns
+						row.append(value.toString().toLowerCase(Locale.ROOT)).append('\u0000');
+					}
+				}
+				text[i] = row.toString();
+			}
+			haystacks = text;
+		}
+		return haystacks;
+	}
+
+	/// Stable sort of order[from, to), using scratch as working space
+	private static void mergeSort(int[] order, int[] scratch, int from, int to, RowOrder comparator) {
+		if (to - from < 2)
+			return;
+		int mid = (from + to) >>> 1;
+		mergeSort(order, scratch, from, mid, comparator);
+		mergeSort(order, scratch, mid, to, comparator);
+		if (comparator.compare(order[mid-1], order[mid])<=0)
+			return;
+		System.arraycopy(order, from, scratch, from, to - from);
+		int i = from, j = mid, k = from;
+		while (i<mid && j<to)
+			order[k++] = comparator.compare(scratch[j], scratch[i])<0 ? scratch[j++] : scratch[i++];
+		while (i<mid)
+			order[k++] = scratch[i++];
+		while (j<to)
+			order[k++] = scratch[j++];
+	}
+}
@@ -0,0 +1,306 @@
+package usyd.it.olympics.gui;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.concurrent.Executor;
+
+import javax.swing.SwingUtilities;
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
+import javax.swing.table.AbstractTableModel;
+
+import usyd.it.olympics.OlympicsDBException;
+import usyd.it.olympics.data.TupleConverter;
+import usyd.it.olympics.data.TuplePageSource;
+import usyd.it.olympics.data.TupleTable;
+
+/**
+ * Table model for results too large to load in one go. Rows are fetched from a
+ * TuplePageSource in fixed-size blocks: the first when the source is set, and
+ * each one after that when loadMore is called. Only a bounded number of
+ * blocks is kept: those furthest from the latest one are dropped and fetched
+ * again, from the key that starts them, if scrolled back to. A block that
+ * fails to load is tried again when next looked at, waiting longer after each
+ * failure. Rows not loaded yet show as empty cells.
+ *
+ * All methods must be called on the event dispatch thread.
+ */
+@SuppressWarnings("serial")
+class WindowedTupleTableModel extends AbstractTableModel {
+	private final String [] columnNames;
+	private final Class<?>[] columnClasses;
+	private final String [] attributeNames;
+	private final int maxRows;
+	/// Least number of blocks kept: the two a screen can straddle and the one after
+	private static final int MIN_BLOCKS = 3;
+	private static final long RETRY_DELAY_MS = 1000;
+	private static final long MAX_RETRY_DELAY_MS = 30000;
+
+	private TuplePageSource source;
+	private Executor executor;
+	private int blockSize = 1;
+	private int maxBlocks;
+	private int rowCount;
+	/// Bumped whenever the source changes, so stale fetches are ignored
+	private int generation;
+	/// Key of the row before each block reached so far; null for the first
+	private final ArrayList<Object[]> blockKeys = new ArrayList<Object[]>();
+	/// Number of blocks whose rows are counted in rowCount
+	private int reached;
+	private final HashMap<Integer, TupleTable> blocks = new HashMap<Integer, TupleTable>();
+	private final HashSet<Integer> pending = new HashSet<Integer>();
+	/// Consecutive failures of each block that failed to load
+	private final HashMap<Integer, Integer> failures = new HashMap<Integer, Integer>();
+	/// When each failed block may be fetched again
+	private final HashMap<Integer, Long> retryAt = new HashMap<Integer, Long>();
+	/// Position in the fetched rows of each column's attribute, set from the first block
+	private int[] columnMap;
+
+	/*
+	 * Construct new windowed table model, with mappings handled by a TupleConverter
+	 * @param tupleConverter schema of the rows to be displayed
+	 * @param columns which attributes to include from the tuple in the table
+	 * @param headings what to call the displayed tuples
+	 * @param maxRows about how many rows to keep in memory
+	 */
+	public WindowedTupleTableModel(TupleConverter tupleConverter, String[] columns, String[] headings, int maxRows) {
+		attributeNames = columns==null ? tupleConverter.getAttributeNames() : columns;
+		columnClasses = columns==null ? tupleConverter.getColumnClasses()
+				: HashMapTupleTabelModel.projectClasses(columns, tupleConverter.getAttributeNames(), tupleConverter.getColumnClasses());
+		columnNames = headings==null ? attributeNames : headings;
+		this.maxRows = maxRows;
+	}
+
+	/**
+	 * Show a new result, discarding any rows of the previous one, and fetch
+	 * its first block
+	 * @param newSource where to fetch rows from, or null to show none
+	 * @param newBlockSize number of rows fetched at a time
+	 * @param fetchExecutor where to run fetches
+	 */
+	public void setSource(TuplePageSource newSource, int newBlockSize, Executor fetchExecutor) {
+		++generation;
+		source = newSource;
+		executor = fetchExecutor;
+		blockSize = newBlockSize;
+		maxBlocks = Math.max(MIN_BLOCKS, maxRows / newBlockSize);
+		rowCount = 0;
+		reached = 0;
+		blockKeys.clear();
+		blocks.clear();
+		pending.clear();
+		failures.clear();
+		retryAt.clear();
+		columnMap = null;
+		fireTableDataChanged();
+		if (source != null) {
+			blockKeys.add(null);
+			fetch(0);
+		}
+		fireStateChanged();
+	}
+
+	/**
+	 * Fetch the block after the last one reached, adding its rows to the end
+	 * of the table. Does nothing if there are no more or it is on its way.
+	 */
+	public void loadMore() {
+		if (!hasMore() || isLoadingMore())
+			return;
+		// Asked for outright, so don't wait out a failure
+		retryAt.remove(reached);
+		fetch(reached);
+		fireStateChanged();
+	}
+
+	/**
+	 * @return whether the result may have rows after those reached
+	 */
+	public boolean hasMore() {
+		return source != null && blockKeys.size() > reached;
+	}
+
+	/**
+	 * @return whether the block after those reached is being fetched
+	 */
+	public boolean isLoadingMore() {
+		return pending.contains(reached);
+	}
+
+	/**
+	 * Be told when loading more starts or finishes, e.g. to enable a button
+	 */
+	public void addChangeListener(ChangeListener listener) {
+		listenerList.add(ChangeListener.class, listener);
+	}
+
+	/**
+	 * @return the tuple at the row, or null if it hasn't been fetched yet
+	 */
+	public HashMap<String, Object> getTuple(int row) {
+		TupleTable block = blocks.get(row / blockSize);
+		int index = row % blockSize;
+		return block!=null && index<block.size() ? block.getTuple(index) : null;
+	}
+
+	/*
+	 * AbstractTableModel methods
+	 */
+	@Override
+	public Class<?> getColumnClass(int columnIndex) {
+		return columnClasses[columnIndex];
+	}
+
+	@Override
+	public String getColumnName(int col) {
+		return columnNames[col];
+	}
+
+	@Override
+	public int getColumnCount() {
+		return columnNames.length;
+	}
+
+	@Override
+	public int getRowCount() {
+		return rowCount;
+	}
+
+	@Override
+	public Object getValueAt(int row, int col) {
+		int blockIndex = row / blockSize;
+		TupleTable block = blocks.get(blockIndex);
+		if (block == null) {
+			request(blockIndex);
+			return null;
+		}
+		// Viewing this block, so get the next one ready if it was dropped
+		request(blockIndex + 1);
+		int index = row % blockSize;
+		if (index>=block.size() || col<0 || col>=columnMap.length || columnMap[col]<0) {
+			return null;
+		}
+		return block.get(index, columnMap[col]);
+	}
+
+	/*
+	 * Block management
+	 */
+
+	/// Fetch again a block already reached, if it isn't held and isn't waiting to retry
+	private void request(int blockIndex) {
+		if (blockIndex < 0 || blockIndex >= reached) {
+			return;
+		}
+		Long retry = retryAt.get(blockIndex);
+		if (retry != null && System.currentTimeMillis() < retry) {
+			return;
+		}
+		fetch(blockIndex);
+	}
+
+	private void fetch(final int blockIndex) {
+		if (source == null || blocks.containsKey(blockIndex) || pending.contains(blockIndex)) {
+			return;
+		}
+		pending.add(blockIndex);
+		final int requestGeneration = generation;
+		final TuplePageSource requestSource = source;
+		final Object[] after = blockKeys.get(blockIndex);
+		// One row more than the block, to tell whether another follows it
+		final int count = blockSize + 1;
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				TupleTable rows = null;
+				try {
+					rows = requestSource.getRows(after, count);
+				} catch (OlympicsDBException e) {
+					rows = null;
+				}
+				final TupleTable result = rows;
+				SwingUtilities.invokeLater(new Runnable() {
+					@Override
+					public void run() {
+						loaded(requestGeneration, blockIndex, result);
+					}
+				});
+			}
+		});
+	}
+
+	private void loaded(int requestGeneration, int blockIndex, TupleTable rows) {
+		if (requestGeneration != generation) {
+			return;
+		}
+		pending.remove(blockIndex);
+		if (rows == null) {
+			Integer previous = failures.get(blockIndex);
+			int count = previous == null ? 1 : previous + 1;
+			failures.put(blockIndex, count);
+			long delay = Math.min(MAX_RETRY_DELAY_MS, RETRY_DELAY_MS << Math.min(count - 1, 5));
+			retryAt.put(blockIndex, System.currentTimeMillis() + delay);
+			fireStateChanged();
+			return;
+		}
+		failures.remove(blockIndex);
+		retryAt.remove(blockIndex);
+		if (columnMap == null) {
+			columnMap = new int[attributeNames.length];
+			for (int i=0; i<attributeNames.length; ++i)
+				columnMap[i] = rows.getColumnIndex(attributeNames[i]);
+		}
+		boolean followed = rows.size() > blockSize;
+		TupleTable block = followed ? rows.subTable(0, blockSize) : rows;
+		blocks.put(blockIndex, block);
+		evictFarthestFrom(blockIndex);
+		int first = blockIndex * blockSize;
+		if (blockIndex == reached) {
+			++reached;
+			if (followed) {
+				blockKeys.add(source.keyOf(block, blockSize - 1));
+			}
+			rowCount = first + block.size();
+			if (block.size() > 0) {
+				fireTableRowsInserted(first, rowCount - 1);
+			}
+			fireStateChanged();
+		} else {
+			int last = Math.min(rowCount, first + blockSize) - 1;
+			if (last >= first) {
+				fireTableRowsUpdated(first, last);
+			}
+		}
+	}
+
+	/// Drop blocks beyond maxBlocks, never the one loaded or those either side of it
+	private void evictFarthestFrom(int blockIndex) {
+		while (blocks.size() > maxBlocks) {
+			Integer farthest = null;
+			Iterator<Integer> it = blocks.keySet().iterator();
+			while (it.hasNext()) {
+				Integer candidate = it.next();
+				if (Math.abs(candidate - blockIndex) <= 1) {
+					continue;
+				}
+				if (farthest == null || Math.abs(candidate - blockIndex) > Math.abs(farthest - blockIndex)) {
+					farthest = candidate;
+				}
+			}
+			if (farthest == null) {
+				return;
+			}
+			blocks.remove(farthest);
+		}
+	}
+
+	private void fireStateChanged() {
+		ChangeEvent event = new ChangeEvent(this);
+		for (ChangeListener listener : listenerList.getListeners(ChangeListener.class)) {
+			listener.stateChanged(event);
+		}
+	}
+
+}
@@ -0,0 +1,327 @@
+package usyd.it.olympics.server;
+
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import usyd.it.olympics.data.TupleTable;
+
+/**
+ * Just enough JSON for the server and RemoteBackend to talk to each other.
+ *
+ * Objects are read as LinkedHashMaps and arrays as ArrayLists; whole numbers
+ * as Integer (or Long if they don't fit) and others as Double. Dates are
+ * written as ISO-8601 instants, e.g. "2026-08-01T09:30:00Z", and
+ * TupleTables as {"schema": ..., "columns": [...], "rows": [[...], ...]}
+ * with the simple class name of the table's schema.
+ */
+final class Json {
+
+    /// Deepest nesting of objects and arrays read, so a hostile body can't exhaust the stack
+    private static final int MAX_DEPTH = 64;
+
+    private final String text;
+    private int pos;
+    private int depth;
+
+    private Json(String text) {
+        this.text = text;
+    }
+
+    /**
+     * @return the value as JSON text
+     */
+    static String write(Object value) {
+        StringBuilder out = new StringBuilder();
+        write(value, out);
+        return out.toString();
+    }
+
+    static void write(Object value, StringBuilder out) {
+        if (value == null) {
+            out.append("null");
+        } else if (value instanceof String) {
+            writeString((String) value, out);
+        } else if (value instanceof Number || value instanceof Boolean) {
+            out.append(value);
+        } else if (value instanceof Date) {
+            writeString(formatDate((Date) value), out);
+        } else if (value instanceof TupleTable) {
+            writeTable((TupleTable) value, out);
+        } else if (value instanceof Map) {
+            out.append('{');
+            boolean first = true;
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                if (!first) out.append(',');
+                first = false;
+                writeString(String.valueOf(entry.getKey()), out);
+                out.append(':');
+                write(entry.getValue(), out);
+            }
+            out.append('}');
+        } else if (value instanceof Collection) {
+            writeArray(((Collection<?>) value).toArray(), out);
+        } else if (value instanceof Object[]) {
+            writeArray((Object[]) value, out);
+        } else {
+            writeString(value.toString(), out);
+        }
+    }
+
+    static String formatDate(Date date) {
+        // A Timestamp keeps the nanoseconds a database time may have
+        Instant instant = date instanceof Timestamp ? ((Timestamp) date).toInstant() : Instant.ofEpochMilli(date.getTime());
+        return instant.toString();
+    }
+
+    /**
+     * @param value an ISO-8601 instant, or milliseconds since the epoch
+     * @return the date, or null if the value is neither; a Timestamp if it
+     * is finer than a millisecond
+     */
+    static Date parseDate(Object value) {
+        if (value instanceof Number) {
+            return new Date(((Number) value).longValue());
+        }
+        if (value instanceof String) {
+            try {
+                Instant instant = Instant.parse((String) value);
+                return instant.getNano() % 1000000 != 0 ? Timestamp.from(instant) : Date.from(instant);
+            } catch (DateTimeParseException e) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param text JSON text
+     * @return the value it holds
+     * @throws IllegalArgumentException if the text isn't valid JSON
+     */
+    static Object parse(String text) {
+        Json parser = new Json(text);
+        Object value = parser.readValue();
+        parser.skipSpace();
+        if (parser.pos < text.length()) {
+            throw parser.error("Unexpected text after value");
+        }
+        return value;
+    }
+
+    private static void writeTable(TupleTable table, StringBuilder out) {
+        out.append("{\"schema\":");
+        writeString(table.getSchema().getClass().getSimpleName(), out);
+        out.append(",\"columns\":");
+        writeArray(table.getSchema().getAttributeNames(), out);
+        out.append(",\"rows\":[");
+        for (int i = 0; i < table.size(); ++i) {
+            if (i > 0) out.append(',');
+            writeArray(table.getRow(i), out);
+        }
+        out.append("]}");
+    }
+
+    private static void writeArray(Object[] values, StringBuilder out) {
+        out.append('[');
+        for (int i = 0; i < values.length; ++i) {
+            if (i > 0) out.append(',');
+            write(values[i], out);
+        }
+        out.append(']');
+    }
+
+    private static void writeString(String s, StringBuilder out) {
+        out.append('"');
+        for (int i = 0; i < s.length(); ++i) {
+            char c = s.charAt(i);
+            switch (c) {
+            case '"': out.append("\\\""); break;
+            case '\\': out.append("\\\\"); break;
+            case '\n': out.append("\\n"); break;
+            case '\r': out.append("\\r"); break;
+            case '\t': out.append("\\t"); break;
+            default:
+                if (c < 0x20) out.append(String.format("\\u%04x", (int) c));
+                else out.append(c);
+            }
+        }
+        out.append('"');
+    }
+
+    private Object readValue() {
+        skipSpace();
+        if (pos >= text.length()) throw error("Unexpected end of text");
+        char c = text.charAt(pos);
+        switch (c) {
+        case '{': return readObject();
+        case '[': return readArray();
+        case '"': return readString();
+        case 't': return readWord("true", Boolean.TRUE);
+        case 'f': return readWord("false", Boolean.FALSE);
+        case 'n': return readWord("null", null);
+        default:
+            if (c == '-' || (c >= '0' && c <= '9')) return readNumber();
+            throw error("Unexpected character '" + c + "'");
+        }
+    }
+
+    private Map<String, Object> readObject() {
+        enter();
+        try {
+            return readMembers();
+        } finally {
+            --depth;
+        }
+    }
+
+    private Map<String, Object> readMembers() {
+        LinkedHashMap<String, Object> object = new LinkedHashMap<String, Object>();
+        ++pos;
+        skipSpace();
+        if (peek() == '}') {
+            ++pos;
+            return object;
+        }
+        while (true) {
+            skipSpace();
+            if (peek() != '"') throw error("Expected a name");
+            String name = readString();
+            skipSpace();
+            expect(':');
+            object.put(name, readValue());
+            skipSpace();
+            if (peek() == ',') {
+                ++pos;
+            } else {
+                expect('}');
+                return object;
+            }
+        }
+    }
+
+    private List<Object> readArray() {
+        enter();
+        try {
+            return readElements();
+        } finally {
+            --depth;
+        }
+    }
+
+    private List<Object> readElements() {
+        ArrayList<Object> array = new ArrayList<Object>();
+        ++pos;
+        skipSpace();
+        if (peek() == ']') {
+            ++pos;
+            return array;
+        }
+        while (true) {
+            array.add(readValue());
+            skipSpace();
+            if (peek() == ',') {
+                ++pos;
+            } else {
+                expect(']');
+                return array;
+            }
+        }
+    }
+
+    private void enter() {
+        if (++depth > MAX_DEPTH) throw error("Nested more than " + MAX_DEPTH + " deep");
+    }
+
+    private String readString() {
+        ++pos;
+        StringBuilder s = new StringBuilder();
+        while (true) {
+            if (pos >= text.length()) throw error("Unterminated string");
+            char c = text.charAt(pos++);
+            if (c == '"') return s.toString();
+            if (c != '\\') {
+                s.append(c);
+                continue;
+            }
+            if (pos >= text.length()) throw error("Unterminated string");
+            char e = text.charAt(pos++);
+            switch (e) {
+            case '"': case '\\': case '/': s.append(e); break;
+            case 'b': s.append('\b'); break;
+            case 'f': s.append('\f'); break;
+            case 'n': s.append('\n'); break;
+            case 'r': s.append('\r'); break;
+            case 't': s.append('\t'); break;
+            case 'u':
+                if (pos + 4 > text.length()) throw error("Bad \\u escape");
+                try {
+                    s.append((char) Integer.parseInt(text.substring(pos, pos + 4), 16));
+                } catch (NumberFormatException ex) {
+                    throw error("Bad \\u escape");
+                }
+                pos += 4;
+                break;
+            default:
+                throw error("Bad escape \\" + e);
+            }
+        }
+    }
+
+    private Object readNumber() {
+        int start = pos;
+        boolean whole = true;
+        if (peek() == '-') ++pos;
+        while (pos < text.length()) {
+            char c = text.charAt(pos);
+            if (c >= '0' && c <= '9') {
+                ++pos;
+            } else if (c == '.' || c == 'e' || c == 'E' || c == '+' || c == '-') {
+                whole = false;
+                ++pos;
+            } else {
+                break;
+            }
+        }
+        String number = text.substring(start, pos);
+        try {
+            if (whole) {
+                long value = Long.parseLong(number);
+                if (value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE) return (int) value;
+                return value;
+            }
+            return Double.parseDouble(number);
+        } catch (NumberFormatException e) {
+            throw error("Bad number " + number);
+        }
+    }
+
+    private Object readWord(String word, Object value) {
+        if (!text.startsWith(word, pos)) throw error("Unexpected text");
+        pos += word.length();
+        return value;
+    }
+
+    private void expect(char c) {
+        if (peek() != c) throw error("Expected '" + c + "'");
+        ++pos;
+    }
+
+    private char peek() {
+        return pos < text.length() ? text.charAt(pos) : 0;
+    }
+
+    private void skipSpace() {
+        while (pos < text.length() && Character.isWhitespace(text.charAt(pos))) ++pos;
+    }
+
+    private IllegalArgumentException error(String message) {
+        return new IllegalArgumentException(message + " at position " + pos + " of JSON");
+    }
+}
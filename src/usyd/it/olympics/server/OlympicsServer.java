@@ -0,0 +1,662 @@
+package usyd.it.olympics.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiFunction;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import usyd.it.olympics.BackendExecutor;
+import usyd.it.olympics.BackendFactory;
+import usyd.it.olympics.OlympicsBackend;
+import usyd.it.olympics.OlympicsDBException;
+
+/**
+ * Serves the backend operations over HTTP as JSON, so that many thin clients
+ * (e.g. RemoteBackend, or a kiosk web page) share one backend: one warm
+ * connection pool and one set of caches, rather than one per client.
+ *
+ * Every operation is a POST (or GET) of /api/ followed by its name, e.g.
+ * /api/findJourneys, with its parameters as a JSON object in the body (or in
+ * the query string). login must be a POST with its parameters in the body,
+ * so passwords never appear in URLs or the logs that record them. The reply
+ * is {"result": ...}, where single results also list which of their values
+ * are dates under "dates", or {"error": ...} with a 4xx or 5xx status.
+ * Operations:
+ *
+ *   login               member, password       -> session, member
+ *   logout
+ *   getMemberDetails    [member_id]
+ *   getSports
+ *   getEventsOfSport    sport_id
+ *   getResultsOfEvent   event_id
+ *   recordMedal         event_id, participant, [medal]    (staff only)
+ *   getMedalLeaderboard [limit]
+ *   findJourneys        from, to, date
+ *   planJourneys        from, to, depart_after
+ *   getJourneyDetails   journey_id
+ *   getMemberBookings   [member_id], [after_departs, after_journey_id], [limit]
+ *   countMemberBookings [member_id]
+ *   getBookingDetails   [member_id], journey_id
+ *   makeBooking         for_member, vehicle, departs
+ *   makeBookings        for_members, vehicle, departs
+ *   statistics                                         (staff only)
+ *
+ * login checks the member's password with checkLogin and returns the
+ * member's session, starting one unless the member already has one going.
+ * Its token must be sent with every other operation, as the header
+ * "Authorization: Bearer <token>". Operations act for the session's member:
+ * member_id defaults to it and only staff may give another one, and bookings
+ * are made by it. A session ends on logout, for every
+ * client sharing it, or after server_session_timeout_s seconds unused, and
+ * the backend is then told with endSession.
+ *
+ * Each request is handled on its own thread, a virtual thread where the JVM
+ * has them. Settings come from the config file and can be overridden on the
+ * command line:
+ *   java usyd.it.olympics.server.OlympicsServer olympicsdb.properties server_port=8081
+ */
+public class OlympicsServer {
+
+    /// Largest request body accepted
+    private static final int MAX_BODY = 1 << 20;
+    /// Countries getMedalLeaderboard lists when no limit is given
+    private static final int DEFAULT_LEADERBOARD_SIZE = 20;
+    /// Where unexpected errors go, as callers are only told that one happened
+    private static final Logger LOG = Logger.getLogger(OlympicsServer.class.getName());
+
+    /**
+     * A logged-in member
+     */
+    private static final class Session {
+        final String token;
+        final HashMap<String, Object> member;
+        volatile long lastUsed = System.currentTimeMillis();
+
+        Session(String token, HashMap<String, Object> member) {
+            this.token = token;
+            this.member = member;
+        }
+
+        String memberId() {
+            return (String) member.get("member_id");
+        }
+
+        boolean isStaff() {
+            return "staff".equals(member.get("member_type"));
+        }
+    }
+
+    /**
+     * A request that can't be answered, with the HTTP status to reply with
+     */
+    private static final class HttpError extends Exception {
+        private static final long serialVersionUID = 1L;
+        final int status;
+
+        HttpError(int status, String message) {
+            super(message);
+            this.status = status;
+        }
+    }
+
+    /**
+     * Parameters of a request
+     */
+    private static final class Params {
+        private final Map<String, Object> values;
+
+        Params(Map<String, Object> values) {
+            this.values = values;
+        }
+
+        String optString(String name) {
+            Object value = values.get(name);
+            return value == null ? null : value.toString();
+        }
+
+        String string(String name) throws HttpError {
+            String value = optString(name);
+            if (value == null) throw new HttpError(400, "Missing parameter " + name);
+            return value;
+        }
+
+        Integer integer(String name) throws HttpError {
+            Object value = values.get(name);
+            if (value instanceof Number) {
+                // Whole numbers in range only, rather than rounding to some other ID
+                Number number = (Number) value;
+                double d = number.doubleValue();
+                boolean fits = number instanceof Integer
+                        || (number instanceof Long ? number.longValue() == number.intValue()
+                                : d == Math.rint(d) && d >= Integer.MIN_VALUE && d <= Integer.MAX_VALUE);
+                if (!fits) throw new HttpError(400, "Parameter " + name + " isn't a whole number in range");
+                return number.intValue();
+            }
+            try {
+                return Integer.valueOf(string(name).trim());
+            } catch (NumberFormatException e) {
+                throw new HttpError(400, "Parameter " + name + " isn't a number");
+            }
+        }
+
+        int optInt(String name, int defaultValue) throws HttpError {
+            return values.get(name) == null ? defaultValue : integer(name);
+        }
+
+        Date date(String name) throws HttpError {
+            Object value = values.get(name);
+            if (value instanceof String && ((String) value).matches("-?\\d+")) {
+                value = Long.valueOf((String) value);
+            }
+            Date date = Json.parseDate(value);
+            if (date == null) {
+                string(name);
+                throw new HttpError(400, "Parameter " + name + " isn't an ISO-8601 instant or epoch milliseconds");
+            }
+            return date;
+        }
+
+        List<String> strings(String name) throws HttpError {
+            Object value = values.get(name);
+            if (!(value instanceof List)) throw new HttpError(400, "Parameter " + name + " must be an array");
+            ArrayList<String> list = new ArrayList<String>();
+            for (Object item : (List<?>) value) list.add(item == null ? null : item.toString());
+            return list;
+        }
+    }
+
+    /**
+     * One operation of the API
+     */
+    private abstract static class Operation {
+        final boolean needsSession;
+        /// Whether its parameters are secret, so may only come in a POST body
+        final boolean secret;
+
+        Operation(boolean needsSession) {
+            this(needsSession, false);
+        }
+
+        Operation(boolean needsSession, boolean secret) {
+            this.needsSession = needsSession;
+            this.secret = secret;
+        }
+
+        /**
+         * @param session the caller's session, or null if it doesn't need one
+         * @return the result to send back
+         */
+        abstract Object call(Session session, Params params) throws OlympicsDBException, HttpError;
+    }
+
+    private final OlympicsBackend backend;
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final long sessionTimeoutMillis;
+    /// Live sessions by token
+    private final ConcurrentHashMap<String, Session> sessions = new ConcurrentHashMap<String, Session>();
+    /// The same sessions by member ID
+    private final ConcurrentHashMap<String, Session> memberSessions = new ConcurrentHashMap<String, Session>();
+    private final SecureRandom random = new SecureRandom();
+    private final HashMap<String, Operation> operations = new HashMap<String, Operation>();
+    private final Timer sweeper = new Timer("OlympicsServer-sessions", true);
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong logins = new AtomicLong();
+
+    /**
+     * Bind to server_host (default 127.0.0.1) and server_port (default 8080).
+     * Call start() to begin serving.
+     * @param backend backend to serve, which the server doesn't close
+     * @param props server_* settings
+     * @throws IOException if the address can't be bound
+     */
+    public OlympicsServer(OlympicsBackend backend, Properties props) throws IOException {
+        this.backend = backend;
+        sessionTimeoutMillis = 1000L * intProperty(props, "server_session_timeout_s", 1800);
+        InetSocketAddress address = new InetSocketAddress(props.getProperty("server_host", "127.0.0.1").trim(),
+                intProperty(props, "server_port", 8080));
+        // Replies are written as headers then body; without TCP_NODELAY each
+        // small reply can wait on a delayed ACK from the client
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+        server = HttpServer.create(address, intProperty(props, "server_backlog", 1024));
+        executor = BackendExecutor.newExecutor("http-request");
+        server.setExecutor(executor);
+        server.createContext("/api/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                serve(exchange);
+            }
+        });
+        defineOperations();
+    }
+
+    public void start() {
+        server.start();
+        sweeper.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                expireSessions();
+            }
+        }, 60000, 60000);
+    }
+
+    /**
+     * Stop taking requests, waiting up to a second for those in progress
+     */
+    public void stop() {
+        server.stop(1);
+        sweeper.cancel();
+        executor.shutdown();
+    }
+
+    /**
+     * @return the address the server is bound to, with the actual port if
+     * server_port was 0
+     */
+    public InetSocketAddress getAddress() {
+        return server.getAddress();
+    }
+
+    /**
+     * @return counters of the server and of its backend
+     */
+    public HashMap<String, Object> getStatistics() {
+        HashMap<String, Object> stats = backend.getStatistics();
+        stats.put("server_sessions", sessions.size());
+        stats.put("server_logins", logins.get());
+        stats.put("server_requests", requests.get());
+        stats.put("server_failures", failures.get());
+        return stats;
+    }
+
+    private void defineOperations() {
+        operations.put("login", new Operation(false, true) {
+            @Override
+            Object call(Session session, Params params) throws OlympicsDBException, HttpError {
+                HashMap<String, Object> member = backend.checkLogin(params.string("member"),
+                        params.string("password").toCharArray());
+                if (member == null) throw new HttpError(401, "Login details incorrect");
+                logins.incrementAndGet();
+                HashMap<String, Object> reply = new LinkedHashMap<String, Object>();
+                reply.put("session", sessionFor(member).token);
+                reply.put("member", member);
+                return reply;
+            }
+        });
+        operations.put("logout", new Operation(true) {
+            @Override
+            Object call(Session session, Params params) {
+                endSession(session);
+                return null;
+            }
+        });
+        operations.put("getMemberDetails", new Operation(true) {
+            @Override
+            Object call(Session session, Params params) throws OlympicsDBException, HttpError {
+                return backend.getMemberDetails(memberFor(session, params));
+            }
+        });
+        operations.put("getSports", new Operation(true) {
+            @Override
+            Object call(Session session, Params params) throws OlympicsDBException {
+                return backend.getSports();
+            }
+        });
+        operations.put("getEventsOfSport", new Operation(true) {
+            @Override
+            Object call(Session session, Params params) throws OlympicsDBException, HttpError {
+                return backend.getEventsOfSport(params.integer("sport_id"));
+            }
+        });
+        operations.put("getResultsOfEvent", new Operation(true) {
+            @Override
+            Object call(Session session, Params params) throws OlympicsDBException, HttpError {
+                return backend.getResultsOfEvent(params.integer("event_id"));
+            }
+        });
+        operations.put("recordMedal", new Operation(true) {
+            @Override
+            Object call(Session session, Params params) throws OlympicsDBException, HttpError {
+                if (!session.isStaff()) throw new HttpError(403, "Only staff may record medals");
+                return backend.recordMedal(params.integer("event_id"), params.string("participant"),
+                        params.optString("medal"));
+            }
+        });
+        operations.put("getMedalLeaderboard", new Operation(true) {
+            @Override
+            Object call(Session session, Params params) throws OlympicsDBException, HttpError {
+                return backend.getMedalLeaderboard(params.optInt("limit", DEFAULT_LEADERBOARD_SIZE));
+            }
+        });
+        operations.put("findJourneys", new Operation(true) {
+            @Override
+            Object call(Session session, Params params) throws OlympicsDBException, HttpError {
+                return backend.findJourneys(params.string("from"), params.string("to"), params.date("date"));
+            }
+        });
+        operations.put("planJourneys", new Operation(true) {
+            @Override
+            Object call(Session session, Params params) throws OlympicsDBException, HttpError {
+                return backend.planJourneys(params.string("from"), params.string("to"), params.date("depart_after"));
+            }
+        });
+        operations.put("getJourneyDetails", new Operation(true) {
+            @Override
+            Object call(Session session, Params params) throws OlympicsDBException, HttpError {
+                return backend.getJourneyDetails(params.integer("journey_id"));
+            }
+        });
+        operations.put("getMemberBookings", new Operation(true) {
+            @Override
+            Object call(Session session, Params params) throws OlympicsDBException, HttpError {
+                String member = memberFor(session, params);
+                if (params.optString("limit") == null) return backend.getMemberBookings(member);
+                if (params.optString("after_departs") == null) {
+                    return backend.getMemberBookings(member, null, null, params.integer("limit"));
+                }
+                return backend.getMemberBookings(member, params.date("after_departs"),
+                        params.integer("after_journey_id"), params.integer("limit"));
+            }
+        });
+        operations.put("countMemberBookings", new Operation(true) {
+            @Override
+            Object call(Session session, Params params) throws OlympicsDBException, HttpError {
+                return backend.countMemberBookings(memberFor(session, params));
+            }
+        });
+        operations.put("getBookingDetails", new Operation(true) {
+            @Override
+            Object call(Session session, Params params) throws OlympicsDBException, HttpError {
+                return backend.getBookingDetails(memberFor(session, params), params.integer("journey_id"));
+            }
+        });
+        operations.put("makeBooking", new Operation(true) {
+            @Override
+            Object call(Session session, Params params) throws OlympicsDBException, HttpError {
+                return backend.makeBooking(session.memberId(), params.string("for_member"),
+                        params.string("vehicle"), params.date("departs"));
+            }
+        });
+        operations.put("makeBookings", new Operation(true) {
+            @Override
+            Object call(Session session, Params params) throws OlympicsDBException, HttpError {
+                return backend.makeBookings(session.memberId(), params.strings("for_members"),
+                        params.string("vehicle"), params.date("departs"));
+            }
+        });
+        operations.put("statistics", new Operation(true) {
+            @Override
+            Object call(Session session, Params params) throws HttpError {
+                // Pool and cache internals are for staff only
+                if (!session.isStaff()) throw new HttpError(403, "Only staff may see statistics");
+                return getStatistics();
+            }
+        });
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        requests.incrementAndGet();
+        int status = 200;
+        HashMap<String, Object> reply = new LinkedHashMap<String, Object>();
+        try {
+            String method = exchange.getRequestMethod();
+            if (!"POST".equals(method) && !"GET".equals(method)) {
+                throw new HttpError(405, "Use POST or GET");
+            }
+            String name = exchange.getRequestURI().getPath().substring("/api/".length());
+            Operation operation = operations.get(name);
+            if (operation == null) throw new HttpError(404, "No such operation: " + name);
+
+            if (operation.secret && !"POST".equals(method)) throw new HttpError(405, "Use POST for " + name);
+
+            Params params = new Params(readParams(exchange, !operation.secret));
+            Session session = operation.needsSession ? session(exchange) : null;
+            Object result = operation.call(session, params);
+            reply.put("result", result);
+            if (result instanceof Map) {
+                ArrayList<Object> dates = new ArrayList<Object>();
+                for (Map.Entry<?, ?> entry : ((Map<?, ?>) result).entrySet()) {
+                    if (entry.getValue() instanceof Date) dates.add(entry.getKey());
+                }
+                if (!dates.isEmpty()) reply.put("dates", dates);
+            }
+        } catch (HttpError e) {
+            status = e.status;
+            reply.put("error", e.getMessage());
+        } catch (OlympicsDBException e) {
+            status = 500;
+            reply.put("error", e.getMessage());
+        } catch (RuntimeException e) {
+            status = 500;
+            LOG.log(Level.WARNING, "Failed serving " + exchange.getRequestURI().getPath(), e);
+            reply.put("error", "Server error");
+        }
+        if (status >= 500) failures.incrementAndGet();
+
+        byte[] body = Json.write(reply).getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, body.length);
+        OutputStream out = exchange.getResponseBody();
+        try {
+            out.write(body);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * @param allowQuery whether parameters may be given in the query string
+     * @return the query string parameters, and those of the JSON object in
+     * the body if there is one
+     */
+    private static Map<String, Object> readParams(HttpExchange exchange, boolean allowQuery) throws IOException, HttpError {
+        LinkedHashMap<String, Object> params = new LinkedHashMap<String, Object>();
+        String query = exchange.getRequestURI().getRawQuery();
+        if (query != null && !query.isEmpty() && !allowQuery) {
+            throw new HttpError(400, "Send the parameters in the body, not the URL");
+        }
+        if (query != null) {
+            for (String pair : query.split("&")) {
+                int eq = pair.indexOf('=');
+                if (eq > 0) params.put(decode(pair.substring(0, eq)), decode(pair.substring(eq + 1)));
+            }
+        }
+
+        InputStream in = exchange.getRequestBody();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                bytes.write(buffer, 0, n);
+                if (bytes.size() > MAX_BODY) throw new HttpError(413, "Request body too large");
+            }
+        } finally {
+            in.close();
+        }
+        String body = new String(bytes.toByteArray(), StandardCharsets.UTF_8).trim();
+        if (!body.isEmpty()) {
+            Object value;
+            try {
+                value = Json.parse(body);
+            } catch (IllegalArgumentException e) {
+                throw new HttpError(400, e.getMessage());
+            }
+            if (!(value instanceof Map)) throw new HttpError(400, "Body must be a JSON object");
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                params.put(entry.getKey().toString(), entry.getValue());
+            }
+        }
+        return params;
+    }
+
+    private static String decode(String s) throws HttpError {
+        try {
+            return URLDecoder.decode(s, "UTF-8");
+        } catch (UnsupportedEncodingException | IllegalArgumentException e) {
+            throw new HttpError(400, "Bad query string");
+        }
+    }
+
+    /**
+     * @return the member's live session, or a new one if there isn't one.
+     * Sessions are only added or removed inside memberSessions.compute for
+     * their member, so sessions and memberSessions always agree.
+     */
+    private Session sessionFor(final HashMap<String, Object> member) {
+        final long now = System.currentTimeMillis();
+        return memberSessions.compute((String) member.get("member_id"), new BiFunction<String, Session, Session>() {
+            @Override
+            public Session apply(String id, Session old) {
+                if (old != null && now - old.lastUsed <= sessionTimeoutMillis) {
+                    old.lastUsed = now;
+                    return old;
+                }
+                if (old != null) {
+                    sessions.remove(old.token, old);
+                    backend.endSession(id);
+                }
+                byte[] bytes = new byte[16];
+                random.nextBytes(bytes);
+                StringBuilder token = new StringBuilder();
+                for (byte b : bytes) token.append(String.format("%02x", b & 0xff));
+                Session session = new Session(token.toString(), member);
+                sessions.put(session.token, session);
+                return session;
+            }
+        });
+    }
+
+    /**
+     * End the session, unless it has already ended, and tell the backend
+     */
+    private void endSession(final Session session) {
+        memberSessions.computeIfPresent(session.memberId(), new BiFunction<String, Session, Session>() {
+            @Override
+            public Session apply(String id, Session current) {
+                if (current != session) return current;
+                sessions.remove(session.token, session);
+                backend.endSession(id);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * @return the live session named by the request's Authorization header
+     */
+    private Session session(HttpExchange exchange) throws HttpError {
+        String auth = exchange.getRequestHeaders().getFirst("Authorization");
+        if (auth == null || !auth.startsWith("Bearer ")) throw new HttpError(401, "Not logged in");
+        String token = auth.substring("Bearer ".length()).trim();
+        Session session = sessions.get(token);
+        long now = System.currentTimeMillis();
+        if (session != null && now - session.lastUsed > sessionTimeoutMillis) {
+            endSession(session);
+            session = null;
+        }
+        if (session == null) throw new HttpError(401, "Session expired, please log in again");
+        session.lastUsed = now;
+        return session;
+    }
+
+    /**
+     * @return the member_id parameter if the session may act for that
+     * member, or the session's own member if there is none
+     */
+    private static String memberFor(Session session, Params params) throws HttpError {
+        String member = params.optString("member_id");
+        if (member == null || member.equals(session.memberId())) return session.memberId();
+        if (!session.isStaff()) throw new HttpError(403, "Only staff may see other members' details");
+        return member;
+    }
+
+    private void expireSessions() {
+        long now = System.currentTimeMillis();
+        for (Session session : sessions.values()) {
+            if (now - session.lastUsed > sessionTimeoutMillis) endSession(session);
+        }
+    }
+
+    private static int intProperty(Properties props, String key, int defaultValue) {
+        String value = props.getProperty(key);
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    public static void main(String[] args) throws IOException, OlympicsDBException {
+        Properties props = new Properties();
+        int first = 0;
+        if (args.length == 0 || !args[0].contains("=")) {
+            InputStream in = new FileInputStream(args.length > 0 ? args[0] : "olympicsdb.properties");
+            try {
+                props.load(in);
+            } finally {
+                in.close();
+            }
+            first = 1;
+        }
+        for (int i = first; i < args.length; ++i) {
+            int eq = args[i].indexOf('=');
+            if (eq > 0) props.setProperty(args[i].substring(0, eq).trim(), args[i].substring(eq + 1).trim());
+        }
+        if ("remote".equals(props.getProperty("backend", "jdbc").trim())) {
+            throw new OlympicsDBException("The server can't use backend = remote");
+        }
+
+        final OlympicsBackend backend = BackendFactory.open(props);
+        final OlympicsServer server;
+        try {
+            server = new OlympicsServer(backend, props);
+        } catch (IOException e) {
+            backend.close();
+            throw e;
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread("OlympicsServer-shutdown") {
+            @Override
+            public void run() {
+                server.stop();
+                backend.close();
+            }
+        });
+        server.start();
+        InetSocketAddress address = server.getAddress();
+        System.out.println("Serving " + props.getProperty("backend", "jdbc").trim() + " backend on http://"
+                + address.getHostString() + ":" + address.getPort() + "/api/");
+    }
+}
@@ -0,0 +1,403 @@
+package usyd.it.olympics.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+
+import usyd.it.olympics.OlympicsBackend;
+import usyd.it.olympics.OlympicsDBException;
+import usyd.it.olympics.data.BookingDetails;
+import usyd.it.olympics.data.BookingOutcome;
+import usyd.it.olympics.data.EventDetails;
+import usyd.it.olympics.data.EventResult;
+import usyd.it.olympics.data.GeneralTupleConverter;
+import usyd.it.olympics.data.Itinerary;
+import usyd.it.olympics.data.JourneySummary;
+import usyd.it.olympics.data.MedalStanding;
+import usyd.it.olympics.data.SportDetails;
+import usyd.it.olympics.data.TupleConverter;
+import usyd.it.olympics.data.TupleTable;
+
+/**
+ * Backend of a thin client, which passes every operation to an
+ * OlympicsServer at remote_url (by default http://localhost:8080/) instead
+ * of connecting to the database itself.
+ *
+ * checkLogin gets the member's session on the server. Operations for a
+ * member (memberID, or byStaff for bookings) run in that member's session,
+ * and fail if the member hasn't logged in here; others run in the session of
+ * whoever logged in last, or for recordMedal and getStatistics the last staff
+ * to log in. So one RemoteBackend can be shared by several members at once,
+ * as the LoadGenerator does. Sessions are ended when the backend is closed.
+ * Connections to the server are kept alive and reused by HttpURLConnection.
+ * Results come back with the same schemas and value types as from the
+ * server's own backend.
+ */
+public class RemoteBackend implements OlympicsBackend {
+
+    /// Local schemas of the tables the server sends, by simple class name
+    private static final HashMap<String, TupleConverter> SCHEMAS = new HashMap<String, TupleConverter>();
+
+    static {
+        for (TupleConverter schema : new TupleConverter[] { new SportDetails(), new EventDetails(),
+                new EventResult(), new JourneySummary(), new Itinerary(), new BookingDetails(),
+                new BookingOutcome(), new MedalStanding() }) {
+            SCHEMAS.put(schema.getClass().getSimpleName(), schema);
+        }
+    }
+
+    private final String baseUrl;
+    private final int timeoutMillis;
+    /// Session tokens by member ID
+    private final ConcurrentHashMap<String, String> sessions = new ConcurrentHashMap<String, String>();
+    /// Token of the latest login, null before then
+    private volatile String latest;
+    /// Token of the latest staff login
+    private volatile String latestStaff;
+
+    /**
+     * @param props remote_url and remote_timeout_ms settings
+     */
+    public RemoteBackend(Properties props) {
+        String url = props.getProperty("remote_url", "http://localhost:8080/").trim();
+        baseUrl = (url.endsWith("/") ? url : url + "/") + "api/";
+        int timeout = 30000;
+        try {
+            timeout = Integer.parseInt(props.getProperty("remote_timeout_ms", "30000").trim());
+        } catch (NumberFormatException e) {
+            // Keep the default
+        }
+        timeoutMillis = timeout;
+    }
+
+    @Override
+    public HashMap<String, Object> checkLogin(String member, char[] password) throws OlympicsDBException {
+        HashMap<String, Object> params = new HashMap<String, Object>();
+        params.put("member", member);
+        params.put("password", new String(password));
+        Map<?, ?> reply = call("login", null, params, true);
+        if (reply == null) return null;
+        Map<?, ?> result = (Map<?, ?>) reply.get("result");
+        String token = (String) result.get("session");
+        HashMap<String, Object> details = toHashMap((Map<?, ?>) result.get("member"), null);
+        sessions.put(member, token);
+        latest = token;
+        if ("staff".equals(details.get("member_type"))) latestStaff = token;
+        return details;
+    }
+
+    @Override
+    public HashMap<String, Object> getMemberDetails(String memberID) throws OlympicsDBException {
+        return single(call("getMemberDetails", memberID, member(memberID), false));
+    }
+
+    @Override
+    public TupleTable getSports() throws OlympicsDBException {
+        return table(call("getSports", null, new HashMap<String, Object>(), false));
+    }
+
+    @Override
+    public TupleTable getEventsOfSport(Integer sportId) throws OlympicsDBException {
+        HashMap<String, Object> params = new HashMap<String, Object>();
+        params.put("sport_id", sportId);
+        return table(call("getEventsOfSport", null, params, false));
+    }
+
+    @Override
+    public TupleTable getResultsOfEvent(Integer eventId) throws OlympicsDBException {
+        HashMap<String, Object> params = new HashMap<String, Object>();
+        params.put("event_id", eventId);
+        return table(call("getResultsOfEvent", null, params, false));
+    }
+
+    @Override
+    public boolean recordMedal(Integer eventId, String participant, String medal) throws OlympicsDBException {
+        HashMap<String, Object> params = new HashMap<String, Object>();
+        params.put("event_id", eventId);
+        params.put("participant", participant);
+        params.put("medal", medal);
+        // Not for a member, but only staff may do it
+        String staff = latestStaff;
+        if (staff == null) throw new OlympicsDBException("Not logged in as staff");
+        return Boolean.TRUE.equals(send("recordMedal", staff, params, false).get("result"));
+    }
+
+    @Override
+    public TupleTable getMedalLeaderboard(int limit) throws OlympicsDBException {
+        HashMap<String, Object> params = new HashMap<String, Object>();
+        params.put("limit", limit);
+        return table(call("getMedalLeaderboard", null, params, false));
+    }
+
+    @Override
+    public TupleTable findJourneys(String fromPlace, String toPlace, Date journeyDate) throws OlympicsDBException {
+        HashMap<String, Object> params = new HashMap<String, Object>();
+        params.put("from", fromPlace);
+        params.put("to", toPlace);
+        params.put("date", journeyDate);
+        return table(call("findJourneys", null, params, false));
+    }
+
+    @Override
+    public TupleTable planJourneys(String fromPlace, String toPlace, Date departAfter) throws OlympicsDBException {
+        HashMap<String, Object> params = new HashMap<String, Object>();
+        params.put("from", fromPlace);
+        params.put("to", toPlace);
+        params.put("depart_after", departAfter);
+        return table(call("planJourneys", null, params, false));
+    }
+
+    @Override
+    public HashMap<String, Object> getJourneyDetails(Integer journeyId) throws OlympicsDBException {
+        HashMap<String, Object> params = new HashMap<String, Object>();
+        params.put("journey_id", journeyId);
+        return single(call("getJourneyDetails", null, params, false));
+    }
+
+    @Override
+    public TupleTable getMemberBookings(String memberID) throws OlympicsDBException {
+        return table(call("getMemberBookings", memberID, member(memberID), false));
+    }
+
+    @Override
+    public TupleTable getMemberBookings(String memberID, Date afterDeparture, Integer afterJourneyId, int limit) throws OlympicsDBException {
+        HashMap<String, Object> params = member(memberID);
+        if (afterDeparture != null) {
+            params.put("after_departs", afterDeparture);
+            params.put("after_journey_id", afterJourneyId);
+        }
+        params.put("limit", limit);
+        return table(call("getMemberBookings", memberID, params, false));
+    }
+
+    @Override
+    public int countMemberBookings(String memberID) throws OlympicsDBException {
+        Object count = call("countMemberBookings", memberID, member(memberID), false).get("result");
+        return count instanceof Number ? ((Number) count).intValue() : 0;
+    }
+
+    @Override
+    public HashMap<String, Object> getBookingDetails(String memberID, Integer journeyId) throws OlympicsDBException {
+        HashMap<String, Object> params = member(memberID);
+        params.put("journey_id", journeyId);
+        return single(call("getBookingDetails", memberID, params, false));
+    }
+
+    @Override
+    public HashMap<String, Object> makeBooking(String byStaff, String forMember, String vehicle, Date departs) throws OlympicsDBException {
+        HashMap<String, Object> params = new HashMap<String, Object>();
+        params.put("for_member", forMember);
+        params.put("vehicle", vehicle);
+        params.put("departs", departs);
+        return single(call("makeBooking", byStaff, params, false));
+    }
+
+    @Override
+    public TupleTable makeBookings(String byStaff, List<String> forMembers, String vehicle, Date departs) throws OlympicsDBException {
+        HashMap<String, Object> params = new HashMap<String, Object>();
+        params.put("for_members", forMembers);
+        params.put("vehicle", vehicle);
+        params.put("departs", departs);
+        return table(call("makeBookings", byStaff, params, false));
+    }
+
+    /**
+     * @return statistics of the server and its backend, or only remote_error
+     * if they can't be fetched, as when no staff member is logged in
+     */
+    @Override
+    public HashMap<String, Object> getStatistics() {
+        HashMap<String, Object> stats;
+        try {
+            // Only staff may see them
+            String staff = latestStaff;
+            if (staff == null) throw new OlympicsDBException("Not logged in as staff");
+            stats = single(send("statistics", staff, new HashMap<String, Object>(), false));
+            if (stats == null) stats = new HashMap<String, Object>();
+        } catch (OlympicsDBException e) {
+            stats = new HashMap<String, Object>();
+            stats.put("remote_error", e.getMessage());
+        }
+        stats.put("remote_url", baseUrl);
+        return stats;
+    }
+
+    /**
+     * Log the member's session out of the server
+     */
+    @Override
+    public void endSession(String memberID) {
+        String token = memberID == null ? null : sessions.remove(memberID);
+        if (token == null) return;
+        if (token.equals(latest)) latest = null;
+        if (token.equals(latestStaff)) latestStaff = null;
+        try {
+            request("logout", new HashMap<String, Object>(), token);
+        } catch (IOException e) {
+            // The session will expire on the server
+        }
+    }
+
+    @Override
+    public void close() {
+        for (String member : sessions.keySet()) {
+            endSession(member);
+        }
+    }
+
+    private HashMap<String, Object> member(String memberID) {
+        HashMap<String, Object> params = new HashMap<String, Object>();
+        params.put("member_id", memberID);
+        return params;
+    }
+
+    /**
+     * Run an operation on the server
+     * @param member member the operation is for, whose session is used, or
+     * null if it isn't for a member
+     * @param loginFailure true if a 401 status means the login was refused,
+     * in which case null is returned
+     * @return the reply
+     * @throws OlympicsDBException with the server's message if the operation
+     * failed, if the member isn't logged in, or if the server couldn't be
+     * reached
+     */
+    private Map<?, ?> call(String operation, String member, Map<String, Object> params, boolean loginFailure) throws OlympicsDBException {
+        String token = member == null ? latest : sessions.get(member);
+        // Never another member's session, which could carry more privileges
+        if (token == null && member != null) throw new OlympicsDBException("Not logged in as " + member);
+        return send(operation, token, params, loginFailure);
+    }
+
+    /**
+     * Run an operation on the server in a given session
+     * @param token the session's token, or null for none
+     */
+    private Map<?, ?> send(String operation, String token, Map<String, Object> params, boolean loginFailure) throws OlympicsDBException {
+        Object[] response;
+        try {
+            response = request(operation, params, token);
+        } catch (IOException e) {
+            throw new OlympicsDBException("Couldn't reach server at " + baseUrl, e);
+        }
+        int status = (Integer) response[0];
+        if (((String) response[1]).isEmpty()) {
+            if (status == 401 && loginFailure) return null;
+            throw new OlympicsDBException("Server replied with status " + status);
+        }
+        Object reply;
+        try {
+            reply = Json.parse((String) response[1]);
+        } catch (IllegalArgumentException e) {
+            throw new OlympicsDBException("Bad reply from server: " + e.getMessage(), e);
+        }
+        if (!(reply instanceof Map)) throw new OlympicsDBException("Bad reply from server");
+        Map<?, ?> map = (Map<?, ?>) reply;
+        if (status == 401 && loginFailure) return null;
+        if (status != 200) throw new OlympicsDBException(String.valueOf(map.get("error")));
+        return map;
+    }
+
+    /**
+     * @return the HTTP status and body of the reply
+     */
+    private Object[] request(String operation, Map<String, Object> params, String token) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) new URL(baseUrl + operation).openConnection();
+        conn.setConnectTimeout(timeoutMillis);
+        conn.setReadTimeout(timeoutMillis);
+        conn.setRequestMethod("POST");
+        conn.setDoOutput(true);
+        conn.setRequestProperty("Content-Type", "application/json; charset=utf-8");
+        if (token != null) conn.setRequestProperty("Authorization", "Bearer " + token);
+        byte[] body = Json.write(params).getBytes(StandardCharsets.UTF_8);
+        OutputStream out = conn.getOutputStream();
+        try {
+            out.write(body);
+        } finally {
+            out.close();
+        }
+
+        int status = conn.getResponseCode();
+        InputStream in = status >= 400 ? conn.getErrorStream() : conn.getInputStream();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        if (in != null) {
+            try {
+                byte[] buffer = new byte[8192];
+                int n;
+                while ((n = in.read(buffer)) > 0) bytes.write(buffer, 0, n);
+            } finally {
+                in.close();
+            }
+        }
+        return new Object[] { status, new String(bytes.toByteArray(), StandardCharsets.UTF_8) };
+    }
+
+    /**
+     * @return the single result of a reply, with its dates restored
+     */
+    private static HashMap<String, Object> single(Map<?, ?> reply) {
+        Object result = reply.get("result");
+        if (!(result instanceof Map)) return null;
+        return toHashMap((Map<?, ?>) result, (List<?>) reply.get("dates"));
+    }
+
+    private static HashMap<String, Object> toHashMap(Map<?, ?> values, List<?> dates) {
+        HashMap<String, Object> map = new HashMap<String, Object>();
+        for (Map.Entry<?, ?> entry : values.entrySet()) {
+            Object value = entry.getValue();
+            if (dates != null && dates.contains(entry.getKey())) value = Json.parseDate(value);
+            map.put(entry.getKey().toString(), value);
+        }
+        return map;
+    }
+
+    /**
+     * @return the table result of a reply, in the local schema of the same
+     * name, or null if there is none
+     */
+    private static TupleTable table(Map<?, ?> reply) throws OlympicsDBException {
+        Object result = reply.get("result");
+        if (!(result instanceof Map)) return null;
+        Map<?, ?> json = (Map<?, ?>) result;
+        TupleConverter schema = SCHEMAS.get(json.get("schema"));
+        List<?> columns = (List<?>) json.get("columns");
+        if (schema == null) {
+            // A table this client doesn't know; keep the values as sent
+            String[] names = new String[columns.size()];
+            Class<?>[] classes = new Class<?>[columns.size()];
+            for (int i = 0; i < names.length; ++i) {
+                names[i] = columns.get(i).toString();
+                classes[i] = Object.class;
+            }
+            schema = new GeneralTupleConverter(names, classes);
+        } else if (schema.getAttributeNames().length != columns.size()) {
+            throw new OlympicsDBException("Server sent " + json.get("schema") + " with different columns");
+        }
+
+        Class<?>[] classes = schema.getColumnClasses();
+        List<?> rows = (List<?>) json.get("rows");
+        TupleTable table = new TupleTable(schema, rows.size());
+        for (Object r : rows) {
+            List<?> values = (List<?>) r;
+            Object[] row = new Object[classes.length];
+            for (int i = 0; i < row.length; ++i) {
+                Object value = values.get(i);
+                if (value != null && classes[i] == Date.class) value = Json.parseDate(value);
+                else if (value instanceof Number && classes[i] == Integer.class) value = ((Number) value).intValue();
+                row[i] = value;
+            }
+            table.add(row);
+        }
+        return table;
+    }
+}
@@ -0,0 +1,450 @@
+package usyd.it.olympics.tools;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+
+/**
+ * Reproducible Olympics dataset for benchmarks, load tests and the in-memory
+ * backend. The same seed and scale always give the same rows.
+ *
+ * Each table is a list of rows, one Object[] per row with values in the order
+ * of the table's column list below. load() writes them into a PostgreSQL
+ * database, optionally creating the schema first.
+ *
+ * Run on its own to seed the database named in a config file:
+ *   java usyd.it.olympics.tools.Dataset bench.properties allow_truncate=true [seed] [scale]
+ * Seeding empties every Olympics table first, so the config file has to be
+ * named and allow_truncate=true given. It also refuses a database whose
+ * members were not generated here, which is most likely real data.
+ */
+public class Dataset {
+
+    /// Column lists, in the order values appear in each row
+    public static final String[] COUNTRY = { "country_code", "country_name" };
+    public static final String[] PLACE = { "place_id", "place_name" };
+    public static final String[] ACCOMMODATION = { "place_id" };
+    public static final String[] MEMBER = { "member_id", "title", "family_name", "given_names", "country_code", "accommodation", "pass_word" };
+    public static final String[] ATHLETE = { "member_id" };
+    public static final String[] OFFICIAL = { "member_id" };
+    public static final String[] STAFF = { "member_id" };
+    public static final String[] SPORT = { "sport_id", "sport_name", "discipline" };
+    public static final String[] EVENT = { "event_id", "sport_id", "event_name", "event_gender", "sport_venue", "event_start" };
+    public static final String[] PARTICIPATES = { "event_id", "athlete_id", "medal" };
+    public static final String[] TEAM = { "event_id", "team_name", "country_code", "medal" };
+    public static final String[] TEAM_MEMBER = { "event_id", "team_name", "athlete_id" };
+    public static final String[] VEHICLE = { "vehicle_code", "capacity" };
+    public static final String[] JOURNEY = { "journey_id", "vehicle_code", "from_place", "to_place", "depart_time", "arrive_time", "nbooked" };
+    public static final String[] BOOKING = { "booked_for", "booked_by", "when_booked", "journey_id" };
+
+    private static final String[] SCHEMA = {
+        "CREATE TABLE IF NOT EXISTS Country (country_code CHAR(3) PRIMARY KEY, country_name VARCHAR(40) NOT NULL)",
+        "CREATE TABLE IF NOT EXISTS Place (place_id INTEGER PRIMARY KEY, place_name VARCHAR(80) NOT NULL)",
+        "CREATE TABLE IF NOT EXISTS Accommodation (place_id INTEGER PRIMARY KEY REFERENCES Place)",
+        "CREATE TABLE IF NOT EXISTS Member (member_id VARCHAR(10) PRIMARY KEY, title VARCHAR(4), "
+            + "family_name VARCHAR(30) NOT NULL, given_names VARCHAR(30) NOT NULL, "
+            + "country_code CHAR(3) NOT NULL REFERENCES Country, accommodation INTEGER NOT NULL REFERENCES Accommodation, "
+            + "pass_word VARCHAR(20) NOT NULL)",
+        "CREATE TABLE IF NOT EXISTS Athlete (member_id VARCHAR(10) PRIMARY KEY REFERENCES Member)",
+        "CREATE TABLE IF NOT EXISTS Official (member_id VARCHAR(10) PRIMARY KEY REFERENCES Member)",
+        "CREATE TABLE IF NOT EXISTS Staff (member_id VARCHAR(10) PRIMARY KEY REFERENCES Member)",
+        "CREATE TABLE IF NOT EXISTS Sport (sport_id INTEGER PRIMARY KEY, sport_name VARCHAR(40) NOT NULL, discipline VARCHAR(40) NOT NULL)",
+        "CREATE TABLE IF NOT EXISTS Event (event_id INTEGER PRIMARY KEY, sport_id INTEGER NOT NULL REFERENCES Sport, "
+            + "event_name VARCHAR(60) NOT NULL, event_gender CHAR(1) NOT NULL, "
+            + "sport_venue INTEGER NOT NULL REFERENCES Place, event_start TIMESTAMP NOT NULL)",
+        "CREATE TABLE IF NOT EXISTS Participates (event_id INTEGER REFERENCES Event, athlete_id VARCHAR(10) REFERENCES Athlete, "
+            + "medal CHAR(1), PRIMARY KEY (event_id, athlete_id))",
+        "CREATE TABLE IF NOT EXISTS Team (event_id INTEGER REFERENCES Event, team_name VARCHAR(40), "
+            + "country_code CHAR(3) NOT NULL REFERENCES Country, medal CHAR(1), PRIMARY KEY (event_id, team_name))",
+        "CREATE TABLE IF NOT EXISTS TeamMember (event_id INTEGER, team_name VARCHAR(40), athlete_id VARCHAR(10) REFERENCES Athlete, "
+            + "PRIMARY KEY (event_id, team_name, athlete_id), FOREIGN KEY (event_id, team_name) REFERENCES Team)",
+        "CREATE TABLE IF NOT EXISTS Vehicle (vehicle_code CHAR(8) PRIMARY KEY, capacity INTEGER NOT NULL)",
+        "CREATE TABLE IF NOT EXISTS Journey (journey_id INTEGER PRIMARY KEY, vehicle_code CHAR(8) NOT NULL REFERENCES Vehicle, "
+            + "from_place INTEGER NOT NULL REFERENCES Place, to_place INTEGER NOT NULL REFERENCES Place, "
+            + "depart_time TIMESTAMP NOT NULL, arrive_time TIMESTAMP NOT NULL, nbooked INTEGER NOT NULL DEFAULT 0, "
+            + "UNIQUE (vehicle_code, depart_time))",
+        "CREATE TABLE IF NOT EXISTS Booking (booked_for VARCHAR(10) REFERENCES Member, booked_by VARCHAR(10) NOT NULL REFERENCES Staff, "
+            + "when_booked TIMESTAMP NOT NULL, journey_id INTEGER REFERENCES Journey, PRIMARY KEY (booked_for, journey_id))",
+        "CREATE INDEX IF NOT EXISTS journey_depart_idx ON Journey (depart_time)",
+        "CREATE INDEX IF NOT EXISTS booking_journey_idx ON Booking (journey_id)",
+        "CREATE INDEX IF NOT EXISTS event_sport_idx ON Event (sport_id)",
+        "CREATE INDEX IF NOT EXISTS participates_athlete_idx ON Participates (athlete_id)",
+        "CREATE INDEX IF NOT EXISTS teammember_athlete_idx ON TeamMember (athlete_id)",
+    };
+
+    /// Tables in load order; cleared in reverse
+    private static final String[] TABLES = { "Country", "Place", "Accommodation", "Member", "Athlete", "Official", "Staff",
+        "Sport", "Event", "Participates", "Team", "TeamMember", "Vehicle", "Journey", "Booking" };
+
+    private static final String[] FAMILY_NAMES = { "Smith", "Nguyen", "Garcia", "Muller", "Rossi", "Kim", "Silva", "Ivanov",
+        "Tanaka", "Okafor", "Jensen", "Dubois", "Kowalski", "Haddad", "Chen", "Brown", "Wilson", "Lopez", "Singh", "Cohen" };
+    private static final String[] GIVEN_NAMES = { "Alex", "Sam", "Jordan", "Taylor", "Chris", "Robin", "Jamie", "Kai",
+        "Noor", "Mika", "Ana", "Li", "Omar", "Eva", "Tom", "Zoe", "Ravi", "Ida", "Leo", "Maya" };
+    private static final String[] SPORTS = { "Athletics", "Aquatics", "Cycling", "Gymnastics", "Rowing", "Sailing",
+        "Tennis", "Hockey", "Basketball", "Volleyball", "Judo", "Boxing", "Fencing", "Archery", "Shooting",
+        "Equestrian", "Canoe", "Triathlon", "Weightlifting", "Wrestling", "Badminton", "Table Tennis",
+        "Handball", "Football", "Baseball", "Softball", "Taekwondo", "Modern Pentathlon" };
+    private static final String[] MEDALS = { "G", "S", "B" };
+
+    public final long seed;
+    public final double scale;
+
+    public final ArrayList<Object[]> countries = new ArrayList<Object[]>();
+    public final ArrayList<Object[]> places = new ArrayList<Object[]>();
+    public final ArrayList<Object[]> accommodation = new ArrayList<Object[]>();
+    public final ArrayList<Object[]> members = new ArrayList<Object[]>();
+    public final ArrayList<Object[]> athletes = new ArrayList<Object[]>();
+    public final ArrayList<Object[]> officials = new ArrayList<Object[]>();
+    public final ArrayList<Object[]> staff = new ArrayList<Object[]>();
+    public final ArrayList<Object[]> sports = new ArrayList<Object[]>();
+    public final ArrayList<Object[]> events = new ArrayList<Object[]>();
+    public final ArrayList<Object[]> participates = new ArrayList<Object[]>();
+    public final ArrayList<Object[]> teams = new ArrayList<Object[]>();
+    public final ArrayList<Object[]> teamMembers = new ArrayList<Object[]>();
+    public final ArrayList<Object[]> vehicles = new ArrayList<Object[]>();
+    public final ArrayList<Object[]> journeys = new ArrayList<Object[]>();
+    public final ArrayList<Object[]> bookings = new ArrayList<Object[]>();
+
+    /// Time of midnight at the start of the first day of the Games
+    public final long firstDay;
+    public final int days;
+
+    /**
+     * Generate a dataset. Scale 1 is roughly the size of a Summer Games:
+     * 10000 members, 300 events and 40000 journeys over 16 days.
+     * @param seed random seed
+     * @param scale multiplier for the number of members, events, vehicles and bookings
+     */
+    public Dataset(long seed, double scale) {
+        this.seed = seed;
+        this.scale = scale;
+        Random random = new Random(seed);
+        Calendar cal = Calendar.getInstance();
+        cal.clear();
+        cal.set(2000, Calendar.SEPTEMBER, 15);
+        firstDay = cal.getTimeInMillis();
+        days = 16;
+
+        int nCountries = 60;
+        int nAccommodation = 40;
+        int nVenues = 30;
+        int nHubs = 30;
+        int nMembers = scaled(10000);
+        int nSports = SPORTS.length;
+        int eventsPerSport = scaled(11);
+        int nVehicles = scaled(250);
+        int nBookings = scaled(40000);
+
+        for (int i = 0; i < nCountries; ++i) {
+            countries.add(new Object[] { countryCode(i), "Country " + (i + 1) });
+        }
+        int placeId = 1;
+        for (int i = 0; i < nAccommodation; ++i, ++placeId) {
+            places.add(new Object[] { placeId, "Village " + (i + 1) });
+            accommodation.add(new Object[] { placeId });
+        }
+        ArrayList<Integer> venues = new ArrayList<Integer>();
+        for (int i = 0; i < nVenues; ++i, ++placeId) {
+            places.add(new Object[] { placeId, "Venue " + (i + 1) });
+            venues.add(placeId);
+        }
+        for (int i = 0; i < nHubs; ++i, ++placeId) {
+            places.add(new Object[] { placeId, "Transport Hub " + (i + 1) });
+        }
+
+        // Athletes first, then officials, then staff
+        HashMap<String, ArrayList<String>> athletesByCountry = new HashMap<String, ArrayList<String>>();
+        ArrayList<String> athleteIds = new ArrayList<String>();
+        int nAthletes = nMembers * 7 / 10;
+        int nOfficials = nMembers / 10;
+        for (int i = 0; i < nMembers; ++i) {
+            String id = memberId(i);
+            String country = countryCode(random.nextInt(nCountries));
+            String given = GIVEN_NAMES[(i / FAMILY_NAMES.length) % GIVEN_NAMES.length];
+            int round = i / (FAMILY_NAMES.length * GIVEN_NAMES.length);
+            members.add(new Object[] { id, random.nextBoolean() ? "Mr" : "Ms",
+                    FAMILY_NAMES[i % FAMILY_NAMES.length], round == 0 ? given : given + " " + round,
+                    country, 1 + random.nextInt(nAccommodation), password(id) });
+            if (i < nAthletes) {
+                athletes.add(new Object[] { id });
+                athleteIds.add(id);
+                ArrayList<String> ofCountry = athletesByCountry.get(country);
+                if (ofCountry == null) {
+                    ofCountry = new ArrayList<String>();
+                    athletesByCountry.put(country, ofCountry);
+                }
+                ofCountry.add(id);
+            } else if (i < nAthletes + nOfficials) {
+                officials.add(new Object[] { id });
+            } else {
+                staff.add(new Object[] { id });
+            }
+        }
+
+        int eventId = 1;
+        for (int s = 0; s < nSports; ++s) {
+            int sportId = s + 1;
+            sports.add(new Object[] { sportId, SPORTS[s], SPORTS[s] + " " + (char) ('A' + random.nextInt(3)) });
+            for (int e = 0; e < eventsPerSport; ++e, ++eventId) {
+                String gender = e % 3 == 0 ? "W" : e % 3 == 1 ? "M" : "X";
+                long start = firstDay + random.nextInt(days) * 86400000L + (8 + random.nextInt(12)) * 3600000L;
+                events.add(new Object[] { eventId, sportId, SPORTS[s] + " event " + (e + 1), gender,
+                        venues.get(random.nextInt(venues.size())), new Timestamp(start) });
+                if (random.nextInt(5) == 0) {
+                    // Team event: four countries with enough athletes
+                    int medal = 0;
+                    HashSet<String> used = new HashSet<String>();
+                    for (int tries = 0; tries < 20 && used.size() < 4; ++tries) {
+                        String country = countryCode(random.nextInt(nCountries));
+                        ArrayList<String> squad = athletesByCountry.get(country);
+                        if (squad == null || squad.size() < 4 || !used.add(country)) continue;
+                        String teamName = "Team " + country;
+                        teams.add(new Object[] { eventId, teamName, country, medal < 3 ? MEDALS[medal] : null });
+                        ++medal;
+                        HashSet<String> picked = new HashSet<String>();
+                        while (picked.size() < 4) {
+                            String athlete = squad.get(random.nextInt(squad.size()));
+                            if (picked.add(athlete)) teamMembers.add(new Object[] { eventId, teamName, athlete });
+                        }
+                    }
+                } else {
+                    HashSet<String> picked = new HashSet<String>();
+                    while (picked.size() < 8) {
+                        String athlete = athleteIds.get(random.nextInt(athleteIds.size()));
+                        if (picked.add(athlete)) {
+                            int place = picked.size() - 1;
+                            participates.add(new Object[] { eventId, athlete, place < 3 ? MEDALS[place] : null });
+                        }
+                    }
+                }
+            }
+        }
+
+        // Each vehicle runs a chain of trips every day, so the timetable has
+        // same-vehicle connections as well as changes
+        int[] capacities = new int[nVehicles];
+        for (int v = 0; v < nVehicles; ++v) {
+            capacities[v] = 20 + 10 * random.nextInt(5);
+            vehicles.add(new Object[] { vehicleCode(v), capacities[v] });
+        }
+        int nPlaces = places.size();
+        int journeyId = 1;
+        for (int d = 0; d < days; ++d) {
+            long dayStart = firstDay + d * 86400000L;
+            for (int v = 0; v < nVehicles; ++v) {
+                int at = 1 + random.nextInt(nPlaces);
+                long departs = dayStart + 6 * 3600000L + random.nextInt(24) * 300000L;
+                while (departs < dayStart + 23 * 3600000L) {
+                    int to = 1 + random.nextInt(nPlaces - 1);
+                    if (to >= at) ++to;
+                    long arrives = departs + (15 + random.nextInt(22) * 5) * 60000L;
+                    journeys.add(new Object[] { journeyId++, vehicleCode(v), at, to,
+                            new Timestamp(departs), new Timestamp(arrives), 0 });
+                    at = to;
+                    departs = arrives + (10 + random.nextInt(7) * 5) * 60000L;
+                }
+            }
+        }
+
+        // Bookings by random staff, never past a vehicle's capacity
+        HashSet<String> booked = new HashSet<String>();
+        for (int b = 0, tries = 0; b < nBookings && tries < nBookings * 3; ++tries) {
+            Object[] journey = journeys.get(random.nextInt(journeys.size()));
+            int capacity = capacities[Integer.parseInt(((String) journey[1]).substring(1).trim())];
+            String member = memberId(random.nextInt(nMembers));
+            if ((Integer) journey[6] >= capacity || !booked.add(member + "/" + journey[0])) continue;
+            journey[6] = (Integer) journey[6] + 1;
+            String by = (String) staff.get(random.nextInt(staff.size()))[0];
+            long when = ((Timestamp) journey[4]).getTime() - (1 + random.nextInt(72)) * 3600000L;
+            bookings.add(new Object[] { member, by, new Timestamp(when), journey[0] });
+            ++b;
+        }
+    }
+
+    /**
+     * @return ID of the i-th member, e.g. for picking benchmark parameters
+     */
+    public static String memberId(int i) {
+        return String.format("M%06d", i + 1);
+    }
+
+    /**
+     * @return password of a generated member
+     */
+    public static String password(String memberId) {
+        return "pw" + memberId;
+    }
+
+    /**
+     * @return booking name ("family, given") of a member row
+     */
+    public static String memberName(Object[] member) {
+        return member[2] + ", " + member[3];
+    }
+
+    /**
+     * Write the dataset into a database, replacing what is in its tables
+     * @param conn connection to load through; left in auto-commit mode
+     * @param createSchema whether to create any missing tables first
+     * @throws SQLException
+     */
+    public void load(Connection conn, boolean createSchema) throws SQLException {
+        boolean autoCommit = conn.getAutoCommit();
+        conn.setAutoCommit(false);
+        try {
+            Statement stmt = conn.createStatement();
+            if (createSchema) {
+                for (String ddl : SCHEMA) stmt.execute(ddl);
+            }
+            StringBuilder tables = new StringBuilder();
+            for (String table : TABLES) {
+                if (tables.length() > 0) tables.append(", ");
+                tables.append(table);
+            }
+            stmt.execute("TRUNCATE " + tables);
+            stmt.close();
+
+            insert(conn, "Country", COUNTRY, countries);
+            insert(conn, "Place", PLACE, places);
+            insert(conn, "Accommodation", ACCOMMODATION, accommodation);
+            insert(conn, "Member", MEMBER, members);
+            insert(conn, "Athlete", ATHLETE, athletes);
+            insert(conn, "Official", OFFICIAL, officials);
+            insert(conn, "Staff", STAFF, staff);
+            insert(conn, "Sport", SPORT, sports);
+            insert(conn, "Event", EVENT, events);
+            insert(conn, "Participates", PARTICIPATES, participates);
+            insert(conn, "Team", TEAM, teams);
+            insert(conn, "TeamMember", TEAM_MEMBER, teamMembers);
+            insert(conn, "Vehicle", VEHICLE, vehicles);
+            insert(conn, "Journey", JOURNEY, journeys);
+            insert(conn, "Booking", BOOKING, bookings);
+            conn.commit();
+
+            stmt = conn.createStatement();
+            stmt.execute("ANALYZE");
+            stmt.close();
+        } catch (SQLException e) {
+            conn.rollback();
+            throw e;
+        } finally {
+            conn.setAutoCommit(autoCommit);
+        }
+    }
+
+    private static void insert(Connection conn, String table, String[] columns, List<Object[]> rows) throws SQLException {
+        StringBuilder sql = new StringBuilder("INSERT INTO ").append(table).append(" (");
+        StringBuilder params = new StringBuilder();
+        for (int i = 0; i < columns.length; ++i) {
+            sql.append(i > 0 ? ", " : "").append(columns[i]);
+            params.append(i > 0 ? ", ?" : "?");
+        }
+        sql.append(") VALUES (").append(params).append(")");
+        PreparedStatement stmt = conn.prepareStatement(sql.toString());
+        int pending = 0;
+        for (Object[] row : rows) {
+            for (int i = 0; i < row.length; ++i) stmt.setObject(i + 1, row[i]);
+            stmt.addBatch();
+            if (++pending == 1000) {
+                stmt.executeBatch();
+                pending = 0;
+            }
+        }
+        if (pending > 0) stmt.executeBatch();
+        stmt.close();
+    }
+
+    private int scaled(int size) {
+        return Math.max(1, (int) Math.round(size * scale));
+    }
+
+    private static String countryCode(int i) {
+        return "C" + (char) ('A' + i / 26) + (char) ('A' + i % 26);
+    }
+
+    private static String vehicleCode(int v) {
+        return String.format("V%07d", v);
+    }
+
+    /**
+     * Open a connection using the same config file as the client
+     */
+    public static Connection connect(Properties props) throws SQLException, ClassNotFoundException {
+        if (!"postgresql".equals(props.getProperty("dbvendor"))) {
+            throw new SQLException("Only PostgreSQL can be seeded");
+        }
+        Class.forName("org.postgresql.Driver");
+        return DriverManager.getConnection(
+                "jdbc:postgresql://" + props.getProperty("address") + ":" + props.getProperty("port") + "/" + props.getProperty("dbname"),
+                props.getProperty("username", ""), props.getProperty("userpass", ""));
+    }
+
+    /**
+     * @return whether the database has members that no Dataset generated,
+     * which seeding would destroy
+     */
+    public static boolean holdsOtherMembers(Connection conn) throws SQLException {
+        Statement stmt = conn.createStatement();
+        try {
+            ResultSet rs = stmt.executeQuery("SELECT to_regclass('member') IS NOT NULL");
+            if (!rs.next() || !rs.getBoolean(1)) {
+                return false;
+            }
+            rs = stmt.executeQuery("SELECT EXISTS (SELECT 1 FROM Member WHERE pass_word IS DISTINCT FROM 'pw' || member_id)");
+            return rs.next() && rs.getBoolean(1);
+        } finally {
+            stmt.close();
+        }
+    }
+
+    public static void main(String[] args) throws IOException, SQLException, ClassNotFoundException {
+        ArrayList<String> positional = new ArrayList<String>();
+        boolean allowTruncate = false;
+        for (String arg : args) {
+            if (arg.equals("allow_truncate=true")) allowTruncate = true;
+            else if (!arg.contains("=")) positional.add(arg);
+        }
+        if (positional.isEmpty() || !allowTruncate) {
+            System.err.println("Usage: java usyd.it.olympics.tools.Dataset <config> allow_truncate=true [seed] [scale]");
+            System.err.println("Seeding empties every Olympics table in the database the config names.");
+            System.exit(2);
+        }
+        Properties props = new Properties();
+        InputStream in = new FileInputStream(positional.get(0));
+        try {
+            props.load(in);
+        } finally {
+            in.close();
+        }
+        long seed = positional.size() > 1 ? Long.parseLong(positional.get(1)) : 2000;
+        double scale = positional.size() > 2 ? Double.parseDouble(positional.get(2)) : 1.0;
+        Dataset dataset = new Dataset(seed, scale);
+        Connection conn = connect(props);
+        try {
+            if (holdsOtherMembers(conn)) {
+                System.err.println("Not seeding " + props.getProperty("dbname")
+                        + ": it has members no Dataset generated. Seed a scratch database instead.");
+                System.exit(1);
+            }
+            dataset.load(conn, true);
+        } finally {
+            conn.close();
+        }
+        System.out.println("Loaded " + dataset.members.size() + " members, " + dataset.events.size() + " events, "
+                + dataset.journeys.size() + " journeys and " + dataset.bookings.size() + " bookings (seed " + seed + ")");
+    }
+}
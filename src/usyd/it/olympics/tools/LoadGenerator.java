@@ -0,0 +1,470 @@
+package usyd.it.olympics.tools;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import usyd.it.olympics.BackendExecutor;
+import usyd.it.olympics.BackendFactory;
+import usyd.it.olympics.LatencyHistogram;
+import usyd.it.olympics.OlympicsBackend;
+import usyd.it.olympics.OlympicsDBClient;
+import usyd.it.olympics.OlympicsDBException;
+import usyd.it.olympics.data.TupleTable;
+
+/**
+ * Headless load test of the backend: simulated members and staff run the
+ * same sessions as the client, with no GUI, and the throughput and latency
+ * percentiles of every operation are reported at the end.
+ *
+ * Sessions start open-loop at load_rate per second, whether or not earlier
+ * ones have finished, so a backend that can't keep up shows as growing
+ * latency and sessions in flight rather than as a lower request rate. Each
+ * session runs on its own thread (a virtual thread where the JVM has them)
+ * and pauses for a random think time, averaging load_think_ms, between
+ * operations. Sessions that log in end with endSession, as the client's
+ * logout does, so they leave no cached profile or server session behind.
+ * Sessions of the same member overlap, and share one backend session, so
+ * only the last of them to finish ends it.
+ * The kinds of session are mixed in the proportions of load_mix:
+ *   member: login, member details, journey search, journey details, history,
+ *           booking details, logout
+ *   staff:  login, journey search, journey details, booking, seats after
+ *           booking, logout
+ *   browse: sports, events of a sport, results of an event
+ *
+ * Members, places and journeys are drawn from the Dataset with load_seed and
+ * load_scale, so the database should be seeded with the same dataset (or
+ * backend set to memory). Staff sessions make real bookings, which are left
+ * in place, so a backend other than memory needs its config file named, and
+ * it should point at a scratch database. Settings come from the config file
+ * and can be overridden on the command line:
+ *   java usyd.it.olympics.tools.LoadGenerator bench.properties load_rate=200 load_duration_s=120
+ *   java usyd.it.olympics.tools.LoadGenerator backend=memory load_rate=200
+ */
+public class LoadGenerator {
+
+    private static final String[] KINDS = { "member", "staff", "browse" };
+
+    /**
+     * Latencies and errors of one operation
+     */
+    private static final class Stat {
+        final LatencyHistogram latency = new LatencyHistogram();
+        final AtomicLong errors = new AtomicLong();
+    }
+
+    /**
+     * Times the operations of one session in turn
+     */
+    private final class Op {
+        private String name;
+        private long start;
+
+        void begin(String name) {
+            this.name = name;
+            start = System.nanoTime();
+        }
+
+        void end() {
+            stats.get(name).latency.record(System.nanoTime() - start);
+            name = null;
+        }
+
+        void fail() {
+            if (name == null) return;
+            Stat stat = stats.get(name);
+            stat.latency.record(System.nanoTime() - start);
+            stat.errors.incrementAndGet();
+            name = null;
+        }
+    }
+
+    private final OlympicsBackend backend;
+    private final Dataset dataset;
+    private final double rate;
+    private final long durationMillis;
+    private final long thinkMillis;
+    private final int maxSessions;
+    private final long seed;
+    /// Cumulative weights of KINDS
+    private final int[] mix = new int[KINDS.length];
+    /// Staff member IDs, for booking sessions
+    private final ArrayList<String> staff = new ArrayList<String>();
+
+    /**
+     * Sessions currently logged in as one member. Locked while logging the
+     * member out, so a new session can't log in until that is done.
+     */
+    private static final class Login {
+        int sessions;
+    }
+
+    /// Login of each member that has had a session, never removed as there are only as many as members
+    private final ConcurrentHashMap<String, Login> logins = new ConcurrentHashMap<String, Login>();
+
+    private final LinkedHashMap<String, Stat> stats = new LinkedHashMap<String, Stat>();
+    /// How late sessions started after their scheduled time
+    private final LatencyHistogram startLag = new LatencyHistogram();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicLong started = new AtomicLong();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+
+    /**
+     * @param backend backend to load
+     * @param props load_* settings
+     */
+    public LoadGenerator(OlympicsBackend backend, Properties props) {
+        this.backend = backend;
+        seed = longProperty(props, "load_seed", longProperty(props, "memory_seed", 2000));
+        double scale = doubleProperty(props, "load_scale", doubleProperty(props, "memory_scale", 1.0));
+        dataset = new Dataset(seed, scale);
+        rate = doubleProperty(props, "load_rate", 10);
+        // Sessions are started a whole number of nanoseconds apart
+        if (!(rate > 0 && rate <= 1e9)) throw new IllegalArgumentException("load_rate must be above 0 and at most 1e9 per second");
+        durationMillis = 1000 * longProperty(props, "load_duration_s", 60);
+        thinkMillis = longProperty(props, "load_think_ms", 500);
+        maxSessions = (int) longProperty(props, "load_max_sessions", 10000);
+
+        HashMap<String, Integer> weights = new HashMap<String, Integer>();
+        for (String part : props.getProperty("load_mix", "member:5,staff:3,browse:2").split(",")) {
+            String[] kv = part.trim().split(":");
+            if (kv.length == 2) weights.put(kv[0].trim(), Integer.parseInt(kv[1].trim()));
+        }
+        int total = 0;
+        for (int k = 0; k < KINDS.length; ++k) {
+            Integer weight = weights.get(KINDS[k]);
+            total += weight == null ? 0 : Math.max(0, weight);
+            mix[k] = total;
+        }
+        if (total == 0) throw new IllegalArgumentException("load_mix has no member, staff or browse sessions");
+
+        for (Object[] row : dataset.staff) staff.add((String) row[0]);
+        for (String op : new String[] { "checkLogin", "getMemberDetails", "findJourneys", "getJourneyDetails",
+                "makeBooking", "seatsAfterBooking", "getBookingDetails", "getMemberBookings",
+                "getSports", "getEventsOfSport", "getResultsOfEvent" }) {
+            stats.put(op, new Stat());
+        }
+    }
+
+    /**
+     * Start sessions at the configured rate for the configured time, then
+     * wait for those in flight to finish
+     * @throws InterruptedException
+     */
+    public void run() throws InterruptedException {
+        ExecutorService executor = BackendExecutor.newExecutor("load-session");
+        Random scheduler = new Random(seed);
+        long intervalNanos = (long) (1e9 / rate);
+        long begin = System.nanoTime();
+        long end = begin + durationMillis * 1000000L;
+        long nextReport = begin + 10000000000L;
+        long lastCompleted = 0;
+        try {
+            for (long i = 0; ; ++i) {
+                final long due = begin + i * intervalNanos;
+                if (due >= end) break;
+                long wait = due - System.nanoTime();
+                if (wait > 0) LockSupport.parkNanos(wait);
+                if (Thread.interrupted()) throw new InterruptedException();
+
+                if (inFlight.get() >= maxSessions) {
+                    skipped.incrementAndGet();
+                    continue;
+                }
+                final String kind = pickKind(scheduler);
+                final Random random = new Random(scheduler.nextLong());
+                inFlight.incrementAndGet();
+                started.incrementAndGet();
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        startLag.record(System.nanoTime() - due);
+                        try {
+                            runSession(kind, random);
+                        } finally {
+                            inFlight.decrementAndGet();
+                            completed.incrementAndGet();
+                        }
+                    }
+                });
+
+                if (System.nanoTime() >= nextReport) {
+                    long done = completed.get();
+                    System.out.printf("%6.0fs  started %d  completed %d (%.1f/s)  in flight %d  skipped %d%n",
+                            (System.nanoTime() - begin) / 1e9, started.get(), done, (done - lastCompleted) / 10.0,
+                            inFlight.get(), skipped.get());
+                    lastCompleted = done;
+                    nextReport += 10000000000L;
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+        if (!executor.awaitTermination(60, TimeUnit.SECONDS)) {
+            System.out.println("Gave up waiting for " + inFlight.get() + " sessions");
+            executor.shutdownNow();
+        }
+        report((System.nanoTime() - begin) / 1e9);
+    }
+
+    private String pickKind(Random random) {
+        int r = random.nextInt(mix[mix.length - 1]);
+        for (int k = 0; k < KINDS.length; ++k) {
+            if (r < mix[k]) return KINDS[k];
+        }
+        return KINDS[KINDS.length - 1];
+    }
+
+    private void runSession(String kind, Random random) {
+        Op op = new Op();
+        try {
+            if ("member".equals(kind)) memberSession(op, random);
+            else if ("staff".equals(kind)) staffSession(op, random);
+            else browseSession(op, random);
+        } catch (OlympicsDBException e) {
+            op.fail();
+        } catch (RuntimeException e) {
+            op.fail();
+        } catch (InterruptedException e) {
+            op.fail();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /// Log in, check details, look up a journey and the booking history, open a booking, log out
+    private void memberSession(Op op, Random random) throws OlympicsDBException, InterruptedException {
+        String memberId = (String) pick(random, dataset.members)[0];
+        Login held = acquire(memberId);
+        try {
+            if (!login(op, memberId)) return;
+            think(random);
+
+            op.begin("getMemberDetails");
+            backend.getMemberDetails(memberId);
+            op.end();
+            think(random);
+
+            searchJourney(op, random);
+            think(random);
+
+            // The first page of history, as the client asks for it
+            op.begin("getMemberBookings");
+            TupleTable bookings = backend.getMemberBookings(memberId, null, null, OlympicsDBClient.HISTORY_PAGE_SIZE + 1);
+            op.end();
+            if (bookings.isEmpty()) return;
+            think(random);
+
+            op.begin("getBookingDetails");
+            backend.getBookingDetails(memberId, (Integer) bookings.get(random.nextInt(bookings.size()), "journey_id"));
+            op.end();
+        } finally {
+            release(memberId, held);
+        }
+    }
+
+    /// Log in as staff, find a journey, book a member onto it, check the seats left, log out
+    private void staffSession(Op op, Random random) throws OlympicsDBException, InterruptedException {
+        String staffId = staff.get(random.nextInt(staff.size()));
+        Login held = acquire(staffId);
+        try {
+            if (!login(op, staffId)) return;
+            think(random);
+
+            Object[] journey = searchJourney(op, random);
+            think(random);
+
+            Object[] member = pick(random, dataset.members);
+            op.begin("makeBooking");
+            HashMap<String, Object> booking = backend.makeBooking(staffId, Dataset.memberName(member),
+                    ((String) journey[1]).trim(), new Date(((Timestamp) journey[4]).getTime()));
+            op.end();
+            if (booking == null) return;
+            think(random);
+
+            // Re-read the journey's seats now the booking has taken one
+            op.begin("seatsAfterBooking");
+            backend.getJourneyDetails((Integer) journey[0]);
+            op.end();
+        } finally {
+            release(staffId, held);
+        }
+    }
+
+    /// Browse a sport's events and one event's results
+    private void browseSession(Op op, Random random) throws OlympicsDBException, InterruptedException {
+        op.begin("getSports");
+        TupleTable sports = backend.getSports();
+        op.end();
+        if (sports.isEmpty()) return;
+        think(random);
+
+        op.begin("getEventsOfSport");
+        TupleTable events = backend.getEventsOfSport((Integer) sports.get(random.nextInt(sports.size()), "sport_id"));
+        op.end();
+        if (events.isEmpty()) return;
+        think(random);
+
+        op.begin("getResultsOfEvent");
+        backend.getResultsOfEvent((Integer) events.get(random.nextInt(events.size()), "event_id"));
+        op.end();
+    }
+
+    /// Count a session of the member, waiting for any logout of theirs in progress
+    private Login acquire(String memberId) {
+        Login login = logins.get(memberId);
+        if (login == null) {
+            Login fresh = new Login();
+            login = logins.putIfAbsent(memberId, fresh);
+            if (login == null) login = fresh;
+        }
+        synchronized (login) {
+            ++login.sessions;
+        }
+        return login;
+    }
+
+    /// End a session of the member, ending the backend's session if it was the last one
+    private void release(String memberId, Login login) throws OlympicsDBException {
+        synchronized (login) {
+            if (--login.sessions == 0) {
+                backend.endSession(memberId);
+            }
+        }
+    }
+
+    /// @return whether the login succeeded; a rejected login counts as an error
+    private boolean login(Op op, String memberId) throws OlympicsDBException {
+        op.begin("checkLogin");
+        if (backend.checkLogin(memberId, Dataset.password(memberId).toCharArray()) == null) {
+            op.fail();
+            return false;
+        }
+        op.end();
+        return true;
+    }
+
+    /// Search for the route and day of a random journey, then view it
+    /// @return the journey's dataset row
+    private Object[] searchJourney(Op op, Random random) throws OlympicsDBException, InterruptedException {
+        Object[] journey = pick(random, dataset.journeys);
+        op.begin("findJourneys");
+        backend.findJourneys(placeName((Integer) journey[2]), placeName((Integer) journey[3]),
+                new Date(((Timestamp) journey[4]).getTime()));
+        op.end();
+        think(random);
+
+        op.begin("getJourneyDetails");
+        backend.getJourneyDetails((Integer) journey[0]);
+        op.end();
+        return journey;
+    }
+
+    private String placeName(int placeId) {
+        // Places are numbered from 1 in order
+        return (String) dataset.places.get(placeId - 1)[1];
+    }
+
+    private void think(Random random) throws InterruptedException {
+        if (thinkMillis > 0) {
+            Thread.sleep((long) (-Math.log(1 - random.nextDouble()) * thinkMillis));
+        }
+    }
+
+    private static Object[] pick(Random random, List<Object[]> rows) {
+        return rows.get(random.nextInt(rows.size()));
+    }
+
+    private void report(double seconds) {
+        System.out.printf("%nRan %.0f s at %.1f sessions/s: %d started, %d completed, %d skipped (over load_max_sessions)%n",
+                seconds, rate, started.get(), completed.get(), skipped.get());
+        System.out.printf("session start lag: p50 %.3f ms  p99 %.3f ms  max %.3f ms%n%n",
+                startLag.getValueAtPercentile(50) / 1e6, startLag.getValueAtPercentile(99) / 1e6, startLag.getMax() / 1e6);
+        System.out.printf("%-20s %9s %7s %9s %9s %9s %9s %9s %9s%n", "operation", "count", "errors", "per s",
+                "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms");
+        for (Map.Entry<String, Stat> entry : stats.entrySet()) {
+            LatencyHistogram h = entry.getValue().latency;
+            System.out.printf("%-20s %9d %7d %9.1f %9.3f %9.3f %9.3f %9.3f %9.3f%n", entry.getKey(), h.getCount(),
+                    entry.getValue().errors.get(), h.getCount() / seconds, h.getValueAtPercentile(50) / 1e6,
+                    h.getValueAtPercentile(90) / 1e6, h.getValueAtPercentile(99) / 1e6,
+                    h.getValueAtPercentile(99.9) / 1e6, h.getMax() / 1e6);
+        }
+        System.out.println("\nbackend statistics:");
+        for (Map.Entry<String, Object> stat : new TreeMap<String, Object>(backend.getStatistics()).entrySet()) {
+            System.out.println("  " + stat.getKey() + " = " + stat.getValue());
+        }
+    }
+
+    private static long longProperty(Properties props, String key, long defaultValue) {
+        String value = props.getProperty(key);
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    private static double doubleProperty(Properties props, String key, double defaultValue) {
+        String value = props.getProperty(key);
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Double.parseDouble(value.trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    public static void main(String[] args) throws IOException, OlympicsDBException, InterruptedException {
+        Properties props = new Properties();
+        int first = 0;
+        if (args.length > 0 && !args[0].contains("=")) {
+            InputStream in = new FileInputStream(args[0]);
+            try {
+                props.load(in);
+            } finally {
+                in.close();
+            }
+            first = 1;
+        }
+        for (int i = first; i < args.length; ++i) {
+            int eq = args[i].indexOf('=');
+            if (eq > 0) props.setProperty(args[i].substring(0, eq).trim(), args[i].substring(eq + 1).trim());
+        }
+        // Never book into whatever database the client uses just because no config was named
+        if (first == 0 && !"memory".equals(props.getProperty("backend", "jdbc").trim())) {
+            System.err.println("Usage: java usyd.it.olympics.tools.LoadGenerator <config> [setting=value ...]");
+            System.err.println("   or: java usyd.it.olympics.tools.LoadGenerator backend=memory [setting=value ...]");
+            System.err.println("Staff sessions make bookings that are left in the database, so name a scratch one.");
+            System.exit(2);
+        }
+
+        OlympicsBackend backend = BackendFactory.open(props);
+        try {
+            new LoadGenerator(backend, props).run();
+        } finally {
+            backend.close();
+        }
+    }
+}